@@ -0,0 +1,318 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Ordered rules to classify numbers into families and row-key suffixes of the
+ * index table.
+ *
+ * <p>
+ * Rules are space-separated, each of which is
+ * <code>predicate:family:suffix</code>, and the first rule whose predicate
+ * holds classifies the number. Predicates are:
+ * </p>
+ * <ul>
+ * <li><code>mod<i>d</i>[/<i>r</i>]</code>: the number modulo <i>d</i> is
+ * <i>r</i>, 0 by default.</li>
+ * <li><code>range[<i>min</i>]..[<i>max</i>]</code>: <i>min</i> &lt;= the
+ * number &lt; <i>max</i>, either bound may be omitted.</li>
+ * <li><code>mask<i>m</i>[/<i>b</i>]</code>: the bits <i>m</i> of the number
+ * are <i>b</i>, all set by default. Hexadecimals like <code>0xff</code> are
+ * accepted.</li>
+ * <li><code>any</code>: any number.</li>
+ * </ul>
+ * <p>
+ * A suffix ending with <code>%d</code> is followed by the decimal number.
+ * Numbers no rule holds for are not indexed.
+ * </p>
+ *
+ * <p>
+ * Rules are compiled into a residue wheel over the least common multiple of
+ * the divisors, which maps each residue to the first rule which may hold, so
+ * rules made of divisors only classify a number by a modulo and a table
+ * lookup. Others are tested in order from the rule found on the wheel.
+ * </p>
+ *
+ * @author ueshin
+ */
+class ClassificationRules {
+
+    /**
+     * The max size of the residue wheel.
+     */
+    static final int MAX_WHEEL_SIZE = 1 << 16;
+
+    /**
+     * A rule and its target.
+     */
+    static class Rule {
+
+        private static final int MOD = 0;
+
+        private static final int RANGE = 1;
+
+        private static final int MASK = 2;
+
+        private static final int ANY = 3;
+
+        private final int kind;
+
+        private final long first;
+
+        private final long second;
+
+        private final byte[] family;
+
+        private final byte[] suffix;
+
+        private final boolean decimal;
+
+        private Rule(int kind, long first, long second, byte[] family, byte[] suffix, boolean decimal) {
+            this.kind = kind;
+            this.first = first;
+            this.second = second;
+            this.family = family;
+            this.suffix = suffix;
+            this.decimal = decimal;
+        }
+
+        private boolean holds(long num) {
+            switch(kind) {
+            case MOD:
+                return floorMod(num, first) == second;
+            case RANGE:
+                return first <= num && (num < second || second == Long.MAX_VALUE);
+            case MASK:
+                return (num & first) == second;
+            default:
+                return true;
+            }
+        }
+
+        private boolean holds(double num) {
+            switch(kind) {
+            case RANGE:
+                return !Double.isNaN(num) && (first <= num || first == Long.MIN_VALUE)
+                        && (num < second || second == Long.MAX_VALUE);
+            case ANY:
+                return true;
+            default:
+                // residues and bits are of integral numbers only
+                return num == Math.rint(num) && Math.abs(num) < 0x1p63 && holds((long) num);
+            }
+        }
+
+        /**
+         * Returns the family of the index table.
+         *
+         * @return the family
+         */
+        byte[] getFamily() {
+            return family;
+        }
+
+        /**
+         * Returns the row-key suffix, without the decimal number if
+         * {@link #isDecimal()}.
+         *
+         * @return the suffix
+         */
+        byte[] getSuffix() {
+            return suffix;
+        }
+
+        /**
+         * Returns whether the suffix is followed by the decimal number.
+         *
+         * @return <code>true</code> if the decimal number follows
+         */
+        boolean isDecimal() {
+            return decimal;
+        }
+    }
+
+    /**
+     * Compiles the rules.
+     *
+     * @param rules
+     *            the space-separated rules
+     * @return the compiled rules
+     */
+    static ClassificationRules compile(String rules) {
+        List<Rule> list = new ArrayList<Rule>();
+        for(String rule : rules.trim().split(" +")) {
+            if(!rule.isEmpty()) {
+                list.add(parse(rule));
+            }
+        }
+        return new ClassificationRules(list.toArray(new Rule[list.size()]));
+    }
+
+    private static Rule parse(String rule) {
+        String[] parts = rule.split(":", 3);
+        if(parts.length < 3 || parts[1].isEmpty()) {
+            throw new IllegalArgumentException("Illegal rule: " + rule);
+        }
+        String predicate = parts[0];
+        byte[] family = Bytes.toBytes(parts[1]);
+        String suffix = parts[2];
+        boolean decimal = suffix.endsWith("%d");
+        if(decimal) {
+            suffix = suffix.substring(0, suffix.length() - 2);
+        }
+        try {
+            if(predicate.startsWith("mod")) {
+                String[] args = predicate.substring(3).split("/", 2);
+                long divisor = Long.decode(args[0]);
+                long residue = args.length > 1 ? Long.decode(args[1]) : 0L;
+                if(divisor <= 0L || divisor > Integer.MAX_VALUE || residue < 0L || residue >= divisor) {
+                    throw new IllegalArgumentException("Illegal divisor or residue: " + rule);
+                }
+                return new Rule(Rule.MOD, divisor, residue, family, Bytes.toBytes(suffix), decimal);
+            }
+            else if(predicate.startsWith("range")) {
+                String[] args = predicate.substring(5).split("\\.\\.", -1);
+                if(args.length != 2) {
+                    throw new IllegalArgumentException("Illegal range: " + rule);
+                }
+                long min = args[0].isEmpty() ? Long.MIN_VALUE : Long.decode(args[0]);
+                long max = args[1].isEmpty() ? Long.MAX_VALUE : Long.decode(args[1]);
+                return new Rule(Rule.RANGE, min, max, family, Bytes.toBytes(suffix), decimal);
+            }
+            else if(predicate.startsWith("mask")) {
+                String[] args = predicate.substring(4).split("/", 2);
+                long mask = Long.decode(args[0]);
+                long bits = args.length > 1 ? Long.decode(args[1]) : mask;
+                return new Rule(Rule.MASK, mask, bits, family, Bytes.toBytes(suffix), decimal);
+            }
+            else if(predicate.equals("any")) {
+                return new Rule(Rule.ANY, 0L, 0L, family, Bytes.toBytes(suffix), decimal);
+            }
+        }
+        catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal rule: " + rule, e);
+        }
+        throw new IllegalArgumentException("Unknown predicate: " + rule);
+    }
+
+    private static long floorMod(long num, long divisor) {
+        long mod = num % divisor;
+        return mod < 0 ? mod + divisor : mod;
+    }
+
+    private static long gcd(long a, long b) {
+        while(b != 0L) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private final Rule[] rules;
+
+    private final int wheelSize;
+
+    private final short[] wheel;
+
+    private final boolean exact;
+
+    private ClassificationRules(Rule[] rules) {
+        this.rules = rules;
+
+        long lcm = 1L;
+        boolean exact = true;
+        for(Rule rule : rules) {
+            if(rule.kind == Rule.MOD) {
+                if(lcm <= MAX_WHEEL_SIZE) {
+                    lcm = lcm / gcd(lcm, rule.first) * rule.first;
+                }
+            }
+            else if(rule.kind != Rule.ANY) {
+                exact = false;
+            }
+        }
+
+        if(lcm <= MAX_WHEEL_SIZE && rules.length < Short.MAX_VALUE) {
+            wheelSize = (int) lcm;
+            wheel = new short[wheelSize];
+            for(int residue = 0; residue < wheelSize; residue++) {
+                int i = 0;
+                // skips the divisor rules which never hold for the residue
+                while(i < rules.length && rules[i].kind == Rule.MOD && !rules[i].holds(residue)) {
+                    i++;
+                }
+                wheel[residue] = (short) i;
+            }
+            this.exact = exact;
+        }
+        else {
+            wheelSize = 0;
+            wheel = null;
+            this.exact = false;
+        }
+    }
+
+    /**
+     * Returns the first rule which holds for the number.
+     *
+     * @param num
+     *            the number
+     * @return the rule, or <code>null</code> if no rule holds
+     */
+    Rule classify(long num) {
+        if(wheel == null) {
+            return find(num, 0);
+        }
+        int residue = (int) floorMod(num, wheelSize);
+        int i = wheel[residue];
+        if(exact) {
+            return i < rules.length ? rules[i] : null;
+        }
+        return find(num, i);
+    }
+
+    /**
+     * Returns the first rule which holds for the floating-point number.
+     * Residues and bits hold only for integral numbers.
+     *
+     * @param num
+     *            the number
+     * @return the rule, or <code>null</code> if no rule holds
+     */
+    Rule classify(double num) {
+        for(Rule rule : rules) {
+            if(rule.holds(num)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    private Rule find(long num, int from) {
+        for(int i = from; i < rules.length; i++) {
+            if(rules[i].holds(num)) {
+                return rules[i];
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableUtils;
+
+import st.happy_camper.hbase.coprocessors.util.TablePool;
+import st.happy_camper.hbase.coprocessors.util.TargetMatcher;
+
+/**
+ * Builds the puts into the FizzBuzz table from cells of target columns.
+ *
+ * <p>
+ * Each target may be followed by <code>@</code> and the {@link ValueType} of
+ * its values, and the targets are compiled into a {@link TargetMatcher} per
+ * type. Values are decoded and classified by {@link ClassificationRules}, and
+ * the puts are encoded straight from the buffer of the cells into the buffer
+ * of the new cells, sized up front. Malformed values are counted and skipped.
+ * </p>
+ *
+ * @author ueshin
+ */
+class FizzBuzzIndexer {
+
+    private static final Log LOG = LogFactory.getLog(FizzBuzzIndexer.class);
+
+    private final ValueType[] types;
+
+    private final TargetMatcher[] matchers;
+
+    private final ClassificationRules rules;
+
+    private final boolean ordered;
+
+    private final IndexDictionary dictionary;
+
+    private final boolean writeToWAL;
+
+    private final AtomicLong malformed = new AtomicLong();
+
+    /**
+     * Constructs the indexer from the parameters of the observer.
+     *
+     * @param conf
+     *            the configuration
+     * @param pool
+     *            the pool of the FizzBuzz table for the dictionary of the
+     *            compact qualifiers, or <code>null</code> if the index is
+     *            local
+     */
+    FizzBuzzIndexer(Configuration conf, TablePool pool) {
+        ValueType defaultType = ValueType.of(conf.get(FizzBuzzRegionObserver.CONF_TYPE,
+                FizzBuzzRegionObserver.DEFAULT_TYPE));
+        Map<ValueType, StringBuilder> targets = new TreeMap<ValueType, StringBuilder>();
+        String targetString = conf.get(FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS);
+        if(targetString != null) {
+            for(String target : targetString.split(" +")) {
+                if(!target.isEmpty()) {
+                    ValueType type = defaultType;
+                    int at = target.lastIndexOf('@');
+                    if(at >= 0) {
+                        type = ValueType.of(target.substring(at + 1));
+                        target = target.substring(0, at);
+                    }
+                    StringBuilder sb = targets.get(type);
+                    if(sb == null) {
+                        sb = new StringBuilder();
+                        targets.put(type, sb);
+                    }
+                    sb.append(target).append(' ');
+                }
+            }
+        }
+        types = new ValueType[targets.size()];
+        matchers = new TargetMatcher[targets.size()];
+        int i = 0;
+        for(Map.Entry<ValueType, StringBuilder> entry : targets.entrySet()) {
+            types[i] = entry.getKey();
+            matchers[i] = TargetMatcher.compile(entry.getValue().toString());
+            i++;
+        }
+
+        rules = ClassificationRules.compile(conf.get(FizzBuzzRegionObserver.CONF_RULES,
+                FizzBuzzRegionObserver.DEFAULT_RULES));
+
+        String encoding = conf.get(FizzBuzzRegionObserver.CONF_ENCODING, FizzBuzzRegionObserver.ENCODING_RAW);
+        if(!FizzBuzzRegionObserver.ENCODING_RAW.equals(encoding)
+                && !FizzBuzzRegionObserver.ENCODING_ORDERED.equals(encoding)) {
+            throw new IllegalArgumentException("Unknown encoding: " + encoding);
+        }
+        ordered = FizzBuzzRegionObserver.ENCODING_ORDERED.equals(encoding);
+
+        String qualifier = conf.get(FizzBuzzRegionObserver.CONF_QUALIFIER, FizzBuzzRegionObserver.QUALIFIER_LEGACY);
+        if(FizzBuzzRegionObserver.QUALIFIER_COMPACT.equals(qualifier) && pool != null) {
+            dictionary = new IndexDictionary(pool, Bytes.toBytes(conf.get(
+                    FizzBuzzRegionObserver.CONF_DICTIONARY_FAMILY, FizzBuzzRegionObserver.DEFAULT_DICTIONARY_FAMILY)));
+        }
+        else if(FizzBuzzRegionObserver.QUALIFIER_LEGACY.equals(qualifier)
+                || FizzBuzzRegionObserver.QUALIFIER_COMPACT.equals(qualifier)) {
+            dictionary = null;
+        }
+        else {
+            throw new IllegalArgumentException("Unknown qualifier: " + qualifier);
+        }
+
+        writeToWAL = conf.getBoolean(FizzBuzzRegionObserver.CONF_INDEX_WAL, true);
+    }
+
+    /**
+     * Returns whether the family has targets.
+     *
+     * @param family
+     *            the family
+     * @return <code>true</code> if the family has targets
+     */
+    boolean targets(byte[] family) {
+        for(TargetMatcher matcher : matchers) {
+            if(matcher.getFamily(family) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ValueType typeOf(KeyValue kv) {
+        for(int i = 0; i < matchers.length; i++) {
+            if(matchers[i].matches(kv)) {
+                return types[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of malformed values skipped.
+     *
+     * @return the number of malformed values
+     */
+    long getMalformedCount() {
+        return malformed.get();
+    }
+
+    /**
+     * A number classified, and the length of its row in the FizzBuzz table.
+     */
+    private static class Entry {
+
+        private final ValueType type;
+
+        private final long num;
+
+        private final ClassificationRules.Rule rule;
+
+        private final byte[] floatingDecimal;
+
+        private final int decimalLength;
+
+        private final int rowLength;
+
+        private Entry(ValueType type, long num, ClassificationRules.Rule rule, byte[] floatingDecimal,
+                int decimalLength, int rowLength) {
+            this.type = type;
+            this.num = num;
+            this.rule = rule;
+            this.floatingDecimal = floatingDecimal;
+            this.decimalLength = decimalLength;
+            this.rowLength = rowLength;
+        }
+    }
+
+    private Entry classify(KeyValue kv, boolean count) {
+        ValueType type = typeOf(kv);
+        if(type == null) {
+            return null;
+        }
+        long num;
+        try {
+            num = type.decode(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
+        }
+        catch(NumberFormatException e) {
+            if(!count) {
+                // counted when the cell was put
+                return null;
+            }
+            if(malformed.incrementAndGet() == 1L) {
+                LOG.warn("Skipped a malformed " + type + " value of " + kv + ", later ones are logged in debug.", e);
+            }
+            else if(LOG.isDebugEnabled()) {
+                LOG.debug("Skipped a malformed " + type + " value of " + kv + ".", e);
+            }
+            return null;
+        }
+        double floating = type.isFloating() ? Double.longBitsToDouble(num) : 0.0;
+
+        ClassificationRules.Rule rule = type.isFloating() ? rules.classify(floating) : rules.classify(num);
+        if(rule == null) {
+            return null;
+        }
+        byte[] floatingDecimal = null;
+        int decimalLength = 0;
+        if(rule.isDecimal()) {
+            if(type.isFloating()) {
+                floatingDecimal = Bytes.toBytes(type == ValueType.FLOAT ? Float.toString((float) floating) : Double
+                        .toString(floating));
+                decimalLength = floatingDecimal.length;
+            }
+            else {
+                decimalLength = decimalLength(num);
+            }
+        }
+        // row: value + suffix (+ decimal number)
+        int rowLength = (ordered ? Bytes.SIZEOF_LONG : kv.getValueLength()) + rule.getSuffix().length + decimalLength;
+        return new Entry(type, num, rule, floatingDecimal, decimalLength, rowLength);
+    }
+
+    private int putRow(byte[] bytes, int offset, KeyValue kv, Entry entry) {
+        if(ordered) {
+            offset = Bytes.putLong(bytes, offset, entry.type.isFloating() ? toOrdered(Double
+                    .longBitsToDouble(entry.num)) : toOrdered(entry.num));
+        }
+        else {
+            offset = Bytes.putBytes(bytes, offset, kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
+        }
+        byte[] suffix = entry.rule.getSuffix();
+        offset = Bytes.putBytes(bytes, offset, suffix, 0, suffix.length);
+        if(entry.floatingDecimal != null) {
+            offset = Bytes.putBytes(bytes, offset, entry.floatingDecimal, 0, entry.floatingDecimal.length);
+        }
+        else if(entry.rule.isDecimal()) {
+            offset += entry.decimalLength;
+            putDecimal(bytes, offset, entry.num);
+        }
+        return offset;
+    }
+
+    /**
+     * Adds the put into the FizzBuzz table for the number of the cell, if the
+     * cell is targeted and its value is well-formed and classified.
+     *
+     * @param table
+     *            the source table name
+     * @param kv
+     *            the cell
+     * @param puts
+     *            the puts to add to
+     * @throws IOException
+     *             if the dictionary of the compact qualifiers fails
+     */
+    void index(byte[] table, KeyValue kv, List<? super Put> puts) throws IOException {
+        Entry entry = classify(kv, true);
+        if(entry == null) {
+            return;
+        }
+        KeyValue index = encode(table, kv, entry, KeyValue.Type.Put);
+        Put put = new Put(index.getRow(), kv.getTimestamp());
+        // the row matches by construction, so skip the check of Put.add(KeyValue)
+        List<KeyValue> kvs = new ArrayList<KeyValue>(1);
+        kvs.add(index);
+        put.getFamilyMap().put(entry.rule.getFamily(), kvs);
+        put.setWriteToWAL(writeToWAL);
+        puts.add(put);
+    }
+
+    /**
+     * Adds the delete of the cell of the FizzBuzz table for the number of the
+     * cell, which deletes the exact version put by
+     * {@link #index(byte[], KeyValue, List)}.
+     *
+     * @param table
+     *            the source table name
+     * @param kv
+     *            the cell deleted
+     * @param deletes
+     *            the deletes to add to
+     * @throws IOException
+     *             if the dictionary of the compact qualifiers fails
+     */
+    void unindex(byte[] table, KeyValue kv, List<? super Delete> deletes) throws IOException {
+        Entry entry = classify(kv, false);
+        if(entry == null) {
+            return;
+        }
+        KeyValue index = encode(table, kv, entry, KeyValue.Type.Delete);
+        Delete delete = new Delete(index.getRow());
+        List<KeyValue> kvs = new ArrayList<KeyValue>(1);
+        kvs.add(index);
+        delete.getFamilyMap().put(entry.rule.getFamily(), kvs);
+        delete.setWriteToWAL(writeToWAL);
+        deletes.add(delete);
+    }
+
+    private KeyValue encode(byte[] table, KeyValue kv, Entry entry, KeyValue.Type type) throws IOException {
+        byte[] buffer = kv.getBuffer();
+        byte[] family = entry.rule.getFamily();
+
+        int rLength = kv.getRowLength();
+        int fLength = kv.getFamilyLength();
+        int qLength = kv.getQualifierLength();
+        long tableId = 0L;
+        long familyId = 0L;
+        int qualifierLength;
+        if(dictionary != null) {
+            // qualifier: version + vlong table id + vint + row + vlong family id + qualifier,
+            // the timestamp is the one of the index cell
+            tableId = dictionary.idOf(table);
+            familyId = dictionary.idOf(buffer, kv.getFamilyOffset(), fLength);
+            qualifierLength = 1 + WritableUtils.getVIntSize(tableId) + WritableUtils.getVIntSize(rLength) + rLength
+                    + WritableUtils.getVIntSize(familyId) + qLength;
+        }
+        else {
+            // qualifier: int + table + long timestamp + short + row + short + family + int + qualifier,
+            // the same layout as Bytes.toBytes() of each length concatenated
+            qualifierLength = Bytes.SIZEOF_INT + table.length + Bytes.SIZEOF_LONG + Bytes.SIZEOF_SHORT + rLength
+                    + Bytes.SIZEOF_SHORT + fLength + Bytes.SIZEOF_INT + qLength;
+        }
+
+        int valueLength = type == KeyValue.Type.Put ? kv.getValueLength() : 0;
+        KeyValue index = new KeyValue(entry.rowLength, family.length, qualifierLength, kv.getTimestamp(), type,
+                valueLength);
+        byte[] bytes = index.getBuffer();
+
+        putRow(bytes, index.getRowOffset(), kv, entry);
+
+        Bytes.putBytes(bytes, index.getFamilyOffset(), family, 0, family.length);
+
+        int offset;
+        if(dictionary != null) {
+            bytes[index.getQualifierOffset()] = IndexReference.VERSION_COMPACT;
+            offset = putVLong(bytes, index.getQualifierOffset() + 1, tableId);
+            offset = putVLong(bytes, offset, rLength);
+            offset = Bytes.putBytes(bytes, offset, buffer, kv.getRowOffset(), rLength);
+            offset = putVLong(bytes, offset, familyId);
+        }
+        else {
+            offset = Bytes.putInt(bytes, index.getQualifierOffset(), table.length);
+            offset = Bytes.putBytes(bytes, offset, table, 0, table.length);
+            offset = Bytes.putLong(bytes, offset, kv.getTimestamp());
+            offset = Bytes.putShort(bytes, offset, (short) rLength);
+            offset = Bytes.putBytes(bytes, offset, buffer, kv.getRowOffset(), rLength);
+            offset = Bytes.putShort(bytes, offset, (short) fLength);
+            offset = Bytes.putBytes(bytes, offset, buffer, kv.getFamilyOffset(), fLength);
+            offset = Bytes.putInt(bytes, offset, qLength);
+        }
+        Bytes.putBytes(bytes, offset, buffer, kv.getQualifierOffset(), qLength);
+
+        Bytes.putBytes(bytes, index.getValueOffset(), buffer, kv.getValueOffset(), valueLength);
+        return index;
+    }
+
+    /**
+     * Adds the cell of the local index for the number of the cell into the
+     * same row, if the cell is targeted and its value is well-formed and
+     * classified. The families of the rules are not used.
+     *
+     * @param localFamily
+     *            the family of the local index
+     * @param kv
+     *            the cell
+     * @param kvs
+     *            the cells to add to
+     * @see IndexReference#decodeLocal(byte[], KeyValue)
+     */
+    void indexLocal(byte[] localFamily, KeyValue kv, List<KeyValue> kvs) {
+        Entry entry = classify(kv, true);
+        if(entry != null) {
+            kvs.add(encodeLocal(localFamily, kv, entry, KeyValue.Type.Put));
+        }
+    }
+
+    /**
+     * Adds the delete marker of the cell of the local index for the number of
+     * the cell, which deletes the exact version put by
+     * {@link #indexLocal(byte[], KeyValue, List)}.
+     *
+     * @param localFamily
+     *            the family of the local index
+     * @param kv
+     *            the cell deleted
+     * @param kvs
+     *            the delete markers to add to
+     */
+    void unindexLocal(byte[] localFamily, KeyValue kv, List<KeyValue> kvs) {
+        Entry entry = classify(kv, false);
+        if(entry != null) {
+            kvs.add(encodeLocal(localFamily, kv, entry, KeyValue.Type.Delete));
+        }
+    }
+
+    private KeyValue encodeLocal(byte[] localFamily, KeyValue kv, Entry entry, KeyValue.Type type) {
+        byte[] buffer = kv.getBuffer();
+
+        // qualifier: index row + family + qualifier + int index row length + short family length,
+        // so the qualifiers sort by the index rows
+        int fLength = kv.getFamilyLength();
+        int qLength = kv.getQualifierLength();
+        int qualifierLength = entry.rowLength + fLength + qLength + Bytes.SIZEOF_INT + Bytes.SIZEOF_SHORT;
+
+        int valueLength = type == KeyValue.Type.Put ? kv.getValueLength() : 0;
+        KeyValue index = new KeyValue(kv.getRowLength(), localFamily.length, qualifierLength, kv.getTimestamp(),
+                type, valueLength);
+        byte[] bytes = index.getBuffer();
+
+        Bytes.putBytes(bytes, index.getRowOffset(), buffer, kv.getRowOffset(), kv.getRowLength());
+        Bytes.putBytes(bytes, index.getFamilyOffset(), localFamily, 0, localFamily.length);
+
+        int offset = putRow(bytes, index.getQualifierOffset(), kv, entry);
+        offset = Bytes.putBytes(bytes, offset, buffer, kv.getFamilyOffset(), fLength);
+        offset = Bytes.putBytes(bytes, offset, buffer, kv.getQualifierOffset(), qLength);
+        offset = Bytes.putInt(bytes, offset, entry.rowLength);
+        Bytes.putShort(bytes, offset, (short) fLength);
+
+        Bytes.putBytes(bytes, index.getValueOffset(), buffer, kv.getValueOffset(), valueLength);
+        return index;
+    }
+
+    /**
+     * Returns the bits of the long which sort in the numeric order as unsigned
+     * bytes.
+     *
+     * @param num
+     *            the number
+     * @return the bits
+     */
+    static long toOrdered(long num) {
+        return num ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the bits of the double which sort in the numeric order as
+     * unsigned bytes.
+     *
+     * @param d
+     *            the number
+     * @return the bits
+     */
+    static long toOrdered(double d) {
+        long bits = Double.doubleToLongBits(d == 0.0 ? 0.0 : d);
+        return bits ^ ((bits >> 63) | Long.MIN_VALUE);
+    }
+
+    /**
+     * Puts the long in the format of
+     * {@link WritableUtils#writeVLong(java.io.DataOutput, long)}.
+     */
+    private static int putVLong(byte[] bytes, int offset, long value) {
+        if(value >= -112L && value <= 127L) {
+            bytes[offset] = (byte) value;
+            return offset + 1;
+        }
+        int length = -112;
+        if(value < 0L) {
+            value = ~value;
+            length = -120;
+        }
+        for(long tmp = value; tmp != 0L; tmp >>= 8) {
+            length--;
+        }
+        bytes[offset++] = (byte) length;
+        for(int i = length < -120 ? -(length + 120) : -(length + 112); i > 0; i--) {
+            bytes[offset++] = (byte) (value >> ((i - 1) * 8));
+        }
+        return offset;
+    }
+
+    private static int decimalLength(long num) {
+        int length = num < 0 ? 2 : 1;
+        // negative not to overflow on Long.MIN_VALUE
+        for(long n = num < 0 ? num : -num; n <= -10; n /= 10) {
+            length++;
+        }
+        return length;
+    }
+
+    private static void putDecimal(byte[] bytes, int end, long num) {
+        long n = num < 0 ? num : -num;
+        int i = end;
+        do {
+            bytes[--i] = (byte) ('0' - n % 10);
+            n /= 10;
+        } while(n != 0);
+        if(num < 0) {
+            bytes[--i] = '-';
+        }
+    }
+}
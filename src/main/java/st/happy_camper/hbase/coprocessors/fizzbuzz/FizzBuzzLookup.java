@@ -0,0 +1,454 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.coprocessor.Batch;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Threads;
+
+/**
+ * A client to look up the source cells of a value or a range of values through
+ * the FizzBuzz table by {@link FizzBuzzLookupEndpoint}, which must be
+ * configured on the FizzBuzz table.
+ * 
+ * <p>
+ * References are looked up a page at a time and decoded by the endpoint, then
+ * the referenced cells of each source table are fetched by a multi-get in
+ * parallel with the other tables. The client library splits each multi-get by
+ * the regions of the gets and sends the parts to the region servers in
+ * parallel, so a page costs one round trip per region server. Cells which are
+ * deleted or overwritten by other values since they were indexed are skipped.
+ * </p>
+ * 
+ * <p>
+ * Ranges of values can be looked up only with <code>encoding=ordered</code>,
+ * whose rows sort in the numeric order. Floating-point values and integral
+ * values are encoded differently, so ranges of doubles find only the values of
+ * the targets of <code>float</code> or <code>double</code>.
+ * </p>
+ * 
+ * <p>
+ * Constructed with a source table with <code>index=local</code>, the client
+ * looks up the local index of all the regions of the table in parallel
+ * instead, whose references are checked in place and need no fetches.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class FizzBuzzLookup implements Closeable {
+
+    /**
+     * Configuration key for the number of references looked up in a page.
+     */
+    public static final String CONF_PAGE_SIZE = "lookup.pagesize";
+
+    /**
+     * Configuration key for the number of threads to fetch the source cells.
+     */
+    public static final String CONF_THREADS = "lookup.threads";
+
+    /**
+     * The default number of references looked up in a page.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * The default number of threads to fetch the source cells.
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * Returns the first row of the number with <code>encoding=ordered</code>.
+     * 
+     * @param num
+     *            the integral number
+     * @return the row
+     */
+    public static byte[] toOrderedRow(long num) {
+        return Bytes.toBytes(FizzBuzzIndexer.toOrdered(num));
+    }
+
+    /**
+     * Returns the first row of the floating-point number with
+     * <code>encoding=ordered</code>.
+     * 
+     * @param num
+     *            the floating-point number
+     * @return the row
+     */
+    public static byte[] toOrderedRow(double num) {
+        return Bytes.toBytes(FizzBuzzIndexer.toOrdered(num));
+    }
+
+    /**
+     * A scanner of the source cells looked up, a page at a time.
+     */
+    public class Scanner {
+
+        private final byte[] startRow;
+
+        private final byte[] stopRow;
+
+        private final byte[] value;
+
+        private byte[] next;
+
+        private boolean done = false;
+
+        private List<byte[]> pending = null;
+
+        private Scanner(byte[] startRow, byte[] stopRow, byte[] value) {
+            this.startRow = startRow;
+            this.stopRow = stopRow;
+            this.value = value;
+            this.next = startRow;
+        }
+
+        /**
+         * Returns the source cells of the next page, in the order of the rows
+         * of the FizzBuzz table, or with the local index, of the source rows
+         * of each region and the regions in turn.
+         * 
+         * @return the cells, or empty if the lookup is over
+         * @throws IOException
+         */
+        public List<KeyValue> next() throws IOException {
+            try {
+                while(!done) {
+                    List<KeyValue> kvs = local ? nextLocal() : fetch(nextGlobal());
+                    if(!kvs.isEmpty()) {
+                        return kvs;
+                    }
+                }
+                return Collections.emptyList();
+            }
+            catch(IOException e) {
+                throw e;
+            }
+            catch(Throwable t) {
+                // proxies wrap remote failures into undeclared exceptions
+                throw (IOException) new IOException("Failed to look up the index.").initCause(t);
+            }
+        }
+
+        private List<IndexReference> nextGlobal() throws IOException {
+            IndexPage page = index.coprocessorProxy(FizzBuzzLookupProtocol.class, next).lookup(next, stopRow, value,
+                    pageSize);
+            next = page.getNext();
+            done = next.length == 0;
+            return page.getReferences();
+        }
+
+        private List<KeyValue> nextLocal() throws Throwable {
+            List<IndexPage> pages = new ArrayList<IndexPage>();
+            if(pending == null) {
+                pages.addAll(index.coprocessorExec(FizzBuzzLookupProtocol.class, null, null,
+                        new Batch.Call<FizzBuzzLookupProtocol, IndexPage>() {
+
+                            @Override
+                            public IndexPage call(FizzBuzzLookupProtocol instance) throws IOException {
+                                return instance.lookupLocal(HConstants.EMPTY_BYTE_ARRAY, startRow, stopRow, value,
+                                        pageSize);
+                            }
+                        }).values());
+            }
+            else {
+                List<Future<IndexPage>> futures = new ArrayList<Future<IndexPage>>(pending.size());
+                for(final byte[] row : pending) {
+                    futures.add(executor.submit(new Callable<IndexPage>() {
+
+                        @Override
+                        public IndexPage call() throws IOException {
+                            return index.coprocessorProxy(FizzBuzzLookupProtocol.class, row).lookupLocal(row,
+                                    startRow, stopRow, value, pageSize);
+                        }
+                    }));
+                }
+                for(Future<IndexPage> future : futures) {
+                    pages.add(get(future));
+                }
+            }
+
+            pending = new ArrayList<byte[]>();
+            List<KeyValue> kvs = new ArrayList<KeyValue>();
+            for(IndexPage page : pages) {
+                if(page.getNext().length > 0) {
+                    pending.add(page.getNext());
+                }
+                for(IndexReference ref : page.getReferences()) {
+                    kvs.add(new KeyValue(ref.getRow(), ref.getFamily(), ref.getQualifier(), ref.getTimestamp(), ref
+                            .getValue()));
+                }
+            }
+            done = pending.isEmpty();
+            return kvs;
+        }
+
+        /**
+         * Returns all the remaining source cells.
+         * 
+         * @return the cells
+         * @throws IOException
+         */
+        public List<KeyValue> all() throws IOException {
+            List<KeyValue> all = new ArrayList<KeyValue>();
+            for(List<KeyValue> kvs = next(); !kvs.isEmpty(); kvs = next()) {
+                all.addAll(kvs);
+            }
+            return all;
+        }
+    }
+
+    private final HTable index;
+
+    private final HTablePool sources;
+
+    private final ExecutorService executor;
+
+    private final int pageSize;
+
+    private final boolean local;
+
+    /**
+     * Constructs a client of the FizzBuzz table configured by the
+     * configuration.
+     * 
+     * @param conf
+     *            the configuration
+     * @throws IOException
+     */
+    public FizzBuzzLookup(Configuration conf) throws IOException {
+        this(conf, FizzBuzzRegionObserver.TABLE_NAME, false);
+    }
+
+    /**
+     * Constructs a client of the local index of the source table configured
+     * by the configuration.
+     * 
+     * @param conf
+     *            the configuration
+     * @param table
+     *            the source table name
+     * @throws IOException
+     */
+    public FizzBuzzLookup(Configuration conf, byte[] table) throws IOException {
+        this(conf, table, true);
+    }
+
+    private FizzBuzzLookup(Configuration conf, byte[] table, boolean local) throws IOException {
+        this.index = new HTable(conf, table);
+        this.local = local;
+        this.pageSize = conf.getInt(CONF_PAGE_SIZE, DEFAULT_PAGE_SIZE);
+        int threads = conf.getInt(CONF_THREADS, DEFAULT_THREADS);
+        this.sources = new HTablePool(conf, threads);
+        this.executor = Executors.newFixedThreadPool(threads, Threads.getNamedThreadFactory("fizzbuzz-lookup"));
+    }
+
+    /**
+     * Looks up the source cells of the value with <code>encoding=raw</code>.
+     * 
+     * @param value
+     *            the value as it is in the source cells
+     * @return the scanner
+     */
+    public Scanner lookupRaw(byte[] value) {
+        // rows of longer values may have the value as their prefix
+        return lookup(value, stopRowOf(value), value);
+    }
+
+    /**
+     * Looks up the source cells of the integral number with
+     * <code>encoding=ordered</code>.
+     * 
+     * @param num
+     *            the number
+     * @return the scanner
+     */
+    public Scanner lookupOrdered(long num) {
+        return lookup(toOrderedRow(num), num < Long.MAX_VALUE ? toOrderedRow(num + 1) : HConstants.EMPTY_BYTE_ARRAY,
+                null);
+    }
+
+    /**
+     * Looks up the source cells of the integral numbers in the range with
+     * <code>encoding=ordered</code>.
+     * 
+     * @param from
+     *            the lower bound, inclusive
+     * @param to
+     *            the upper bound, exclusive
+     * @return the scanner
+     */
+    public Scanner lookupOrdered(long from, long to) {
+        return lookup(toOrderedRow(from), toOrderedRow(to), null);
+    }
+
+    /**
+     * Looks up the source cells of the floating-point numbers in the range
+     * with <code>encoding=ordered</code>.
+     * 
+     * @param from
+     *            the lower bound, inclusive
+     * @param to
+     *            the upper bound, exclusive
+     * @return the scanner
+     */
+    public Scanner lookupOrdered(double from, double to) {
+        return lookup(toOrderedRow(from), toOrderedRow(to), null);
+    }
+
+    /**
+     * Looks up the source cells referenced by the index rows in the range,
+     * which are the rows of the FizzBuzz table or the beginnings of the
+     * qualifiers of the local index.
+     * 
+     * @param startRow
+     *            the first index row, inclusive
+     * @param stopRow
+     *            the last index row, exclusive, or empty for no upper bound
+     * @param value
+     *            the value the source cells must have, or <code>null</code>
+     *            for any value
+     * @return the scanner
+     */
+    public Scanner lookup(byte[] startRow, byte[] stopRow, byte[] value) {
+        return new Scanner(startRow, stopRow, value);
+    }
+
+    private static byte[] stopRowOf(byte[] prefix) {
+        for(int i = prefix.length - 1; i >= 0; i--) {
+            if(prefix[i] != (byte) 0xff) {
+                byte[] stop = Bytes.head(prefix, i + 1);
+                stop[i]++;
+                return stop;
+            }
+        }
+        return HConstants.EMPTY_BYTE_ARRAY;
+    }
+
+    private List<KeyValue> fetch(List<IndexReference> references) throws IOException {
+        if(references.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final Map<byte[], List<Integer>> tables = new TreeMap<byte[], List<Integer>>(Bytes.BYTES_COMPARATOR);
+        for(int i = 0; i < references.size(); i++) {
+            byte[] table = references.get(i).getTable();
+            List<Integer> positions = tables.get(table);
+            if(positions == null) {
+                positions = new ArrayList<Integer>();
+                tables.put(table, positions);
+            }
+            positions.add(i);
+        }
+
+        final IndexReference[] refs = references.toArray(new IndexReference[references.size()]);
+        final KeyValue[] fetched = new KeyValue[refs.length];
+        List<Future<?>> futures = new ArrayList<Future<?>>(tables.size());
+        for(final Map.Entry<byte[], List<Integer>> entry : tables.entrySet()) {
+            futures.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws IOException {
+                    List<Integer> positions = entry.getValue();
+                    List<Get> gets = new ArrayList<Get>(positions.size());
+                    for(int position : positions) {
+                        IndexReference ref = refs[position];
+                        Get get = new Get(ref.getRow());
+                        get.addColumn(ref.getFamily(), ref.getQualifier());
+                        get.setTimeStamp(ref.getTimestamp());
+                        gets.add(get);
+                    }
+                    HTableInterface table = sources.getTable(entry.getKey());
+                    try {
+                        Result[] results = table.get(gets);
+                        for(int i = 0; i < results.length; i++) {
+                            KeyValue kv = results[i].isEmpty() ? null : results[i].raw()[0];
+                            int position = positions.get(i);
+                            if(kv != null
+                                    && Bytes.equals(refs[position].getValue(), 0, refs[position].getValue().length,
+                                            kv.getBuffer(), kv.getValueOffset(), kv.getValueLength())) {
+                                fetched[position] = kv;
+                            }
+                        }
+                    }
+                    finally {
+                        table.close();
+                    }
+                    return null;
+                }
+            }));
+        }
+        for(Future<?> future : futures) {
+            get(future);
+        }
+
+        List<KeyValue> kvs = new ArrayList<KeyValue>(fetched.length);
+        for(KeyValue kv : fetched) {
+            if(kv != null) {
+                kvs.add(kv);
+            }
+        }
+        return kvs;
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new IOException("Interrupted while looking up.").initCause(e);
+        }
+        catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw (IOException) new IOException("Failed to look up.").initCause(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        try {
+            sources.close();
+        }
+        finally {
+            index.close();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.coprocessor.BaseEndpointCoprocessor;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.filter.ColumnRangeFilter;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import st.happy_camper.hbase.coprocessors.util.TablePool;
+
+/**
+ * An endpoint on the FizzBuzz table to look up references to source cells
+ * written by {@link FizzBuzzRegionObserver} in the region.
+ * 
+ * <p>
+ * The qualifiers of the index cells are decoded here, so only the references
+ * are sent back, a page at a time. A page ends at a row boundary once it has
+ * <code>limit</code> references, so a row is never split across pages.
+ * </p>
+ * 
+ * <p>
+ * Configured on a source table with <code>index=local</code>, the endpoint
+ * looks up the local index in the <code>local.family</code> of the region
+ * instead, and checks the values of the referenced cells in place.
+ * </p>
+ * 
+ * <p>
+ * The endpoint also cuts the index cells into ranges and computes their
+ * checksums for {@link FizzBuzzReconciler}, so that only the ranges whose
+ * checksums differ are read by the client.
+ * </p>
+ * 
+ * @author ueshin
+ * @see FizzBuzzLookup
+ */
+public class FizzBuzzLookupEndpoint extends BaseEndpointCoprocessor implements FizzBuzzLookupProtocol {
+
+    private static final Log LOG = LogFactory.getLog(FizzBuzzLookupEndpoint.class);
+
+    /**
+     * Configuration key for the family of the local index.
+     */
+    public static final String CONF_LOCAL_FAMILY = FizzBuzzRegionObserver.CONF_LOCAL_FAMILY;
+
+    /**
+     * Configuration key for the family of the dictionary of the compact
+     * qualifiers.
+     */
+    public static final String CONF_DICTIONARY_FAMILY = FizzBuzzRegionObserver.CONF_DICTIONARY_FAMILY;
+
+    private byte[] localFamily;
+
+    private TablePool pool;
+
+    private IndexDictionary dictionary;
+
+    @Override
+    public void start(CoprocessorEnvironment env) {
+        super.start(env);
+        Configuration conf = env.getConfiguration();
+        localFamily = Bytes.toBytes(conf.get(CONF_LOCAL_FAMILY, FizzBuzzRegionObserver.DEFAULT_LOCAL_FAMILY));
+        // handles are created on the first lookup of the dictionary
+        pool = TablePool.create(conf, FizzBuzzRegionObserver.TABLE_NAME);
+        dictionary = new IndexDictionary(pool, Bytes.toBytes(conf.get(CONF_DICTIONARY_FAMILY,
+                FizzBuzzRegionObserver.DEFAULT_DICTIONARY_FAMILY)));
+    }
+
+    @Override
+    public void stop(CoprocessorEnvironment env) {
+        try {
+            pool.close();
+        }
+        catch(IOException e) {
+            LOG.warn("Failed to close the handles of the dictionary.", e);
+        }
+        super.stop(env);
+    }
+
+    @Override
+    public IndexPage lookup(byte[] startRow, byte[] stopRow, byte[] value, int limit) throws IOException {
+        HRegion region = ((RegionCoprocessorEnvironment) getEnvironment()).getRegion();
+        byte[] endKey = region.getEndKey();
+        if(Bytes.compareTo(startRow, region.getStartKey()) < 0) {
+            startRow = region.getStartKey();
+        }
+        boolean lastRegion = endKey.length == 0 || (stopRow.length > 0 && Bytes.compareTo(stopRow, endKey) <= 0);
+        if(!lastRegion) {
+            stopRow = endKey;
+        }
+
+        List<IndexReference> references = new ArrayList<IndexReference>();
+        if(stopRow.length > 0 && Bytes.compareTo(startRow, stopRow) >= 0) {
+            return new IndexPage(references, lastRegion ? HConstants.EMPTY_BYTE_ARRAY : endKey);
+        }
+
+        RegionScanner scanner = region.getScanner(new Scan(startRow, stopRow));
+        try {
+            List<KeyValue> kvs = new ArrayList<KeyValue>();
+            boolean more;
+            do {
+                kvs.clear();
+                more = scanner.next(kvs);
+                if(!kvs.isEmpty() && Bytes.equals(kvs.get(0).getRow(), IndexDictionary.DICTIONARY_ROW)) {
+                    continue;
+                }
+                for(KeyValue kv : kvs) {
+                    if(value != null
+                            && Bytes.compareTo(value, 0, value.length, kv.getBuffer(), kv.getValueOffset(),
+                                    kv.getValueLength()) != 0) {
+                        continue;
+                    }
+                    try {
+                        references.add(IndexReference.decode(kv, dictionary));
+                    }
+                    catch(IllegalArgumentException e) {
+                        LOG.warn("Skipped a malformed index cell.", e);
+                    }
+                }
+                if(more && !kvs.isEmpty() && references.size() >= limit) {
+                    // resumes from the row next to the last row
+                    return new IndexPage(references, Bytes.add(kvs.get(0).getRow(), new byte[1]));
+                }
+            } while(more);
+        }
+        finally {
+            scanner.close();
+        }
+        return new IndexPage(references, lastRegion ? HConstants.EMPTY_BYTE_ARRAY : endKey);
+    }
+
+    @Override
+    public IndexPage lookupLocal(byte[] startRow, byte[] startIndexRow, byte[] stopIndexRow, byte[] value,
+            int limit) throws IOException {
+        HRegion region = ((RegionCoprocessorEnvironment) getEnvironment()).getRegion();
+        byte[] table = region.getTableDesc().getName();
+        if(Bytes.compareTo(startRow, region.getStartKey()) < 0) {
+            startRow = region.getStartKey();
+        }
+
+        Scan scan = new Scan(startRow, region.getEndKey());
+        scan.addFamily(localFamily);
+        scan.setFilter(new ColumnRangeFilter(startIndexRow, true, stopIndexRow.length > 0 ? stopIndexRow : null,
+                false));
+
+        List<IndexReference> references = new ArrayList<IndexReference>();
+        RegionScanner scanner = region.getScanner(scan);
+        try {
+            List<KeyValue> kvs = new ArrayList<KeyValue>();
+            boolean more;
+            do {
+                kvs.clear();
+                more = scanner.next(kvs);
+                for(KeyValue kv : kvs) {
+                    if(value != null
+                            && Bytes.compareTo(value, 0, value.length, kv.getBuffer(), kv.getValueOffset(),
+                                    kv.getValueLength()) != 0) {
+                        continue;
+                    }
+                    IndexReference reference;
+                    try {
+                        reference = IndexReference.decodeLocal(table, kv);
+                    }
+                    catch(IllegalArgumentException e) {
+                        LOG.warn("Skipped a malformed index cell.", e);
+                        continue;
+                    }
+                    // the cell may be overwritten or deleted since it was indexed
+                    Get get = new Get(reference.getRow());
+                    get.addColumn(reference.getFamily(), reference.getQualifier());
+                    get.setTimeStamp(reference.getTimestamp());
+                    Result result = region.get(get, null);
+                    if(!result.isEmpty() && Bytes.equals(reference.getValue(), result.raw()[0].getValue())) {
+                        references.add(reference);
+                    }
+                }
+                if(more && !kvs.isEmpty() && references.size() >= limit) {
+                    return new IndexPage(references, Bytes.add(kvs.get(0).getRow(), new byte[1]));
+                }
+            } while(more);
+        }
+        finally {
+            scanner.close();
+        }
+        return new IndexPage(references, HConstants.EMPTY_BYTE_ARRAY);
+    }
+
+    @Override
+    public byte[][] split(byte[] table, int rangeSize, long minStamp, long maxStamp) throws IOException {
+        HRegion region = ((RegionCoprocessorEnvironment) getEnvironment()).getRegion();
+        Scan scan = new Scan();
+        scan.setMaxVersions();
+        scan.setTimeRange(minStamp, maxStamp);
+
+        List<byte[]> startRows = new ArrayList<byte[]>();
+        int entries = 0;
+        RegionScanner scanner = region.getScanner(scan);
+        try {
+            List<KeyValue> kvs = new ArrayList<KeyValue>();
+            boolean more;
+            do {
+                kvs.clear();
+                more = scanner.next(kvs);
+                if(kvs.isEmpty() || Bytes.equals(kvs.get(0).getRow(), IndexDictionary.DICTIONARY_ROW)) {
+                    continue;
+                }
+                if(entries >= rangeSize) {
+                    startRows.add(kvs.get(0).getRow());
+                    entries = 0;
+                }
+                for(KeyValue kv : kvs) {
+                    if(FizzBuzzReconciler.references(kv, table, dictionary)) {
+                        entries++;
+                    }
+                }
+            } while(more);
+        }
+        finally {
+            scanner.close();
+        }
+        return startRows.toArray(new byte[startRows.size()][]);
+    }
+
+    @Override
+    public long[] checksum(byte[] table, byte[][] startRows, long minStamp, long maxStamp) throws IOException {
+        HRegion region = ((RegionCoprocessorEnvironment) getEnvironment()).getRegion();
+        Scan scan = new Scan();
+        scan.setMaxVersions();
+        scan.setTimeRange(minStamp, maxStamp);
+
+        long[] checksums = new long[startRows.length];
+        RegionScanner scanner = region.getScanner(scan);
+        try {
+            List<KeyValue> kvs = new ArrayList<KeyValue>();
+            boolean more;
+            do {
+                kvs.clear();
+                more = scanner.next(kvs);
+                if(!kvs.isEmpty() && Bytes.equals(kvs.get(0).getRow(), IndexDictionary.DICTIONARY_ROW)) {
+                    continue;
+                }
+                for(KeyValue kv : kvs) {
+                    if(FizzBuzzReconciler.references(kv, table, dictionary)) {
+                        checksums[FizzBuzzReconciler.rangeOf(startRows, kv)] += FizzBuzzReconciler.checksumOf(kv);
+                    }
+                }
+            } while(more);
+        }
+        finally {
+            scanner.close();
+        }
+        return checksums;
+    }
+}
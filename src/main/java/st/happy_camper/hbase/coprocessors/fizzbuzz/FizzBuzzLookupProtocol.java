@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.ipc.CoprocessorProtocol;
+
+/**
+ * A protocol to look up references to source cells in regions of the FizzBuzz
+ * table.
+ * 
+ * @author ueshin
+ * @see FizzBuzzLookupEndpoint
+ */
+public interface FizzBuzzLookupProtocol extends CoprocessorProtocol {
+
+    /**
+     * Looks up a page of references in the rows of the region within the
+     * range.
+     * 
+     * @param startRow
+     *            the first row, inclusive
+     * @param stopRow
+     *            the last row, exclusive, or empty for no upper bound
+     * @param value
+     *            the value the source cells must have had, or
+     *            <code>null</code> for any value
+     * @param limit
+     *            the number of references after which the page ends at the
+     *            next row
+     * @return the page
+     * @throws IOException
+     */
+    IndexPage lookup(byte[] startRow, byte[] stopRow, byte[] value, int limit) throws IOException;
+
+    /**
+     * Looks up a page of references in the local index of the region, whose
+     * qualifiers begin with the index rows within the range. Only the
+     * references to the cells which still have the values are returned.
+     * 
+     * @param startRow
+     *            the row of the region to look up from
+     * @param startIndexRow
+     *            the first index row, inclusive
+     * @param stopIndexRow
+     *            the last index row, exclusive, or empty for no upper bound
+     * @param value
+     *            the value the source cells must have, or <code>null</code>
+     *            for any value
+     * @param limit
+     *            the number of references after which the page ends at the
+     *            next row
+     * @return the page, whose next row is in the region, or empty if the
+     *         lookup of the region is over
+     * @throws IOException
+     */
+    IndexPage lookupLocal(byte[] startRow, byte[] startIndexRow, byte[] stopIndexRow, byte[] value, int limit)
+            throws IOException;
+
+    /**
+     * Cuts the index cells of the region referencing the source table within
+     * the time range into ranges of about <code>rangeSize</code> cells at row
+     * boundaries.
+     * 
+     * @param table
+     *            the source table name
+     * @param rangeSize
+     *            the number of cells after which a range ends at the next row
+     * @param minStamp
+     *            the min timestamp, inclusive
+     * @param maxStamp
+     *            the max timestamp, exclusive
+     * @return the sorted first rows of the ranges but the first one
+     * @throws IOException
+     * @see FizzBuzzReconciler
+     */
+    byte[][] split(byte[] table, int rangeSize, long minStamp, long maxStamp) throws IOException;
+
+    /**
+     * Computes the checksums of the index cells of the region referencing
+     * the source table within the time range, per range of rows. The
+     * checksums don't depend on the order of the cells, so the ones of the
+     * regions a range spans are summed up.
+     * 
+     * @param table
+     *            the source table name
+     * @param startRows
+     *            the sorted first rows of the ranges, the first of which is
+     *            empty, each range ending at the next one
+     * @param minStamp
+     *            the min timestamp, inclusive
+     * @param maxStamp
+     *            the max timestamp, exclusive
+     * @return the checksums of the ranges in the region
+     * @throws IOException
+     * @see FizzBuzzReconciler
+     */
+    long[] checksum(byte[] table, byte[][] startRows, long minStamp, long maxStamp) throws IOException;
+}
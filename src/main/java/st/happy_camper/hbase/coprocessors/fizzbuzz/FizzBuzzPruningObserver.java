@@ -0,0 +1,282 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
+import org.apache.hadoop.hbase.coprocessor.ObserverContext;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.InternalScanner;
+import org.apache.hadoop.hbase.regionserver.Store;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import st.happy_camper.hbase.coprocessors.util.TablePool;
+
+/**
+ * A coprocessor on the FizzBuzz table to prune the index entries whose source
+ * cells are gone, while the entries are compacted.
+ * 
+ * <p>
+ * The compaction scanner is wrapped to read ahead up to
+ * <code>prune.batchsize</code> cells, whose referenced source cells are checked
+ * by a multi-get per source table. The gets ask for the exact versions, so the
+ * source regions skip the store files by their time ranges and row blooms.
+ * Entries whose source cells are deleted, or overwritten by other values, are
+ * left out of the compacted file. With <code>prune.ratio</code> below 1, only a
+ * random sample of the entries is checked by each compaction, to bound the
+ * reads of the compaction. Entries which fail to be checked are kept.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class FizzBuzzPruningObserver extends BaseRegionObserver {
+
+    private static final Log LOG = LogFactory.getLog(FizzBuzzPruningObserver.class);
+
+    /**
+     * Configuration key for the ratio of the entries checked by a compaction.
+     */
+    public static final String CONF_PRUNE_RATIO = "prune.ratio";
+
+    /**
+     * Configuration key for the number of cells read ahead to check in a
+     * batch.
+     */
+    public static final String CONF_PRUNE_BATCH_SIZE = "prune.batchsize";
+
+    /**
+     * Configuration key for the family of the dictionary of the compact
+     * qualifiers.
+     */
+    public static final String CONF_DICTIONARY_FAMILY = FizzBuzzRegionObserver.CONF_DICTIONARY_FAMILY;
+
+    /**
+     * Default ratio of the entries checked by a compaction.
+     */
+    public static final float DEFAULT_PRUNE_RATIO = 1.0f;
+
+    /**
+     * Default number of cells read ahead to check in a batch.
+     */
+    public static final int DEFAULT_PRUNE_BATCH_SIZE = 1000;
+
+    /**
+     * A compaction scanner leaving out the entries whose source cells are
+     * gone.
+     */
+    private class PruningScanner implements InternalScanner {
+
+        private final InternalScanner scanner;
+
+        private final LinkedList<List<KeyValue>> chunks = new LinkedList<List<KeyValue>>();
+
+        private boolean more = true;
+
+        private PruningScanner(InternalScanner scanner) {
+            this.scanner = scanner;
+        }
+
+        @Override
+        public boolean next(List<KeyValue> results) throws IOException {
+            return next(results, -1);
+        }
+
+        @Override
+        public boolean next(List<KeyValue> results, int limit) throws IOException {
+            if(chunks.isEmpty()) {
+                readAhead(limit);
+            }
+            if(!chunks.isEmpty()) {
+                results.addAll(chunks.removeFirst());
+            }
+            return more || !chunks.isEmpty();
+        }
+
+        private void readAhead(int limit) throws IOException {
+            List<KeyValue> candidates = new ArrayList<KeyValue>();
+            int size = 0;
+            while(more && size < batchSize) {
+                List<KeyValue> chunk = new ArrayList<KeyValue>();
+                more = limit > 0 ? scanner.next(chunk, limit) : scanner.next(chunk);
+                chunks.add(chunk);
+                size += chunk.size();
+                for(KeyValue kv : chunk) {
+                    if(kv.getType() == KeyValue.Type.Put.getCode()
+                            && !Bytes.equals(kv.getBuffer(), kv.getRowOffset(), kv.getRowLength(),
+                                    IndexDictionary.DICTIONARY_ROW, 0, IndexDictionary.DICTIONARY_ROW.length)
+                            && (ratio >= 1.0f || random.nextFloat() < ratio)) {
+                        candidates.add(kv);
+                    }
+                }
+            }
+            Set<KeyValue> dead = findDead(candidates);
+            if(dead.isEmpty()) {
+                return;
+            }
+            for(List<KeyValue> chunk : chunks) {
+                for(Iterator<KeyValue> itr = chunk.iterator(); itr.hasNext();) {
+                    if(dead.contains(itr.next())) {
+                        itr.remove();
+                    }
+                }
+            }
+            pruned.addAndGet(dead.size());
+        }
+
+        @Override
+        public void close() throws IOException {
+            scanner.close();
+        }
+    }
+
+    private TablePool pool;
+
+    private IndexDictionary dictionary;
+
+    private HTablePool sources;
+
+    private float ratio;
+
+    private int batchSize;
+
+    private final Random random = new Random();
+
+    private final AtomicLong pruned = new AtomicLong();
+
+    @Override
+    public void start(CoprocessorEnvironment e) throws IOException {
+        Configuration conf = e.getConfiguration();
+        ratio = conf.getFloat(CONF_PRUNE_RATIO, DEFAULT_PRUNE_RATIO);
+        batchSize = conf.getInt(CONF_PRUNE_BATCH_SIZE, DEFAULT_PRUNE_BATCH_SIZE);
+        pool = TablePool.create(conf, FizzBuzzRegionObserver.TABLE_NAME);
+        dictionary = new IndexDictionary(pool, Bytes.toBytes(conf.get(CONF_DICTIONARY_FAMILY,
+                FizzBuzzRegionObserver.DEFAULT_DICTIONARY_FAMILY)));
+        sources = new HTablePool(conf, conf.getInt(TablePool.CONF_POOL_SIZE, TablePool.DEFAULT_POOL_SIZE));
+    }
+
+    @Override
+    public void stop(CoprocessorEnvironment e) throws IOException {
+        try {
+            sources.close();
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    @Override
+    public InternalScanner preCompact(ObserverContext<RegionCoprocessorEnvironment> e, Store store,
+            InternalScanner scanner) throws IOException {
+        return new PruningScanner(scanner);
+    }
+
+    /**
+     * Returns the number of entries pruned.
+     * 
+     * @return the number of entries pruned
+     */
+    public long getPrunedCount() {
+        return pruned.get();
+    }
+
+    private Set<KeyValue> findDead(List<KeyValue> candidates) {
+        Set<KeyValue> dead = Collections.newSetFromMap(new IdentityHashMap<KeyValue, Boolean>());
+        Map<byte[], List<KeyValue>> kvsByTable = new TreeMap<byte[], List<KeyValue>>(Bytes.BYTES_COMPARATOR);
+        Map<byte[], List<IndexReference>> refsByTable = new TreeMap<byte[], List<IndexReference>>(
+                Bytes.BYTES_COMPARATOR);
+        for(KeyValue kv : candidates) {
+            IndexReference ref;
+            try {
+                ref = IndexReference.decode(kv, dictionary);
+            }
+            catch(IOException ex) {
+                LOG.warn("Failed to look up the dictionary, kept " + kv + ".", ex);
+                continue;
+            }
+            catch(IllegalArgumentException ex) {
+                LOG.warn("Kept a malformed index cell.", ex);
+                continue;
+            }
+            List<KeyValue> kvs = kvsByTable.get(ref.getTable());
+            if(kvs == null) {
+                kvs = new ArrayList<KeyValue>();
+                kvsByTable.put(ref.getTable(), kvs);
+                refsByTable.put(ref.getTable(), new ArrayList<IndexReference>());
+            }
+            kvs.add(kv);
+            refsByTable.get(ref.getTable()).add(ref);
+        }
+
+        for(Map.Entry<byte[], List<IndexReference>> entry : refsByTable.entrySet()) {
+            List<IndexReference> refs = entry.getValue();
+            List<Get> gets = new ArrayList<Get>(refs.size());
+            for(IndexReference ref : refs) {
+                Get get = new Get(ref.getRow());
+                get.addColumn(ref.getFamily(), ref.getQualifier());
+                get.setTimeStamp(ref.getTimestamp());
+                gets.add(get);
+            }
+            List<KeyValue> kvs = kvsByTable.get(entry.getKey());
+            HTableInterface table = null;
+            try {
+                // the pool fails by runtime exceptions if the table is gone
+                table = sources.getTable(entry.getKey());
+                Result[] results = table.get(gets);
+                for(int i = 0; i < results.length; i++) {
+                    if(results[i].isEmpty() || !Bytes.equals(refs.get(i).getValue(), results[i].raw()[0].getValue())) {
+                        dead.add(kvs.get(i));
+                    }
+                }
+            }
+            catch(Exception ex) {
+                LOG.warn("Failed to check " + refs.size() + " source cells of " + Bytes.toString(entry.getKey())
+                        + ", kept.", ex);
+            }
+            finally {
+                if(table != null) {
+                    try {
+                        table.close();
+                    }
+                    catch(IOException ex) {
+                        LOG.warn("Failed to close the handle of " + Bytes.toString(entry.getKey()) + ".", ex);
+                    }
+                }
+            }
+        }
+        return dead;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.util.ToolRunner;
+
+import st.happy_camper.hbase.coprocessors.util.DerivedTableRebuilder;
+import st.happy_camper.hbase.coprocessors.util.Deriver;
+import st.happy_camper.hbase.coprocessors.util.TablePool;
+
+/**
+ * A tool to index the numbers of the existing contents of a source table into
+ * HFiles of the FizzBuzz table.
+ *
+ * <p>
+ * It takes the same parameters as {@link FizzBuzzRegionObserver}, prefixed by
+ * <code>fizzbuzz.</code>, and indexes each version of the target cells put
+ * before <code>rebuild.until</code> under its own timestamp, so the entries
+ * are the same as the observer's. Only the global index can be rebuilt. With
+ * compact qualifiers, the names missing in the dictionary are added to the
+ * live FizzBuzz table.
+ * </p>
+ *
+ * <pre><code>
+ * $ hadoop jar [jarfile path] st.happy_camper.hbase.coprocessors.fizzbuzz.FizzBuzzRebuilder \
+ *     -D fizzbuzz.targets=[targets] -D fizzbuzz.rebuild.until=[timestamp] [source table] [output dir]
+ * </code></pre>
+ *
+ * @author ueshin
+ */
+public class FizzBuzzRebuilder extends DerivedTableRebuilder {
+
+    /**
+     * Constructs the rebuilder.
+     */
+    public FizzBuzzRebuilder() {
+        super(FizzBuzzWALObserver.PREFIX);
+    }
+
+    @Override
+    protected byte[] getTableName(Configuration conf) {
+        return FizzBuzzRegionObserver.TABLE_NAME;
+    }
+
+    @Override
+    protected Deriver createDeriver(Configuration conf, TablePool pool) throws IOException {
+        String index = conf.get(FizzBuzzRegionObserver.CONF_INDEX, FizzBuzzRegionObserver.INDEX_GLOBAL);
+        if(!FizzBuzzRegionObserver.INDEX_GLOBAL.equals(index)) {
+            throw new IllegalArgumentException("Unknown or unsupported index: " + index);
+        }
+        return FizzBuzzWALObserver.newDeriver(conf, pool, null);
+    }
+
+    /**
+     * Runs the rebuilder.
+     *
+     * @param args
+     *            the source table name and the output directory
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        System.exit(ToolRunner.run(HBaseConfiguration.create(), new FizzBuzzRebuilder(), args));
+    }
+}
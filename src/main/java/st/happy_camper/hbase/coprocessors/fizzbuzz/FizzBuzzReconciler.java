@@ -0,0 +1,374 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.coprocessor.Batch;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Hash;
+import org.apache.hadoop.hbase.util.MurmurHash;
+import org.apache.hadoop.util.ToolRunner;
+
+import st.happy_camper.hbase.coprocessors.util.TablePool;
+
+/**
+ * A tool to repair the index entries of a source table in the FizzBuzz table,
+ * e.g. lost by a crash of a region server with <code>index.wal=false</code>.
+ *
+ * <p>
+ * The actual entries within the time range are cut into ranges of about
+ * <code>reconcile.rangesize</code> entries at row boundaries, and the sums of
+ * 64-bit hashes of the entries of each range are computed by
+ * {@link FizzBuzzLookupEndpoint} in the regions. The entries expected from
+ * all the versions of the source cells within the time range are derived in
+ * parallel like {@link FizzBuzzRebuilder}, and their hashes are summed per
+ * range as they are derived, without keeping them. Only the ranges whose sums
+ * differ are derived again, kept, read and repaired: the missing or different
+ * entries are put, and the others are deleted. The time range ends when the
+ * reconciliation starts, so the entries of the cells put meanwhile are left
+ * alone.
+ * </p>
+ *
+ * <p>
+ * <code>reconcile.since</code> is required, and should be a bit before the
+ * crash, so only the recent entries are derived and compared.
+ * </p>
+ *
+ * <pre><code>
+ * $ hadoop jar [jarfile path] st.happy_camper.hbase.coprocessors.fizzbuzz.FizzBuzzReconciler \
+ *     -D fizzbuzz.targets=[targets] -D fizzbuzz.reconcile.since=[timestamp] [source table]
+ * </code></pre>
+ *
+ * @author ueshin
+ */
+public class FizzBuzzReconciler extends FizzBuzzRebuilder {
+
+    private static final Log LOG = LogFactory.getLog(FizzBuzzReconciler.class);
+
+    /**
+     * Configuration key for the min timestamp of the source cells to
+     * reconcile, i.e. a bit before the crash. Required.
+     */
+    public static final String CONF_RECONCILE_SINCE = "reconcile.since";
+
+    /**
+     * Configuration key for the number of entries per range to compare the
+     * checksums of.
+     */
+    public static final String CONF_RECONCILE_RANGE_SIZE = "reconcile.rangesize";
+
+    /**
+     * Default number of entries per range to compare the checksums of.
+     */
+    public static final int DEFAULT_RECONCILE_RANGE_SIZE = 1000;
+
+    /**
+     * Returns the checksum of the cell, the sum of which over cells doesn't
+     * depend on their order.
+     *
+     * @param kv
+     *            the cell
+     * @return the checksum
+     */
+    static long checksumOf(KeyValue kv) {
+        Hash hash = MurmurHash.getInstance();
+        return ((long) hash.hash(kv.getBuffer(), kv.getOffset(), kv.getLength(), 1) << 32)
+                | (hash.hash(kv.getBuffer(), kv.getOffset(), kv.getLength(), 2) & 0xffffffffL);
+    }
+
+    /**
+     * Returns the index of the range the row of the cell is in.
+     *
+     * @param startRows
+     *            the sorted first rows of the ranges, the first of which is
+     *            empty
+     * @param kv
+     *            the cell
+     * @return the index of the range
+     */
+    static int rangeOf(byte[][] startRows, KeyValue kv) {
+        int low = 0;
+        int high = startRows.length - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(Bytes.compareTo(startRows[mid], 0, startRows[mid].length, kv.getBuffer(), kv.getRowOffset(),
+                    kv.getRowLength()) <= 0) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns whether the index cell references the source table. Malformed
+     * cells reference no table, as they are never derived.
+     *
+     * @param kv
+     *            the index cell
+     * @param table
+     *            the source table name
+     * @param dictionary
+     *            the dictionary of the compact qualifiers
+     * @return <code>true</code> if the cell references the table
+     * @throws IOException
+     *             if the dictionary fails
+     */
+    static boolean references(KeyValue kv, byte[] table, IndexDictionary dictionary) throws IOException {
+        try {
+            return Bytes.equals(IndexReference.decode(kv, dictionary).getTable(), table);
+        }
+        catch(IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public int run(String[] args) throws Exception {
+        if(args.length != 1) {
+            System.err.println("Usage: " + getClass().getName() + " <source table>");
+            return 1;
+        }
+        reconcile(Bytes.toBytes(args[0]));
+        return 0;
+    }
+
+    /**
+     * Repairs the index entries of the source table.
+     *
+     * @param source
+     *            the source table name
+     * @return the number of entries put or deleted
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public long reconcile(final byte[] source) throws IOException, InterruptedException {
+        Configuration conf = getDerivedConf();
+        if(conf.get(CONF_RECONCILE_SINCE) == null) {
+            throw new IllegalArgumentException(FizzBuzzWALObserver.PREFIX + CONF_RECONCILE_SINCE
+                    + " must be set to a bit before the crash.");
+        }
+        final long minStamp = conf.getLong(CONF_RECONCILE_SINCE, 0L);
+        final long maxStamp = System.currentTimeMillis();
+        final int rangeSize = conf.getInt(CONF_RECONCILE_RANGE_SIZE, DEFAULT_RECONCILE_RANGE_SIZE);
+
+        HTable index = new HTable(conf, FizzBuzzRegionObserver.TABLE_NAME);
+        TablePool pool = TablePool.create(conf, FizzBuzzRegionObserver.TABLE_NAME);
+        try {
+            // the ranges are cut at the actual entries, as the expected ones aren't kept
+            List<byte[]> starts = new ArrayList<byte[]>();
+            starts.add(HConstants.EMPTY_BYTE_ARRAY);
+            for(byte[][] partial : exec(index, new Batch.Call<FizzBuzzLookupProtocol, byte[][]>() {
+
+                @Override
+                public byte[][] call(FizzBuzzLookupProtocol instance) throws IOException {
+                    return instance.split(source, rangeSize, minStamp, maxStamp);
+                }
+            }).values()) {
+                starts.addAll(Arrays.asList(partial));
+            }
+            Collections.sort(starts, Bytes.BYTES_COMPARATOR);
+            final byte[][] startRows = starts.toArray(new byte[starts.size()][]);
+
+            final long[] checksums = new long[startRows.length];
+            for(long[] partial : exec(index, new Batch.Call<FizzBuzzLookupProtocol, long[]>() {
+
+                @Override
+                public long[] call(FizzBuzzLookupProtocol instance) throws IOException {
+                    return instance.checksum(source, startRows, minStamp, maxStamp);
+                }
+            }).values()) {
+                for(int i = 0; i < checksums.length; i++) {
+                    checksums[i] -= partial[i];
+                }
+            }
+
+            Scan scan = new Scan();
+            // the observer indexes every put, not only the latest version
+            scan.setMaxVersions();
+            scan.setTimeRange(minStamp, maxStamp);
+            derive(source, scan, new Collector() {
+
+                @Override
+                public void collect(List<KeyValue> kvs) {
+                    long[] partial = new long[startRows.length];
+                    for(KeyValue kv : kvs) {
+                        partial[rangeOf(startRows, kv)] += checksumOf(kv);
+                    }
+                    synchronized(checksums) {
+                        for(int i = 0; i < checksums.length; i++) {
+                            checksums[i] += partial[i];
+                        }
+                    }
+                }
+            });
+
+            int ranges = 0;
+            for(long checksum : checksums) {
+                if(checksum != 0L) {
+                    ranges++;
+                }
+            }
+            long repaired = 0L;
+            if(ranges > 0) {
+                // derives again only the expected entries of the ranges which differ
+                final List<KeyValue> expected = new ArrayList<KeyValue>();
+                derive(source, scan, new Collector() {
+
+                    @Override
+                    public void collect(List<KeyValue> kvs) {
+                        synchronized(expected) {
+                            for(KeyValue kv : kvs) {
+                                if(checksums[rangeOf(startRows, kv)] != 0L) {
+                                    expected.add(kv);
+                                }
+                            }
+                        }
+                    }
+                });
+                Collections.sort(expected, KeyValue.COMPARATOR);
+
+                IndexDictionary dictionary = new IndexDictionary(pool, Bytes.toBytes(conf.get(
+                        FizzBuzzRegionObserver.CONF_DICTIONARY_FAMILY,
+                        FizzBuzzRegionObserver.DEFAULT_DICTIONARY_FAMILY)));
+                int offset = 0;
+                for(int i = 0; i < startRows.length; i++) {
+                    if(checksums[i] == 0L) {
+                        continue;
+                    }
+                    int end = offset;
+                    while(end < expected.size() && rangeOf(startRows, expected.get(end)) == i) {
+                        end++;
+                    }
+                    Scan range = new Scan(startRows[i], i + 1 < startRows.length ? startRows[i + 1]
+                            : HConstants.EMPTY_BYTE_ARRAY);
+                    range.setMaxVersions();
+                    range.setTimeRange(minStamp, maxStamp);
+                    repaired += repair(index, range, source, dictionary, expected.subList(offset, end));
+                    offset = end;
+                }
+            }
+            LOG.info("Repaired " + repaired + " index entries of " + Bytes.toString(source) + " in " + ranges
+                    + " of " + startRows.length + " ranges.");
+            return repaired;
+        }
+        finally {
+            try {
+                pool.close();
+            }
+            finally {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Executes the call on all the regions of the FizzBuzz table.
+     */
+    private static <T> Map<byte[], T> exec(HTable index, Batch.Call<FizzBuzzLookupProtocol, T> call)
+            throws IOException {
+        try {
+            return index.coprocessorExec(FizzBuzzLookupProtocol.class, null, null, call);
+        }
+        catch(IOException e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            // proxies wrap remote failures into undeclared exceptions
+            throw (IOException) new IOException("Failed to call the regions.").initCause(t);
+        }
+    }
+
+    /**
+     * Repairs the actual entries of a range to be the expected ones.
+     */
+    private long repair(HTable index, Scan range, byte[] source, IndexDictionary dictionary, List<KeyValue> expected)
+            throws IOException, InterruptedException {
+        Map<KeyValue, KeyValue> missing = new TreeMap<KeyValue, KeyValue>(KeyValue.COMPARATOR);
+        for(KeyValue kv : expected) {
+            missing.put(kv, kv);
+        }
+        List<Row> mutations = new ArrayList<Row>();
+        ResultScanner scanner = index.getScanner(range);
+        try {
+            for(Result result : scanner) {
+                if(Bytes.equals(result.getRow(), IndexDictionary.DICTIONARY_ROW)) {
+                    continue;
+                }
+                for(KeyValue kv : result.raw()) {
+                    if(!references(kv, source, dictionary)) {
+                        continue;
+                    }
+                    KeyValue entry = missing.remove(kv);
+                    if(entry == null) {
+                        Delete delete = new Delete(kv.getRow());
+                        delete.deleteColumn(kv.getFamily(), kv.getQualifier(), kv.getTimestamp());
+                        mutations.add(delete);
+                    }
+                    else if(!Bytes.equals(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength(),
+                            entry.getBuffer(), entry.getValueOffset(), entry.getValueLength())) {
+                        // overwrites the same version, which a delete would mask
+                        mutations.add(new Put(entry.getRow()).add(entry));
+                    }
+                }
+            }
+        }
+        finally {
+            scanner.close();
+        }
+        for(KeyValue entry : missing.values()) {
+            mutations.add(new Put(entry.getRow()).add(entry));
+        }
+        if(!mutations.isEmpty()) {
+            // repairs are written through the WAL, whatever index.wal is
+            index.batch(mutations);
+        }
+        return mutations.size();
+    }
+
+    /**
+     * Runs the reconciler.
+     *
+     * @param args
+     *            the source table name
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        System.exit(ToolRunner.run(HBaseConfiguration.create(), new FizzBuzzReconciler(), args));
+    }
+}
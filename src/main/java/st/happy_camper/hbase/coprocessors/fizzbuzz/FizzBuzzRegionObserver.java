@@ -17,19 +17,27 @@ package st.happy_camper.hbase.coprocessors.fizzbuzz;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
 import org.apache.hadoop.hbase.coprocessor.ObserverContext;
 import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.HRegion;
 import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
 import org.apache.hadoop.hbase.util.Bytes;
-import org.apache.hadoop.hbase.util.Pair;
+
+import st.happy_camper.hbase.coprocessors.util.AsyncTableWriter;
+import st.happy_camper.hbase.coprocessors.util.TablePool;
 
 /**
  * A coprocessor to FizzBuzz.
@@ -43,6 +51,93 @@ public class FizzBuzzRegionObserver extends BaseRegionObserver {
      */
     public static final String CONF_FIZZBUZZ_TARGETS = "targets";
 
+    /**
+     * Configuration key for the rules to classify numbers.
+     * 
+     * @see ClassificationRules
+     */
+    public static final String CONF_RULES = "rules";
+
+    /**
+     * Configuration key for the default type of values of target columns.
+     */
+    public static final String CONF_TYPE = "type";
+
+    /**
+     * Configuration key for the encoding of numbers in row keys.
+     */
+    public static final String CONF_ENCODING = "encoding";
+
+    /**
+     * Encoding to put values as they are, which is the legacy one.
+     */
+    public static final String ENCODING_RAW = "raw";
+
+    /**
+     * Encoding to put numbers as 8 bytes sorting in the numeric order.
+     */
+    public static final String ENCODING_ORDERED = "ordered";
+
+    /**
+     * Configuration key for the format of qualifiers of the FizzBuzz table.
+     */
+    public static final String CONF_QUALIFIER = "qualifier";
+
+    /**
+     * Format of qualifiers with the names of the source tables and families,
+     * which is the legacy one.
+     */
+    public static final String QUALIFIER_LEGACY = "legacy";
+
+    /**
+     * Format of qualifiers with the ids of the names in the
+     * {@link IndexDictionary}.
+     */
+    public static final String QUALIFIER_COMPACT = "compact";
+
+    /**
+     * Configuration key for the family of the dictionary of the compact
+     * qualifiers.
+     */
+    public static final String CONF_DICTIONARY_FAMILY = "dictionary.family";
+
+    /**
+     * The default family of the dictionary of the compact qualifiers.
+     */
+    public static final String DEFAULT_DICTIONARY_FAMILY = "num";
+
+    /**
+     * Configuration key for where to put index entries.
+     */
+    public static final String CONF_INDEX = "index";
+
+    /**
+     * Index into the FizzBuzz table, which is the legacy one.
+     */
+    public static final String INDEX_GLOBAL = "global";
+
+    /**
+     * Index into a family of the same region, atomically with the source
+     * cells.
+     */
+    public static final String INDEX_LOCAL = "local";
+
+    /**
+     * Configuration key for the family of the local index.
+     */
+    public static final String CONF_LOCAL_FAMILY = "local.family";
+
+    /**
+     * The default family of the local index.
+     */
+    public static final String DEFAULT_LOCAL_FAMILY = "fizzbuzz";
+
+    /**
+     * Configuration key to write the puts and deletes of the FizzBuzz table
+     * through its WAL.
+     */
+    public static final String CONF_INDEX_WAL = "index.wal";
+
     /**
      * A tablename fo the FizzBuzz table.
      */
@@ -88,81 +183,254 @@ public class FizzBuzzRegionObserver extends BaseRegionObserver {
      */
     public static final byte[] FIZZBUZZ_SUFFIX = Bytes.toBytes(":FizzBuzz");
 
-    private List<Pair<byte[], byte[]>> targets = new ArrayList<Pair<byte[], byte[]>>();
+    /**
+     * Default rules to classify numbers, which FizzBuzz.
+     */
+    public static final String DEFAULT_RULES = "mod15:fizzbuzz::FizzBuzz mod5:buzz::Buzz mod3:fizz::Fizz any:num::%d";
+
+    /**
+     * Default type of values of target columns.
+     */
+    public static final String DEFAULT_TYPE = "int";
+
+    private FizzBuzzIndexer indexer;
+
+    private byte[] localFamily;
+
+    private TablePool pool;
+
+    private AsyncTableWriter writer;
+
+    /**
+     * The deletes of the FizzBuzz table made by {@link #preDelete} while the
+     * cells still exist, written by {@link #postDelete} of the same handler.
+     */
+    private final ThreadLocal<List<Delete>> tombstones = new ThreadLocal<List<Delete>>();
 
     @Override
     public void start(CoprocessorEnvironment e) throws IOException {
         Configuration conf = e.getConfiguration();
-        String targetString = conf.get(CONF_FIZZBUZZ_TARGETS);
-        if(targetString != null) {
-            for(String pair : targetString.split(" +")) {
-                if(!pair.isEmpty()) {
-                    String[] parts = pair.split(":", 2);
-                    targets.add(new Pair<byte[], byte[]>(Bytes.toBytes(parts[0]), parts.length > 1 ? Bytes
-                            .toBytes(parts[1]) : null));
+
+        String index = conf.get(CONF_INDEX, INDEX_GLOBAL);
+        if(INDEX_LOCAL.equals(index)) {
+            indexer = new FizzBuzzIndexer(conf, null);
+            localFamily = Bytes.toBytes(conf.get(CONF_LOCAL_FAMILY, DEFAULT_LOCAL_FAMILY));
+            if(indexer.targets(localFamily)) {
+                throw new IllegalArgumentException("The family of the local index is targeted: "
+                        + Bytes.toString(localFamily));
+            }
+            return;
+        }
+        else if(!INDEX_GLOBAL.equals(index)) {
+            throw new IllegalArgumentException("Unknown index: " + index);
+        }
+
+        pool = TablePool.create(conf, TABLE_NAME);
+        indexer = new FizzBuzzIndexer(conf, pool);
+        writer = AsyncTableWriter.create(conf, pool);
+    }
+
+    @Override
+    public void stop(CoprocessorEnvironment e) throws IOException {
+        try {
+            if(writer != null) {
+                writer.close();
+                writer = null;
+            }
+        }
+        finally {
+            if(pool != null) {
+                pool.close();
+            }
+        }
+    }
+
+    @Override
+    public void prePut(ObserverContext<RegionCoprocessorEnvironment> e, Put put, WALEdit edit, boolean writeToWAL)
+            throws IOException {
+        if(localFamily == null) {
+            return;
+        }
+        List<KeyValue> kvs = new ArrayList<KeyValue>();
+        for(Map.Entry<byte[], List<KeyValue>> entry : put.getFamilyMap().entrySet()) {
+            if(indexer.targets(entry.getKey())) {
+                for(KeyValue kv : entry.getValue()) {
+                    indexer.indexLocal(localFamily, kv, kvs);
                 }
             }
         }
+        if(kvs.isEmpty()) {
+            return;
+        }
+        // written in the same row, so atomically with the source cells
+        List<KeyValue> family = put.getFamilyMap().get(localFamily);
+        if(family == null) {
+            put.getFamilyMap().put(localFamily, kvs);
+        }
+        else {
+            family.addAll(kvs);
+        }
     }
 
     @Override
     public void postPut(ObserverContext<RegionCoprocessorEnvironment> e, Put put, WALEdit edit, boolean writeToWAL)
             throws IOException {
+        if(localFamily != null) {
+            return;
+        }
         byte[] table = e.getEnvironment().getRegion().getTableDesc().getName();
-        HTableInterface fizzbuzz = e.getEnvironment().getTable(TABLE_NAME);
-        try {
-            for(Pair<byte[], byte[]> target : targets) {
-                List<KeyValue> kvs;
-                if(target.getSecond() == null) {
-                    kvs = put.getFamilyMap().get(target.getFirst());
-                }
-                else {
-                    kvs = put.get(target.getFirst(), target.getSecond());
-                }
-                if(kvs != null) {
-                    List<Put> puts = new ArrayList<Put>(kvs.size());
-                    for(KeyValue kv : kvs) {
-                        puts.add(newPut(table, kv));
-                    }
-                    fizzbuzz.put(puts);
+        List<Put> puts = new ArrayList<Put>();
+        for(Map.Entry<byte[], List<KeyValue>> entry : put.getFamilyMap().entrySet()) {
+            if(indexer.targets(entry.getKey())) {
+                for(KeyValue kv : entry.getValue()) {
+                    indexer.index(table, kv, puts);
                 }
             }
         }
+        if(puts.isEmpty()) {
+            return;
+        }
+        if(writer != null) {
+            writer.write(puts);
+            return;
+        }
+
+        HTableInterface fizzbuzz = pool.get();
+        boolean healthy = false;
+        try {
+            fizzbuzz.put(puts);
+            healthy = true;
+        }
         finally {
-            fizzbuzz.close();
+            pool.release(fizzbuzz, healthy);
         }
     }
 
-    private Put newPut(byte[] table, KeyValue kv) {
-        int num = Bytes.toInt(kv.getValue());
+    @Override
+    public void preDelete(ObserverContext<RegionCoprocessorEnvironment> e, Delete delete, WALEdit edit,
+            boolean writeToWAL) throws IOException {
+        tombstones.remove();
+        HRegion region = e.getEnvironment().getRegion();
+        List<KeyValue> deleted = deletedCells(region, delete);
+        if(deleted.isEmpty()) {
+            return;
+        }
+        if(localFamily != null) {
+            List<KeyValue> markers = new ArrayList<KeyValue>();
+            for(KeyValue kv : deleted) {
+                indexer.unindexLocal(localFamily, kv, markers);
+            }
+            // deleted in the same row, so atomically with the source cells
+            List<KeyValue> family = delete.getFamilyMap().get(localFamily);
+            if(family == null) {
+                delete.getFamilyMap().put(localFamily, markers);
+            }
+            else {
+                family.addAll(markers);
+            }
+            return;
+        }
+        byte[] table = region.getTableDesc().getName();
+        List<Delete> deletes = new ArrayList<Delete>();
+        for(KeyValue kv : deleted) {
+            indexer.unindex(table, kv, deletes);
+        }
+        tombstones.set(deletes);
+    }
 
-        byte[] family, suffix;
-        if(num % 15 == 0) {
-            family = FIZZBUZZ_COLUMN_FAMILY;
-            suffix = FIZZBUZZ_SUFFIX;
+    @Override
+    public void postDelete(ObserverContext<RegionCoprocessorEnvironment> e, Delete delete, WALEdit edit,
+            boolean writeToWAL) throws IOException {
+        List<Delete> deletes = tombstones.get();
+        tombstones.remove();
+        if(deletes == null || deletes.isEmpty()) {
+            return;
         }
-        else if(num % 5 == 0) {
-            family = BUZZ_COLUMN_FAMILY;
-            suffix = BUZZ_SUFFIX;
+        if(writer != null) {
+            writer.write(deletes);
+            return;
         }
-        else if(num % 3 == 0) {
-            family = FIZZ_COLUMN_FAMILY;
-            suffix = FIZZ_SUFFIX;
+
+        HTableInterface fizzbuzz = pool.get();
+        boolean healthy = false;
+        try {
+            fizzbuzz.delete(deletes);
+            healthy = true;
         }
-        else {
-            family = NUM_COLUMN_FAMILY;
-            suffix = Bytes.add(NUM_SUFFIX, Bytes.toBytes(Integer.toString(num)));
+        finally {
+            pool.release(fizzbuzz, healthy);
         }
+    }
 
-        byte[] kvTable = Bytes.add(Bytes.toBytes(table.length), table);
-        byte[] kvRow = Bytes.add(Bytes.toBytes(kv.getRowLength()), kv.getRow());
-        byte[] kvFamily = Bytes.add(Bytes.toBytes(kv.getFamilyLength()), kv.getFamily());
-        byte[] kvQualifier = Bytes.add(Bytes.toBytes(kv.getQualifierLength()), kv.getQualifier());
+    /**
+     * Returns the targeted cells the delete will delete, read before they are
+     * deleted.
+     */
+    private List<KeyValue> deletedCells(HRegion region, Delete delete) throws IOException {
+        Map<byte[], List<KeyValue>> familyMap = delete.getFamilyMap();
+        Get get = new Get(delete.getRow());
+        get.setMaxVersions();
+        boolean targeted = false;
+        for(Map.Entry<byte[], List<KeyValue>> entry : familyMap.entrySet()) {
+            if(!indexer.targets(entry.getKey())) {
+                continue;
+            }
+            targeted = true;
+            boolean wholeFamily = false;
+            for(KeyValue marker : entry.getValue()) {
+                wholeFamily |= marker.isDeleteFamily();
+            }
+            if(wholeFamily) {
+                get.addFamily(entry.getKey());
+            }
+            else {
+                for(KeyValue marker : entry.getValue()) {
+                    get.addColumn(entry.getKey(), marker.getQualifier());
+                }
+            }
+        }
+        if(!targeted) {
+            return Collections.emptyList();
+        }
 
-        Put put = new Put(Bytes.add(kv.getValue(), suffix), kv.getTimestamp());
-        put.add(family, Bytes.add(kvTable, Bytes.toBytes(kv.getTimestamp()), Bytes.add(kvRow, kvFamily, kvQualifier)),
-                kv.getValue());
+        List<KeyValue> deleted = new ArrayList<KeyValue>();
+        KeyValue previous = null;
+        for(KeyValue kv : region.get(get, null).raw()) {
+            // versions of a column are sorted from the latest
+            boolean latest = previous == null || !previous.matchingFamily(kv) || !previous.matchingQualifier(kv);
+            previous = kv;
+            for(KeyValue marker : familyMap.get(kv.getFamily())) {
+                long ts = marker.getTimestamp();
+                boolean deletes;
+                switch(KeyValue.Type.codeToType(marker.getType())) {
+                case DeleteFamily:
+                    deletes = kv.getTimestamp() <= ts;
+                    break;
+                case DeleteColumn:
+                    deletes = marker.matchingQualifier(kv) && kv.getTimestamp() <= ts;
+                    break;
+                case Delete:
+                    deletes = marker.matchingQualifier(kv)
+                            && (ts == HConstants.LATEST_TIMESTAMP ? latest : kv.getTimestamp() == ts);
+                    break;
+                default:
+                    deletes = false;
+                }
+                if(deletes) {
+                    deleted.add(kv);
+                    break;
+                }
+            }
+        }
+        return deleted;
+    }
 
-        return put;
+    /**
+     * Returns the number of malformed values skipped.
+     * 
+     * @return the number of malformed values
+     */
+    public long getMalformedCount() {
+        return indexer.getMalformedCount();
     }
 }
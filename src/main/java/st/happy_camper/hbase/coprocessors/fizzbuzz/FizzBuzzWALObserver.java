@@ -0,0 +1,224 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import st.happy_camper.hbase.coprocessors.util.Deriver;
+import st.happy_camper.hbase.coprocessors.util.DerivingWALObserver;
+import st.happy_camper.hbase.coprocessors.util.TablePool;
+
+/**
+ * A WAL coprocessor to FizzBuzz numbers committed to target columns of the
+ * source tables.
+ *
+ * <p>
+ * It takes the same parameters as {@link FizzBuzzRegionObserver}, prefixed by
+ * <code>fizzbuzz.</code> in the region server configuration.
+ * </p>
+ *
+ * <p>
+ * The delete markers in the WAL carry no values, so the numbers of the cells
+ * they delete are read back from the source table by a raw scan, which
+ * returns the deleted cells until a major compaction purges them. The entries
+ * of the cells purged before they are read back are left to
+ * {@link FizzBuzzPruningObserver}.
+ * </p>
+ *
+ * @author ueshin
+ */
+public class FizzBuzzWALObserver extends DerivingWALObserver {
+
+    /**
+     * The prefix of the configuration keys.
+     */
+    public static final String PREFIX = "fizzbuzz.";
+
+    private final Map<byte[], TablePool> sources = new TreeMap<byte[], TablePool>(Bytes.BYTES_COMPARATOR);
+
+    /**
+     * Constructs the observer.
+     */
+    public FizzBuzzWALObserver() {
+        super(PREFIX);
+    }
+
+    @Override
+    protected byte[] getTableName(Configuration conf) {
+        return FizzBuzzRegionObserver.TABLE_NAME;
+    }
+
+    @Override
+    protected Deriver createDeriver(Configuration conf) {
+        return newDeriver(conf, getPool(), sources);
+    }
+
+    @Override
+    public void stop(CoprocessorEnvironment e) throws IOException {
+        try {
+            super.stop(e);
+        }
+        finally {
+            // the deriver is stopped, so nobody reads the sources any more
+            for(TablePool pool : sources.values()) {
+                pool.close();
+            }
+            sources.clear();
+        }
+    }
+
+    /**
+     * Creates a deriver to index edits into the global index, shared with
+     * {@link FizzBuzzRebuilder}.
+     *
+     * @param conf
+     *            the configuration without the prefix
+     * @param pool
+     *            the pool of the index table
+     * @param sources
+     *            the pools of the source tables to read the cells deleted by
+     *            the delete markers, created into the map as needed, or
+     *            <code>null</code> to ignore the markers
+     * @return the deriver
+     */
+    static Deriver newDeriver(final Configuration conf, TablePool pool, final Map<byte[], TablePool> sources) {
+        final FizzBuzzIndexer indexer = new FizzBuzzIndexer(conf, pool);
+
+        return new Deriver() {
+
+            private List<Row> mutations = new ArrayList<Row>();
+
+            @Override
+            public void derive(byte[] table, List<KeyValue> kvs) {
+                Map<byte[], List<KeyValue>> markers = new TreeMap<byte[], List<KeyValue>>(Bytes.BYTES_COMPARATOR);
+                try {
+                    for(KeyValue kv : kvs) {
+                        if(kv.getType() == KeyValue.Type.Put.getCode()) {
+                            indexer.index(table, kv, mutations);
+                        }
+                        else if(sources != null && kv.isDelete() && indexer.targets(kv.getFamily())) {
+                            List<KeyValue> row = markers.get(kv.getRow());
+                            if(row == null) {
+                                row = new ArrayList<KeyValue>();
+                                markers.put(kv.getRow(), row);
+                            }
+                            row.add(kv);
+                        }
+                    }
+                    for(Map.Entry<byte[], List<KeyValue>> row : markers.entrySet()) {
+                        for(KeyValue kv : deletedCells(table, row.getKey(), row.getValue())) {
+                            indexer.unindex(table, kv, mutations);
+                        }
+                    }
+                }
+                catch(IOException e) {
+                    throw new IllegalStateException("Failed to look up the dictionary or the deleted cells.", e);
+                }
+            }
+
+            /**
+             * Returns the cells of the row the markers delete, read from the
+             * source table by a raw scan. The markers in the WAL have the
+             * exact timestamps.
+             */
+            private List<KeyValue> deletedCells(byte[] table, byte[] row, List<KeyValue> markers)
+                    throws IOException {
+                Scan scan = new Scan(row, Bytes.add(row, new byte[1]));
+                scan.setRaw(true);
+                // raw scans can't specify columns, so the other families are filtered out here
+                scan.setMaxVersions();
+
+                List<KeyValue> deleted = new ArrayList<KeyValue>();
+                TablePool source = sources.get(table);
+                if(source == null) {
+                    source = TablePool.create(conf, table);
+                    sources.put(table, source);
+                }
+                HTableInterface htable = source.get();
+                boolean healthy = false;
+                try {
+                    ResultScanner scanner = htable.getScanner(scan);
+                    try {
+                        for(Result result : scanner) {
+                            for(KeyValue kv : result.raw()) {
+                                if(kv.getType() == KeyValue.Type.Put.getCode() && deletes(markers, kv)) {
+                                    deleted.add(kv);
+                                }
+                            }
+                        }
+                    }
+                    finally {
+                        scanner.close();
+                    }
+                    healthy = true;
+                }
+                finally {
+                    source.release(htable, healthy);
+                }
+                return deleted;
+            }
+
+            @Override
+            public List<Row> drain() {
+                List<Row> drained = mutations;
+                mutations = new ArrayList<Row>();
+                return drained;
+            }
+        };
+    }
+
+    /**
+     * Returns whether any of the markers deletes the cell.
+     */
+    private static boolean deletes(List<KeyValue> markers, KeyValue kv) {
+        for(KeyValue marker : markers) {
+            if(!marker.matchingFamily(kv) || kv.getTimestamp() > marker.getTimestamp()) {
+                continue;
+            }
+            switch(KeyValue.Type.codeToType(marker.getType())) {
+            case DeleteFamily:
+                return true;
+            case DeleteColumn:
+                if(marker.matchingQualifier(kv)) {
+                    return true;
+                }
+                break;
+            case Delete:
+                if(marker.matchingQualifier(kv) && kv.getTimestamp() == marker.getTimestamp()) {
+                    return true;
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import st.happy_camper.hbase.coprocessors.util.TablePool;
+
+/**
+ * A dictionary of the table and family names referred to by the compact
+ * qualifiers of the FizzBuzz table, which assigns each name a small id.
+ * 
+ * <p>
+ * The dictionary is kept in the row {@link #DICTIONARY_ROW} of the FizzBuzz
+ * table, and cached here once read. A new id is taken from a counter and
+ * published by check-and-put, so concurrent assigners agree on the id, while
+ * the ids lost by the race are never used. The mapping from the id to the name
+ * is written first, so any id found in a qualifier can be decoded.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class IndexDictionary {
+
+    /**
+     * The row of the dictionary in the FizzBuzz table.
+     */
+    public static final byte[] DICTIONARY_ROW = Bytes.toBytes("\0fizzbuzz\0dictionary");
+
+    private static final byte[] COUNTER = Bytes.toBytes("c");
+
+    private static final byte[] NAME_PREFIX = Bytes.toBytes("n");
+
+    private static final byte[] ID_PREFIX = Bytes.toBytes("i");
+
+    private final TablePool pool;
+
+    private final byte[] family;
+
+    private final ConcurrentMap<ImmutableBytesWritable, Long> ids;
+
+    private final ConcurrentMap<Long, byte[]> names;
+
+    /**
+     * Constructs a dictionary.
+     * 
+     * @param pool
+     *            the pool of the FizzBuzz table
+     * @param family
+     *            the family of the dictionary
+     */
+    public IndexDictionary(TablePool pool, byte[] family) {
+        this.pool = pool;
+        this.family = family;
+        this.ids = new ConcurrentHashMap<ImmutableBytesWritable, Long>();
+        this.names = new ConcurrentHashMap<Long, byte[]>();
+    }
+
+    /**
+     * Returns the id of the name, assigning a new one if the name has none.
+     * 
+     * @param name
+     *            the name
+     * @return the id
+     * @throws IOException
+     */
+    public long idOf(byte[] name) throws IOException {
+        return idOf(name, 0, name.length);
+    }
+
+    /**
+     * Returns the id of the name in the buffer, assigning a new one if the
+     * name has none.
+     * 
+     * @param buffer
+     *            the buffer containing the name
+     * @param offset
+     *            the offset of the name
+     * @param length
+     *            the length of the name
+     * @return the id
+     * @throws IOException
+     */
+    public long idOf(byte[] buffer, int offset, int length) throws IOException {
+        Long id = ids.get(new ImmutableBytesWritable(buffer, offset, length));
+        if(id != null) {
+            return id;
+        }
+
+        byte[] name = new byte[length];
+        System.arraycopy(buffer, offset, name, 0, length);
+        byte[] nameQualifier = Bytes.add(NAME_PREFIX, name);
+        HTableInterface table = pool.get();
+        boolean healthy = false;
+        try {
+            Result result = table.get(new Get(DICTIONARY_ROW).addColumn(family, nameQualifier));
+            if(result.isEmpty()) {
+                long newId = table.incrementColumnValue(DICTIONARY_ROW, family, COUNTER, 1L);
+                Put reverse = new Put(DICTIONARY_ROW);
+                reverse.add(family, Bytes.add(ID_PREFIX, Bytes.toBytes(newId)), name);
+                table.put(reverse);
+                table.flushCommits();
+
+                Put put = new Put(DICTIONARY_ROW);
+                put.add(family, nameQualifier, Bytes.toBytes(newId));
+                if(!table.checkAndPut(DICTIONARY_ROW, family, nameQualifier, null, put)) {
+                    // assigned by another one in the meantime
+                    result = table.get(new Get(DICTIONARY_ROW).addColumn(family, nameQualifier));
+                }
+                else {
+                    id = newId;
+                }
+            }
+            if(id == null) {
+                id = Bytes.toLong(result.getValue(family, nameQualifier));
+            }
+            healthy = true;
+        }
+        finally {
+            pool.release(table, healthy);
+        }
+        ids.putIfAbsent(new ImmutableBytesWritable(name), id);
+        names.putIfAbsent(id, name);
+        return id;
+    }
+
+    /**
+     * Returns the name of the id.
+     * 
+     * @param id
+     *            the id
+     * @return the name
+     * @throws IOException
+     *             if the id is unknown
+     */
+    public byte[] nameOf(long id) throws IOException {
+        byte[] name = names.get(id);
+        if(name != null) {
+            return name;
+        }
+
+        HTableInterface table = pool.get();
+        boolean healthy = false;
+        try {
+            byte[] idQualifier = Bytes.add(ID_PREFIX, Bytes.toBytes(id));
+            name = table.get(new Get(DICTIONARY_ROW).addColumn(family, idQualifier)).getValue(family, idQualifier);
+            healthy = true;
+        }
+        finally {
+            pool.release(table, healthy);
+        }
+        if(name == null) {
+            throw new IOException("Unknown id in the dictionary: " + id);
+        }
+        names.putIfAbsent(id, name);
+        return name;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A page of references looked up in a region of the FizzBuzz table, and the
+ * row to look up the next page from.
+ * 
+ * @author ueshin
+ * @see FizzBuzzLookupEndpoint
+ */
+public class IndexPage implements Writable {
+
+    private List<IndexReference> references;
+
+    private byte[] next;
+
+    /**
+     * Constructs an empty instance to be read by
+     * {@link #readFields(DataInput)}.
+     */
+    public IndexPage() {
+        this(new ArrayList<IndexReference>(), HConstants.EMPTY_BYTE_ARRAY);
+    }
+
+    /**
+     * Constructs a page.
+     * 
+     * @param references
+     *            the references
+     * @param next
+     *            the row to look up the next page from, or empty if the
+     *            lookup is over
+     */
+    public IndexPage(List<IndexReference> references, byte[] next) {
+        this.references = references;
+        this.next = next;
+    }
+
+    /**
+     * Returns the references in the order of the index rows.
+     * 
+     * @return the references
+     */
+    public List<IndexReference> getReferences() {
+        return references;
+    }
+
+    /**
+     * Returns the row to look up the next page from, which may be in the next
+     * region.
+     * 
+     * @return the row, or empty if the lookup is over
+     */
+    public byte[] getNext() {
+        return next;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, references.size());
+        for(IndexReference reference : references) {
+            reference.write(out);
+        }
+        Bytes.writeByteArray(out, next);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int size = WritableUtils.readVInt(in);
+        references = new ArrayList<IndexReference>(size);
+        for(int i = 0; i < size; i++) {
+            IndexReference reference = new IndexReference();
+            reference.readFields(in);
+            references.add(reference);
+        }
+        next = Bytes.readByteArray(in);
+    }
+}
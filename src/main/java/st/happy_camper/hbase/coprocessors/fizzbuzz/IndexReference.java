@@ -0,0 +1,325 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A reference to a source cell, decoded from a cell of the FizzBuzz table.
+ * 
+ * <p>
+ * The value of the index cell is the value of the source cell, and the
+ * qualifier refers to the source cell in either version of the format, told
+ * apart by the first byte:
+ * </p>
+ * <ul>
+ * <li>{@link #VERSION_LEGACY}: the source table, the timestamp, the row, the
+ * family and the qualifier, each of variable length prefixed by its length of
+ * fixed size. The first byte is the highest byte of the length of the table
+ * name.</li>
+ * <li>{@link #VERSION_COMPACT}: the version, the id of the source table in the
+ * {@link IndexDictionary}, the row prefixed by its variable-length length, the
+ * id of the family and the qualifier, where ids and lengths are written as
+ * Hadoop variable-length longs. The timestamp is the one of the index cell.
+ * </li>
+ * </ul>
+ * 
+ * @author ueshin
+ * @see FizzBuzzLookup
+ */
+public class IndexReference implements Writable {
+
+    /**
+     * The version of the qualifiers with the names and fixed-size lengths.
+     */
+    public static final byte VERSION_LEGACY = 0;
+
+    /**
+     * The version of the qualifiers with the ids of the names and
+     * variable-length lengths.
+     */
+    public static final byte VERSION_COMPACT = 1;
+
+    /**
+     * Decodes the reference from the cell of the FizzBuzz table in either
+     * version of the format.
+     * 
+     * @param kv
+     *            the index cell
+     * @param dictionary
+     *            the dictionary of the compact qualifiers
+     * @return the reference
+     * @throws IOException
+     *             if the dictionary fails
+     * @throws IllegalArgumentException
+     *             if the qualifier is malformed
+     */
+    public static IndexReference decode(KeyValue kv, IndexDictionary dictionary) throws IOException {
+        byte[] buffer = kv.getBuffer();
+        int offset = kv.getQualifierOffset();
+        int end = offset + kv.getQualifierLength();
+        if(offset == end || buffer[offset] != VERSION_COMPACT) {
+            return decode(kv);
+        }
+        long tableId;
+        byte[] row;
+        long familyId;
+        byte[] qualifier;
+        try {
+            offset++;
+            tableId = readVLong(buffer, offset, end);
+            offset += WritableUtils.decodeVIntSize(buffer[offset]);
+            long rLength = readVLong(buffer, offset, end);
+            offset += WritableUtils.decodeVIntSize(buffer[offset]);
+            row = copy(buffer, offset, (int) rLength, end);
+            offset += row.length;
+            familyId = readVLong(buffer, offset, end);
+            offset += WritableUtils.decodeVIntSize(buffer[offset]);
+            qualifier = copy(buffer, offset, end - offset, end);
+        }
+        catch(IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed qualifier of " + kv + ".", e);
+        }
+        return new IndexReference(dictionary.nameOf(tableId), row, dictionary.nameOf(familyId), qualifier,
+                kv.getTimestamp(), kv.getValue());
+    }
+
+    private static long readVLong(byte[] buffer, int offset, int end) {
+        if(offset >= end || offset + WritableUtils.decodeVIntSize(buffer[offset]) > end) {
+            throw new IllegalArgumentException("Truncated variable-length long.");
+        }
+        return ValueType.VARINT.decode(buffer, offset, WritableUtils.decodeVIntSize(buffer[offset]));
+    }
+
+    /**
+     * Decodes the reference from the cell of the FizzBuzz table in the legacy
+     * format.
+     * 
+     * @param kv
+     *            the index cell
+     * @return the reference
+     * @throws IllegalArgumentException
+     *             if the qualifier is malformed
+     */
+    public static IndexReference decode(KeyValue kv) {
+        byte[] buffer = kv.getBuffer();
+        int offset = kv.getQualifierOffset();
+        int end = offset + kv.getQualifierLength();
+        try {
+            if(offset < end && buffer[offset] != VERSION_LEGACY) {
+                throw new IllegalArgumentException("Unsupported version: " + buffer[offset]);
+            }
+            int tLength = Bytes.toInt(buffer, offset);
+            offset += Bytes.SIZEOF_INT;
+            byte[] table = copy(buffer, offset, tLength, end);
+            offset += tLength;
+            long timestamp = Bytes.toLong(buffer, offset);
+            offset += Bytes.SIZEOF_LONG;
+            int rLength = Bytes.toShort(buffer, offset);
+            offset += Bytes.SIZEOF_SHORT;
+            byte[] row = copy(buffer, offset, rLength, end);
+            offset += rLength;
+            int fLength = Bytes.toShort(buffer, offset);
+            offset += Bytes.SIZEOF_SHORT;
+            byte[] family = copy(buffer, offset, fLength, end);
+            offset += fLength;
+            int qLength = Bytes.toInt(buffer, offset);
+            offset += Bytes.SIZEOF_INT;
+            byte[] qualifier = copy(buffer, offset, qLength, end);
+            if(offset + qLength != end) {
+                throw new IllegalArgumentException("Trailing bytes in the qualifier of " + kv + ".");
+            }
+            return new IndexReference(table, row, family, qualifier, timestamp, kv.getValue());
+        }
+        catch(IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed qualifier of " + kv + ".", e);
+        }
+    }
+
+    /**
+     * Decodes the reference from the cell of the local index, which refers to
+     * a cell of the same row and timestamp.
+     * 
+     * @param table
+     *            the table name
+     * @param kv
+     *            the index cell
+     * @return the reference
+     * @throws IllegalArgumentException
+     *             if the qualifier is malformed
+     */
+    public static IndexReference decodeLocal(byte[] table, KeyValue kv) {
+        byte[] buffer = kv.getBuffer();
+        int offset = kv.getQualifierOffset();
+        int end = offset + kv.getQualifierLength();
+        try {
+            int trailer = end - Bytes.SIZEOF_INT - Bytes.SIZEOF_SHORT;
+            if(trailer < offset) {
+                throw new IllegalArgumentException("Too short qualifier.");
+            }
+            int indexRowLength = Bytes.toInt(buffer, trailer);
+            int fLength = Bytes.toShort(buffer, trailer + Bytes.SIZEOF_INT);
+            offset += indexRowLength;
+            byte[] family = copy(buffer, offset, fLength, trailer);
+            offset += fLength;
+            byte[] qualifier = copy(buffer, offset, trailer - offset, trailer);
+            return new IndexReference(table, kv.getRow(), family, qualifier, kv.getTimestamp(), kv.getValue());
+        }
+        catch(IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed qualifier of " + kv + ".", e);
+        }
+    }
+
+    private static byte[] copy(byte[] buffer, int offset, int length, int end) {
+        if(length < 0 || offset < 0 || offset + length > end) {
+            throw new IllegalArgumentException("Illegal length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, offset, bytes, 0, length);
+        return bytes;
+    }
+
+    private byte[] table;
+
+    private byte[] row;
+
+    private byte[] family;
+
+    private byte[] qualifier;
+
+    private long timestamp;
+
+    private byte[] value;
+
+    /**
+     * Constructs an empty instance to be read by
+     * {@link #readFields(DataInput)}.
+     */
+    public IndexReference() {
+    }
+
+    /**
+     * Constructs a reference.
+     * 
+     * @param table
+     *            the source table name
+     * @param row
+     *            the row of the source cell
+     * @param family
+     *            the family of the source cell
+     * @param qualifier
+     *            the qualifier of the source cell
+     * @param timestamp
+     *            the timestamp of the source cell
+     * @param value
+     *            the value of the source cell when it was indexed
+     */
+    public IndexReference(byte[] table, byte[] row, byte[] family, byte[] qualifier, long timestamp, byte[] value) {
+        this.table = table;
+        this.row = row;
+        this.family = family;
+        this.qualifier = qualifier;
+        this.timestamp = timestamp;
+        this.value = value;
+    }
+
+    /**
+     * Returns the source table name.
+     * 
+     * @return the table name
+     */
+    public byte[] getTable() {
+        return table;
+    }
+
+    /**
+     * Returns the row of the source cell.
+     * 
+     * @return the row
+     */
+    public byte[] getRow() {
+        return row;
+    }
+
+    /**
+     * Returns the family of the source cell.
+     * 
+     * @return the family
+     */
+    public byte[] getFamily() {
+        return family;
+    }
+
+    /**
+     * Returns the qualifier of the source cell.
+     * 
+     * @return the qualifier
+     */
+    public byte[] getQualifier() {
+        return qualifier;
+    }
+
+    /**
+     * Returns the timestamp of the source cell.
+     * 
+     * @return the timestamp
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the value of the source cell when it was indexed.
+     * 
+     * @return the value
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        Bytes.writeByteArray(out, table);
+        Bytes.writeByteArray(out, row);
+        Bytes.writeByteArray(out, family);
+        Bytes.writeByteArray(out, qualifier);
+        WritableUtils.writeVLong(out, timestamp);
+        Bytes.writeByteArray(out, value);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        table = Bytes.readByteArray(in);
+        row = Bytes.readByteArray(in);
+        family = Bytes.readByteArray(in);
+        qualifier = Bytes.readByteArray(in);
+        timestamp = WritableUtils.readVLong(in);
+        value = Bytes.readByteArray(in);
+    }
+
+    @Override
+    public String toString() {
+        return Bytes.toStringBinary(table) + "/" + Bytes.toStringBinary(row) + "/" + Bytes.toStringBinary(family)
+                + ":" + Bytes.toStringBinary(qualifier) + "/" + timestamp;
+    }
+}
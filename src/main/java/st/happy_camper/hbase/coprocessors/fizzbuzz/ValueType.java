@@ -0,0 +1,208 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Types of numeric values, decoded straight from the buffer of cells.
+ *
+ * <p>
+ * Integral values are decoded into <code>long</code>, and floating-point values
+ * into the raw bits of <code>double</code> to be read by
+ * {@link Double#longBitsToDouble(long)}. Malformed values are reported by
+ * {@link NumberFormatException}.
+ * </p>
+ *
+ * @author ueshin
+ */
+enum ValueType {
+
+    /**
+     * 4-byte big-endian int, as written by {@link Bytes#toBytes(int)}.
+     */
+    INT("int") {
+
+        @Override
+        long decode(byte[] buffer, int offset, int length) {
+            checkLength(length, Bytes.SIZEOF_INT);
+            return Bytes.toInt(buffer, offset, length);
+        }
+    },
+
+    /**
+     * 8-byte big-endian long, as written by {@link Bytes#toBytes(long)}.
+     */
+    LONG("long") {
+
+        @Override
+        long decode(byte[] buffer, int offset, int length) {
+            checkLength(length, Bytes.SIZEOF_LONG);
+            return Bytes.toLong(buffer, offset, length);
+        }
+    },
+
+    /**
+     * ASCII decimal integer with an optional sign.
+     */
+    ASCII("ascii") {
+
+        @Override
+        long decode(byte[] buffer, int offset, int length) {
+            int i = offset;
+            int end = offset + length;
+            boolean negative = false;
+            if(i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+                negative = buffer[i] == '-';
+                i++;
+            }
+            if(i == end) {
+                throw new NumberFormatException("No digits.");
+            }
+            // accumulates negatively not to overflow on Long.MIN_VALUE
+            long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+            long value = 0L;
+            for(; i < end; i++) {
+                int digit = buffer[i] - '0';
+                if(digit < 0 || digit > 9) {
+                    throw new NumberFormatException("Not a digit: " + (char) buffer[i]);
+                }
+                if(value < (limit + digit) / 10) {
+                    throw new NumberFormatException("Overflow.");
+                }
+                value = value * 10 - digit;
+            }
+            return negative ? value : -value;
+        }
+    },
+
+    /**
+     * Variable-length long, as written by
+     * {@link WritableUtils#writeVLong(java.io.DataOutput, long)}.
+     */
+    VARINT("varint") {
+
+        @Override
+        long decode(byte[] buffer, int offset, int length) {
+            if(length == 0) {
+                throw new NumberFormatException("Empty.");
+            }
+            byte first = buffer[offset];
+            checkLength(length, WritableUtils.decodeVIntSize(first));
+            if(length == 1) {
+                return first;
+            }
+            long value = 0L;
+            for(int i = 1; i < length; i++) {
+                value = (value << 8) | (buffer[offset + i] & 0xff);
+            }
+            return WritableUtils.isNegativeVInt(first) ? ~value : value;
+        }
+    },
+
+    /**
+     * 4-byte IEEE 754 float, as written by {@link Bytes#toBytes(float)}.
+     */
+    FLOAT("float") {
+
+        @Override
+        long decode(byte[] buffer, int offset, int length) {
+            checkLength(length, Bytes.SIZEOF_FLOAT);
+            return Double.doubleToRawLongBits(Float.intBitsToFloat(Bytes.toInt(buffer, offset, length)));
+        }
+
+        @Override
+        boolean isFloating() {
+            return true;
+        }
+    },
+
+    /**
+     * 8-byte IEEE 754 double, as written by {@link Bytes#toBytes(double)}.
+     */
+    DOUBLE("double") {
+
+        @Override
+        long decode(byte[] buffer, int offset, int length) {
+            checkLength(length, Bytes.SIZEOF_DOUBLE);
+            return Bytes.toLong(buffer, offset, length);
+        }
+
+        @Override
+        boolean isFloating() {
+            return true;
+        }
+    };
+
+    /**
+     * Returns the type of the name.
+     *
+     * @param name
+     *            the name, e.g. <code>int</code>
+     * @return the type
+     */
+    static ValueType of(String name) {
+        for(ValueType type : values()) {
+            if(type.name.equals(name)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown type: " + name);
+    }
+
+    private static void checkLength(int length, int expected) {
+        if(length != expected) {
+            throw new NumberFormatException("Illegal length: " + length + ", expected " + expected + ".");
+        }
+    }
+
+    private final String name;
+
+    private ValueType(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Decodes the value.
+     *
+     * @param buffer
+     *            the buffer containing the value
+     * @param offset
+     *            the offset of the value
+     * @param length
+     *            the length of the value
+     * @return the value, or the raw bits of the value if
+     *         {@link #isFloating()}
+     * @throws NumberFormatException
+     *             if the value is malformed
+     */
+    abstract long decode(byte[] buffer, int offset, int length);
+
+    /**
+     * Returns whether the values are floating-point.
+     *
+     * @return <code>true</code> if the values are floating-point
+     */
+    boolean isFloating() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
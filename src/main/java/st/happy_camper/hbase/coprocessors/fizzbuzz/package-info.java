@@ -44,7 +44,60 @@
  * <li>priority: Priority</li>
  * <li>kvs: Key-value parameter pairs passed into the coprocessor.
  *   <ul>
- *     <li>targets: target columns to fizzbuzz. space-separete for multiple targets.</li>
+ *     <li>targets: target columns to fizzbuzz. space-separete for multiple targets. A family without a qualifier
+ *       targets all its qualifiers, and qualifiers may contain wildcards <code>*</code> and <code>?</code>, e.g.
+ *       <code>a:title* b</code>. Each target may be followed by <code>@</code> and the type of its values, e.g.
+ *       <code>a:latency@long</code>.</li>
+ *     <li>type(optional): type of values of targets without types, one of <code>int</code>, <code>long</code>,
+ *       <code>ascii</code> for decimal strings, <code>varint</code> for Hadoop variable-length longs,
+ *       <code>float</code> or <code>double</code>. Malformed values are skipped and counted. default:
+ *       <code>int</code>.</li>
+ *     <li>encoding(optional): <code>raw</code> to begin row keys with values as they are, or <code>ordered</code>
+ *       to begin them with 8 bytes sorting in the numeric order, so numeric ranges can be scanned. Integral
+ *       values are encoded as longs with the sign bit flipped, and floating-point ones as doubles with the sign
+ *       bit flipped or all the bits flipped if negative. default: <code>raw</code>.</li>
+ *     <li>rules(optional): space-separated rules to classify numbers, each of which is
+ *       <code>predicate:family:suffix</code>. The first rule whose predicate holds puts the number into the family
+ *       with the row key of the number followed by the suffix, and <code>%d</code> at the end of the suffix is
+ *       replaced by the decimal number. Predicates are <code>mod<i>d</i>[/<i>r</i>]</code> for residues,
+ *       <code>range[<i>min</i>]..[<i>max</i>]</code> for half-open ranges, <code>mask<i>m</i>[/<i>b</i>]</code>
+ *       for bits and <code>any</code>, e.g. <code>range..100:fast:: range..1000:normal:: any:slow::</code> for
+ *       latency bands. Numbers no rule holds for are not indexed. default:
+ *       <code>mod15:fizzbuzz::FizzBuzz mod5:buzz::Buzz mod3:fizz::Fizz any:num::%d</code>.</li>
+ *     <li>qualifier(optional): <code>legacy</code> for qualifiers with the names of the source table and family and
+ *       fixed-size lengths, or <code>compact</code> for ones with small ids of the names and variable-length lengths,
+ *       without the timestamp, which is the one of the index cell. The ids are assigned in the row
+ *       <code>\0fizzbuzz\0dictionary</code> of the fizzbuzz table and cached. The versions of qualifiers are told
+ *       apart by their first byte, so both can be read by <code>IndexReference</code> and the lookups. default:
+ *       <code>legacy</code>.</li>
+ *     <li>dictionary.family(optional): family of the fizzbuzz table to keep the ids in. default:
+ *       <code>num</code>.</li>
+ *     <li>index(optional): <code>global</code> to put index entries into the fizzbuzz table, or <code>local</code>
+ *       to put them into a family of the same table, in the same rows as the source cells. default:
+ *       <code>global</code>.</li>
+ *     <li>local.family(optional): family of the local index, which must not be a target. default:
+ *       <code>fizzbuzz</code>.</li>
+ *     <li>index.wal(optional): <code>false</code> to write the puts and deletes of the fizzbuzz table without its
+ *       WAL, halving the log volume of the derived writes. Entries lost when a region server of the fizzbuzz table
+ *       crashes are repaired by <code>FizzBuzzReconciler</code>. Not used by the local index, which is written with
+ *       the source cells. default: <code>true</code>.</li>
+ *     <li>pool.size(optional): max number of idle handles of the fizzbuzz table kept for reuse. default: 10.</li>
+ *     <li>pool.writebuffer(optional): client write buffer size in bytes of each handle.</li>
+ *     <li>pool.autoflush(optional): <code>false</code> to keep puts in the client write buffer until it fills up.
+ *       default: <code>true</code>.</li>
+ *     <li>async(optional): <code>true</code> to write to the fizzbuzz table in background worker threads.
+ *       default: <code>false</code>.</li>
+ *     <li>async.queuesize(optional): capacity of the queue of mutations waiting to be written. default: 10000.</li>
+ *     <li>async.threads(optional): number of worker threads. default: 2.</li>
+ *     <li>async.batchsize(optional): max number of mutations written in a batch. default: 1000.</li>
+ *     <li>async.policy(optional): <code>block</code>, <code>drop</code> or <code>sync</code> to wait, to drop
+ *       mutations, or to write them synchronously when the queue is full. default: <code>block</code>.</li>
+ *     <li>journal.dir(optional): local directory to journal the mutations written in background, so that the
+ *       ones dropped are retried every 10 seconds, and the ones not written yet are written again when the observer
+ *       starts next time, e.g. after the region server restarts. Needs <code>async</code>.</li>
+ *     <li>journal.segmentsize(optional): size of journal segment files in bytes. default: 67108864.</li>
+ *     <li>journal.sync(optional): <code>true</code> to sync every append to the journal to the disk, to survive
+ *       crashes of the machine as well as of the region server. default: <code>false</code>.</li>
  *   </ul>
  * </li>
  * </ul>
@@ -52,7 +105,7 @@
  * <h3>FizzBuzz table</h3>
  * 
  * <p>
- * This observer uses table as follows:
+ * This observer uses table as follows with the default rules. Other rules need the families they put numbers into.
  * </p>
  * 
  * <pre><code>
@@ -63,6 +116,105 @@
  *   { NAME => 'fizzbuzz', VERSIONS => JInteger::MAX_VALUE }
  * </code></pre>
  * 
+ * <h3>WAL-tailing mode</h3>
+ * 
+ * <p>
+ * Instead of hooking puts of each table, <code>FizzBuzzWALObserver</code> can be configured on the region servers
+ * to fizzbuzz numbers of the edits committed to the WAL in background batches. The <code>targets</code> and
+ * <code>pool.*</code> params are set in <code>hbase-site.xml</code> prefixed by <code>fizzbuzz.</code>, with
+ * <code>fizzbuzz.sources</code> for the space-separated names of the tables to fizzbuzz, and the
+ * <code>wal.*</code> params of <code>WordCountWALObserver</code>.
+ * </p>
+ * 
+ * <pre><code>
+ * &lt;property&gt;
+ *   &lt;name&gt;hbase.coprocessor.wal.classes&lt;/name&gt;
+ *   &lt;value&gt;st.happy_camper.hbase.coprocessors.fizzbuzz.FizzBuzzWALObserver&lt;/value&gt;
+ * &lt;/property&gt;
+ * </code></pre>
+ * 
+ * <h3>Deletes and pruning</h3>
+ * 
+ * <p>
+ * Deletes of target cells delete the exact versions of their index entries, put into the fizzbuzz table after the
+ * source cells are deleted, or into the local index atomically with the deletes. In the WAL-tailing mode, the delete
+ * markers carry no values, so the deleted cells are read back from the source table by a raw scan; the cells a
+ * major compaction purged before that leave their entries to pruning. Entries whose source cells are gone
+ * otherwise, e.g. overwritten, expired or beyond the max versions, are pruned by <code>FizzBuzzPruningObserver</code>
+ * configured on the fizzbuzz table while the entries are compacted. Its params are
+ * <code>prune.ratio</code> for the ratio of the entries checked by a compaction, default: 1.0,
+ * <code>prune.batchsize</code> for the number of cells checked in a batch, default: 1000, and
+ * <code>dictionary.family</code> and <code>pool.size</code>.
+ * </p>
+ * 
+ * <pre><code>
+ * hbase> alter 'fizzbuzz', METHOD => 'table_att',
+ *   'coprocessor' => '[jarfile path]|st.happy_camper.hbase.coprocessors.fizzbuzz.FizzBuzzPruningObserver|[priority]|'
+ * </code></pre>
+ * 
+ * <h3>Local index</h3>
+ * 
+ * <p>
+ * With <code>index=local</code>, the index entries are added to the put of the source cells, so they are written
+ * atomically with no network hops and never diverge from the source cells, and follow the regions when they split.
+ * Each qualifier of the local index begins with the row the entry would have in the fizzbuzz table, followed by the
+ * family and the qualifier of the source cell. Lookups scan the local index family of all regions in parallel; the
+ * families of the rules and the <code>pool.*</code> and <code>async.*</code> params are not used.
+ * </p>
+ * 
+ * <pre><code>
+ * hbase> alter '&lt;tablename&gt;', { NAME => 'fizzbuzz' }
+ * </code></pre>
+ * 
+ * <h3>Lookups</h3>
+ * 
+ * <p>
+ * <code>FizzBuzzLookup</code> finds the source cells of a value, or of a range of values with
+ * <code>encoding=ordered</code>, through the fizzbuzz table. It needs <code>FizzBuzzLookupEndpoint</code> configured
+ * on the fizzbuzz table, which decodes the references in the region a page at a time, and fetches the referenced
+ * cells by multi-gets in parallel. The client is configured by <code>lookup.pagesize</code> for the number of
+ * references in a page, default: 1000, and <code>lookup.threads</code> for the number of threads to fetch, default:
+ * 4. With the local index, the endpoint is configured on the source table with the same <code>local.family</code>
+ * as the observer, and the client is constructed with the source table name.
+ * </p>
+ * 
+ * <pre><code>
+ * hbase> alter 'fizzbuzz', METHOD => 'table_att',
+ *   'coprocessor' => '[jarfile path]|st.happy_camper.hbase.coprocessors.fizzbuzz.FizzBuzzLookupEndpoint|[priority]|'
+ * </code></pre>
+ * 
+ * <h3>Rebuilds</h3>
+ * 
+ * <p>
+ * <code>FizzBuzzRebuilder</code> indexes the numbers already in a source table, e.g. put before the observer was
+ * configured, by scanning its regions in parallel into HFiles bulk-loaded into the fizzbuzz table. It takes the
+ * params of the WAL-tailing mode, except <code>sources</code> and <code>wal.*</code>, and the
+ * <code>rebuild.*</code> params of <code>WordCountRebuilder</code>, including the required
+ * <code>rebuild.until</code>. Only the global index can be rebuilt.
+ * </p>
+ * 
+ * <pre><code>
+ * $ hadoop jar [jarfile path] st.happy_camper.hbase.coprocessors.fizzbuzz.FizzBuzzRebuilder \
+ *     -D fizzbuzz.targets=[targets] -D fizzbuzz.rebuild.until=[timestamp] &lt;tablename&gt; [output dir]
+ * </code></pre>
+ * 
+ * <h3>Reconciliation</h3>
+ * 
+ * <p>
+ * With <code>index.wal=false</code>, the entries not flushed yet are lost when a region server of the fizzbuzz
+ * table crashes. <code>FizzBuzzReconciler</code> repairs them without a full rebuild: it derives the entries
+ * expected from the source cells put since <code>reconcile.since</code>, which is required, and compares their
+ * checksums, summed as they are derived, per range of <code>reconcile.rangesize</code> entries, default: 1000,
+ * with the ones <code>FizzBuzzLookupEndpoint</code> computes in the regions. Only the expected entries of the
+ * ranges which differ are derived again and kept in memory, and those ranges are repaired through the WAL. It
+ * takes the same params as <code>FizzBuzzRebuilder</code>.
+ * </p>
+ * 
+ * <pre><code>
+ * $ hadoop jar [jarfile path] st.happy_camper.hbase.coprocessors.fizzbuzz.FizzBuzzReconciler \
+ *     -D fizzbuzz.targets=[targets] -D fizzbuzz.reconcile.since=[timestamp] &lt;tablename&gt;
+ * </code></pre>
+ * 
  * @author ueshin
  */
 package st.happy_camper.hbase.coprocessors.fizzbuzz;
@@ -0,0 +1,547 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hadoop.hbase.util.Threads;
+
+/**
+ * A writer to write derived mutations to a table in background.
+ * 
+ * <p>
+ * Mutations are put into a bounded queue and written in batches by worker
+ * threads, so the latency of the derived table is not added to the puts of
+ * the source table. When the queue is full, the mutations are handled by the
+ * policy:
+ * </p>
+ * 
+ * <ul>
+ * <li><code>block</code>: waits until the queue has room.</li>
+ * <li><code>drop</code>: drops the mutations and counts them.</li>
+ * <li><code>sync</code>: writes the mutations synchronously.</li>
+ * </ul>
+ * 
+ * <p>
+ * A batch failed to be written is retried a few times, and then dropped and
+ * counted.
+ * </p>
+ * 
+ * <p>
+ * If a journal directory is configured, mutations are appended to a
+ * {@link MutationJournal} before they are queued, and acknowledged once
+ * written. Mutations dropped by the policy or by failures are abandoned in the
+ * journal and queued again in background every few seconds, and the ones not
+ * written yet when the writer closes are written again when the journal is
+ * opened next time, e.g. after the region server restarts. Mutations are
+ * written at least once, so a replayed increment may count twice.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class AsyncTableWriter implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(AsyncTableWriter.class);
+
+    /**
+     * Configuration key to enable asynchronous writes.
+     */
+    public static final String CONF_ASYNC = "async";
+
+    /**
+     * Configuration key for the capacity of the queue.
+     */
+    public static final String CONF_ASYNC_QUEUE_SIZE = "async.queuesize";
+
+    /**
+     * Configuration key for the number of worker threads.
+     */
+    public static final String CONF_ASYNC_THREADS = "async.threads";
+
+    /**
+     * Configuration key for the max number of mutations in a batch.
+     */
+    public static final String CONF_ASYNC_BATCH_SIZE = "async.batchsize";
+
+    /**
+     * Configuration key for the policy when the queue is full.
+     */
+    public static final String CONF_ASYNC_POLICY = "async.policy";
+
+    /**
+     * Configuration key for the local directory of the journals.
+     */
+    public static final String CONF_JOURNAL_DIR = "journal.dir";
+
+    /**
+     * Configuration key for the size of journal segment files in bytes.
+     */
+    public static final String CONF_JOURNAL_SEGMENT_SIZE = "journal.segmentsize";
+
+    /**
+     * Configuration key to sync every append to the journal to the disk.
+     */
+    public static final String CONF_JOURNAL_SYNC = "journal.sync";
+
+    /**
+     * Default capacity of the queue.
+     */
+    public static final int DEFAULT_ASYNC_QUEUE_SIZE = 10000;
+
+    /**
+     * Default number of worker threads.
+     */
+    public static final int DEFAULT_ASYNC_THREADS = 2;
+
+    /**
+     * Default max number of mutations in a batch.
+     */
+    public static final int DEFAULT_ASYNC_BATCH_SIZE = 1000;
+
+    /**
+     * Default policy when the queue is full.
+     */
+    public static final String DEFAULT_ASYNC_POLICY = "block";
+
+    /**
+     * Default size of journal segment files in bytes.
+     */
+    public static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final long RETRY_INTERVAL = 10000L;
+
+    /**
+     * A queued mutation and its sequence number in the journal.
+     */
+    private static class Entry {
+
+        private final Row row;
+
+        private final long seq;
+
+        private Entry(Row row, long seq) {
+            this.row = row;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Policies when the queue is full.
+     */
+    public enum Policy {
+
+        /**
+         * Waits until the queue has room.
+         */
+        BLOCK,
+
+        /**
+         * Drops the mutations and counts them.
+         */
+        DROP,
+
+        /**
+         * Writes the mutations synchronously.
+         */
+        SYNC
+    }
+
+    /**
+     * Creates a writer configured by the configuration if asynchronous writes
+     * are enabled.
+     * 
+     * @param conf
+     *            the configuration
+     * @param pool
+     *            the pool of the derived table
+     * @return the new writer, or <code>null</code> if not enabled
+     * @throws IOException
+     *             if failed to open the journal
+     */
+    public static AsyncTableWriter create(Configuration conf, TablePool pool) throws IOException {
+        if(!conf.getBoolean(CONF_ASYNC, false)) {
+            return null;
+        }
+        MutationJournal journal = null;
+        String dir = conf.get(CONF_JOURNAL_DIR);
+        if(dir != null) {
+            journal = MutationJournal.acquire(new File(dir, Bytes.toString(pool.getTableName())),
+                    conf.getInt(CONF_JOURNAL_SEGMENT_SIZE, DEFAULT_JOURNAL_SEGMENT_SIZE),
+                    conf.getBoolean(CONF_JOURNAL_SYNC, false));
+        }
+        return new AsyncTableWriter(pool, conf.getInt(CONF_ASYNC_QUEUE_SIZE, DEFAULT_ASYNC_QUEUE_SIZE), conf.getInt(
+                CONF_ASYNC_THREADS, DEFAULT_ASYNC_THREADS), conf.getInt(CONF_ASYNC_BATCH_SIZE,
+                DEFAULT_ASYNC_BATCH_SIZE), Policy.valueOf(conf.get(CONF_ASYNC_POLICY, DEFAULT_ASYNC_POLICY)
+                .toUpperCase()), journal);
+    }
+
+    private final TablePool pool;
+
+    private final int batchSize;
+
+    private final Policy policy;
+
+    private final BlockingQueue<Entry> queue;
+
+    private final MutationJournal journal;
+
+    private final Thread[] workers;
+
+    private final Thread recovery;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Held shared by writes while enqueueing and exclusively by close, so no
+     * mutation is enqueued after the workers are told to exit.
+     */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a writer and starts the worker threads.
+     * 
+     * @param pool
+     *            the pool of the derived table
+     * @param queueSize
+     *            the capacity of the queue
+     * @param threads
+     *            the number of worker threads
+     * @param batchSize
+     *            the max number of mutations in a batch
+     * @param policy
+     *            the policy when the queue is full
+     */
+    public AsyncTableWriter(TablePool pool, int queueSize, int threads, int batchSize, Policy policy) {
+        this(pool, queueSize, threads, batchSize, policy, null);
+    }
+
+    /**
+     * Constructs a writer with the journal and starts the worker threads.
+     * The mutations recovered from the journal are written first.
+     * 
+     * @param pool
+     *            the pool of the derived table
+     * @param queueSize
+     *            the capacity of the queue
+     * @param threads
+     *            the number of worker threads
+     * @param batchSize
+     *            the max number of mutations in a batch
+     * @param policy
+     *            the policy when the queue is full
+     * @param journal
+     *            the journal, or <code>null</code>, released on close
+     */
+    public AsyncTableWriter(TablePool pool, int queueSize, int threads, int batchSize, Policy policy,
+            MutationJournal journal) {
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.policy = policy;
+        this.journal = journal;
+        this.queue = new ArrayBlockingQueue<Entry>(queueSize);
+        this.workers = new Thread[threads];
+        for(int i = 0; i < threads; i++) {
+            workers[i] = Threads.setDaemonThreadRunning(new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    work();
+                }
+            }), "AsyncTableWriter-" + Bytes.toString(pool.getTableName()) + "-" + i);
+        }
+        this.recovery = journal != null ? Threads.setDaemonThreadRunning(new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                recover();
+            }
+        }), "AsyncTableWriter-" + Bytes.toString(pool.getTableName()) + "-recovery") : null;
+    }
+
+    /**
+     * Queues the mutations recovered from the journal, and then the abandoned
+     * ones on the interval until interrupted by close. The mutations not
+     * queued are left in the journal.
+     */
+    private void recover() {
+        try {
+            List<Pair<Long, Row>> rows = journal.takeRecovered();
+            while(true) {
+                for(Pair<Long, Row> row : rows) {
+                    queue.put(new Entry(row.getSecond(), row.getFirst()));
+                }
+                Thread.sleep(RETRY_INTERVAL);
+                rows = journal.takeAbandoned(queue.remainingCapacity());
+                if(!rows.isEmpty()) {
+                    LOG.info("Retrying " + rows.size() + " abandoned mutations to "
+                            + Bytes.toString(pool.getTableName()) + ".");
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            return;
+        }
+        catch(IOException e) {
+            LOG.warn("Failed to read abandoned mutations from the journal, left until restart.", e);
+        }
+    }
+
+    /**
+     * Enqueues the mutations.
+     * 
+     * @param rows
+     *            the mutations
+     * @throws IOException
+     *             if the policy is <code>sync</code> and failed to write
+     */
+    public void write(List<? extends Row> rows) throws IOException {
+        closeLock.readLock().lock();
+        try {
+            if(closed) {
+                throw new IOException("AsyncTableWriter for " + Bytes.toString(pool.getTableName()) + " is closed.");
+            }
+            enqueue(rows);
+        }
+        finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    private void enqueue(List<? extends Row> rows) throws IOException {
+        long first = journal != null ? journal.append(rows) : -1L;
+        long[] abandoned = null;
+        int count = 0;
+        for(int i = 0; i < rows.size(); i++) {
+            Entry row = new Entry(rows.get(i), journal != null ? first + i : -1L);
+            switch(policy) {
+            case BLOCK:
+                try {
+                    queue.put(row);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw (InterruptedIOException) new InterruptedIOException().initCause(e);
+                }
+                break;
+            case DROP:
+                if(!queue.offer(row)) {
+                    dropped.incrementAndGet();
+                    if(journal != null) {
+                        if(abandoned == null) {
+                            abandoned = new long[rows.size() - i];
+                        }
+                        abandoned[count++] = row.seq;
+                    }
+                }
+                break;
+            case SYNC:
+                if(!queue.offer(row)) {
+                    writeSync(rows.subList(i, rows.size()));
+                    if(journal != null) {
+                        long[] seqs = new long[rows.size() - i];
+                        for(int j = 0; j < seqs.length; j++) {
+                            seqs[j] = first + i + j;
+                        }
+                        journal.acknowledge(seqs, seqs.length);
+                    }
+                    return;
+                }
+                break;
+            }
+        }
+        if(count > 0) {
+            journal.abandon(abandoned, count);
+        }
+    }
+
+    private void writeSync(List<? extends Row> rows) throws IOException {
+        HTableInterface table = pool.get();
+        boolean healthy = false;
+        try {
+            table.batch(rows);
+            healthy = true;
+        }
+        catch(InterruptedException e) {
+            healthy = true;
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException) new InterruptedIOException().initCause(e);
+        }
+        finally {
+            pool.release(table, healthy);
+        }
+    }
+
+    private void work() {
+        List<Entry> batch = new ArrayList<Entry>(batchSize);
+        while(true) {
+            Entry first;
+            try {
+                first = queue.poll(100L, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e) {
+                first = queue.poll();
+            }
+            if(first == null) {
+                if(closed) {
+                    return;
+                }
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+            flush(batch);
+            batch.clear();
+        }
+    }
+
+    private void flush(List<Entry> batch) {
+        List<Entry> entries = batch;
+        for(int attempt = 1; !entries.isEmpty(); attempt++) {
+            List<Row> rows = new ArrayList<Row>(entries.size());
+            for(Entry entry : entries) {
+                rows.add(entry.row);
+            }
+            Object[] results = new Object[rows.size()];
+            HTableInterface table = null;
+            boolean healthy = false;
+            try {
+                table = pool.get();
+                table.batch(rows, results);
+                healthy = true;
+                acknowledge(entries, results);
+                return;
+            }
+            catch(Exception e) {
+                List<Entry> failed = new ArrayList<Entry>();
+                for(int i = 0; i < results.length; i++) {
+                    if(!(results[i] instanceof Result)) {
+                        failed.add(entries.get(i));
+                    }
+                }
+                acknowledge(entries, results);
+                entries = failed;
+                if(attempt >= MAX_ATTEMPTS && !entries.isEmpty()) {
+                    dropped.addAndGet(entries.size());
+                    LOG.warn("Dropped " + entries.size() + " mutations to " + Bytes.toString(pool.getTableName())
+                            + (journal != null ? ", kept in the journal to retry." : "."), e);
+                    if(journal != null) {
+                        long[] seqs = new long[entries.size()];
+                        for(int i = 0; i < seqs.length; i++) {
+                            seqs[i] = entries.get(i).seq;
+                        }
+                        journal.abandon(seqs, seqs.length);
+                    }
+                    return;
+                }
+                Threads.sleep(100 * attempt);
+            }
+            finally {
+                if(table != null) {
+                    pool.release(table, healthy);
+                }
+            }
+        }
+    }
+
+    private void acknowledge(List<Entry> entries, Object[] results) {
+        if(journal == null) {
+            return;
+        }
+        long[] seqs = new long[entries.size()];
+        int count = 0;
+        for(int i = 0; i < results.length; i++) {
+            if(results[i] instanceof Result) {
+                seqs[count++] = entries.get(i).seq;
+            }
+        }
+        try {
+            journal.acknowledge(seqs, count);
+        }
+        catch(IOException e) {
+            LOG.warn("Failed to acknowledge " + count + " mutations in the journal.", e);
+        }
+    }
+
+    /**
+     * Returns the number of mutations dropped.
+     * 
+     * @return the number of mutations dropped
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes all the queued mutations and stops the worker threads. The
+     * recovered mutations not queued yet are left in the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        closeLock.writeLock().lock();
+        try {
+            if(closed) {
+                return;
+            }
+            closed = true;
+        }
+        finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            if(recovery != null) {
+                recovery.interrupt();
+                recovery.join();
+            }
+            for(Thread worker : workers) {
+                worker.join();
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException) new InterruptedIOException().initCause(e);
+        }
+        if(dropped.get() > 0) {
+            LOG.warn("Dropped " + dropped.get() + " mutations to " + Bytes.toString(pool.getTableName())
+                    + " in total.");
+        }
+        if(journal != null) {
+            journal.release();
+        }
+    }
+}
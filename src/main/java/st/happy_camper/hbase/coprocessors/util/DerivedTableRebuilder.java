@@ -0,0 +1,680 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.mapreduce.TableInputFormat;
+import org.apache.hadoop.hbase.mapreduce.TableMapReduceUtil;
+import org.apache.hadoop.hbase.mapreduce.TableMapper;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hadoop.hbase.util.Threads;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.util.Tool;
+
+/**
+ * A tool to rebuild a derived table from the existing contents of a source
+ * table, e.g. to count or index the data put before the coprocessor was
+ * enabled.
+ *
+ * <p>
+ * The regions of the source table are scanned in parallel, by the map tasks
+ * of a MapReduce job or by the threads of a standalone rebuild, and all the
+ * versions of the cells of each row put before <code>rebuild.until</code>,
+ * as the coprocessors derive every put, are fed to the same {@link Deriver}
+ * as the {@link DerivingWALObserver}, so the target matching and the encoding
+ * of the derived table are shared with the coprocessors. The derived mutations
+ * are not written to the live table, but into HFiles under the output
+ * directory, merged by a {@link Merger} if any, to be bulk-loaded by
+ * {@link LoadIncrementalHFiles}. The derivers must derive puts, which take
+ * the time the rebuild started as the default timestamp.
+ * </p>
+ *
+ * <p>
+ * <code>rebuild.until</code> is required, and should be the time the
+ * coprocessor was enabled, as the coprocessor derives the cells put since
+ * then. The versions the source families no longer keep can't be derived.
+ * The rebuild isn't idempotent if the derived cells are merged with the live
+ * ones, e.g. as delta counts: running it again, even after a partial
+ * failure, derives the same cells again.
+ * </p>
+ *
+ * <p>
+ * The parameters are read with the prefix of each subclass, like the
+ * {@link DerivingWALObserver}, so that the same configuration works for both.
+ * The standalone rebuild keeps all the derived cells in memory, and is meant
+ * for tests and small tables. Subclasses can also summarize the derived cells
+ * as they are derived by a {@link Collector}, without keeping them.
+ * </p>
+ *
+ * @author ueshin
+ */
+public abstract class DerivedTableRebuilder extends Configured implements Tool {
+
+    private static final Log LOG = LogFactory.getLog(DerivedTableRebuilder.class);
+
+    /**
+     * Configuration key for the way to run the rebuild.
+     */
+    public static final String CONF_REBUILD_MODE = "rebuild.mode";
+
+    /**
+     * Mode to run the rebuild as a MapReduce job.
+     */
+    public static final String MODE_MAPREDUCE = "mapreduce";
+
+    /**
+     * Mode to run the rebuild in threads of the local process.
+     */
+    public static final String MODE_STANDALONE = "standalone";
+
+    /**
+     * Configuration key for the number of threads of the standalone rebuild.
+     */
+    public static final String CONF_REBUILD_THREADS = "rebuild.threads";
+
+    /**
+     * Configuration key for the max number of rows derived in a batch.
+     */
+    public static final String CONF_REBUILD_BATCH_SIZE = "rebuild.batchsize";
+
+    /**
+     * Configuration key for the number of rows fetched per RPC of the scans.
+     */
+    public static final String CONF_REBUILD_CACHING = "rebuild.caching";
+
+    /**
+     * Configuration key to bulk-load the HFiles into the derived table after
+     * they are written.
+     */
+    public static final String CONF_REBUILD_LOAD = "rebuild.load";
+
+    /**
+     * Configuration key for the max timestamp, exclusive, of the source cells
+     * to derive, i.e. the time the coprocessor was enabled. Required.
+     */
+    public static final String CONF_REBUILD_UNTIL = "rebuild.until";
+
+    /**
+     * Default number of threads of the standalone rebuild.
+     */
+    public static final int DEFAULT_REBUILD_THREADS = 4;
+
+    /**
+     * Default max number of rows derived in a batch.
+     */
+    public static final int DEFAULT_REBUILD_BATCH_SIZE = 1000;
+
+    /**
+     * Default number of rows fetched per RPC of the scans.
+     */
+    public static final int DEFAULT_REBUILD_CACHING = 1000;
+
+    private static final String CONF_REBUILDER_CLASS = DerivedTableRebuilder.class.getName() + ".class";
+
+    private static final String CONF_REBUILD_TIMESTAMP = DerivedTableRebuilder.class.getName() + ".timestamp";
+
+    /**
+     * Merges the derived cells of a row, e.g. sums counts derived from
+     * different batches.
+     */
+    public interface Merger {
+
+        /**
+         * Merges the cells of a row.
+         *
+         * @param kvs
+         *            the cells of a row, not sorted
+         * @param results
+         *            the list to add the merged cells to
+         */
+        void merge(List<KeyValue> kvs, List<KeyValue> results);
+    }
+
+    /**
+     * Collects the cells derived from the source table as they are derived,
+     * e.g. to summarize them without keeping them all.
+     */
+    public interface Collector {
+
+        /**
+         * Collects a batch of the derived cells. Called concurrently by the
+         * scans of the regions.
+         *
+         * @param kvs
+         *            the derived cells, neither merged nor sorted
+         * @throws IOException
+         */
+        void collect(List<KeyValue> kvs) throws IOException;
+    }
+
+    private final String prefix;
+
+    /**
+     * Constructs the rebuilder reading its parameters with the prefix.
+     *
+     * @param prefix
+     *            the prefix of the configuration keys, e.g.
+     *            <code>wordcount.</code>
+     */
+    protected DerivedTableRebuilder(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Returns the name of the derived table.
+     *
+     * @param conf
+     *            the configuration without the prefix
+     * @return the derived table name
+     */
+    protected abstract byte[] getTableName(Configuration conf);
+
+    /**
+     * Creates a deriver. Each scan of a region has its own deriver.
+     *
+     * @param conf
+     *            the configuration without the prefix
+     * @param pool
+     *            the pool of the derived table
+     * @return the deriver
+     * @throws IOException
+     */
+    protected abstract Deriver createDeriver(Configuration conf, TablePool pool) throws IOException;
+
+    /**
+     * Creates the merger of the derived cells.
+     *
+     * @param conf
+     *            the configuration without the prefix
+     * @return the merger, or <code>null</code> if the cells are written as
+     *         they are
+     */
+    protected Merger createMerger(Configuration conf) {
+        return null;
+    }
+
+    /**
+     * Returns the configuration without the prefix, i.e. the configuration
+     * of the tool overridden by the parameters with the prefix.
+     *
+     * @return the configuration without the prefix
+     */
+    protected Configuration getDerivedConf() {
+        Configuration conf = new Configuration(getConf());
+        for(Map.Entry<String, String> entry : getConf()) {
+            if(entry.getKey().startsWith(prefix)) {
+                conf.set(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        return conf;
+    }
+
+    @Override
+    public int run(String[] args) throws Exception {
+        if(args.length != 2) {
+            System.err.println("Usage: " + getClass().getName() + " <source table> <output dir>");
+            return 1;
+        }
+        rebuild(Bytes.toBytes(args[0]), new Path(args[1]));
+        return 0;
+    }
+
+    /**
+     * Rebuilds the derived table from the source table.
+     *
+     * @param source
+     *            the source table name
+     * @param output
+     *            the directory to write the HFiles, which must not exist
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void rebuild(byte[] source, Path output) throws IOException, InterruptedException {
+        Configuration conf = getRebuildConf();
+        if(conf.get(CONF_REBUILD_UNTIL) == null) {
+            throw new IllegalArgumentException(prefix + CONF_REBUILD_UNTIL
+                    + " must be set to the time the coprocessor was enabled.");
+        }
+        byte[] tableName = getTableName(conf);
+
+        String mode = conf.get(CONF_REBUILD_MODE, MODE_MAPREDUCE);
+        if(MODE_MAPREDUCE.equals(mode)) {
+            rebuildByJob(conf, source, tableName, output);
+        }
+        else if(MODE_STANDALONE.equals(mode)) {
+            rebuildStandalone(conf, source, output);
+        }
+        else {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+
+        if(conf.getBoolean(CONF_REBUILD_LOAD, true)) {
+            LoadIncrementalHFiles loader;
+            try {
+                loader = new LoadIncrementalHFiles(conf);
+            }
+            catch(Exception e) {
+                throw (IOException) new IOException("Failed to create the loader.").initCause(e);
+            }
+            HTable table = new HTable(conf, tableName);
+            try {
+                loader.doBulkLoad(output, table);
+            }
+            finally {
+                table.close();
+            }
+        }
+    }
+
+    /**
+     * Derives the cells of the derived table from the rows of the source
+     * table the scan returns, scanning the regions in threads of the local
+     * process, and passes them to the collector batch by batch. The cells are
+     * not merged by the {@link Merger}, so only the derivers without any can
+     * be summarized this way.
+     *
+     * @param source
+     *            the source table name
+     * @param scan
+     *            the scan of each region, e.g. with a time range, whose rows
+     *            and caching are overridden
+     * @param collector
+     *            the collector of the derived cells
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void derive(byte[] source, Scan scan, Collector collector) throws IOException, InterruptedException {
+        derive(getRebuildConf(), source, scan, collector);
+    }
+
+    private Configuration getRebuildConf() {
+        Configuration conf = getDerivedConf();
+        conf.setClass(CONF_REBUILDER_CLASS, getClass(), DerivedTableRebuilder.class);
+        conf.setLong(CONF_REBUILD_TIMESTAMP, System.currentTimeMillis());
+        return conf;
+    }
+
+    private void rebuildByJob(Configuration conf, byte[] source, byte[] tableName, Path output) throws IOException,
+            InterruptedException {
+        Job job = new Job(conf, getClass().getSimpleName() + " " + Bytes.toString(source) + " into "
+                + Bytes.toString(tableName));
+        job.setJarByClass(getClass());
+        TableMapReduceUtil.initTableMapperJob(source, newScan(conf), RebuildMapper.class,
+                ImmutableBytesWritable.class, KeyValue.class, job);
+        HTable table = new HTable(conf, tableName);
+        try {
+            HFileOutputFormat.configureIncrementalLoad(job, table);
+        }
+        finally {
+            table.close();
+        }
+        job.setReducerClass(RebuildReducer.class);
+        if(createMerger(conf) != null) {
+            job.setCombinerClass(RebuildReducer.class);
+        }
+        FileOutputFormat.setOutputPath(job, output);
+        try {
+            if(!job.waitForCompletion(true)) {
+                throw new IOException("The job " + job.getJobName() + " failed.");
+            }
+        }
+        catch(ClassNotFoundException e) {
+            throw (IOException) new IOException("Failed to run the job " + job.getJobName() + ".").initCause(e);
+        }
+    }
+
+    private void rebuildStandalone(Configuration conf, byte[] source, Path output) throws IOException,
+            InterruptedException {
+        FileSystem fs = output.getFileSystem(conf);
+        if(fs.exists(output)) {
+            throw new IOException("The output directory " + output + " already exists.");
+        }
+
+        List<KeyValue> kvs = derive(conf, source, newScan(conf));
+        Map<byte[], StoreFile.Writer> writers = new TreeMap<byte[], StoreFile.Writer>(Bytes.BYTES_COMPARATOR);
+        fs.mkdirs(output);
+        try {
+            for(KeyValue kv : kvs) {
+                StoreFile.Writer writer = writers.get(kv.getFamily());
+                if(writer == null) {
+                    Path dir = new Path(output, Bytes.toString(kv.getFamily()));
+                    fs.mkdirs(dir);
+                    writer = new StoreFile.WriterBuilder(conf, new CacheConfig(conf), fs, HFile.DEFAULT_BLOCKSIZE)
+                            .withOutputDir(dir).withComparator(KeyValue.COMPARATOR).build();
+                    writers.put(kv.getFamily(), writer);
+                }
+                writer.append(kv);
+            }
+        }
+        finally {
+            for(StoreFile.Writer writer : writers.values()) {
+                writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(System.currentTimeMillis()));
+                writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(false));
+                writer.appendTrackedTimestampsToMetadata();
+                writer.close();
+            }
+        }
+    }
+
+    private List<KeyValue> derive(Configuration conf, byte[] source, Scan template) throws IOException,
+            InterruptedException {
+        final List<KeyValue> kvs = new ArrayList<KeyValue>();
+        derive(conf, source, template, new Collector() {
+
+            @Override
+            public void collect(List<KeyValue> derived) {
+                synchronized(kvs) {
+                    kvs.addAll(derived);
+                }
+            }
+        });
+
+        Collections.sort(kvs, KeyValue.COMPARATOR);
+        Merger merger = createMerger(conf);
+        List<KeyValue> results = new ArrayList<KeyValue>(kvs.size());
+        List<KeyValue> row = new ArrayList<KeyValue>();
+        for(int i = 0; i < kvs.size(); i++) {
+            row.add(kvs.get(i));
+            if(i + 1 < kvs.size() && kvs.get(i + 1).matchingRow(kvs.get(i))) {
+                continue;
+            }
+            results.addAll(sort(row, merger));
+            row.clear();
+        }
+        LOG.info("Derived " + results.size() + " cells from " + Bytes.toString(source) + ".");
+        return results;
+    }
+
+    private void derive(final Configuration conf, final byte[] source, Scan template, final Collector collector)
+            throws IOException, InterruptedException {
+        Pair<byte[][], byte[][]> keys;
+        HTable table = new HTable(conf, source);
+        try {
+            keys = table.getStartEndKeys();
+        }
+        finally {
+            table.close();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                conf.getInt(CONF_REBUILD_THREADS, DEFAULT_REBUILD_THREADS),
+                Threads.getNamedThreadFactory(getClass().getSimpleName()));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for(int i = 0; i < keys.getFirst().length; i++) {
+                final Scan scan = new Scan(template);
+                scan.setStartRow(keys.getFirst()[i]);
+                scan.setStopRow(keys.getSecond()[i]);
+                scan.setCaching(conf.getInt(CONF_REBUILD_CACHING, DEFAULT_REBUILD_CACHING));
+                scan.setCacheBlocks(false);
+                futures.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws IOException {
+                        List<KeyValue> kvs = new ArrayList<KeyValue>();
+                        Derivation derivation = new Derivation(conf, source);
+                        HTable table = new HTable(conf, source);
+                        try {
+                            ResultScanner scanner = table.getScanner(scan);
+                            try {
+                                for(Result result : scanner) {
+                                    derivation.derive(result, kvs);
+                                    if(!kvs.isEmpty()) {
+                                        collector.collect(kvs);
+                                        kvs.clear();
+                                    }
+                                }
+                            }
+                            finally {
+                                scanner.close();
+                            }
+                            derivation.drain(kvs);
+                            collector.collect(kvs);
+                        }
+                        finally {
+                            try {
+                                table.close();
+                            }
+                            finally {
+                                derivation.close();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for(Future<Void> future : futures) {
+                try {
+                    future.get();
+                }
+                catch(ExecutionException e) {
+                    if(e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw (IOException) new IOException("Failed to derive.").initCause(e.getCause());
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        LOG.info("Derived the cells from " + keys.getFirst().length + " regions of " + Bytes.toString(source) + ".");
+    }
+
+    /**
+     * Returns the scan of all the versions of the source cells put before
+     * <code>rebuild.until</code>.
+     */
+    private static Scan newScan(Configuration conf) throws IOException {
+        Scan scan = new Scan();
+        scan.setMaxVersions();
+        scan.setTimeRange(0L, conf.getLong(CONF_REBUILD_UNTIL, HConstants.LATEST_TIMESTAMP));
+        scan.setCaching(conf.getInt(CONF_REBUILD_CACHING, DEFAULT_REBUILD_CACHING));
+        scan.setCacheBlocks(false);
+        return scan;
+    }
+
+    /**
+     * Merges the cells of a row if the merger is given, and sorts them
+     * without duplicates.
+     */
+    private static TreeSet<KeyValue> sort(List<KeyValue> kvs, Merger merger) {
+        TreeSet<KeyValue> sorted = new TreeSet<KeyValue>(KeyValue.COMPARATOR);
+        if(merger != null) {
+            List<KeyValue> merged = new ArrayList<KeyValue>(kvs.size());
+            merger.merge(kvs, merged);
+            sorted.addAll(merged);
+        }
+        else {
+            sorted.addAll(kvs);
+        }
+        return sorted;
+    }
+
+    /**
+     * Derives the cells of a scan of a region in batches.
+     */
+    private class Derivation implements Closeable {
+
+        private final byte[] source;
+
+        private final long timestamp;
+
+        private final int batchSize;
+
+        private final TablePool pool;
+
+        private final Deriver deriver;
+
+        private int rows = 0;
+
+        private Derivation(Configuration conf, byte[] source) throws IOException {
+            this.source = source;
+            this.timestamp = conf.getLong(CONF_REBUILD_TIMESTAMP, System.currentTimeMillis());
+            this.batchSize = conf.getInt(CONF_REBUILD_BATCH_SIZE, DEFAULT_REBUILD_BATCH_SIZE);
+            this.pool = TablePool.create(conf, getTableName(conf));
+            this.deriver = createDeriver(conf, pool);
+        }
+
+        /**
+         * Derives from the cells of the row, and adds the derived cells to
+         * the list when the batch is full.
+         */
+        private void derive(Result result, List<KeyValue> kvs) {
+            if(result.isEmpty()) {
+                return;
+            }
+            deriver.derive(source, Arrays.asList(result.raw()));
+            if(++rows >= batchSize) {
+                drain(kvs);
+            }
+        }
+
+        /**
+         * Adds the cells derived so far to the list.
+         */
+        private void drain(List<KeyValue> kvs) {
+            byte[] now = Bytes.toBytes(timestamp);
+            for(Row row : deriver.drain()) {
+                if(!(row instanceof Put)) {
+                    throw new IllegalArgumentException("Can't bulk-load " + row.getClass().getSimpleName() + ".");
+                }
+                for(List<KeyValue> family : ((Put) row).getFamilyMap().values()) {
+                    for(KeyValue kv : family) {
+                        kv.updateLatestStamp(now);
+                        kvs.add(kv);
+                    }
+                }
+            }
+            rows = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            pool.close();
+        }
+    }
+
+    /**
+     * A mapper to derive the cells of a region of the source table.
+     */
+    public static class RebuildMapper extends TableMapper<ImmutableBytesWritable, KeyValue> {
+
+        private Derivation derivation;
+
+        private final List<KeyValue> kvs = new ArrayList<KeyValue>();
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            DerivedTableRebuilder rebuilder = ReflectionUtils.newInstance(
+                    conf.getClass(CONF_REBUILDER_CLASS, null, DerivedTableRebuilder.class), conf);
+            derivation = rebuilder.new Derivation(conf, Bytes.toBytes(conf.get(TableInputFormat.INPUT_TABLE)));
+        }
+
+        @Override
+        protected void map(ImmutableBytesWritable key, Result value, Context context) throws IOException,
+                InterruptedException {
+            derivation.derive(value, kvs);
+            write(context);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            try {
+                derivation.drain(kvs);
+                write(context);
+            }
+            finally {
+                derivation.close();
+            }
+        }
+
+        private void write(Context context) throws IOException, InterruptedException {
+            for(KeyValue kv : kvs) {
+                context.write(new ImmutableBytesWritable(kv.getRow()), kv);
+            }
+            kvs.clear();
+        }
+    }
+
+    /**
+     * A combiner and reducer to merge and sort the derived cells of each row.
+     */
+    public static class RebuildReducer extends
+            Reducer<ImmutableBytesWritable, KeyValue, ImmutableBytesWritable, KeyValue> {
+
+        private Merger merger;
+
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            merger = ReflectionUtils.newInstance(
+                    conf.getClass(CONF_REBUILDER_CLASS, null, DerivedTableRebuilder.class), conf).createMerger(conf);
+        }
+
+        @Override
+        protected void reduce(ImmutableBytesWritable key, Iterable<KeyValue> values, Context context)
+                throws IOException, InterruptedException {
+            List<KeyValue> kvs = new ArrayList<KeyValue>();
+            for(KeyValue kv : values) {
+                // the values are reused by the framework
+                kvs.add(kv.clone());
+            }
+            for(KeyValue kv : sort(kvs, merger)) {
+                context.write(key, kv);
+            }
+        }
+    }
+}
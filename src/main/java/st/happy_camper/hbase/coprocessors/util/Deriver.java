@@ -0,0 +1,53 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.util;
+
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Row;
+
+/**
+ * Derives mutations of a derived table from cells committed to source tables.
+ *
+ * <p>
+ * A deriver is fed the edits of a batch one by one and drained once per
+ * batch, so it may merge the mutations of many edits, e.g. sum word counts.
+ * It's called by a single thread and needn't be thread-safe.
+ * </p>
+ *
+ * @author ueshin
+ * @see DerivingWALObserver
+ */
+public interface Deriver {
+
+    /**
+     * Derives from the cells of an edit.
+     *
+     * @param table
+     *            the source table name
+     * @param kvs
+     *            the cells of the edit
+     */
+    void derive(byte[] table, List<KeyValue> kvs);
+
+    /**
+     * Returns the mutations derived since the last drain.
+     *
+     * @return the mutations to write
+     */
+    List<Row> drain();
+}
@@ -0,0 +1,772 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.coprocessor.ObserverContext;
+import org.apache.hadoop.hbase.coprocessor.WALCoprocessorEnvironment;
+import org.apache.hadoop.hbase.coprocessor.WALObserver;
+import org.apache.hadoop.hbase.regionserver.wal.HLog;
+import org.apache.hadoop.hbase.regionserver.wal.HLogKey;
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hadoop.hbase.util.Threads;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A WAL coprocessor to derive a table from the edits committed to source
+ * tables, instead of hooking every put synchronously.
+ *
+ * <p>
+ * Edits of the source tables are only queued on the write path. A background
+ * thread collects them into large batches, lets the {@link Deriver} derive
+ * mutations of the whole batch at once, and writes them to the derived table
+ * retrying failures. The WAL must never wait for the derived table, which may
+ * be written through the same WAL, so the queue never blocks.
+ * </p>
+ *
+ * <p>
+ * With <code>wal.checkpoint.dir</code>, the edits are also appended to a
+ * {@link MutationJournal} in the directory before they are queued, and
+ * acknowledged once their derived mutations are written. The edits which find
+ * the queue full are left in the journal, and derived when the queue leaves
+ * room. The edits not acknowledged when the region server stops or crashes are
+ * recovered and derived again by the next start. Without the directory, the
+ * edits which find the queue full are dropped and counted, and only a rebuild
+ * of the derived table restores them.
+ * </p>
+ *
+ * <p>
+ * The checkpoint of a region is its low-water mark: the log sequence number
+ * up to which all the edits are derived. It stops below the edits dropped or
+ * failed to derive. It's saved in the directory every
+ * <code>wal.checkpoint.interval</code>, and read on start so that the
+ * recovered edits it covers, whose acknowledgements were lost, aren't derived
+ * twice. Regions which had no edits for <code>wal.checkpoint.ttl</code>, e.g.
+ * closed or moved away, are forgotten.
+ * </p>
+ *
+ * <p>
+ * WAL coprocessors are configured by <code>hbase.coprocessor.wal.classes</code>
+ * of the region servers, so the parameters are read from the region server
+ * configuration with the prefix of each subclass.
+ * </p>
+ *
+ * @author ueshin
+ */
+public abstract class DerivingWALObserver implements WALObserver {
+
+    private static final Log LOG = LogFactory.getLog(DerivingWALObserver.class);
+
+    /**
+     * Configuration key for the source table names.
+     */
+    public static final String CONF_SOURCES = "sources";
+
+    /**
+     * Configuration key for the capacity of the queue of edits waiting to be
+     * derived.
+     */
+    public static final String CONF_WAL_QUEUE_SIZE = "wal.queuesize";
+
+    /**
+     * Configuration key for the max number of edits derived in a batch.
+     */
+    public static final String CONF_WAL_BATCH_SIZE = "wal.batchsize";
+
+    /**
+     * Configuration key for the time in milliseconds to wait for a batch to
+     * fill up.
+     */
+    public static final String CONF_WAL_INTERVAL = "wal.interval";
+
+    /**
+     * Configuration key for the local directory to keep the checkpoint and
+     * the journal of the edits to derive.
+     */
+    public static final String CONF_WAL_CHECKPOINT_DIR = "wal.checkpoint.dir";
+
+    /**
+     * Configuration key for the min time in milliseconds between saves of the
+     * checkpoint.
+     */
+    public static final String CONF_WAL_CHECKPOINT_INTERVAL = "wal.checkpoint.interval";
+
+    /**
+     * Configuration key for the time in milliseconds after which the
+     * checkpoint of a region without edits is forgotten.
+     */
+    public static final String CONF_WAL_CHECKPOINT_TTL = "wal.checkpoint.ttl";
+
+    /**
+     * Configuration key for the size of segment files of the journal in
+     * bytes.
+     */
+    public static final String CONF_WAL_JOURNAL_SEGMENT_SIZE = "wal.journal.segmentsize";
+
+    /**
+     * Configuration key to sync every append to the journal to the disk.
+     */
+    public static final String CONF_WAL_JOURNAL_SYNC = "wal.journal.sync";
+
+    /**
+     * Default capacity of the queue of edits waiting to be derived.
+     */
+    public static final int DEFAULT_WAL_QUEUE_SIZE = 10000;
+
+    /**
+     * Default max number of edits derived in a batch.
+     */
+    public static final int DEFAULT_WAL_BATCH_SIZE = 1000;
+
+    /**
+     * Default time in milliseconds to wait for a batch to fill up.
+     */
+    public static final long DEFAULT_WAL_INTERVAL = 1000L;
+
+    /**
+     * Default min time in milliseconds between saves of the checkpoint.
+     */
+    public static final long DEFAULT_WAL_CHECKPOINT_INTERVAL = 10000L;
+
+    /**
+     * Default time in milliseconds after which the checkpoint of a region
+     * without edits is forgotten.
+     */
+    public static final long DEFAULT_WAL_CHECKPOINT_TTL = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Default size of segment files of the journal in bytes.
+     */
+    public static final int DEFAULT_WAL_JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int MAX_ATTEMPTS_ON_STOP = 3;
+
+    /**
+     * An edit of a source region, journaled as a row.
+     */
+    private static class Edit implements Row {
+
+        private byte[] table;
+
+        private String region;
+
+        private long seq;
+
+        private List<KeyValue> kvs;
+
+        /**
+         * The sequence number in the journal, or <code>-1</code> if not
+         * journaled.
+         */
+        private long journalSeq = -1L;
+
+        private Edit() {
+        }
+
+        private Edit(byte[] table, String region, long seq, List<KeyValue> kvs) {
+            this.table = table;
+            this.region = region;
+            this.seq = seq;
+            this.kvs = kvs;
+        }
+
+        @Override
+        public byte[] getRow() {
+            return kvs.get(0).getRow();
+        }
+
+        @Override
+        public int compareTo(Row row) {
+            return Bytes.compareTo(getRow(), row.getRow());
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            Bytes.writeByteArray(out, table);
+            WritableUtils.writeString(out, region);
+            out.writeLong(seq);
+            out.writeInt(kvs.size());
+            for(KeyValue kv : kvs) {
+                kv.write(out);
+            }
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            table = Bytes.readByteArray(in);
+            region = WritableUtils.readString(in);
+            seq = in.readLong();
+            int size = in.readInt();
+            kvs = new ArrayList<KeyValue>(size);
+            for(int i = 0; i < size; i++) {
+                KeyValue kv = new KeyValue();
+                kv.readFields(in);
+                kvs.add(kv);
+            }
+        }
+    }
+
+    /**
+     * The progress of the derivation of a region.
+     */
+    private static class Progress {
+
+        private final TreeSet<Long> pending = new TreeSet<Long>();
+
+        private long derived;
+
+        private long lost = Long.MAX_VALUE;
+
+        private long lastEdit = System.currentTimeMillis();
+
+        private boolean forgotten = false;
+
+        private Progress(long derived) {
+            this.derived = derived;
+        }
+
+        /**
+         * Adds the edit to be derived.
+         *
+         * @return <code>false</code> if the progress is forgotten
+         */
+        private synchronized boolean add(long seq) {
+            if(forgotten) {
+                return false;
+            }
+            pending.add(seq);
+            lastEdit = System.currentTimeMillis();
+            return true;
+        }
+
+        /**
+         * Marks the edit derived, or lost if it will never be.
+         */
+        private synchronized void done(long seq, boolean derived) {
+            pending.remove(seq);
+            if(derived) {
+                this.derived = Math.max(this.derived, seq);
+            }
+            else {
+                lost = Math.min(lost, seq);
+            }
+        }
+
+        private synchronized long checkpoint() {
+            long checkpoint = derived;
+            if(!pending.isEmpty()) {
+                checkpoint = Math.min(checkpoint, pending.first() - 1);
+            }
+            if(lost != Long.MAX_VALUE) {
+                checkpoint = Math.min(checkpoint, lost - 1);
+            }
+            return checkpoint;
+        }
+
+        /**
+         * Forgets the progress if the region had no edits since the time.
+         *
+         * @return <code>true</code> if forgotten
+         */
+        private synchronized boolean forget(long since) {
+            if(pending.isEmpty() && lastEdit < since) {
+                forgotten = true;
+            }
+            return forgotten;
+        }
+    }
+
+    private final String prefix;
+
+    private final Set<byte[]> sources = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+
+    private final ConcurrentMap<String, Progress> progresses = new ConcurrentHashMap<String, Progress>();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private Deriver deriver;
+
+    private TablePool pool;
+
+    private BlockingQueue<Edit> queue;
+
+    private int batchSize;
+
+    private long interval;
+
+    private File checkpointFile;
+
+    private long checkpointInterval;
+
+    private long checkpointTTL;
+
+    private long lastSaved;
+
+    private volatile boolean changed = false;
+
+    private MutationJournal journal;
+
+    private Thread thread;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructs the observer reading its parameters with the prefix.
+     *
+     * @param prefix
+     *            the prefix of the configuration keys, e.g.
+     *            <code>wordcount.</code>
+     */
+    protected DerivingWALObserver(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Returns the name of the table to write the derived mutations.
+     *
+     * @param conf
+     *            the configuration without the prefix
+     * @return the derived table name
+     */
+    protected abstract byte[] getTableName(Configuration conf);
+
+    /**
+     * Creates the deriver.
+     *
+     * @param conf
+     *            the configuration without the prefix
+     * @return the deriver
+     * @throws IOException
+     */
+    protected abstract Deriver createDeriver(Configuration conf) throws IOException;
+
+    /**
+     * Returns the pool of the derived table, available from
+     * {@link #createDeriver(Configuration)} on.
+     * 
+     * @return the pool
+     */
+    protected TablePool getPool() {
+        return pool;
+    }
+
+    @Override
+    public void start(CoprocessorEnvironment e) throws IOException {
+        Configuration conf = new Configuration(e.getConfiguration());
+        for(Map.Entry<String, String> entry : e.getConfiguration()) {
+            if(entry.getKey().startsWith(prefix)) {
+                conf.set(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        String sourceString = conf.get(CONF_SOURCES);
+        if(sourceString != null) {
+            for(String source : sourceString.split(" +")) {
+                if(!source.isEmpty()) {
+                    sources.add(Bytes.toBytes(source));
+                }
+            }
+        }
+
+        pool = TablePool.create(conf, getTableName(conf));
+        deriver = createDeriver(conf);
+        queue = new ArrayBlockingQueue<Edit>(conf.getInt(CONF_WAL_QUEUE_SIZE, DEFAULT_WAL_QUEUE_SIZE));
+        batchSize = conf.getInt(CONF_WAL_BATCH_SIZE, DEFAULT_WAL_BATCH_SIZE);
+        interval = conf.getLong(CONF_WAL_INTERVAL, DEFAULT_WAL_INTERVAL);
+
+        String dir = conf.get(CONF_WAL_CHECKPOINT_DIR);
+        if(dir != null) {
+            checkpointFile = new File(dir, prefix + "checkpoint");
+            checkpointInterval = conf.getLong(CONF_WAL_CHECKPOINT_INTERVAL, DEFAULT_WAL_CHECKPOINT_INTERVAL);
+            checkpointTTL = conf.getLong(CONF_WAL_CHECKPOINT_TTL, DEFAULT_WAL_CHECKPOINT_TTL);
+            loadCheckpoint();
+            journal = MutationJournal.acquire(new File(dir, prefix + "journal"),
+                    conf.getInt(CONF_WAL_JOURNAL_SEGMENT_SIZE, DEFAULT_WAL_JOURNAL_SEGMENT_SIZE),
+                    conf.getBoolean(CONF_WAL_JOURNAL_SYNC, false));
+            recover();
+        }
+
+        thread = Threads.setDaemonThreadRunning(new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                work();
+            }
+        }), getClass().getSimpleName() + "-" + Bytes.toString(pool.getTableName()));
+    }
+
+    @Override
+    public void stop(CoprocessorEnvironment e) throws IOException {
+        stopped = true;
+        try {
+            if(thread != null) {
+                thread.join();
+                thread = null;
+            }
+        }
+        catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException) new InterruptedIOException().initCause(ex);
+        }
+        finally {
+            try {
+                if(journal != null) {
+                    saveCheckpoint(true);
+                    journal.release();
+                }
+            }
+            finally {
+                pool.close();
+            }
+        }
+        if(dropped.get() > 0) {
+            LOG.warn("Dropped " + dropped.get() + " edits not to derive " + Bytes.toString(pool.getTableName())
+                    + " in total.");
+        }
+    }
+
+    @Override
+    public boolean preWALWrite(ObserverContext<WALCoprocessorEnvironment> ctx, HRegionInfo info, HLogKey logKey,
+            WALEdit logEdit) throws IOException {
+        return false;
+    }
+
+    @Override
+    public void postWALWrite(ObserverContext<WALCoprocessorEnvironment> ctx, HRegionInfo info, HLogKey logKey,
+            WALEdit logEdit) throws IOException {
+        if(stopped || info.isMetaRegion() || !sources.contains(info.getTableName())) {
+            return;
+        }
+        List<KeyValue> kvs = new ArrayList<KeyValue>(logEdit.size());
+        for(KeyValue kv : logEdit.getKeyValues()) {
+            if(!kv.matchingFamily(HLog.METAFAMILY)) {
+                kvs.add(kv);
+            }
+        }
+        if(kvs.isEmpty()) {
+            return;
+        }
+        Edit edit = new Edit(info.getTableName(), info.getEncodedName(), logKey.getLogSeqNum(), kvs);
+        Progress progress = add(edit);
+        if(journal != null) {
+            try {
+                edit.journalSeq = journal.append(Collections.singletonList(edit));
+            }
+            catch(IOException e) {
+                LOG.warn("Failed to journal the edit " + edit.seq + " of the region " + edit.region + ".", e);
+            }
+        }
+        if(!queue.offer(edit)) {
+            if(edit.journalSeq >= 0L) {
+                // derived from the journal when the queue leaves room
+                journal.abandon(new long[] { edit.journalSeq }, 1);
+                return;
+            }
+            progress.done(edit.seq, false);
+            changed = true;
+            if(dropped.getAndIncrement() == 0) {
+                LOG.warn("The queue of edits to derive " + Bytes.toString(pool.getTableName())
+                        + " is full, dropping edits, which needs a rebuild to restore.");
+            }
+        }
+    }
+
+    /**
+     * Adds the edit to the progress of its region.
+     */
+    private Progress add(Edit edit) {
+        while(true) {
+            Progress progress = progresses.get(edit.region);
+            if(progress == null) {
+                progress = new Progress(-1L);
+                Progress existing = progresses.putIfAbsent(edit.region, progress);
+                if(existing != null) {
+                    progress = existing;
+                }
+            }
+            if(progress.add(edit.seq)) {
+                return progress;
+            }
+            // forgotten meanwhile
+            progresses.remove(edit.region, progress);
+        }
+    }
+
+    /**
+     * Takes the edits recovered from the journal to be derived again, but the
+     * ones the checkpoint covers.
+     */
+    private void recover() throws IOException {
+        List<Pair<Long, Row>> recovered = journal.takeRecovered();
+        long[] derived = new long[recovered.size()];
+        long[] pending = new long[recovered.size()];
+        int d = 0;
+        int p = 0;
+        for(Pair<Long, Row> pair : recovered) {
+            Edit edit = (Edit) pair.getSecond();
+            if(edit.seq <= getCheckpoint(edit.region)) {
+                derived[d++] = pair.getFirst();
+            }
+            else {
+                add(edit);
+                pending[p++] = pair.getFirst();
+            }
+        }
+        journal.acknowledge(derived, d);
+        // read back from the journal by the worker, not to keep them all
+        journal.abandon(pending, p);
+        if(p > 0) {
+            LOG.info("Recovered " + p + " edits to derive " + Bytes.toString(pool.getTableName()) + ".");
+        }
+    }
+
+    private void work() {
+        List<Edit> batch = new ArrayList<Edit>(batchSize);
+        while(true) {
+            try {
+                Edit first = queue.poll(100L, TimeUnit.MILLISECONDS);
+                if(first != null) {
+                    batch.add(first);
+                    long deadline = System.currentTimeMillis() + interval;
+                    while(batch.size() < batchSize) {
+                        queue.drainTo(batch, batchSize - batch.size());
+                        long wait = deadline - System.currentTimeMillis();
+                        if(batch.size() >= batchSize || wait <= 0L || stopped) {
+                            break;
+                        }
+                        Edit edit = queue.poll(Math.min(wait, 100L), TimeUnit.MILLISECONDS);
+                        if(edit != null) {
+                            batch.add(edit);
+                        }
+                    }
+                }
+                else if(stopped) {
+                    // the edits left in the journal are recovered by the next start
+                    return;
+                }
+                if(journal != null && !stopped && batch.size() < batchSize) {
+                    for(Pair<Long, Row> pair : journal.takeAbandoned(batchSize - batch.size())) {
+                        Edit edit = (Edit) pair.getSecond();
+                        edit.journalSeq = pair.getFirst();
+                        batch.add(edit);
+                    }
+                }
+            }
+            catch(InterruptedException e) {
+                return;
+            }
+            catch(IOException e) {
+                LOG.warn("Failed to read the edits back from the journal, will retry.", e);
+            }
+            if(!batch.isEmpty()) {
+                process(batch);
+                batch.clear();
+            }
+            saveCheckpoint(false);
+        }
+    }
+
+    private void process(List<Edit> batch) {
+        boolean[] derived = new boolean[batch.size()];
+        for(int i = 0; i < batch.size(); i++) {
+            Edit edit = batch.get(i);
+            try {
+                deriver.derive(edit.table, edit.kvs);
+                derived[i] = true;
+            }
+            catch(RuntimeException e) {
+                LOG.warn("Failed to derive from the edit " + edit.seq + " of the region " + edit.region
+                        + ", skipped.", e);
+            }
+        }
+        if(!write(deriver.drain())) {
+            // left pending, and in the journal if any
+            return;
+        }
+        long[] journalSeqs = new long[batch.size()];
+        int count = 0;
+        for(int i = 0; i < batch.size(); i++) {
+            Edit edit = batch.get(i);
+            // pending edits keep their progress from being forgotten
+            progresses.get(edit.region).done(edit.seq, derived[i]);
+            if(edit.journalSeq >= 0L) {
+                journalSeqs[count++] = edit.journalSeq;
+            }
+        }
+        changed = true;
+        if(journal != null) {
+            try {
+                journal.acknowledge(journalSeqs, count);
+            }
+            catch(IOException e) {
+                LOG.warn("Failed to acknowledge " + count + " edits in the journal.", e);
+            }
+        }
+    }
+
+    private boolean write(List<Row> rows) {
+        for(int attempt = 1; !rows.isEmpty(); attempt++) {
+            Object[] results = new Object[rows.size()];
+            HTableInterface table = null;
+            boolean healthy = false;
+            try {
+                table = pool.get();
+                table.batch(rows, results);
+                healthy = true;
+                return true;
+            }
+            catch(Exception e) {
+                List<Row> failed = new ArrayList<Row>();
+                for(int i = 0; i < results.length; i++) {
+                    if(!(results[i] instanceof Result)) {
+                        failed.add(rows.get(i));
+                    }
+                }
+                rows = failed;
+                if(stopped && attempt >= MAX_ATTEMPTS_ON_STOP && !rows.isEmpty()) {
+                    LOG.error("Failed to write " + rows.size() + " derived mutations to "
+                            + Bytes.toString(pool.getTableName()) + " on stop, the checkpoint is kept behind.", e);
+                    return false;
+                }
+                LOG.warn("Failed to write " + rows.size() + " derived mutations to "
+                        + Bytes.toString(pool.getTableName()) + ", will retry.", e);
+                Threads.sleep(Math.min(100 * attempt, 10000));
+            }
+            finally {
+                if(table != null) {
+                    pool.release(table, healthy);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the log sequence number of the region up to which all the edits
+     * are derived. It stops below the edits dropped or failed to derive.
+     *
+     * @param encodedRegionName
+     *            the encoded name of the source region
+     * @return the log sequence number, or <code>-1</code> if nothing is
+     *         derived
+     */
+    public long getCheckpoint(String encodedRegionName) {
+        Progress progress = progresses.get(encodedRegionName);
+        return progress != null ? progress.checkpoint() : -1L;
+    }
+
+    /**
+     * Returns the number of edits dropped.
+     *
+     * @return the number of edits dropped
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void loadCheckpoint() throws IOException {
+        if(!checkpointFile.exists()) {
+            return;
+        }
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(checkpointFile);
+        try {
+            props.load(in);
+        }
+        finally {
+            in.close();
+        }
+        for(String region : props.stringPropertyNames()) {
+            progresses.put(region, new Progress(Long.parseLong(props.getProperty(region))));
+        }
+        lastSaved = System.currentTimeMillis();
+    }
+
+    /**
+     * Saves the checkpoint if it changed and the interval passed, or if
+     * forced, forgetting the regions without edits for the TTL.
+     */
+    private void saveCheckpoint(boolean force) {
+        long now = System.currentTimeMillis();
+        if(checkpointFile == null || !changed || (!force && now - lastSaved < checkpointInterval)) {
+            return;
+        }
+        changed = false;
+        lastSaved = now;
+        Properties props = new Properties();
+        for(Iterator<Map.Entry<String, Progress>> it = progresses.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Progress> entry = it.next();
+            if(entry.getValue().forget(now - checkpointTTL)) {
+                it.remove();
+                continue;
+            }
+            long checkpoint = entry.getValue().checkpoint();
+            if(checkpoint >= 0L) {
+                props.setProperty(entry.getKey(), Long.toString(checkpoint));
+            }
+        }
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        try {
+            checkpointFile.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                props.store(out, null);
+            }
+            finally {
+                out.close();
+            }
+            if(!tmp.renameTo(checkpointFile)) {
+                throw new IOException("Failed to rename " + tmp + " to " + checkpointFile + ".");
+            }
+        }
+        catch(IOException e) {
+            LOG.warn("Failed to save the checkpoint to " + checkpointFile + ".", e);
+        }
+    }
+}
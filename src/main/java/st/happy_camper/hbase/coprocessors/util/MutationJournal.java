@@ -0,0 +1,558 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.DirectMemoryUtils;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * An append-only journal of pending derived mutations on the local disk.
+ * 
+ * <p>
+ * The journal is a sequence of memory-mapped segment files of fixed size.
+ * Each mutation is appended as a record with a sequence number and a checksum,
+ * and acknowledged by appending the sequence numbers once it's written to the
+ * derived table. Leading segments whose mutations are all acknowledged are
+ * deleted. When the journal is opened, the mutations not acknowledged yet are
+ * recovered to be written again, so they survive outages of the derived table
+ * and crashes of the region server. The mutations the writer gave up on are
+ * marked abandoned, and read back from the segments to be retried while the
+ * journal is open, so that they don't keep the segments from being deleted.
+ * Rows other than puts, deletes and increments, e.g. source edits to derive
+ * from, are journaled by their class names, and need a no-arg constructor.
+ * </p>
+ * 
+ * <p>
+ * A mutation is written again if it was written but the acknowledgement was
+ * lost, so replays are at-least-once, and replayed increments may count
+ * twice.
+ * </p>
+ * 
+ * <p>
+ * Records are written into the page cache, which survives crashes of the
+ * process but not of the machine unless the journal syncs every append.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class MutationJournal {
+
+    private static final Log LOG = LogFactory.getLog(MutationJournal.class);
+
+    private static final String SUFFIX = ".journal";
+
+    private static final byte DATA = 1;
+
+    private static final byte ACK = 2;
+
+    private static final byte PUT = 'P';
+
+    private static final byte DELETE = 'D';
+
+    private static final byte INCREMENT = 'I';
+
+    private static final byte OTHER = 'O';
+
+    /**
+     * Record layout: length of the rest (4), type (1), sequence number (8),
+     * payload, CRC32 of the type, sequence number and payload (4). A zero
+     * length marks the end of the segment.
+     */
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+
+    private static final Map<File, MutationJournal> JOURNALS = new HashMap<File, MutationJournal>();
+
+    /**
+     * Returns the journal in the directory, opening it if it isn't opened in
+     * this process yet. Each call must be paired with {@link #release()}.
+     * 
+     * @param dir
+     *            the directory of the journal
+     * @param segmentSize
+     *            the size of segment files in bytes
+     * @param sync
+     *            <code>true</code> to sync every append to the disk
+     * @return the shared journal
+     * @throws IOException
+     */
+    public static MutationJournal acquire(File dir, int segmentSize, boolean sync) throws IOException {
+        File key = dir.getCanonicalFile();
+        synchronized(JOURNALS) {
+            MutationJournal journal = JOURNALS.get(key);
+            if(journal == null) {
+                journal = new MutationJournal(key, segmentSize, sync);
+                JOURNALS.put(key, journal);
+            }
+            journal.references++;
+            return journal;
+        }
+    }
+
+    /**
+     * A segment file.
+     */
+    private static class Segment {
+
+        private final File file;
+
+        private MappedByteBuffer buffer;
+
+        private long firstSeq = -1L;
+
+        private int unacknowledged = 0;
+
+        private Segment(File file, int size) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if(raf.length() < size) {
+                    raf.setLength(size);
+                }
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            }
+            finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Unmaps the file now instead of when the buffer is collected. The
+         * segment mustn't be used afterwards.
+         */
+        private void unmap() {
+            try {
+                DirectMemoryUtils.destroyDirectByteBuffer(buffer);
+            }
+            catch(Exception e) {
+                // left to be unmapped when collected
+                LOG.debug("Failed to unmap journal segment " + file + ".", e);
+            }
+            buffer = null;
+        }
+    }
+
+    private final File dir;
+
+    private final int segmentSize;
+
+    private final boolean sync;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    private final TreeMap<Long, Segment> segmentsBySeq = new TreeMap<Long, Segment>();
+
+    private Segment current;
+
+    private long nextSegmentId = 0L;
+
+    private long nextSeq = 0L;
+
+    private Map<Long, Row> recovered = new LinkedHashMap<Long, Row>();
+
+    private final TreeSet<Long> abandoned = new TreeSet<Long>();
+
+    private final CRC32 crc = new CRC32();
+
+    private int references = 0;
+
+    private MutationJournal(File dir, int segmentSize, boolean sync) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create journal directory " + dir + ".");
+        }
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            Arrays.sort(files);
+            for(File file : files) {
+                if(file.getName().endsWith(SUFFIX)) {
+                    long id = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+                    Segment segment = new Segment(file, segmentSize);
+                    segments.put(id, segment);
+                    nextSegmentId = id + 1;
+                    read(segment);
+                    current = segment;
+                }
+            }
+        }
+        for(Long seq : recovered.keySet()) {
+            segmentsBySeq.floorEntry(seq).getValue().unacknowledged++;
+        }
+        compact();
+        if(!recovered.isEmpty()) {
+            LOG.info("Recovered " + recovered.size() + " pending mutations from " + dir + ".");
+        }
+    }
+
+    /**
+     * Reads the records of the segment, leaving its position after the last
+     * valid record.
+     */
+    private void read(Segment segment) throws IOException {
+        ByteBuffer buffer = segment.buffer;
+        buffer.position(0);
+        byte[] body;
+        while((body = readRecord(buffer, segment)) != null) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            byte type = in.readByte();
+            long seq = in.readLong();
+            if(type == DATA) {
+                register(segment, seq);
+                recovered.put(seq, readRow(in));
+                nextSeq = Math.max(nextSeq, seq + 1);
+            }
+            else if(type == ACK) {
+                // the mutations acknowledged might be in deleted segments
+                recovered.remove(seq);
+                nextSeq = Math.max(nextSeq, seq + 1);
+                for(int i = in.readInt(); i > 1; i--) {
+                    long acknowledged = in.readLong();
+                    recovered.remove(acknowledged);
+                    nextSeq = Math.max(nextSeq, acknowledged + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the body of the record at the position of the buffer.
+     * 
+     * @return the body, or <code>null</code> at the end of the valid records,
+     *         leaving the position at the end
+     */
+    private byte[] readRecord(ByteBuffer buffer, Segment segment) {
+        if(buffer.remaining() < HEADER_SIZE + 4) {
+            return null;
+        }
+        int start = buffer.position();
+        int length = buffer.getInt();
+        if(length <= 0) {
+            buffer.position(start);
+            return null;
+        }
+        if(length < 1 + 8 + 4 || length > buffer.remaining()) {
+            LOG.warn("Found a broken record in " + segment.file + " at " + start + ", ignoring the rest.");
+            buffer.position(start);
+            return null;
+        }
+        byte[] body = new byte[length - 4];
+        buffer.get(body);
+        int checksum = buffer.getInt();
+        crc.reset();
+        crc.update(body);
+        if((int) crc.getValue() != checksum) {
+            LOG.warn("Found a broken record in " + segment.file + " at " + start + ", ignoring the rest.");
+            buffer.position(start);
+            return null;
+        }
+        return body;
+    }
+
+    private static Row readRow(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        Writable row;
+        switch(kind) {
+        case PUT:
+            row = new Put();
+            break;
+        case DELETE:
+            row = new Delete();
+            break;
+        case INCREMENT:
+            row = new Increment();
+            break;
+        case OTHER:
+            String name = in.readUTF();
+            try {
+                row = (Writable) ReflectionUtils.newInstance(Class.forName(name), null);
+            }
+            catch(ClassNotFoundException e) {
+                throw (IOException) new IOException("Unknown row in journal: " + name).initCause(e);
+            }
+            break;
+        default:
+            throw new IOException("Unknown mutation in journal: " + kind);
+        }
+        row.readFields(in);
+        return (Row) row;
+    }
+
+    private static void writeRow(DataOutputStream out, Row row) throws IOException {
+        if(row instanceof Put) {
+            out.writeByte(PUT);
+        }
+        else if(row instanceof Delete) {
+            out.writeByte(DELETE);
+        }
+        else if(row instanceof Increment) {
+            out.writeByte(INCREMENT);
+        }
+        else {
+            out.writeByte(OTHER);
+            out.writeUTF(row.getClass().getName());
+        }
+        row.write(out);
+    }
+
+    /**
+     * Returns the mutations recovered from the journal and not acknowledged
+     * yet, with their sequence numbers. They are returned only once.
+     * 
+     * @return the recovered mutations
+     */
+    public synchronized List<Pair<Long, Row>> takeRecovered() {
+        List<Pair<Long, Row>> rows = new ArrayList<Pair<Long, Row>>(recovered.size());
+        for(Entry<Long, Row> entry : recovered.entrySet()) {
+            rows.add(new Pair<Long, Row>(entry.getKey(), entry.getValue()));
+        }
+        recovered.clear();
+        return rows;
+    }
+
+    /**
+     * Marks the mutations abandoned by the writer, to be retried by
+     * {@link #takeAbandoned(int)}.
+     * 
+     * @param seqs
+     *            the sequence numbers of the mutations
+     * @param count
+     *            the number of sequence numbers
+     */
+    public synchronized void abandon(long[] seqs, int count) {
+        for(int i = 0; i < count; i++) {
+            abandoned.add(seqs[i]);
+        }
+    }
+
+    /**
+     * Returns the oldest abandoned mutations read back from the journal, with
+     * their sequence numbers. They are no longer marked abandoned, so the
+     * caller must acknowledge or abandon them again.
+     * 
+     * @param max
+     *            the max number of mutations to return
+     * @return the abandoned mutations
+     * @throws IOException
+     */
+    public synchronized List<Pair<Long, Row>> takeAbandoned(int max) throws IOException {
+        List<Pair<Long, Row>> rows = new ArrayList<Pair<Long, Row>>();
+        Set<Long> wanted = new TreeSet<Long>();
+        for(Long seq : abandoned) {
+            if(wanted.size() >= max) {
+                break;
+            }
+            wanted.add(seq);
+        }
+        Segment segment = null;
+        for(Long seq : wanted) {
+            Entry<Long, Segment> entry = segmentsBySeq.floorEntry(seq);
+            if(entry == null || entry.getValue() == segment) {
+                continue;
+            }
+            segment = entry.getValue();
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(0);
+            byte[] body;
+            while((body = readRecord(buffer, segment)) != null) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+                if(in.readByte() == DATA) {
+                    long s = in.readLong();
+                    if(wanted.contains(s)) {
+                        rows.add(new Pair<Long, Row>(s, readRow(in)));
+                    }
+                }
+            }
+        }
+        abandoned.removeAll(wanted);
+        return rows;
+    }
+
+    /**
+     * Appends the mutations. They are given consecutive sequence numbers.
+     * 
+     * @param rows
+     *            the mutations
+     * @return the sequence number of the first mutation
+     * @throws IOException
+     */
+    public synchronized long append(List<? extends Row> rows) throws IOException {
+        long first = nextSeq;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for(Row row : rows) {
+            bytes.reset();
+            out.writeByte(DATA);
+            out.writeLong(nextSeq);
+            writeRow(out, row);
+            out.flush();
+            Segment segment = write(bytes.toByteArray());
+            register(segment, nextSeq);
+            segment.unacknowledged++;
+            nextSeq++;
+        }
+        if(sync) {
+            current.buffer.force();
+        }
+        return first;
+    }
+
+    /**
+     * Acknowledges the mutations written to the derived table.
+     * 
+     * @param seqs
+     *            the sequence numbers of the mutations
+     * @param count
+     *            the number of sequence numbers
+     * @throws IOException
+     */
+    public synchronized void acknowledge(long[] seqs, int count) throws IOException {
+        if(count == 0) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + count * 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ACK);
+        out.writeLong(seqs[0]);
+        out.writeInt(count);
+        for(int i = 1; i < count; i++) {
+            out.writeLong(seqs[i]);
+        }
+        out.flush();
+        write(bytes.toByteArray());
+        for(int i = 0; i < count; i++) {
+            Entry<Long, Segment> entry = segmentsBySeq.floorEntry(seqs[i]);
+            if(entry != null) {
+                entry.getValue().unacknowledged--;
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Writes the record body into the current segment, rolling to a new
+     * segment if it doesn't fit.
+     * 
+     * @return the segment written into
+     */
+    private Segment write(byte[] body) throws IOException {
+        int size = 4 + body.length + 4;
+        if(size + 4 > segmentSize) {
+            throw new IOException("Mutation of " + body.length + " bytes is too large for journal " + dir + ".");
+        }
+        if(current == null || current.buffer.remaining() < size + 4) {
+            current = new Segment(new File(dir, String.format("%020d", nextSegmentId) + SUFFIX), segmentSize);
+            segments.put(nextSegmentId++, current);
+        }
+        crc.reset();
+        crc.update(body);
+        ByteBuffer buffer = current.buffer;
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.put(body);
+        buffer.putInt((int) crc.getValue());
+        // the length goes last so that a torn record is never read
+        buffer.putInt(start, body.length + 4);
+        return current;
+    }
+
+    private void register(Segment segment, long seq) {
+        if(segment.firstSeq < 0L) {
+            segment.firstSeq = seq;
+            segmentsBySeq.put(seq, segment);
+        }
+    }
+
+    /**
+     * Deletes the leading segments whose mutations are all acknowledged,
+     * except the current one.
+     */
+    private void compact() {
+        while(!segments.isEmpty()) {
+            Entry<Long, Segment> first = segments.firstEntry();
+            Segment segment = first.getValue();
+            if(segment == current || segment.unacknowledged > 0) {
+                return;
+            }
+            segments.remove(first.getKey());
+            if(segment.firstSeq >= 0L) {
+                segmentsBySeq.remove(segment.firstSeq);
+            }
+            segment.unmap();
+            if(!segment.file.delete()) {
+                LOG.warn("Failed to delete journal segment " + segment.file + ".");
+            }
+        }
+    }
+
+    /**
+     * Releases the journal. The last release syncs it to the disk and unmaps
+     * the segments.
+     */
+    public void release() {
+        synchronized(JOURNALS) {
+            if(--references > 0) {
+                return;
+            }
+            JOURNALS.remove(dir);
+        }
+        synchronized(this) {
+            if(current != null) {
+                current.buffer.force();
+            }
+            for(Segment segment : segments.values()) {
+                segment.unmap();
+            }
+            segments.clear();
+            segmentsBySeq.clear();
+            current = null;
+        }
+    }
+}
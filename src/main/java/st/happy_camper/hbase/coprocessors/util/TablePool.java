@@ -0,0 +1,204 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A bounded pool of table handles shared by the puts handled by a
+ * coprocessor.
+ * 
+ * <p>
+ * Handles are created lazily, and at most <code>pool.size</code> idle handles
+ * are kept. A handle must be given back by {@link #release(HTableInterface, boolean)}
+ * after use; a handle failed during use is closed instead of being reused.
+ * </p>
+ * 
+ * <p>
+ * If <code>pool.autoflush</code> is <code>false</code>, puts are kept in the
+ * client write buffer of each handle until it fills up or the pool is
+ * closed. Note that buffered puts will be lost if the region server crashes.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class TablePool implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(TablePool.class);
+
+    /**
+     * Configuration key for the max number of idle handles.
+     */
+    public static final String CONF_POOL_SIZE = "pool.size";
+
+    /**
+     * Configuration key for the client write buffer size in bytes of each
+     * handle.
+     */
+    public static final String CONF_POOL_WRITE_BUFFER = "pool.writebuffer";
+
+    /**
+     * Configuration key for the autoflush of each handle.
+     */
+    public static final String CONF_POOL_AUTOFLUSH = "pool.autoflush";
+
+    /**
+     * Default max number of idle handles.
+     */
+    public static final int DEFAULT_POOL_SIZE = 10;
+
+    /**
+     * Default autoflush.
+     */
+    public static final boolean DEFAULT_POOL_AUTOFLUSH = true;
+
+    /**
+     * Creates a pool configured by the configuration.
+     * 
+     * @param conf
+     *            the configuration
+     * @param tableName
+     *            the table name
+     * @return the new pool
+     */
+    public static TablePool create(Configuration conf, byte[] tableName) {
+        return new TablePool(conf, tableName, conf.getInt(CONF_POOL_SIZE, DEFAULT_POOL_SIZE), conf.getLong(
+                CONF_POOL_WRITE_BUFFER, -1L), conf.getBoolean(CONF_POOL_AUTOFLUSH, DEFAULT_POOL_AUTOFLUSH));
+    }
+
+    private final Configuration conf;
+
+    private final byte[] tableName;
+
+    private final long writeBufferSize;
+
+    private final boolean autoFlush;
+
+    private final BlockingQueue<HTable> idle;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a pool.
+     * 
+     * @param conf
+     *            the configuration to connect to the table
+     * @param tableName
+     *            the table name
+     * @param maxSize
+     *            the max number of idle handles
+     * @param writeBufferSize
+     *            the write buffer size, or a negative value for the default
+     * @param autoFlush
+     *            the autoflush of each handle
+     */
+    public TablePool(Configuration conf, byte[] tableName, int maxSize, long writeBufferSize, boolean autoFlush) {
+        this.conf = conf;
+        this.tableName = tableName;
+        this.writeBufferSize = writeBufferSize;
+        this.autoFlush = autoFlush;
+        this.idle = new ArrayBlockingQueue<HTable>(Math.max(maxSize, 1));
+    }
+
+    /**
+     * Returns the table name.
+     * 
+     * @return the table name
+     */
+    public byte[] getTableName() {
+        return tableName;
+    }
+
+    /**
+     * Borrows a handle from the pool, or creates a new one if no idle handle.
+     * 
+     * @return the handle
+     * @throws IOException
+     */
+    public HTableInterface get() throws IOException {
+        if(closed) {
+            throw new IOException("TablePool for " + Bytes.toString(tableName) + " is closed.");
+        }
+        HTable table = idle.poll();
+        if(table == null) {
+            table = new HTable(conf, tableName);
+            table.setAutoFlush(autoFlush);
+            if(writeBufferSize >= 0) {
+                table.setWriteBufferSize(writeBufferSize);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Gives back the handle to the pool.
+     * 
+     * @param table
+     *            the handle
+     * @param healthy
+     *            <code>false</code> if the handle failed during use
+     */
+    public void release(HTableInterface table, boolean healthy) {
+        if(healthy && !closed && idle.offer((HTable) table)) {
+            if(closed && idle.remove(table)) {
+                closeQuietly(table);
+            }
+            return;
+        }
+        closeQuietly(table);
+    }
+
+    private void closeQuietly(HTableInterface table) {
+        try {
+            table.close();
+        }
+        catch(IOException e) {
+            LOG.warn("Failed to close a handle of " + Bytes.toString(tableName) + ".", e);
+        }
+    }
+
+    /**
+     * Flushes and closes all idle handles. Handles given back afterwards are
+     * closed immediately.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        IOException exception = null;
+        HTable table;
+        while((table = idle.poll()) != null) {
+            try {
+                table.close();
+            }
+            catch(IOException e) {
+                exception = e;
+            }
+        }
+        if(exception != null) {
+            throw exception;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Target columns compiled for matching cells without allocations.
+ *
+ * <p>
+ * Targets are space-separated, each of which is a column family optionally
+ * followed by <code>:</code> and a qualifier. A family alone matches all the
+ * qualifiers of the family. A qualifier may contain wildcards <code>*</code>
+ * for any bytes and <code>?</code> for a byte, so <code>a:title*</code>
+ * matches the qualifiers starting with <code>title</code>. The families are
+ * kept sorted to be looked up by binary search, so the cells of families
+ * without targets are skipped by a lookup per family.
+ * </p>
+ *
+ * @author ueshin
+ */
+public class TargetMatcher {
+
+    /**
+     * Compiles the targets.
+     *
+     * @param targets
+     *            the space-separated targets, or <code>null</code> for no
+     *            targets
+     * @return the matcher
+     */
+    public static TargetMatcher compile(String targets) {
+        Map<byte[], List<String>> qualifiers = new TreeMap<byte[], List<String>>(Bytes.BYTES_COMPARATOR);
+        if(targets != null) {
+            for(String pair : targets.split(" +")) {
+                if(!pair.isEmpty()) {
+                    String[] parts = pair.split(":", 2);
+                    byte[] family = Bytes.toBytes(parts[0]);
+                    List<String> list = qualifiers.get(family);
+                    if(list == null) {
+                        list = new ArrayList<String>();
+                        qualifiers.put(family, list);
+                    }
+                    list.add(parts.length > 1 ? parts[1] : "*");
+                }
+            }
+        }
+        byte[][] families = new byte[qualifiers.size()][];
+        Family[] matchers = new Family[qualifiers.size()];
+        int i = 0;
+        for(Map.Entry<byte[], List<String>> entry : qualifiers.entrySet()) {
+            families[i] = entry.getKey();
+            matchers[i] = new Family(entry.getValue());
+            i++;
+        }
+        return new TargetMatcher(families, matchers);
+    }
+
+    /**
+     * The qualifiers targeted in a family.
+     */
+    public static class Family {
+
+        private final boolean all;
+
+        private final byte[][] exacts;
+
+        private final byte[][] prefixes;
+
+        private final byte[][] patterns;
+
+        private Family(List<String> qualifiers) {
+            boolean all = false;
+            List<byte[]> exacts = new ArrayList<byte[]>();
+            List<byte[]> prefixes = new ArrayList<byte[]>();
+            List<byte[]> patterns = new ArrayList<byte[]>();
+            for(String qualifier : qualifiers) {
+                int wildcard = indexOfWildcard(qualifier);
+                if(wildcard < 0) {
+                    exacts.add(Bytes.toBytes(qualifier));
+                }
+                else if(qualifier.equals("*")) {
+                    all = true;
+                }
+                else if(wildcard == qualifier.length() - 1 && qualifier.charAt(wildcard) == '*') {
+                    prefixes.add(Bytes.toBytes(qualifier.substring(0, wildcard)));
+                }
+                else {
+                    patterns.add(Bytes.toBytes(qualifier));
+                }
+            }
+            this.all = all;
+            this.exacts = exacts.toArray(new byte[exacts.size()][]);
+            Arrays.sort(this.exacts, Bytes.BYTES_COMPARATOR);
+            this.prefixes = prefixes.toArray(new byte[prefixes.size()][]);
+            this.patterns = patterns.toArray(new byte[patterns.size()][]);
+        }
+
+        private static int indexOfWildcard(String qualifier) {
+            for(int i = 0; i < qualifier.length(); i++) {
+                char c = qualifier.charAt(i);
+                if(c == '*' || c == '?') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns whether the qualifier of the cell is targeted. The family
+         * of the cell is not checked.
+         *
+         * @param kv
+         *            the cell
+         * @return <code>true</code> if the qualifier is targeted
+         */
+        public boolean matches(KeyValue kv) {
+            return all || matches(kv.getBuffer(), kv.getQualifierOffset(), kv.getQualifierLength());
+        }
+
+        /**
+         * Returns whether the qualifier is targeted.
+         *
+         * @param buffer
+         *            the buffer containing the qualifier
+         * @param offset
+         *            the offset of the qualifier
+         * @param length
+         *            the length of the qualifier
+         * @return <code>true</code> if the qualifier is targeted
+         */
+        public boolean matches(byte[] buffer, int offset, int length) {
+            if(all || search(exacts, buffer, offset, length) >= 0) {
+                return true;
+            }
+            for(byte[] prefix : prefixes) {
+                if(length >= prefix.length && Bytes.equals(prefix, 0, prefix.length, buffer, offset, prefix.length)) {
+                    return true;
+                }
+            }
+            for(byte[] pattern : patterns) {
+                if(glob(pattern, buffer, offset, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean glob(byte[] pattern, byte[] buffer, int offset, int length) {
+            int p = 0;
+            int b = 0;
+            int star = -1;
+            int mark = 0;
+            while(b < length) {
+                if(p < pattern.length && (pattern[p] == '?' || pattern[p] == buffer[offset + b])) {
+                    p++;
+                    b++;
+                }
+                else if(p < pattern.length && pattern[p] == '*') {
+                    star = p++;
+                    mark = b;
+                }
+                else if(star >= 0) {
+                    p = star + 1;
+                    b = ++mark;
+                }
+                else {
+                    return false;
+                }
+            }
+            while(p < pattern.length && pattern[p] == '*') {
+                p++;
+            }
+            return p == pattern.length;
+        }
+    }
+
+    private static int search(byte[][] sorted, byte[] buffer, int offset, int length) {
+        int low = 0;
+        int high = sorted.length - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = Bytes.compareTo(sorted[mid], 0, sorted[mid].length, buffer, offset, length);
+            if(cmp < 0) {
+                low = mid + 1;
+            }
+            else if(cmp > 0) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private final byte[][] families;
+
+    private final Family[] matchers;
+
+    private TargetMatcher(byte[][] families, Family[] matchers) {
+        this.families = families;
+        this.matchers = matchers;
+    }
+
+    /**
+     * Returns whether no column is targeted.
+     *
+     * @return <code>true</code> if no column is targeted
+     */
+    public boolean isEmpty() {
+        return families.length == 0;
+    }
+
+    /**
+     * Returns the targets of the family.
+     *
+     * @param family
+     *            the family
+     * @return the targets, or <code>null</code> if the family has no targets
+     */
+    public Family getFamily(byte[] family) {
+        return getFamily(family, 0, family.length);
+    }
+
+    /**
+     * Returns the targets of the family.
+     *
+     * @param buffer
+     *            the buffer containing the family
+     * @param offset
+     *            the offset of the family
+     * @param length
+     *            the length of the family
+     * @return the targets, or <code>null</code> if the family has no targets
+     */
+    public Family getFamily(byte[] buffer, int offset, int length) {
+        int i = search(families, buffer, offset, length);
+        return i >= 0 ? matchers[i] : null;
+    }
+
+    /**
+     * Returns whether the column of the cell is targeted.
+     *
+     * @param kv
+     *            the cell
+     * @return <code>true</code> if the column is targeted
+     */
+    public boolean matches(KeyValue kv) {
+        Family family = getFamily(kv.getBuffer(), kv.getFamilyOffset(), kv.getFamilyLength());
+        return family != null && family.matches(kv);
+    }
+}
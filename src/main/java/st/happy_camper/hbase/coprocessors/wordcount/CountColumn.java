@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A column of the count table and the way to write counts into it.
+ * 
+ * @author ueshin
+ */
+class CountColumn {
+
+    private final byte[] family;
+
+    private final byte[] qualifier;
+
+    private final boolean delta;
+
+    private final int stripes;
+
+    private final TimeWindow window;
+
+    private final AtomicInteger nextStripe = new AtomicInteger();
+
+    /**
+     * Constructs a count column.
+     * 
+     * @param family
+     *            the column-family
+     * @param qualifier
+     *            the column-qualifier
+     * @param delta
+     *            <code>true</code> to write counts as delta cells
+     * @param stripes
+     *            the number of stripes of each counter
+     * @param window
+     *            the window of buckets to add counts to, or <code>null</code>
+     */
+    CountColumn(byte[] family, byte[] qualifier, boolean delta, int stripes, TimeWindow window) {
+        this.family = family;
+        this.qualifier = qualifier;
+        this.delta = delta;
+        if(stripes < 1 || stripes > StripedCounters.MAX_STRIPES) {
+            throw new IllegalArgumentException("Invalid number of stripes: " + stripes);
+        }
+        this.stripes = stripes;
+        this.window = window;
+    }
+
+    /**
+     * Returns the family of the column.
+     * 
+     * @return the family
+     */
+    byte[] getFamily() {
+        return family;
+    }
+
+    /**
+     * Returns the qualifier of the column.
+     * 
+     * @return the qualifier
+     */
+    byte[] getQualifier() {
+        return qualifier;
+    }
+
+    /**
+     * Returns a mutation to add the count to the word. If the counter is
+     * striped, the stripes are chosen by scrambling a sequence number, so
+     * words put together in a fixed order don't stick to the same stripes.
+     * 
+     * @param word
+     *            the word
+     * @param count
+     *            the count to add
+     * @return an increment, or a put of a delta cell
+     */
+    Row newMutation(byte[] word, long count) {
+        return newMutation(word, count, HConstants.LATEST_TIMESTAMP);
+    }
+
+    /**
+     * Returns a mutation to add the count to the word and to the bucket of
+     * the time if the column has a window.
+     * 
+     * @param word
+     *            the word
+     * @param count
+     *            the count to add
+     * @param timestamp
+     *            the time of the count
+     * @return an increment, or a put of delta cells
+     */
+    Row newMutation(byte[] word, long count, long timestamp) {
+        byte[] row = stripes > 1 ? StripedCounters.toRow(((nextStripe.getAndIncrement() * 0x9e3779b9) >>> 16)
+                % stripes, word) : word;
+        if(delta) {
+            Put put = new Put(row);
+            put.add(family, DeltaCounters.newDeltaQualifier(qualifier), Bytes.toBytes(count));
+            if(window != null) {
+                byte[] bucket = window.toQualifier(qualifier, window.bucketOf(timestamp));
+                put.add(family, DeltaCounters.newDeltaQualifier(bucket), Bytes.toBytes(count));
+            }
+            return put;
+        }
+        Increment increment = new Increment(row);
+        increment.addColumn(family, qualifier, count);
+        if(window != null) {
+            increment.addColumn(family, window.toQualifier(qualifier, window.bucketOf(timestamp)), count);
+        }
+        return increment;
+    }
+
+    @Override
+    public String toString() {
+        return Bytes.toStringBinary(family) + ":" + Bytes.toStringBinary(qualifier) + (delta ? "(delta)" : "")
+                + (stripes > 1 ? "(" + stripes + " stripes)" : "") + (window != null ? "(" + window + ")" : "");
+    }
+}
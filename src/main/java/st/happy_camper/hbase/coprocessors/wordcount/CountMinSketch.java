@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.util.Hash;
+import org.apache.hadoop.hbase.util.MurmurHash;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A Count-Min Sketch to estimate frequencies of words in fixed memory.
+ * 
+ * <p>
+ * Estimates never fall below the true counts, and exceed them by at most
+ * <code>e / width</code> of the total count with probability
+ * <code>1 - exp(-depth)</code>. Sketches of the same dimensions can be merged
+ * by adding them cell by cell.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class CountMinSketch implements Writable {
+
+    private static final Hash HASH = MurmurHash.getInstance();
+
+    private int depth;
+
+    private int width;
+
+    private long[] table;
+
+    private long total;
+
+    /**
+     * Constructs an empty sketch to be read by {@link #readFields(DataInput)}.
+     */
+    public CountMinSketch() {
+        this(1, 1);
+    }
+
+    /**
+     * Constructs an empty sketch.
+     * 
+     * @param depth
+     *            the number of hash functions
+     * @param width
+     *            the number of counters per hash function
+     */
+    public CountMinSketch(int depth, int width) {
+        if(depth < 1 || width < 1) {
+            throw new IllegalArgumentException("Invalid dimensions of sketch: " + depth + "x" + width);
+        }
+        this.depth = depth;
+        this.width = width;
+        this.table = new long[depth * width];
+    }
+
+    /**
+     * Adds the count to the word.
+     * 
+     * @param buffer
+     *            the buffer containing the word
+     * @param offset
+     *            the offset of the word
+     * @param length
+     *            the length of the word
+     * @param count
+     *            the count to add
+     */
+    public void add(byte[] buffer, int offset, int length, long count) {
+        int h1 = HASH.hash(buffer, offset, length, -1);
+        int h2 = HASH.hash(buffer, offset, length, h1);
+        for(int i = 0; i < depth; i++) {
+            table[i * width + index(h1, h2, i)] += count;
+        }
+        total += count;
+    }
+
+    /**
+     * Returns the estimated count of the word.
+     * 
+     * @param word
+     *            the word
+     * @return the estimated count
+     */
+    public long estimate(byte[] word) {
+        int h1 = HASH.hash(word, 0, word.length, -1);
+        int h2 = HASH.hash(word, 0, word.length, h1);
+        long estimate = Long.MAX_VALUE;
+        for(int i = 0; i < depth; i++) {
+            estimate = Math.min(estimate, table[i * width + index(h1, h2, i)]);
+        }
+        return estimate;
+    }
+
+    private int index(int h1, int h2, int i) {
+        return ((h1 + i * h2) & Integer.MAX_VALUE) % width;
+    }
+
+    /**
+     * Returns the total count added to the sketch.
+     * 
+     * @return the total count
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the number of hash functions.
+     * 
+     * @return the depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the number of counters per hash function.
+     * 
+     * @return the width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Merges the other sketch of the same dimensions into this.
+     * 
+     * @param other
+     *            the sketch to merge
+     */
+    public void merge(CountMinSketch other) {
+        if(depth != other.depth || width != other.width) {
+            throw new IllegalArgumentException("Can't merge sketches of different dimensions: " + depth + "x"
+                    + width + " and " + other.depth + "x" + other.width);
+        }
+        for(int i = 0; i < table.length; i++) {
+            table[i] += other.table[i];
+        }
+        total += other.total;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, depth);
+        WritableUtils.writeVInt(out, width);
+        WritableUtils.writeVLong(out, total);
+        for(long count : table) {
+            WritableUtils.writeVLong(out, count);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        depth = WritableUtils.readVInt(in);
+        width = WritableUtils.readVInt(in);
+        total = WritableUtils.readVLong(in);
+        table = new long[depth * width];
+        for(int i = 0; i < table.length; i++) {
+            table[i] = WritableUtils.readVLong(in);
+        }
+    }
+}
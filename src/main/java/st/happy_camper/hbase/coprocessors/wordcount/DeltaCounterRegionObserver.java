@@ -0,0 +1,222 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
+import org.apache.hadoop.hbase.coprocessor.ObserverContext;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.InternalScanner;
+import org.apache.hadoop.hbase.regionserver.Store;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A coprocessor on the count table to fold delta counters written by
+ * {@link WordCountRegionObserver} with <code>counter=delta</code>.
+ * 
+ * <p>
+ * The delta cells of a row are folded into one cell during compactions, and
+ * the remaining deltas are summed at read time by gets.
+ * </p>
+ * 
+ * @author ueshin
+ * @see DeltaCounters
+ */
+public class DeltaCounterRegionObserver extends BaseRegionObserver {
+
+    /**
+     * Configuration key for the column of the counters.
+     */
+    public static final String CONF_COUNT_COLUMN = WordCountRegionObserver.CONF_COUNT_COLUMN;
+
+    private static final String ATTR_COLUMNS = DeltaCounterRegionObserver.class.getName() + ".columns";
+
+    private byte[] family;
+
+    private byte[] qualifier;
+
+    @Override
+    public void start(CoprocessorEnvironment e) throws IOException {
+        Configuration conf = e.getConfiguration();
+        String[] column = conf.get(CONF_COUNT_COLUMN, WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY).split(":",
+                2);
+        family = Bytes.toBytes(column[0]);
+        qualifier = column.length > 1 ? Bytes.toBytes(column[1]) : HConstants.EMPTY_BYTE_ARRAY;
+    }
+
+    @Override
+    public InternalScanner preCompact(ObserverContext<RegionCoprocessorEnvironment> e, Store store,
+            InternalScanner scanner) {
+        if(!Bytes.equals(store.getFamily().getName(), family)) {
+            return scanner;
+        }
+        return new FoldingScanner(scanner);
+    }
+
+    @Override
+    public void preGet(ObserverContext<RegionCoprocessorEnvironment> e, Get get, List<KeyValue> results)
+            throws IOException {
+        if(!get.getFamilyMap().containsKey(family)) {
+            return;
+        }
+        NavigableSet<byte[]> columns = get.getFamilyMap().get(family);
+        if(columns == null || !columns.contains(qualifier)) {
+            return;
+        }
+
+        // reads the whole family to get the deltas, and remembers the columns to return
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(columns.size());
+        for(byte[] column : columns) {
+            Bytes.writeByteArray(out, column);
+        }
+        out.close();
+        get.setAttribute(ATTR_COLUMNS, bytes.toByteArray());
+        get.getFamilyMap().put(family, null);
+    }
+
+    @Override
+    public void postGet(ObserverContext<RegionCoprocessorEnvironment> e, Get get, List<KeyValue> results)
+            throws IOException {
+        NavigableSet<byte[]> columns = null;
+        byte[] attribute = get.getAttribute(ATTR_COLUMNS);
+        if(attribute != null) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(attribute));
+            columns = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+            for(int i = in.readInt(); i > 0; i--) {
+                columns.add(Bytes.readByteArray(in));
+            }
+        }
+
+        List<KeyValue> kvs = new ArrayList<KeyValue>(results.size());
+        int first = -1;
+        int parts = 0;
+        long sum = 0L;
+        long timestamp = 0L;
+        KeyValue last = null;
+        for(KeyValue kv : results) {
+            if(kv.matchingFamily(family)) {
+                if(DeltaCounters.isPartOf(kv, family, qualifier)) {
+                    if(last == null || !DeltaCounters.sameQualifier(last, kv)) {
+                        sum += Bytes.toLong(kv.getBuffer(), kv.getValueOffset());
+                        timestamp = Math.max(timestamp, kv.getTimestamp());
+                        parts++;
+                        last = kv;
+                    }
+                    if(first < 0) {
+                        first = kvs.size();
+                        kvs.add(kv);
+                    }
+                    continue;
+                }
+                if(columns != null && !columns.contains(kv.getQualifier())) {
+                    continue;
+                }
+            }
+            kvs.add(kv);
+        }
+        if(first >= 0 && (parts > 1 || last.getQualifierLength() != qualifier.length)) {
+            kvs.set(first, new KeyValue(last.getRow(), family, qualifier, timestamp, Bytes.toBytes(sum)));
+        }
+        results.clear();
+        results.addAll(kvs);
+    }
+
+    /**
+     * A scanner to fold the counter cells of each row into one cell.
+     */
+    private class FoldingScanner implements InternalScanner {
+
+        private final InternalScanner scanner;
+
+        private final List<KeyValue> buffer = new ArrayList<KeyValue>();
+
+        private FoldingScanner(InternalScanner scanner) {
+            this.scanner = scanner;
+        }
+
+        @Override
+        public boolean next(List<KeyValue> results) throws IOException {
+            buffer.clear();
+            boolean more = scanner.next(buffer);
+            fold(buffer, results);
+            return more;
+        }
+
+        @Override
+        public boolean next(List<KeyValue> results, int limit) throws IOException {
+            buffer.clear();
+            boolean more = scanner.next(buffer, limit);
+            fold(buffer, results);
+            return more;
+        }
+
+        /**
+         * Folds the counter cells in place of the first one. The folded cell
+         * takes the key of the first one so that it stays unique and sorted,
+         * because all the other cells folded into it are removed.
+         */
+        private void fold(List<KeyValue> kvs, List<KeyValue> results) {
+            int first = -1;
+            int parts = 0;
+            long sum = 0L;
+            KeyValue last = null;
+            for(KeyValue kv : kvs) {
+                if(kv.getType() == KeyValue.Type.Put.getCode() && DeltaCounters.isPartOf(kv, family, qualifier)) {
+                    if(last != null && DeltaCounters.sameQualifier(last, kv)) {
+                        // older versions are already included in the newest one
+                        continue;
+                    }
+                    sum += Bytes.toLong(kv.getBuffer(), kv.getValueOffset());
+                    parts++;
+                    if(first < 0) {
+                        first = results.size();
+                        results.add(kv);
+                    }
+                    last = kv;
+                }
+                else {
+                    results.add(kv);
+                }
+            }
+            if(parts > 1) {
+                KeyValue kv = results.get(first);
+                results.set(first, new KeyValue(kv.getRow(), kv.getFamily(), kv.getQualifier(), kv.getTimestamp(),
+                        KeyValue.Type.Put, Bytes.toBytes(sum)));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            scanner.close();
+        }
+    }
+}
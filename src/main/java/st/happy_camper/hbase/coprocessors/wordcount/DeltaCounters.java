@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Utilities for delta counters.
+ * 
+ * <p>
+ * A delta counter is a set of cells each of which holds a contribution to
+ * the count as an 8-byte long. The cells are written by blind puts under
+ * unique qualifiers as follows, so writers don't lock the row:
+ * </p>
+ * 
+ * <pre><code>
+ * [qualifier][0x00][16-byte unique id]
+ * </code></pre>
+ * 
+ * <p>
+ * The value of the counter is the sum of the cell under the qualifier itself,
+ * which holds the folded total, and all the delta cells.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class DeltaCounters {
+
+    /**
+     * A marker between the qualifier and the unique id.
+     */
+    public static final byte DELTA_MARKER = 0;
+
+    /**
+     * The length of the unique id.
+     */
+    public static final int DELTA_ID_LENGTH = 16;
+
+    private static final long INSTANCE_ID = new SecureRandom().nextLong();
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private DeltaCounters() {
+    }
+
+    /**
+     * Returns a new unique qualifier for a delta of the counter.
+     * 
+     * @param qualifier
+     *            the qualifier of the counter
+     * @return the qualifier for a delta
+     */
+    public static byte[] newDeltaQualifier(byte[] qualifier) {
+        byte[] delta = new byte[qualifier.length + 1 + DELTA_ID_LENGTH];
+        int pos = Bytes.putBytes(delta, 0, qualifier, 0, qualifier.length);
+        delta[pos++] = DELTA_MARKER;
+        pos = Bytes.putLong(delta, pos, INSTANCE_ID);
+        Bytes.putLong(delta, pos, SEQUENCE.incrementAndGet());
+        return delta;
+    }
+
+    /**
+     * Returns <code>true</code> if the cell is a part of the counter, i.e.
+     * the total or a delta.
+     * 
+     * @param kv
+     *            the cell
+     * @param family
+     *            the column-family of the counter
+     * @param qualifier
+     *            the column-qualifier of the counter
+     * @return <code>true</code> if the cell is a part of the counter
+     */
+    public static boolean isPartOf(KeyValue kv, byte[] family, byte[] qualifier) {
+        int length = kv.getQualifierLength();
+        if(length != qualifier.length && length != qualifier.length + 1 + DELTA_ID_LENGTH) {
+            return false;
+        }
+        byte[] buffer = kv.getBuffer();
+        int offset = kv.getQualifierOffset();
+        if(Bytes.compareTo(buffer, offset, qualifier.length, qualifier, 0, qualifier.length) != 0) {
+            return false;
+        }
+        if(length != qualifier.length && buffer[offset + qualifier.length] != DELTA_MARKER) {
+            return false;
+        }
+        return kv.getValueLength() == Bytes.SIZEOF_LONG && kv.matchingFamily(family);
+    }
+
+    /**
+     * Returns the value of the counter in the cells. Only the latest version
+     * of each qualifier is counted, assuming the cells are sorted.
+     * 
+     * @param kvs
+     *            the cells
+     * @param family
+     *            the column-family of the counter
+     * @param qualifier
+     *            the column-qualifier of the counter
+     * @return the value of the counter
+     */
+    public static long sum(List<KeyValue> kvs, byte[] family, byte[] qualifier) {
+        long sum = 0L;
+        KeyValue last = null;
+        for(KeyValue kv : kvs) {
+            if(kv.isDelete() || !isPartOf(kv, family, qualifier)) {
+                continue;
+            }
+            if(last == null || !sameQualifier(last, kv)) {
+                sum += Bytes.toLong(kv.getBuffer(), kv.getValueOffset());
+                last = kv;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns <code>true</code> if the cells have the same qualifier.
+     * 
+     * @param left
+     *            a cell
+     * @param right
+     *            another cell
+     * @return <code>true</code> if the cells have the same qualifier
+     */
+    static boolean sameQualifier(KeyValue left, KeyValue right) {
+        return Bytes.equals(left.getBuffer(), left.getQualifierOffset(), left.getQualifierLength(),
+                right.getBuffer(), right.getQualifierOffset(), right.getQualifierLength());
+    }
+}
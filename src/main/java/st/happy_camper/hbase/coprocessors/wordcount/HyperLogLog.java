@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.util.Hash;
+import org.apache.hadoop.hbase.util.MurmurHash;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A HyperLogLog sketch to estimate the number of distinct words in fixed
+ * memory.
+ * 
+ * <p>
+ * Each word is hashed into 64 bits, the first <code>precision</code> bits of
+ * which select a register keeping the max rank of the rest, i.e. the position
+ * of the first 1-bit. The relative standard error of the estimates is about
+ * <code>1.04 / sqrt(2^precision)</code>, and small numbers are estimated by
+ * linear counting of the empty registers. Sketches of the same precision can
+ * be merged by taking the max of each register, so the words added to both
+ * are counted once.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class HyperLogLog implements Writable {
+
+    /**
+     * The default precision, 16384 registers with an error of about 0.8%.
+     */
+    public static final int DEFAULT_PRECISION = 14;
+
+    private static final Hash HASH = MurmurHash.getInstance();
+
+    private int precision;
+
+    private byte[] registers;
+
+    /**
+     * Constructs an empty sketch of the default precision, or to be read by
+     * {@link #readFields(DataInput)}.
+     */
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * Constructs an empty sketch.
+     * 
+     * @param precision
+     *            the number of bits of the register index, from 4 to 16
+     */
+    public HyperLogLog(int precision) {
+        if(precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("Invalid precision of sketch: " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Adds the word.
+     * 
+     * @param buffer
+     *            the buffer containing the word
+     * @param offset
+     *            the offset of the word
+     * @param length
+     *            the length of the word
+     */
+    public void add(byte[] buffer, int offset, int length) {
+        long hash = ((long) HASH.hash(buffer, offset, length, 1) << 32)
+                | (HASH.hash(buffer, offset, length, 2) & 0xffffffffL);
+        int index = (int) (hash >>> (64 - precision));
+        // a sentinel bit bounds the rank when the rest is all zeros
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if(registers[index] < rank) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    /**
+     * Adds the word.
+     * 
+     * @param word
+     *            the word
+     */
+    public void add(byte[] word) {
+        add(word, 0, word.length);
+    }
+
+    /**
+     * Returns the estimated number of distinct words added.
+     * 
+     * @return the estimated number
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0.0;
+        int zeros = 0;
+        for(byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if(register == 0) {
+                zeros++;
+            }
+        }
+        double alpha;
+        switch(m) {
+        case 16:
+            alpha = 0.673;
+            break;
+        case 32:
+            alpha = 0.697;
+            break;
+        case 64:
+            alpha = 0.709;
+            break;
+        default:
+            alpha = 0.7213 / (1.0 + 1.079 / m);
+        }
+        double estimate = alpha * m * m / sum;
+        if(estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Returns the number of bits of the register index.
+     * 
+     * @return the precision
+     */
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Merges the other sketch of the same precision into this.
+     * 
+     * @param other
+     *            the sketch to merge
+     */
+    public void merge(HyperLogLog other) {
+        if(precision != other.precision) {
+            throw new IllegalArgumentException("Can't merge sketches of different precisions: " + precision
+                    + " and " + other.precision);
+        }
+        for(int i = 0; i < registers.length; i++) {
+            if(registers[i] < other.registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, precision);
+        out.write(registers);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        precision = WritableUtils.readVInt(in);
+        registers = new byte[1 << precision];
+        in.readFully(registers);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.DirectMemoryUtils;
+
+/**
+ * An open-addressing map from words to counts in direct memory.
+ * 
+ * <p>
+ * Words are appended to a fixed-size arena and counts are kept as primitive
+ * longs in a fixed-size slot table, so the map allocates nothing on the heap
+ * after construction. The map never grows: {@link #add} fails when the
+ * number of words or the size of the arena reaches its limit, and the owner is
+ * expected to drain and {@link #clear()} it. A word longer than the arena never
+ * fits. This class is not thread-safe.
+ * </p>
+ * 
+ * @author ueshin
+ */
+class OffHeapWordCounts {
+
+    /**
+     * Slot layout: hash (4), word offset (4), word length + 1 (4), padding
+     * (4), count (8). A zero length field marks an empty slot.
+     */
+    private static final int SLOT_SIZE = 24;
+
+    private static final int HASH = 0;
+
+    private static final int OFFSET = 4;
+
+    private static final int LENGTH = 8;
+
+    private static final int COUNT = 16;
+
+    private final int maxEntries;
+
+    private final int mask;
+
+    private final ByteBuffer slots;
+
+    private final ByteBuffer entries;
+
+    private final ByteBuffer arena;
+
+    private int size = 0;
+
+    /**
+     * Constructs an empty map.
+     * 
+     * @param maxEntries
+     *            the max number of words
+     * @param maxBytes
+     *            the max total length of words in bytes
+     */
+    OffHeapWordCounts(int maxEntries, int maxBytes) {
+        if(maxEntries < 1 || maxEntries > 1 << 28 || maxBytes < 1) {
+            throw new IllegalArgumentException("Invalid limits of word counts: " + maxEntries + " entries, "
+                    + maxBytes + " bytes");
+        }
+        this.maxEntries = maxEntries;
+        int capacity = Integer.highestOneBit(maxEntries * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        this.slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        this.entries = ByteBuffer.allocateDirect(maxEntries * Bytes.SIZEOF_INT);
+        this.arena = ByteBuffer.allocateDirect(maxBytes);
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Adds the count to the word.
+     * 
+     * @param buffer
+     *            the buffer the word is in
+     * @param offset
+     *            the offset of the word
+     * @param length
+     *            the length of the word
+     * @param count
+     *            the count to add
+     * @return <code>false</code> if the word is new and the map is full
+     */
+    boolean add(byte[] buffer, int offset, int length, long count) {
+        int hash = Bytes.hashCode(buffer, offset, length);
+        int i = mix(hash) & mask;
+        int slot;
+        while(slots.getInt((slot = i * SLOT_SIZE) + LENGTH) != 0) {
+            if(slots.getInt(slot + HASH) == hash && slots.getInt(slot + LENGTH) == length + 1
+                    && matches(slots.getInt(slot + OFFSET), buffer, offset, length)) {
+                slots.putLong(slot + COUNT, slots.getLong(slot + COUNT) + count);
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        if(size >= maxEntries || arena.remaining() < length) {
+            return false;
+        }
+        int position = arena.position();
+        arena.put(buffer, offset, length);
+        slots.putInt(slot + HASH, hash);
+        slots.putInt(slot + OFFSET, position);
+        slots.putInt(slot + LENGTH, length + 1);
+        slots.putLong(slot + COUNT, count);
+        entries.putInt(size++ * Bytes.SIZEOF_INT, slot);
+        return true;
+    }
+
+    private boolean matches(int position, byte[] buffer, int offset, int length) {
+        for(int j = 0; j < length; j++) {
+            if(arena.get(position + j) != buffer[offset + j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of words.
+     * 
+     * @return the number of words
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns <code>true</code> if no word is counted.
+     * 
+     * @return <code>true</code> if empty
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the max number of words.
+     * 
+     * @return the max number of words
+     */
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Returns the total length of the words in bytes.
+     * 
+     * @return the used bytes of the arena
+     */
+    int getUsedBytes() {
+        return arena.position();
+    }
+
+    /**
+     * Returns the max total length of the words in bytes.
+     * 
+     * @return the size of the arena
+     */
+    int getMaxBytes() {
+        return arena.capacity();
+    }
+
+    /**
+     * Returns the size of the direct memory allocated by the map.
+     * 
+     * @return the allocated bytes
+     */
+    long getAllocatedBytes() {
+        return (long) slots.capacity() + entries.capacity() + arena.capacity();
+    }
+
+    /**
+     * Returns the word of the entry.
+     * 
+     * @param index
+     *            the index of the entry, from <code>0</code> to
+     *            <code>size() - 1</code> in the order of addition
+     * @return the word
+     */
+    byte[] getWord(int index) {
+        int slot = entries.getInt(index * Bytes.SIZEOF_INT);
+        byte[] word = new byte[slots.getInt(slot + LENGTH) - 1];
+        int position = slots.getInt(slot + OFFSET);
+        for(int j = 0; j < word.length; j++) {
+            word[j] = arena.get(position + j);
+        }
+        return word;
+    }
+
+    /**
+     * Returns the count of the entry.
+     * 
+     * @param index
+     *            the index of the entry
+     * @return the count
+     */
+    long getCount(int index) {
+        return slots.getLong(entries.getInt(index * Bytes.SIZEOF_INT) + COUNT);
+    }
+
+    /**
+     * Sets the count of the entry.
+     * 
+     * @param index
+     *            the index of the entry
+     * @param count
+     *            the count
+     */
+    void setCount(int index, long count) {
+        slots.putLong(entries.getInt(index * Bytes.SIZEOF_INT) + COUNT, count);
+    }
+
+    /**
+     * Frees the direct memory now instead of when the map is collected. The
+     * map mustn't be used afterwards.
+     */
+    void free() {
+        for(ByteBuffer buffer : new ByteBuffer[] { slots, entries, arena }) {
+            try {
+                DirectMemoryUtils.destroyDirectByteBuffer(buffer);
+            }
+            catch(Exception e) {
+                // left to be freed when collected
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes all the words. Only the used slots are reset.
+     */
+    void clear() {
+        for(int i = 0; i < size; i++) {
+            slots.putInt(entries.getInt(i * Bytes.SIZEOF_INT) + LENGTH, 0);
+        }
+        size = 0;
+        arena.clear();
+    }
+}
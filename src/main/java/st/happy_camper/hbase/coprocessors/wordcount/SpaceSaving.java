@@ -0,0 +1,253 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A Space-Saving summary to track the most frequent words in fixed memory.
+ * 
+ * <p>
+ * At most <code>capacity</code> words are monitored. A new word replaces the
+ * least frequent one and inherits its count as the error, so the count of a
+ * monitored word overestimates the true count by at most its error.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class SpaceSaving implements Writable {
+
+    /**
+     * A monitored word.
+     */
+    public static class Counter implements Comparable<Counter> {
+
+        private final byte[] word;
+
+        private long count;
+
+        private long error;
+
+        private Counter(byte[] word, long count, long error) {
+            this.word = word;
+            this.count = count;
+            this.error = error;
+        }
+
+        /**
+         * Returns the word.
+         * 
+         * @return the word
+         */
+        public byte[] getWord() {
+            return word;
+        }
+
+        /**
+         * Returns the count, which can overestimate the true count by the
+         * error.
+         * 
+         * @return the count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the max overestimation of the count.
+         * 
+         * @return the error
+         */
+        public long getError() {
+            return error;
+        }
+
+        @Override
+        public int compareTo(Counter other) {
+            if(count != other.count) {
+                return count < other.count ? -1 : 1;
+            }
+            return Bytes.compareTo(word, other.word);
+        }
+
+        @Override
+        public String toString() {
+            return Bytes.toStringBinary(word) + "=" + count + "(+-" + error + ")";
+        }
+    }
+
+    private int capacity;
+
+    private final Map<ImmutableBytesWritable, Counter> counters = new HashMap<ImmutableBytesWritable, Counter>();
+
+    private final TreeSet<Counter> ordered = new TreeSet<Counter>();
+
+    /**
+     * Constructs an empty summary to be read by
+     * {@link #readFields(DataInput)}.
+     */
+    public SpaceSaving() {
+        this(1);
+    }
+
+    /**
+     * Constructs an empty summary.
+     * 
+     * @param capacity
+     *            the max number of monitored words
+     */
+    public SpaceSaving(int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity of summary: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds the count to the word.
+     * 
+     * @param buffer
+     *            the buffer containing the word
+     * @param offset
+     *            the offset of the word
+     * @param length
+     *            the length of the word
+     * @param count
+     *            the count to add
+     */
+    public void add(byte[] buffer, int offset, int length, long count) {
+        Counter counter = counters.get(new ImmutableBytesWritable(buffer, offset, length));
+        if(counter != null) {
+            ordered.remove(counter);
+            counter.count += count;
+            ordered.add(counter);
+        }
+        else if(counters.size() < capacity) {
+            monitor(new Counter(Arrays.copyOfRange(buffer, offset, offset + length), count, 0L));
+        }
+        else {
+            Counter min = ordered.pollFirst();
+            counters.remove(new ImmutableBytesWritable(min.word));
+            monitor(new Counter(Arrays.copyOfRange(buffer, offset, offset + length), min.count + count, min.count));
+        }
+    }
+
+    private void monitor(Counter counter) {
+        counters.put(new ImmutableBytesWritable(counter.word), counter);
+        ordered.add(counter);
+    }
+
+    private long getMinCount() {
+        return counters.size() < capacity ? 0L : ordered.first().count;
+    }
+
+    /**
+     * Returns the max number of monitored words.
+     * 
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the most frequent words in descending order of their counts.
+     * 
+     * @param n
+     *            the max number of words to return
+     * @return the most frequent words
+     */
+    public List<Counter> top(int n) {
+        List<Counter> top = new ArrayList<Counter>(Math.min(n, counters.size()));
+        for(Iterator<Counter> itr = ordered.descendingIterator(); itr.hasNext() && top.size() < n;) {
+            top.add(itr.next());
+        }
+        return top;
+    }
+
+    /**
+     * Merges the other summary into this. A word missing from one of the
+     * summaries is assumed to have its min count, which bounds the count the
+     * summary might have dropped.
+     * 
+     * @param other
+     *            the summary to merge
+     */
+    public void merge(SpaceSaving other) {
+        long min = getMinCount();
+        long otherMin = other.getMinCount();
+        List<Counter> merged = new ArrayList<Counter>(counters.size() + other.counters.size());
+        for(Counter counter : counters.values()) {
+            Counter o = other.counters.get(new ImmutableBytesWritable(counter.word));
+            if(o != null) {
+                merged.add(new Counter(counter.word, counter.count + o.count, counter.error + o.error));
+            }
+            else {
+                merged.add(new Counter(counter.word, counter.count + otherMin, counter.error + otherMin));
+            }
+        }
+        for(Counter o : other.counters.values()) {
+            if(!counters.containsKey(new ImmutableBytesWritable(o.word))) {
+                merged.add(new Counter(o.word, o.count + min, o.error + min));
+            }
+        }
+        counters.clear();
+        ordered.clear();
+        ordered.addAll(merged);
+        while(ordered.size() > capacity) {
+            ordered.pollFirst();
+        }
+        for(Counter counter : ordered) {
+            counters.put(new ImmutableBytesWritable(counter.word), counter);
+        }
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, capacity);
+        WritableUtils.writeVInt(out, counters.size());
+        for(Counter counter : ordered) {
+            Bytes.writeByteArray(out, counter.word);
+            WritableUtils.writeVLong(out, counter.count);
+            WritableUtils.writeVLong(out, counter.error);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        capacity = WritableUtils.readVInt(in);
+        int size = WritableUtils.readVInt(in);
+        counters.clear();
+        ordered.clear();
+        for(int i = 0; i < size; i++) {
+            monitor(new Counter(Bytes.readByteArray(in), WritableUtils.readVLong(in), WritableUtils.readVLong(in)));
+        }
+    }
+}
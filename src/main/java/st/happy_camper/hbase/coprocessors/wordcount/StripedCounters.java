@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A client to read word counts written by {@link WordCountRegionObserver}
+ * with <code>stripes</code>.
+ * 
+ * <p>
+ * A striped counter of a word is split into <code>stripes</code> rows, each
+ * of which has a 1-byte stripe index prefixed to the word, so the increments
+ * of a hot word are spread over rows and regions. This client fetches all the
+ * stripes of words by a multi-get and sums them up. If <code>stripes</code> is
+ * <code>1</code>, the row is the word itself.
+ * </p>
+ * 
+ * <p>
+ * The client is configured by the same keys as {@link WordCountRegionObserver}
+ * : <code>table</code>, <code>column</code> and <code>stripes</code>. Delta
+ * counters are summed as well.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class StripedCounters implements Closeable {
+
+    /**
+     * The max number of stripes.
+     */
+    public static final int MAX_STRIPES = 256;
+
+    /**
+     * Returns the row of the stripe of the word.
+     * 
+     * @param stripe
+     *            the stripe index
+     * @param word
+     *            the word
+     * @return the row
+     */
+    public static byte[] toRow(int stripe, byte[] word) {
+        byte[] row = new byte[word.length + 1];
+        row[0] = (byte) stripe;
+        System.arraycopy(word, 0, row, 1, word.length);
+        return row;
+    }
+
+    /**
+     * Returns the word of the row of a stripe.
+     * 
+     * @param row
+     *            the row
+     * @return the word
+     */
+    public static byte[] toWord(byte[] row) {
+        byte[] word = new byte[row.length - 1];
+        System.arraycopy(row, 1, word, 0, word.length);
+        return word;
+    }
+
+    private final HTable table;
+
+    private final byte[] family;
+
+    private final byte[] qualifier;
+
+    private final int stripes;
+
+    /**
+     * Constructs a client configured by the configuration.
+     * 
+     * @param conf
+     *            the configuration
+     * @throws IOException
+     */
+    public StripedCounters(Configuration conf) throws IOException {
+        String[] column = conf.get(WordCountRegionObserver.CONF_COUNT_COLUMN,
+                WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY).split(":", 2);
+        this.table = new HTable(conf, conf.get(WordCountRegionObserver.CONF_COUNT_TABLE_NAME,
+                WordCountRegionObserver.DEFAULT_COUNT_TABLE_NAME));
+        this.family = Bytes.toBytes(column[0]);
+        this.qualifier = column.length > 1 ? Bytes.toBytes(column[1]) : HConstants.EMPTY_BYTE_ARRAY;
+        this.stripes = conf.getInt(WordCountRegionObserver.CONF_STRIPES, 1);
+    }
+
+    /**
+     * Returns the count of the word.
+     * 
+     * @param word
+     *            the word
+     * @return the count
+     * @throws IOException
+     */
+    public long get(byte[] word) throws IOException {
+        return get(Collections.singletonList(word))[0];
+    }
+
+    /**
+     * Returns the counts of the words.
+     * 
+     * @param words
+     *            the words
+     * @return the counts in the same order as the words
+     * @throws IOException
+     */
+    public long[] get(List<byte[]> words) throws IOException {
+        List<Get> gets = new ArrayList<Get>(words.size() * stripes);
+        for(byte[] word : words) {
+            for(int stripe = 0; stripe < stripes; stripe++) {
+                Get get = new Get(stripes > 1 ? toRow(stripe, word) : word);
+                get.addFamily(family);
+                gets.add(get);
+            }
+        }
+        Result[] results = table.get(gets);
+        long[] counts = new long[words.size()];
+        for(int i = 0; i < results.length; i++) {
+            if(!results[i].isEmpty()) {
+                counts[i / stripes] += DeltaCounters.sum(results[i].list(), family, qualifier);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public void close() throws IOException {
+        table.close();
+    }
+}
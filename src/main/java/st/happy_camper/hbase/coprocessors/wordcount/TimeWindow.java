@@ -0,0 +1,253 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A granularity of time-windowed counters.
+ * 
+ * <p>
+ * The count of a word in a time bucket is kept under the qualifier of the
+ * counter followed by {@link #WINDOW_MARKER}, the unit of the granularity and
+ * the start time of the bucket in milliseconds. The buckets of a word are
+ * sorted by granularity and time in the row, so a time range of a word can be
+ * read by a get.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class TimeWindow {
+
+    /**
+     * The marker following the qualifier of the counter in bucket qualifiers.
+     */
+    public static final byte WINDOW_MARKER = 1;
+
+    /**
+     * Minutely buckets.
+     */
+    public static final TimeWindow MINUTE = new TimeWindow("minute", 'm', 60L * 1000L);
+
+    /**
+     * Hourly buckets.
+     */
+    public static final TimeWindow HOUR = new TimeWindow("hour", 'h', 60L * 60L * 1000L);
+
+    /**
+     * Daily buckets in UTC.
+     */
+    public static final TimeWindow DAY = new TimeWindow("day", 'd', 24L * 60L * 60L * 1000L);
+
+    private static final TimeWindow[] GRANULARITIES = { MINUTE, HOUR, DAY };
+
+    private static final int BUCKET_LENGTH = 2 + Bytes.SIZEOF_LONG;
+
+    /**
+     * Parses the space-separated windows like <code>minute:120 hour:48 day</code>
+     * . Each window is a granularity optionally followed by the number of
+     * buckets to retain, and the windows are sorted from fine to coarse.
+     * 
+     * @param spec
+     *            the windows
+     * @return the windows, or an empty array if the spec is <code>null</code>
+     */
+    public static TimeWindow[] parse(String spec) {
+        List<TimeWindow> windows = new ArrayList<TimeWindow>();
+        if(spec != null) {
+            for(String window : spec.trim().split(" +")) {
+                if(window.isEmpty()) {
+                    continue;
+                }
+                String[] parts = window.split(":", 2);
+                TimeWindow granularity = null;
+                for(TimeWindow g : GRANULARITIES) {
+                    if(g.name.equals(parts[0])) {
+                        granularity = g;
+                    }
+                }
+                if(granularity == null) {
+                    throw new IllegalArgumentException("Unknown window: " + window);
+                }
+                for(TimeWindow w : windows) {
+                    if(w.unit == granularity.unit) {
+                        throw new IllegalArgumentException("Duplicate window: " + window);
+                    }
+                }
+                windows.add(parts.length > 1 ? new TimeWindow(granularity.name, granularity.unit, granularity.length,
+                        Integer.parseInt(parts[1])) : granularity);
+            }
+        }
+        TimeWindow[] sorted = windows.toArray(new TimeWindow[windows.size()]);
+        Arrays.sort(sorted, new Comparator<TimeWindow>() {
+
+            @Override
+            public int compare(TimeWindow left, TimeWindow right) {
+                return left.length < right.length ? -1 : left.length > right.length ? 1 : 0;
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Returns the start time of the bucket if the cell is a bucket of the
+     * counter, including delta cells of the bucket.
+     * 
+     * @param kv
+     *            the cell
+     * @param qualifier
+     *            the qualifier of the counter
+     * @param window
+     *            the window
+     * @return the start time of the bucket, or <code>-1</code> if the cell is
+     *         not a bucket of the window
+     */
+    public static long bucketOf(KeyValue kv, byte[] qualifier, TimeWindow window) {
+        int length = kv.getQualifierLength();
+        int bucket = qualifier.length + BUCKET_LENGTH;
+        if(length != bucket && length != bucket + 1 + DeltaCounters.DELTA_ID_LENGTH) {
+            return -1L;
+        }
+        byte[] buffer = kv.getBuffer();
+        int offset = kv.getQualifierOffset();
+        if(buffer[offset + qualifier.length] != WINDOW_MARKER || buffer[offset + qualifier.length + 1] != window.unit
+                || (length != bucket && buffer[offset + bucket] != DeltaCounters.DELTA_MARKER)
+                || Bytes.compareTo(buffer, offset, qualifier.length, qualifier, 0, qualifier.length) != 0) {
+            return -1L;
+        }
+        return Bytes.toLong(buffer, offset + qualifier.length + 2);
+    }
+
+    /**
+     * Returns the sum of the buckets of the windows starting in the time range
+     * in the cells of a row. A bucket is counted if its start time is in the
+     * range, so the range is rounded to the granularities of the buckets.
+     * 
+     * @param kvs
+     *            the cells of a row
+     * @param qualifier
+     *            the qualifier of the counter
+     * @param windows
+     *            the windows
+     * @param from
+     *            the start of the time range, inclusive
+     * @param to
+     *            the end of the time range, exclusive
+     * @return the sum of the buckets
+     */
+    public static long sum(List<KeyValue> kvs, byte[] qualifier, TimeWindow[] windows, long from, long to) {
+        long sum = 0L;
+        KeyValue last = null;
+        for(KeyValue kv : kvs) {
+            if(kv.isDelete() || kv.getValueLength() != Bytes.SIZEOF_LONG
+                    || (last != null && DeltaCounters.sameQualifier(last, kv))) {
+                continue;
+            }
+            for(TimeWindow window : windows) {
+                long bucket = bucketOf(kv, qualifier, window);
+                if(bucket >= 0L) {
+                    if(bucket >= from && bucket < to) {
+                        sum += Bytes.toLong(kv.getBuffer(), kv.getValueOffset());
+                    }
+                    last = kv;
+                    break;
+                }
+            }
+        }
+        return sum;
+    }
+
+    private final String name;
+
+    private final byte unit;
+
+    private final long length;
+
+    private final int retention;
+
+    private TimeWindow(String name, char unit, long length) {
+        this(name, (byte) unit, length, 0);
+    }
+
+    private TimeWindow(String name, byte unit, long length, int retention) {
+        if(retention < 0) {
+            throw new IllegalArgumentException("Invalid retention of " + name + ": " + retention);
+        }
+        this.name = name;
+        this.unit = unit;
+        this.length = length;
+        this.retention = retention;
+    }
+
+    /**
+     * Returns the start time of the bucket containing the time.
+     * 
+     * @param timestamp
+     *            the time in milliseconds
+     * @return the start time of the bucket
+     */
+    public long bucketOf(long timestamp) {
+        return timestamp - timestamp % length;
+    }
+
+    /**
+     * Returns the qualifier of the bucket of the counter.
+     * 
+     * @param qualifier
+     *            the qualifier of the counter
+     * @param bucket
+     *            the start time of the bucket
+     * @return the qualifier of the bucket
+     */
+    public byte[] toQualifier(byte[] qualifier, long bucket) {
+        byte[] q = new byte[qualifier.length + BUCKET_LENGTH];
+        System.arraycopy(qualifier, 0, q, 0, qualifier.length);
+        q[qualifier.length] = WINDOW_MARKER;
+        q[qualifier.length + 1] = unit;
+        Bytes.putLong(q, qualifier.length + 2, bucket);
+        return q;
+    }
+
+    /**
+     * Returns the length of the buckets in milliseconds.
+     * 
+     * @return the length of the buckets
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the number of buckets to retain, or <code>0</code> to retain
+     * all buckets.
+     * 
+     * @return the number of buckets to retain
+     */
+    public int getRetention() {
+        return retention;
+    }
+
+    @Override
+    public String toString() {
+        return retention > 0 ? name + ":" + retention : name;
+    }
+}
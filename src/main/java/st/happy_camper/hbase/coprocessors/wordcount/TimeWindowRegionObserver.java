@@ -0,0 +1,260 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
+import org.apache.hadoop.hbase.coprocessor.ObserverContext;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.InternalScanner;
+import org.apache.hadoop.hbase.regionserver.Store;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A coprocessor on the count table to roll up and expire time-windowed
+ * counters written by {@link WordCountRegionObserver} with
+ * <code>windows</code>.
+ * 
+ * <p>
+ * Buckets older than the retention of their window are rolled up into the
+ * next coarser window, or dropped if the window is the coarsest. Rollups
+ * rewrite the buckets of a row, so they are done only by compactions of all
+ * the store files; other compactions leave the buckets as they are.
+ * </p>
+ * 
+ * @author ueshin
+ * @see TimeWindow
+ */
+public class TimeWindowRegionObserver extends BaseRegionObserver {
+
+    /**
+     * Configuration key for the column of the counters.
+     */
+    public static final String CONF_COUNT_COLUMN = WordCountRegionObserver.CONF_COUNT_COLUMN;
+
+    /**
+     * Configuration key for the time windows of the counters.
+     */
+    public static final String CONF_WINDOWS = WordCountRegionObserver.CONF_WINDOWS;
+
+    private byte[] family;
+
+    private byte[] qualifier;
+
+    private TimeWindow[] windows;
+
+    private final Set<Store> fullCompactions = Collections.newSetFromMap(new ConcurrentHashMap<Store, Boolean>());
+
+    @Override
+    public void start(CoprocessorEnvironment e) throws IOException {
+        Configuration conf = e.getConfiguration();
+        String[] column = conf.get(CONF_COUNT_COLUMN, WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY).split(":",
+                2);
+        family = Bytes.toBytes(column[0]);
+        qualifier = column.length > 1 ? Bytes.toBytes(column[1]) : HConstants.EMPTY_BYTE_ARRAY;
+        windows = TimeWindow.parse(conf.get(CONF_WINDOWS));
+    }
+
+    @Override
+    public void postCompactSelection(ObserverContext<RegionCoprocessorEnvironment> c, Store store,
+            ImmutableList<StoreFile> selected) {
+        if(!Bytes.equals(store.getFamily().getName(), family)) {
+            return;
+        }
+        if(selected.size() == store.getNumberOfStoreFiles()) {
+            fullCompactions.add(store);
+        }
+        else {
+            fullCompactions.remove(store);
+        }
+    }
+
+    @Override
+    public InternalScanner preCompact(ObserverContext<RegionCoprocessorEnvironment> e, Store store,
+            InternalScanner scanner) {
+        if(windows.length == 0 || !fullCompactions.remove(store)) {
+            return scanner;
+        }
+        return new RollupScanner(scanner, System.currentTimeMillis());
+    }
+
+    /**
+     * A scanner to roll up the buckets of each row. The buckets of a row are
+     * rolled up together, so a row is held here, but it is read from the
+     * inner scanner and returned to the compaction in batches of the limit.
+     */
+    private class RollupScanner implements InternalScanner {
+
+        private final InternalScanner scanner;
+
+        private final long[] cutoffs;
+
+        private final List<KeyValue> batch = new ArrayList<KeyValue>();
+
+        private final List<KeyValue> row = new ArrayList<KeyValue>();
+
+        private final List<KeyValue> next = new ArrayList<KeyValue>();
+
+        private final List<KeyValue> rolledUp = new ArrayList<KeyValue>();
+
+        private int position = 0;
+
+        private boolean more = true;
+
+        private RollupScanner(InternalScanner scanner, long now) {
+            this.scanner = scanner;
+            this.cutoffs = new long[windows.length];
+            for(int i = 0; i < windows.length; i++) {
+                TimeWindow window = windows[i];
+                cutoffs[i] = window.getRetention() > 0 ? window.bucketOf(now) - (window.getRetention() - 1)
+                        * window.getLength() : Long.MIN_VALUE;
+            }
+        }
+
+        @Override
+        public boolean next(List<KeyValue> results) throws IOException {
+            return next(results, -1);
+        }
+
+        @Override
+        public boolean next(List<KeyValue> results, int limit) throws IOException {
+            if(position == rolledUp.size()) {
+                rolledUp.clear();
+                position = 0;
+                if(readRow(limit)) {
+                    rollup(row, rolledUp);
+                }
+            }
+            int end = limit > 0 ? Math.min(position + limit, rolledUp.size()) : rolledUp.size();
+            results.addAll(rolledUp.subList(position, end));
+            position = end;
+            return position < rolledUp.size() || !next.isEmpty() || more;
+        }
+
+        /**
+         * Reads the next row in batches of the limit. A batch never spans
+         * rows, so the first batch of the following row is kept for the next
+         * call.
+         */
+        private boolean readRow(int limit) throws IOException {
+            row.clear();
+            row.addAll(next);
+            next.clear();
+            while(more) {
+                batch.clear();
+                more = limit > 0 ? scanner.next(batch, limit) : scanner.next(batch);
+                if(batch.isEmpty()) {
+                    continue;
+                }
+                if(!row.isEmpty() && !row.get(0).matchingRow(batch.get(0))) {
+                    next.addAll(batch);
+                    break;
+                }
+                row.addAll(batch);
+            }
+            return !row.isEmpty();
+        }
+
+        private void rollup(List<KeyValue> kvs, List<KeyValue> results) {
+            List<Map<Long, long[]>> buckets = new ArrayList<Map<Long, long[]>>(windows.length);
+            for(int i = 0; i < windows.length; i++) {
+                buckets.add(new TreeMap<Long, long[]>());
+            }
+            List<KeyValue> others = new ArrayList<KeyValue>(kvs.size());
+            boolean found = false;
+            KeyValue last = null;
+            for(KeyValue kv : kvs) {
+                int window = -1;
+                long bucket = -1L;
+                if(kv.getType() == KeyValue.Type.Put.getCode() && kv.getValueLength() == Bytes.SIZEOF_LONG
+                        && kv.matchingFamily(family)) {
+                    for(int i = 0; i < windows.length && bucket < 0L; i++) {
+                        bucket = TimeWindow.bucketOf(kv, qualifier, windows[i]);
+                        window = i;
+                    }
+                }
+                if(bucket < 0L) {
+                    others.add(kv);
+                    continue;
+                }
+                found = true;
+                if(last != null && DeltaCounters.sameQualifier(last, kv)) {
+                    // older versions are already included in the newest one
+                    continue;
+                }
+                last = kv;
+                add(buckets.get(window), bucket, Bytes.toLong(kv.getBuffer(), kv.getValueOffset()), kv.getTimestamp());
+            }
+            if(!found) {
+                results.addAll(kvs);
+                return;
+            }
+
+            for(int i = 0; i < windows.length; i++) {
+                Map<Long, long[]> expired = ((TreeMap<Long, long[]>) buckets.get(i)).headMap(cutoffs[i]);
+                if(i + 1 < windows.length) {
+                    for(Entry<Long, long[]> entry : expired.entrySet()) {
+                        add(buckets.get(i + 1), windows[i + 1].bucketOf(entry.getKey()), entry.getValue()[0],
+                                entry.getValue()[1]);
+                    }
+                }
+                expired.clear();
+            }
+
+            byte[] row = kvs.get(0).getRow();
+            for(int i = 0; i < windows.length; i++) {
+                for(Entry<Long, long[]> entry : buckets.get(i).entrySet()) {
+                    others.add(new KeyValue(row, family, windows[i].toQualifier(qualifier, entry.getKey()), entry
+                            .getValue()[1], KeyValue.Type.Put, Bytes.toBytes(entry.getValue()[0])));
+                }
+            }
+            Collections.sort(others, KeyValue.COMPARATOR);
+            results.addAll(others);
+        }
+
+        private void add(Map<Long, long[]> buckets, long bucket, long count, long timestamp) {
+            long[] value = buckets.get(bucket);
+            if(value == null) {
+                buckets.put(bucket, new long[] { count, timestamp });
+            }
+            else {
+                value[0] += count;
+                value[1] = Math.max(value[1], timestamp);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            scanner.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * The most frequent words offered, keeping at most <code>n</code> words.
+ * 
+ * @author ueshin
+ * @see WordCountAggregator
+ */
+public class TopWords implements Writable {
+
+    private static final Comparator<Pair<byte[], Long>> ASCENDING = new Comparator<Pair<byte[], Long>>() {
+
+        @Override
+        public int compare(Pair<byte[], Long> left, Pair<byte[], Long> right) {
+            int c = left.getSecond().compareTo(right.getSecond());
+            return c != 0 ? c : Bytes.compareTo(right.getFirst(), left.getFirst());
+        }
+    };
+
+    private int n;
+
+    private PriorityQueue<Pair<byte[], Long>> heap;
+
+    /**
+     * Constructs an empty instance to be read by
+     * {@link #readFields(DataInput)}.
+     */
+    public TopWords() {
+        this(1);
+    }
+
+    /**
+     * Constructs an empty instance.
+     * 
+     * @param n
+     *            the max number of words to keep
+     */
+    public TopWords(int n) {
+        if(n < 1) {
+            throw new IllegalArgumentException("Invalid number of top words: " + n);
+        }
+        this.n = n;
+        this.heap = new PriorityQueue<Pair<byte[], Long>>(n + 1, ASCENDING);
+    }
+
+    /**
+     * Offers the count of the word, which is kept if it is one of the
+     * <code>n</code> most frequent words offered so far. Ties are broken by
+     * the order of the words.
+     * 
+     * @param word
+     *            the word
+     * @param count
+     *            the count of the word
+     */
+    public void offer(byte[] word, long count) {
+        if(heap.size() >= n) {
+            Pair<byte[], Long> min = heap.peek();
+            if(count < min.getSecond() || (count == min.getSecond() && Bytes.compareTo(word, min.getFirst()) > 0)) {
+                return;
+            }
+        }
+        heap.add(new Pair<byte[], Long>(word, count));
+        if(heap.size() > n) {
+            heap.poll();
+        }
+    }
+
+    /**
+     * Offers all counts.
+     * 
+     * @param counts
+     *            the counts
+     */
+    public void offer(WordCounts counts) {
+        for(int i = counts.first(); i >= 0; i = counts.next(i)) {
+            offer(counts.getWord(i), counts.getCount(i));
+        }
+    }
+
+    /**
+     * Returns the words in descending order of their counts.
+     * 
+     * @return the words and their counts
+     */
+    public List<Pair<byte[], Long>> getWords() {
+        List<Pair<byte[], Long>> words = new ArrayList<Pair<byte[], Long>>(heap);
+        Collections.sort(words, Collections.reverseOrder(ASCENDING));
+        return words;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, n);
+        WritableUtils.writeVInt(out, heap.size());
+        for(Pair<byte[], Long> word : heap) {
+            Bytes.writeByteArray(out, word.getFirst());
+            WritableUtils.writeVLong(out, word.getSecond());
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        n = WritableUtils.readVInt(in);
+        int size = WritableUtils.readVInt(in);
+        heap = new PriorityQueue<Pair<byte[], Long>>(n + 1, ASCENDING);
+        for(int i = 0; i < size; i++) {
+            heap.add(new Pair<byte[], Long>(Bytes.readByteArray(in), WritableUtils.readVLong(in)));
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.coprocessor.BaseEndpointCoprocessor;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * An endpoint on the count table to aggregate word counts written by
+ * {@link WordCountRegionObserver} in the region.
+ * 
+ * <p>
+ * Counters are read by {@link DeltaCounters#sum}, so both increments and
+ * delta counters are aggregated. With <code>stripes</code>, the stripes of a
+ * word in the region are summed before aggregation, but the other stripes of
+ * the word may be in other regions, so {@link #top(int)} and
+ * {@link #distinct(byte[])} are partial. {@link #distinctSketch(byte[])}
+ * returns a sketch to be merged over regions instead.
+ * </p>
+ * 
+ * <p>
+ * The sketch rows of {@link WordSketches}, which share the count table, are
+ * skipped.
+ * </p>
+ * 
+ * @author ueshin
+ * @see WordCountAggregator
+ */
+public class WordCountAggregateEndpoint extends BaseEndpointCoprocessor implements WordCountAggregateProtocol {
+
+    /**
+     * Configuration key for the column of the counters.
+     */
+    public static final String CONF_COUNT_COLUMN = WordCountRegionObserver.CONF_COUNT_COLUMN;
+
+    /**
+     * Configuration key for the number of stripes of each counter.
+     */
+    public static final String CONF_STRIPES = WordCountRegionObserver.CONF_STRIPES;
+
+    /**
+     * A visitor of the counters.
+     */
+    private interface CounterVisitor {
+
+        /**
+         * Visits a counter.
+         * 
+         * @param word
+         *            the word
+         * @param count
+         *            the count of the word
+         */
+        void visit(byte[] word, long count);
+    }
+
+    private byte[] family;
+
+    private byte[] qualifier;
+
+    private int stripes;
+
+    @Override
+    public void start(CoprocessorEnvironment env) {
+        super.start(env);
+        Configuration conf = env.getConfiguration();
+        String[] column = conf.get(CONF_COUNT_COLUMN, WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY).split(":",
+                2);
+        family = Bytes.toBytes(column[0]);
+        qualifier = column.length > 1 ? Bytes.toBytes(column[1]) : HConstants.EMPTY_BYTE_ARRAY;
+        stripes = conf.getInt(CONF_STRIPES, 1);
+    }
+
+    @Override
+    public TopWords top(int n) throws IOException {
+        final TopWords top = new TopWords(n);
+        if(stripes > 1) {
+            top.offer(aggregate(HConstants.EMPTY_BYTE_ARRAY, HConstants.EMPTY_BYTE_ARRAY));
+        }
+        else {
+            scan(HConstants.EMPTY_BYTE_ARRAY, HConstants.EMPTY_BYTE_ARRAY, new CounterVisitor() {
+
+                @Override
+                public void visit(byte[] word, long count) {
+                    top.offer(word, count);
+                }
+            });
+        }
+        return top;
+    }
+
+    @Override
+    public long sum(byte[] startWord, byte[] stopWord) throws IOException {
+        final long[] sum = new long[1];
+        scan(startWord, stopWord, new CounterVisitor() {
+
+            @Override
+            public void visit(byte[] word, long count) {
+                sum[0] += count;
+            }
+        });
+        return sum[0];
+    }
+
+    @Override
+    public long distinct(byte[] prefix) throws IOException {
+        if(stripes > 1) {
+            return aggregate(prefix, stopWordOf(prefix)).size();
+        }
+        final long[] distinct = new long[1];
+        scan(prefix, stopWordOf(prefix), new CounterVisitor() {
+
+            @Override
+            public void visit(byte[] word, long count) {
+                distinct[0]++;
+            }
+        });
+        return distinct[0];
+    }
+
+    @Override
+    public HyperLogLog distinctSketch(byte[] prefix) throws IOException {
+        final HyperLogLog sketch = new HyperLogLog();
+        scan(prefix, stopWordOf(prefix), new CounterVisitor() {
+
+            @Override
+            public void visit(byte[] word, long count) {
+                sketch.add(word);
+            }
+        });
+        return sketch;
+    }
+
+    /**
+     * Returns the word next to the last word with the prefix.
+     * 
+     * @param prefix
+     *            the prefix
+     * @return the stop word, or empty if the prefix has no upper bound
+     */
+    static byte[] stopWordOf(byte[] prefix) {
+        for(int i = prefix.length - 1; i >= 0; i--) {
+            if(prefix[i] != (byte) 0xff) {
+                byte[] stop = Bytes.head(prefix, i + 1);
+                stop[i]++;
+                return stop;
+            }
+        }
+        return HConstants.EMPTY_BYTE_ARRAY;
+    }
+
+    private WordCounts aggregate(byte[] startWord, byte[] stopWord) throws IOException {
+        final WordCounts counts = new WordCounts();
+        scan(startWord, stopWord, new CounterVisitor() {
+
+            @Override
+            public void visit(byte[] word, long count) {
+                counts.add(word, count);
+            }
+        });
+        return counts;
+    }
+
+    private void scan(byte[] startWord, byte[] stopWord, CounterVisitor visitor) throws IOException {
+        HRegion region = ((RegionCoprocessorEnvironment) getEnvironment()).getRegion();
+        for(int stripe = 0; stripe < stripes; stripe++) {
+            byte[] startRow;
+            byte[] stopRow;
+            if(stripes > 1) {
+                startRow = StripedCounters.toRow(stripe, startWord);
+                stopRow = stopWord.length > 0 ? StripedCounters.toRow(stripe, stopWord) : stopWordOf(new byte[] {
+                    (byte) stripe });
+            }
+            else {
+                startRow = startWord;
+                stopRow = stopWord;
+            }
+            if(Bytes.compareTo(startRow, region.getStartKey()) < 0) {
+                startRow = region.getStartKey();
+            }
+            if(region.getEndKey().length > 0
+                    && (stopRow.length == 0 || Bytes.compareTo(stopRow, region.getEndKey()) > 0)) {
+                stopRow = region.getEndKey();
+            }
+            if(stopRow.length > 0 && Bytes.compareTo(startRow, stopRow) >= 0) {
+                continue;
+            }
+
+            Scan scan = new Scan(startRow, stopRow);
+            scan.addFamily(family);
+            RegionScanner scanner = region.getScanner(scan);
+            try {
+                List<KeyValue> kvs = new ArrayList<KeyValue>();
+                boolean more;
+                do {
+                    kvs.clear();
+                    more = scanner.next(kvs);
+                    if(kvs.isEmpty() || isSketch(kvs.get(0)) || !hasCounter(kvs)) {
+                        continue;
+                    }
+                    byte[] row = kvs.get(0).getRow();
+                    visitor.visit(stripes > 1 ? StripedCounters.toWord(row) : row,
+                            DeltaCounters.sum(kvs, family, qualifier));
+                } while(more);
+            }
+            finally {
+                scanner.close();
+            }
+        }
+    }
+
+    private static boolean isSketch(KeyValue kv) {
+        return Bytes.compareTo(kv.getBuffer(), kv.getRowOffset(), kv.getRowLength(), WordSketches.SKETCH_START_ROW, 0,
+                WordSketches.SKETCH_START_ROW.length) >= 0
+                && Bytes.compareTo(kv.getBuffer(), kv.getRowOffset(), kv.getRowLength(),
+                        WordSketches.SKETCH_STOP_ROW, 0, WordSketches.SKETCH_STOP_ROW.length) < 0;
+    }
+
+    private boolean hasCounter(List<KeyValue> kvs) {
+        for(KeyValue kv : kvs) {
+            if(DeltaCounters.isPartOf(kv, family, qualifier)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.ipc.CoprocessorProtocol;
+
+/**
+ * A protocol to aggregate word counts in regions of the count table.
+ * 
+ * <p>
+ * Word ranges are given by words, not rows, so they work with striped
+ * counters as well. An empty stop word means the end of the words.
+ * </p>
+ * 
+ * @author ueshin
+ * @see WordCountAggregateEndpoint
+ */
+public interface WordCountAggregateProtocol extends CoprocessorProtocol {
+
+    /**
+     * Returns the most frequent words in the region.
+     * 
+     * @param n
+     *            the max number of words to return
+     * @return the most frequent words
+     * @throws IOException
+     */
+    TopWords top(int n) throws IOException;
+
+    /**
+     * Returns the sum of counts of the words in the range in the region.
+     * 
+     * @param startWord
+     *            the first word of the range
+     * @param stopWord
+     *            the word next to the last word of the range
+     * @return the sum of counts
+     * @throws IOException
+     */
+    long sum(byte[] startWord, byte[] stopWord) throws IOException;
+
+    /**
+     * Returns the number of words with the prefix in the region.
+     * 
+     * @param prefix
+     *            the prefix of the words
+     * @return the number of words
+     * @throws IOException
+     */
+    long distinct(byte[] prefix) throws IOException;
+
+    /**
+     * Returns the sketch of the words with the prefix in the region, to be
+     * merged with the ones of the other regions, as the stripes of a word may
+     * be in different regions.
+     * 
+     * @param prefix
+     *            the prefix of the words
+     * @return the sketch of the distinct words
+     * @throws IOException
+     */
+    HyperLogLog distinctSketch(byte[] prefix) throws IOException;
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.coprocessor.Batch;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+/**
+ * A client to aggregate word counts in the count table by
+ * {@link WordCountAggregateEndpoint}, which must be configured on the count
+ * table.
+ * 
+ * <p>
+ * The partial results of regions are computed in parallel and merged here.
+ * Without stripes, each word is in one region, so the results are exact. With
+ * stripes, the stripes of a word may be in different regions.
+ * {@link #top(int)} then takes the top <code>k</code> words of each region,
+ * whose stripes in the region are summed, and fetches the exact counts of
+ * these candidates by {@link StripedCounters}. A word not among them can't
+ * count more than the sum of the smallest counts of the regions which
+ * returned <code>k</code> words, so <code>k</code> is doubled from
+ * <code>n</code> until the <code>n</code>-th count reaches the sum.
+ * {@link #distinct(byte[])} merges a {@link HyperLogLog} of each region into
+ * an estimate.
+ * </p>
+ * 
+ * <p>
+ * The client is configured by the same keys as {@link WordCountRegionObserver}
+ * : <code>table</code>, <code>column</code> and <code>stripes</code>.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class WordCountAggregator implements Closeable {
+
+    private final HTable table;
+
+    private final int stripes;
+
+    private final StripedCounters counters;
+
+    /**
+     * Constructs a client configured by the configuration.
+     * 
+     * @param conf
+     *            the configuration
+     * @throws IOException
+     */
+    public WordCountAggregator(Configuration conf) throws IOException {
+        this.table = new HTable(conf, conf.get(WordCountRegionObserver.CONF_COUNT_TABLE_NAME,
+                WordCountRegionObserver.DEFAULT_COUNT_TABLE_NAME));
+        this.stripes = conf.getInt(WordCountRegionObserver.CONF_STRIPES, 1);
+        this.counters = stripes > 1 ? new StripedCounters(conf) : null;
+    }
+
+    /**
+     * Returns the most frequent words.
+     * 
+     * @param n
+     *            the max number of words to return
+     * @return the words and their counts in descending order of the counts
+     * @throws IOException
+     */
+    public List<Pair<byte[], Long>> top(int n) throws IOException {
+        if(stripes > 1) {
+            return topStriped(n);
+        }
+        TopWords top = new TopWords(n);
+        WordCounts counts = new WordCounts();
+        for(TopWords partial : partialTops(n)) {
+            for(Pair<byte[], Long> word : partial.getWords()) {
+                counts.add(word.getFirst(), word.getSecond());
+            }
+        }
+        top.offer(counts);
+        return top.getWords();
+    }
+
+    private List<Pair<byte[], Long>> topStriped(int n) throws IOException {
+        for(int k = n;; k = k > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : k * 2) {
+            Set<byte[]> candidates = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+            long threshold = 0L;
+            boolean exhausted = true;
+            for(TopWords partial : partialTops(k)) {
+                List<Pair<byte[], Long>> words = partial.getWords();
+                for(Pair<byte[], Long> word : words) {
+                    candidates.add(word.getFirst());
+                }
+                if(words.size() >= k) {
+                    // the other words of the region count no more than the last one
+                    exhausted = false;
+                    threshold += Math.max(words.get(words.size() - 1).getSecond(), 0L);
+                }
+            }
+
+            List<byte[]> words = new ArrayList<byte[]>(candidates);
+            long[] counts = counters.get(words);
+            TopWords top = new TopWords(n);
+            for(int i = 0; i < counts.length; i++) {
+                top.offer(words.get(i), counts[i]);
+            }
+            List<Pair<byte[], Long>> result = top.getWords();
+            if(exhausted || k == Integer.MAX_VALUE
+                    || (result.size() >= n && result.get(n - 1).getSecond() >= threshold)) {
+                return result;
+            }
+        }
+    }
+
+    private Collection<TopWords> partialTops(final int n) throws IOException {
+        return exec(HConstants.EMPTY_BYTE_ARRAY, HConstants.EMPTY_BYTE_ARRAY,
+                new Batch.Call<WordCountAggregateProtocol, TopWords>() {
+
+                    @Override
+                    public TopWords call(WordCountAggregateProtocol instance) throws IOException {
+                        return instance.top(n);
+                    }
+                });
+    }
+
+    /**
+     * Returns the sum of counts of the words in the range.
+     * 
+     * @param startWord
+     *            the first word of the range
+     * @param stopWord
+     *            the word next to the last word of the range, or empty for
+     *            the end of the words
+     * @return the sum of counts
+     * @throws IOException
+     */
+    public long sum(final byte[] startWord, final byte[] stopWord) throws IOException {
+        long sum = 0L;
+        for(Long partial : exec(startWord, stopWord, new Batch.Call<WordCountAggregateProtocol, Long>() {
+
+            @Override
+            public Long call(WordCountAggregateProtocol instance) throws IOException {
+                return instance.sum(startWord, stopWord);
+            }
+        })) {
+            sum += partial;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the number of words with the prefix, estimated with stripes.
+     * 
+     * @param prefix
+     *            the prefix of the words
+     * @return the number of words
+     * @throws IOException
+     */
+    public long distinct(final byte[] prefix) throws IOException {
+        if(stripes > 1) {
+            HyperLogLog sketch = new HyperLogLog();
+            for(HyperLogLog partial : exec(prefix, WordCountAggregateEndpoint.stopWordOf(prefix),
+                    new Batch.Call<WordCountAggregateProtocol, HyperLogLog>() {
+
+                        @Override
+                        public HyperLogLog call(WordCountAggregateProtocol instance) throws IOException {
+                            return instance.distinctSketch(prefix);
+                        }
+                    })) {
+                sketch.merge(partial);
+            }
+            return sketch.estimate();
+        }
+        long distinct = 0L;
+        for(Long partial : exec(prefix, WordCountAggregateEndpoint.stopWordOf(prefix),
+                new Batch.Call<WordCountAggregateProtocol, Long>() {
+
+                    @Override
+                    public Long call(WordCountAggregateProtocol instance) throws IOException {
+                        return instance.distinct(prefix);
+                    }
+                })) {
+            distinct += partial;
+        }
+        return distinct;
+    }
+
+    private <R> Collection<R> exec(byte[] startWord, byte[] stopWord, Batch.Call<WordCountAggregateProtocol, R> call)
+            throws IOException {
+        try {
+            if(stripes > 1) {
+                return table.coprocessorExec(WordCountAggregateProtocol.class, null, null, call).values();
+            }
+            return table.coprocessorExec(WordCountAggregateProtocol.class, startWord,
+                    stopWord.length > 0 ? stopWord : null, call).values();
+        }
+        catch(IOException e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw (IOException) new IOException("Failed to aggregate word counts.").initCause(t);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            table.close();
+        }
+        finally {
+            if(counters != null) {
+                counters.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Threads;
+
+/**
+ * A region-server-wide write-behind buffer of word count deltas.
+ *
+ * <p>
+ * Deltas from many puts are merged in direct memory by
+ * {@link OffHeapWordCounts}, and flushed to the count table as a batch of
+ * increments when the buffer fills beyond three quarters of its size or entry
+ * limits, or when the oldest unflushed delta gets older than the age limit.
+ * Two maps are allocated up front and swapped on flush, so buffering makes no
+ * garbage on the heap besides the mutations to write. If a put finds the
+ * buffer full, it flushes synchronously. A word longer than the whole buffer
+ * is written to the count table directly. Deltas failed to be written are kept
+ * in the flushing map and retried by the next flush. One buffer is shared by
+ * all observers writing to the same count column, and its memory usage is
+ * exposed as {@link WordCountBufferMXBean}.
+ * </p>
+ *
+ * @author ueshin
+ */
+class WordCountBuffer implements WordCountBufferMXBean {
+
+    private static final Log LOG = LogFactory.getLog(WordCountBuffer.class);
+
+    private static final Map<String, WordCountBuffer> BUFFERS = new HashMap<String, WordCountBuffer>();
+
+    /**
+     * Returns the buffer for the count column, creating it if it doesn't
+     * exist. Each call must be paired with {@link #release()}. The limits are
+     * those of the first caller, and a warning is logged if a later caller
+     * asks for different ones.
+     *
+     * @param conf
+     *            the configuration to connect to the count table
+     * @param tableName
+     *            the count table name
+     * @param column
+     *            the column of the count table
+     * @param maxSize
+     *            the total length in bytes of buffered words
+     * @param maxEntries
+     *            the number of buffered words
+     * @param maxAge
+     *            the age in milliseconds of the oldest delta to trigger flush
+     * @return the shared buffer
+     */
+    static WordCountBuffer acquire(Configuration conf, byte[] tableName, CountColumn column, long maxSize,
+            int maxEntries, long maxAge) {
+        String key = Bytes.toStringBinary(tableName) + "/" + column;
+        synchronized(BUFFERS) {
+            WordCountBuffer buffer = BUFFERS.get(key);
+            if(buffer == null) {
+                buffer = new WordCountBuffer(key, conf, tableName, column, maxSize, maxEntries, maxAge);
+                BUFFERS.put(key, buffer);
+            }
+            else if(buffer.maxSize != maxSize || buffer.maxEntries != maxEntries || buffer.maxAge != maxAge) {
+                LOG.warn("The word count buffer " + key + " is shared with the limits " + buffer.maxSize
+                        + " bytes, " + buffer.maxEntries + " entries and " + buffer.maxAge
+                        + " ms, ignoring the limits " + maxSize + " bytes, " + maxEntries + " entries and " + maxAge
+                        + " ms.");
+            }
+            buffer.references++;
+            return buffer;
+        }
+    }
+
+    private final String key;
+
+    private final Configuration conf;
+
+    private final byte[] tableName;
+
+    private final CountColumn column;
+
+    private final long maxSize;
+
+    private final int maxEntries;
+
+    private final long maxAge;
+
+    private final ObjectName name;
+
+    private final Lock lock = new ReentrantLock();
+
+    private OffHeapWordCounts deltas;
+
+    private OffHeapWordCounts flushing;
+
+    private final long allocatedBytes;
+
+    private int flushingEntries = 0;
+
+    private int flushingBytes = 0;
+
+    private volatile long oldest = 0L;
+
+    private volatile boolean pending = false;
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final ScheduledExecutorService flusher;
+
+    private final Object flushLock = new Object();
+
+    private HTable table;
+
+    private int references = 0;
+
+    private WordCountBuffer(String key, Configuration conf, byte[] tableName, CountColumn column, long maxSize,
+            int maxEntries, long maxAge) {
+        this.key = key;
+        this.conf = conf;
+        this.tableName = tableName;
+        this.column = column;
+        this.maxSize = maxSize;
+        this.maxEntries = maxEntries;
+        this.maxAge = maxAge;
+        this.deltas = new OffHeapWordCounts(maxEntries, (int) Math.min(maxSize, Integer.MAX_VALUE));
+        this.flushing = new OffHeapWordCounts(maxEntries, (int) Math.min(maxSize, Integer.MAX_VALUE));
+        this.allocatedBytes = deltas.getAllocatedBytes() + flushing.getAllocatedBytes();
+
+        flusher = Executors.newSingleThreadScheduledExecutor(Threads.getNamedThreadFactory("WordCountBuffer-" + key));
+        long period = Math.max(maxAge / 4, 10L);
+        flusher.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                long o = oldest;
+                if(pending || (o != 0L && System.currentTimeMillis() - o >= WordCountBuffer.this.maxAge)) {
+                    flushQuietly();
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        name = register(key);
+    }
+
+    private ObjectName register(String key) {
+        try {
+            ObjectName name = new ObjectName(WordCountBuffer.class.getPackage().getName()
+                    + ":type=WordCountBuffer,name=" + ObjectName.quote(key));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            return name;
+        }
+        catch(Exception e) {
+            LOG.warn("Failed to register the gauge of the word count buffer " + key + ".", e);
+            return null;
+        }
+    }
+
+    /**
+     * Merges the counts into the buffer. A flush is requested in background
+     * if the buffer is filling up, and done synchronously if it's full.
+     *
+     * @param counts
+     *            the counts to add
+     * @throws IOException
+     *             if the buffer is full and failed to be flushed
+     */
+    void add(WordCounts counts) throws IOException {
+        int i = counts.first();
+        boolean filling;
+        List<Row> oversized = null;
+        while(true) {
+            lock.lock();
+            try {
+                for(; i >= 0; i = counts.next(i)) {
+                    byte[] word = counts.getWord(i);
+                    if(word.length > deltas.getMaxBytes()) {
+                        // never fits even after flush
+                        if(oversized == null) {
+                            oversized = new ArrayList<Row>();
+                        }
+                        oversized.add(column.newMutation(word, counts.getCount(i)));
+                    }
+                    else if(!deltas.add(word, 0, word.length, counts.getCount(i))) {
+                        break;
+                    }
+                }
+                if(oldest == 0L && !deltas.isEmpty()) {
+                    oldest = System.currentTimeMillis();
+                }
+                filling = deltas.size() * 4L >= deltas.getMaxEntries() * 3L
+                        || deltas.getUsedBytes() * 4L >= deltas.getMaxBytes() * 3L;
+            }
+            finally {
+                lock.unlock();
+            }
+            if(i < 0) {
+                break;
+            }
+            flush();
+        }
+        if(filling) {
+            requestFlush();
+        }
+        if(oversized != null) {
+            synchronized(flushLock) {
+                batch(oversized, new Object[oversized.size()]);
+            }
+        }
+    }
+
+    /**
+     * Writes the mutations to the count table. The caller must hold
+     * <code>flushLock</code>.
+     */
+    private void batch(List<Row> mutations, Object[] results) throws IOException {
+        try {
+            if(table == null) {
+                table = new HTable(conf, tableName);
+            }
+            table.batch(mutations, results);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException) new InterruptedIOException().initCause(e);
+        }
+    }
+
+    private void requestFlush() {
+        if(flushRequested.compareAndSet(false, true)) {
+            flusher.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    flushRequested.set(false);
+                    flushQuietly();
+                }
+            });
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        }
+        catch(IOException e) {
+            LOG.warn("Failed to flush word counts to " + key + ", will retry later.", e);
+        }
+    }
+
+    /**
+     * Flushes all buffered deltas to the count table. If the previous flush
+     * failed, its deltas are retried first and the others stay buffered.
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        synchronized(flushLock) {
+            if(flushing.isEmpty()) {
+                lock.lock();
+                try {
+                    OffHeapWordCounts swap = flushing;
+                    flushing = deltas;
+                    deltas = swap;
+                    oldest = 0L;
+                    flushingEntries = flushing.size();
+                    flushingBytes = flushing.getUsedBytes();
+                }
+                finally {
+                    lock.unlock();
+                }
+                if(flushing.isEmpty()) {
+                    return;
+                }
+            }
+
+            List<Row> mutations = new ArrayList<Row>(flushing.size());
+            int[] indexes = new int[flushing.size()];
+            for(int i = 0; i < flushing.size(); i++) {
+                long count = flushing.getCount(i);
+                if(count != 0L) {
+                    indexes[mutations.size()] = i;
+                    mutations.add(column.newMutation(flushing.getWord(i), count));
+                }
+            }
+
+            Object[] results = new Object[mutations.size()];
+            try {
+                batch(mutations, results);
+            }
+            catch(IOException e) {
+                retain(indexes, results);
+                throw e;
+            }
+            flushing.clear();
+            lock.lock();
+            try {
+                flushingEntries = 0;
+                flushingBytes = 0;
+            }
+            finally {
+                lock.unlock();
+            }
+            pending = false;
+        }
+    }
+
+    /**
+     * Keeps the deltas failed to be written for the next flush, and zeroes
+     * the ones written.
+     */
+    private void retain(int[] indexes, Object[] results) {
+        for(int i = 0; i < results.length; i++) {
+            if(results[i] instanceof Result) {
+                flushing.setCount(indexes[i], 0L);
+            }
+        }
+        pending = true;
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        lock.lock();
+        try {
+            return (long) deltas.getUsedBytes() + flushingBytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getEntries() {
+        lock.lock();
+        try {
+            return deltas.size() + flushingEntries;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Releases the buffer. The last release flushes the remaining deltas,
+     * stops the background flusher and frees the direct memory.
+     *
+     * @throws IOException
+     */
+    void release() throws IOException {
+        synchronized(BUFFERS) {
+            if(--references > 0) {
+                return;
+            }
+            BUFFERS.remove(key);
+        }
+        if(name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            catch(Exception e) {
+                LOG.warn("Failed to unregister the gauge of the word count buffer " + key + ".", e);
+            }
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            // flushes both the failed deltas and the buffered ones
+            flush();
+            flush();
+        }
+        finally {
+            synchronized(flushLock) {
+                lock.lock();
+                try {
+                    deltas.free();
+                    flushing.free();
+                }
+                finally {
+                    lock.unlock();
+                }
+                if(table != null) {
+                    table.close();
+                    table = null;
+                }
+            }
+        }
+    }
+}
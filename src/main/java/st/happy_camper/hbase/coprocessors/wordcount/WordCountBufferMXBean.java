@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+/**
+ * A management interface to monitor the memory usage of a
+ * {@link WordCountRegionObserver} buffer.
+ * 
+ * @author ueshin
+ */
+public interface WordCountBufferMXBean {
+
+    /**
+     * Returns the size of the direct memory allocated by the buffer.
+     * 
+     * @return the allocated bytes
+     */
+    long getAllocatedBytes();
+
+    /**
+     * Returns the total length of buffered words in bytes.
+     * 
+     * @return the used bytes
+     */
+    long getUsedBytes();
+
+    /**
+     * Returns the number of buffered words, including the ones being flushed.
+     * 
+     * @return the number of buffered words
+     */
+    int getEntries();
+
+    /**
+     * Returns the number of words the buffer can take before it's flushed
+     * synchronously.
+     * 
+     * @return the max number of buffered words
+     */
+    int getMaxEntries();
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.util.ToolRunner;
+
+import st.happy_camper.hbase.coprocessors.util.DerivedTableRebuilder;
+import st.happy_camper.hbase.coprocessors.util.Deriver;
+import st.happy_camper.hbase.coprocessors.util.TablePool;
+
+/**
+ * A tool to count words of the existing contents of a source table into HFiles
+ * of the count table.
+ *
+ * <p>
+ * It takes the same parameters as {@link WordCountRegionObserver}, prefixed by
+ * <code>wordcount.</code>, and counts each version of the target cells put
+ * before <code>rebuild.until</code> once, like the observer counts each put.
+ * Bulk-loaded cells can't be added to the counts already in the count table,
+ * so the counts are always written as delta cells, whatever
+ * <code>counter</code> is, and the deltas of a word from different batches
+ * and regions are summed into one by the combiner and the reducer.
+ * <code>DeltaCounterRegionObserver</code> must be configured on the count
+ * table to sum them with the live counts.
+ * </p>
+ *
+ * <p>
+ * The rebuild is not idempotent: the deltas add to the counts every time
+ * they are loaded. Set <code>rebuild.until</code> to the time the observer
+ * was enabled, so the cells it counted since then aren't counted twice, and
+ * clear the counts before running it again, e.g. after a partial failure.
+ * </p>
+ *
+ * <pre><code>
+ * $ hadoop jar [jarfile path] st.happy_camper.hbase.coprocessors.wordcount.WordCountRebuilder \
+ *     -D wordcount.targets=[targets] -D wordcount.rebuild.until=[timestamp] [source table] [output dir]
+ * </code></pre>
+ *
+ * @author ueshin
+ * @see DeltaCounters
+ */
+public class WordCountRebuilder extends DerivedTableRebuilder {
+
+    /**
+     * Constructs the rebuilder.
+     */
+    public WordCountRebuilder() {
+        super(WordCountWALObserver.PREFIX);
+    }
+
+    @Override
+    protected byte[] getTableName(Configuration conf) {
+        return Bytes.toBytes(conf.get(WordCountRegionObserver.CONF_COUNT_TABLE_NAME,
+                WordCountRegionObserver.DEFAULT_COUNT_TABLE_NAME));
+    }
+
+    @Override
+    protected Deriver createDeriver(Configuration conf, TablePool pool) {
+        Configuration delta = new Configuration(conf);
+        delta.set(WordCountRegionObserver.CONF_COUNTER, WordCountRegionObserver.COUNTER_DELTA);
+        return WordCountWALObserver.newDeriver(delta);
+    }
+
+    @Override
+    protected Merger createMerger(Configuration conf) {
+        return new Merger() {
+
+            @Override
+            public void merge(List<KeyValue> kvs, List<KeyValue> results) {
+                // sums the deltas per family and counter qualifier, i.e. the qualifier without the unique id
+                Map<byte[], KeyValue> counters = new TreeMap<byte[], KeyValue>(Bytes.BYTES_COMPARATOR);
+                Map<byte[], Long> sums = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+                for(KeyValue kv : kvs) {
+                    int length = kv.getQualifierLength() - DeltaCounters.DELTA_ID_LENGTH - 1;
+                    if(length < 0 || kv.getValueLength() != Bytes.SIZEOF_LONG
+                            || kv.getBuffer()[kv.getQualifierOffset() + length] != DeltaCounters.DELTA_MARKER) {
+                        results.add(kv);
+                        continue;
+                    }
+                    byte[] key = Bytes.add(kv.getFamily(), new byte[] { DeltaCounters.DELTA_MARKER },
+                            Bytes.head(kv.getQualifier(), length));
+                    KeyValue counter = counters.get(key);
+                    if(counter == null || counter.getTimestamp() < kv.getTimestamp()) {
+                        counters.put(key, kv);
+                    }
+                    Long sum = sums.get(key);
+                    sums.put(key, (sum != null ? sum : 0L) + Bytes.toLong(kv.getBuffer(), kv.getValueOffset()));
+                }
+                for(Map.Entry<byte[], KeyValue> entry : counters.entrySet()) {
+                    KeyValue kv = entry.getValue();
+                    byte[] qualifier = Bytes.head(kv.getQualifier(), kv.getQualifierLength()
+                            - DeltaCounters.DELTA_ID_LENGTH - 1);
+                    results.add(new KeyValue(kv.getRow(), kv.getFamily(), DeltaCounters.newDeltaQualifier(qualifier),
+                            kv.getTimestamp(), KeyValue.Type.Put, Bytes.toBytes(sums.get(entry.getKey()))));
+                }
+            }
+        };
+    }
+
+    /**
+     * Runs the rebuilder.
+     *
+     * @param args
+     *            the source table name and the output directory
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        System.exit(ToolRunner.run(HBaseConfiguration.create(), new WordCountRebuilder(), args));
+    }
+}
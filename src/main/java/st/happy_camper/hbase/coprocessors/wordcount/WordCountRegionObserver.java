@@ -16,21 +16,39 @@
 package st.happy_camper.hbase.coprocessors.wordcount;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.CoprocessorEnvironment;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
 import org.apache.hadoop.hbase.coprocessor.ObserverContext;
 import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
 import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
 import org.apache.hadoop.hbase.util.Bytes;
-import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hadoop.hbase.util.Threads;
+import org.apache.hadoop.hbase.util.Writables;
+
+import st.happy_camper.hbase.coprocessors.util.AsyncTableWriter;
+import st.happy_camper.hbase.coprocessors.util.TablePool;
+import st.happy_camper.hbase.coprocessors.util.TargetMatcher;
+import st.happy_camper.hbase.coprocessors.wordcount.analysis.Analyzer;
+import st.happy_camper.hbase.coprocessors.wordcount.analysis.TokenSink;
 
 /**
  * A coprocessor to count words of contents put into target columns.
@@ -54,6 +72,95 @@ public class WordCountRegionObserver extends BaseRegionObserver {
      */
     public static final String CONF_COUNT_COLUMN = "column";
 
+    /**
+     * Configuration key for the tokenizer.
+     */
+    public static final String CONF_TOKENIZER = "tokenizer";
+
+    /**
+     * Configuration key for the token filters.
+     */
+    public static final String CONF_ANALYZER = "analyzer";
+
+    /**
+     * Configuration key for the way to write counts.
+     */
+    public static final String CONF_COUNTER = "counter";
+
+    /**
+     * Counter to write counts by increments.
+     */
+    public static final String COUNTER_INCREMENT = "increment";
+
+    /**
+     * Counter to write counts as delta cells.
+     * 
+     * @see DeltaCounters
+     */
+    public static final String COUNTER_DELTA = "delta";
+
+    /**
+     * Counter to summarize counts in a fixed-size sketch per region.
+     * 
+     * @see WordSketch
+     */
+    public static final String COUNTER_SKETCH = "sketch";
+
+    /**
+     * Configuration key for the number of hash functions of the sketch.
+     */
+    public static final String CONF_SKETCH_DEPTH = "sketch.depth";
+
+    /**
+     * Configuration key for the number of counters per hash function of the
+     * sketch.
+     */
+    public static final String CONF_SKETCH_WIDTH = "sketch.width";
+
+    /**
+     * Configuration key for the number of most frequent words to track.
+     */
+    public static final String CONF_SKETCH_TOPK = "sketch.topk";
+
+    /**
+     * Configuration key for the interval in milliseconds to write the sketch
+     * into the count table.
+     */
+    public static final String CONF_SKETCH_INTERVAL = "sketch.interval";
+
+    /**
+     * Configuration key for the number of stripes of each counter.
+     */
+    public static final String CONF_STRIPES = "stripes";
+
+    /**
+     * Configuration key for the time windows of counts.
+     * 
+     * @see TimeWindow#parse(String)
+     */
+    public static final String CONF_WINDOWS = "windows";
+
+    /**
+     * Configuration key to enable the write-behind buffer.
+     */
+    public static final String CONF_BUFFER = "buffer";
+
+    /**
+     * Configuration key for the max total length in bytes of buffered words.
+     */
+    public static final String CONF_BUFFER_MAX_SIZE = "buffer.maxsize";
+
+    /**
+     * Configuration key for the max number of buffered words.
+     */
+    public static final String CONF_BUFFER_MAX_ENTRIES = "buffer.maxentries";
+
+    /**
+     * Configuration key for the age in milliseconds of the oldest buffered
+     * count to trigger flush.
+     */
+    public static final String CONF_BUFFER_MAX_AGE = "buffer.maxage";
+
     /**
      * Default tablename of the count table.
      */
@@ -84,30 +191,175 @@ public class WordCountRegionObserver extends BaseRegionObserver {
      */
     public static final byte[] DEFAULT_COUNT_COLUMN_QUALIFIER_BYTES = Bytes.toBytes(DEFAULT_COUNT_QUALIFIER);
 
+    /**
+     * Default max total length in bytes of buffered words.
+     */
+    public static final long DEFAULT_BUFFER_MAX_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * Default max number of buffered words.
+     */
+    public static final int DEFAULT_BUFFER_MAX_ENTRIES = 10000;
+
+    /**
+     * Default age in milliseconds of the oldest buffered count to trigger
+     * flush.
+     */
+    public static final long DEFAULT_BUFFER_MAX_AGE = 1000L;
+
+    /**
+     * Default number of hash functions of the sketch.
+     */
+    public static final int DEFAULT_SKETCH_DEPTH = 4;
+
+    /**
+     * Default number of counters per hash function of the sketch.
+     */
+    public static final int DEFAULT_SKETCH_WIDTH = 2048;
+
+    /**
+     * Default number of most frequent words to track.
+     */
+    public static final int DEFAULT_SKETCH_TOPK = 100;
+
+    /**
+     * Default interval in milliseconds to write the sketch into the count
+     * table.
+     */
+    public static final long DEFAULT_SKETCH_INTERVAL = 60000L;
+
+    private static final Log LOG = LogFactory.getLog(WordCountRegionObserver.class);
+
     private byte[] tableName;
 
-    private byte[] columnFamily;
+    private CountColumn column;
+
+    private TargetMatcher targets;
+
+    private Analyzer analyzer;
+
+    private TablePool pool;
+
+    private AsyncTableWriter writer;
+
+    private WordCountBuffer buffer;
+
+    private WordSketch sketch;
+
+    private byte[] sketchRow;
+
+    private ScheduledExecutorService sketchSaver;
+
+    private boolean sketchDirty = false;
 
-    private byte[] qualifier;
+    private boolean sketchFolded = false;
 
-    private List<Pair<byte[], byte[]>> targets = new ArrayList<Pair<byte[], byte[]>>();
+    private final Lock sketchLock = new ReentrantLock();
 
     @Override
     public void start(CoprocessorEnvironment e) throws IOException {
         Configuration conf = e.getConfiguration();
         tableName = Bytes.toBytes(conf.get(CONF_COUNT_TABLE_NAME, DEFAULT_COUNT_TABLE_NAME));
-        String[] column = conf.get(CONF_COUNT_COLUMN, DEFAULT_COUNT_COLUMN_FAMILY).split(":", 2);
-        columnFamily = Bytes.toBytes(column[0]);
-        qualifier = column.length > 1 ? Bytes.toBytes(column[1]) : HConstants.EMPTY_BYTE_ARRAY;
-
-        String targetString = conf.get(CONF_COUNT_TARGETS);
-        if(targetString != null) {
-            for(String pair : targetString.split(" +")) {
-                if(!pair.isEmpty()) {
-                    String[] parts = pair.split(":", 2);
-                    targets.add(new Pair<byte[], byte[]>(Bytes.toBytes(parts[0]), parts.length > 1 ? Bytes
-                            .toBytes(parts[1]) : null));
+        String[] columnName = conf.get(CONF_COUNT_COLUMN, DEFAULT_COUNT_COLUMN_FAMILY).split(":", 2);
+        String counter = conf.get(CONF_COUNTER, COUNTER_INCREMENT);
+        if(!COUNTER_INCREMENT.equals(counter) && !COUNTER_DELTA.equals(counter) && !COUNTER_SKETCH.equals(counter)) {
+            throw new IllegalArgumentException("Unknown counter: " + counter);
+        }
+        TimeWindow[] windows = TimeWindow.parse(conf.get(CONF_WINDOWS));
+        if(windows.length > 0 && (COUNTER_SKETCH.equals(counter) || conf.getBoolean(CONF_BUFFER, false))) {
+            throw new IllegalArgumentException("Windows can't be used with sketches or buffer.");
+        }
+        column = new CountColumn(Bytes.toBytes(columnName[0]), columnName.length > 1 ? Bytes.toBytes(columnName[1])
+                : HConstants.EMPTY_BYTE_ARRAY, COUNTER_DELTA.equals(counter), conf.getInt(CONF_STRIPES, 1),
+                windows.length > 0 ? windows[0] : null);
+
+        targets = TargetMatcher.compile(conf.get(CONF_COUNT_TARGETS));
+
+        analyzer = Analyzer.compile(conf.get(CONF_TOKENIZER, Analyzer.WORD_TOKENIZER), conf.get(CONF_ANALYZER));
+
+        pool = TablePool.create(conf, tableName);
+        writer = AsyncTableWriter.create(conf, pool);
+
+        if(COUNTER_SKETCH.equals(counter)) {
+            sketch = new WordSketch(conf.getInt(CONF_SKETCH_DEPTH, DEFAULT_SKETCH_DEPTH), conf.getInt(
+                    CONF_SKETCH_WIDTH, DEFAULT_SKETCH_WIDTH), conf.getInt(CONF_SKETCH_TOPK, DEFAULT_SKETCH_TOPK));
+            String encodedName = ((RegionCoprocessorEnvironment) e).getRegion().getRegionInfo().getEncodedName();
+            sketchRow = WordSketches.toRow(Bytes.toBytes(encodedName));
+            long interval = Math.max(conf.getLong(CONF_SKETCH_INTERVAL, DEFAULT_SKETCH_INTERVAL), 10L);
+            sketchSaver = Executors.newSingleThreadScheduledExecutor(Threads.getNamedThreadFactory("WordSketch-"
+                    + encodedName));
+            sketchSaver.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    sketchLock.lock();
+                    try {
+                        saveSketch();
+                    }
+                    catch(IOException e) {
+                        LOG.warn("Failed to write word sketch, will retry later.", e);
+                    }
+                    finally {
+                        sketchLock.unlock();
+                    }
                 }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        else if(conf.getBoolean(CONF_BUFFER, false)) {
+            buffer = WordCountBuffer.acquire(conf, tableName, column,
+                    conf.getLong(CONF_BUFFER_MAX_SIZE, DEFAULT_BUFFER_MAX_SIZE),
+                    conf.getInt(CONF_BUFFER_MAX_ENTRIES, DEFAULT_BUFFER_MAX_ENTRIES),
+                    conf.getLong(CONF_BUFFER_MAX_AGE, DEFAULT_BUFFER_MAX_AGE));
+        }
+    }
+
+    @Override
+    public void stop(CoprocessorEnvironment e) throws IOException {
+        try {
+            if(sketchSaver != null) {
+                sketchSaver.shutdown();
+                try {
+                    sketchSaver.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                }
+                catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                sketchSaver = null;
+            }
+            if(buffer != null) {
+                buffer.release();
+                buffer = null;
+            }
+            if(writer != null) {
+                writer.close();
+                writer = null;
+            }
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    @Override
+    public void preClose(ObserverContext<RegionCoprocessorEnvironment> c, boolean abortRequested) {
+        if(sketch != null) {
+            sketchLock.lock();
+            try {
+                saveSketch();
+            }
+            catch(IOException e) {
+                LOG.warn("Failed to write word sketch on close.", e);
+            }
+            finally {
+                sketchLock.unlock();
+            }
+        }
+        if(buffer != null) {
+            try {
+                buffer.flush();
+            }
+            catch(IOException e) {
+                LOG.warn("Failed to flush buffered word counts on close.", e);
             }
         }
     }
@@ -115,28 +367,143 @@ public class WordCountRegionObserver extends BaseRegionObserver {
     @Override
     public void postPut(ObserverContext<RegionCoprocessorEnvironment> c, Put put, WALEdit edit, boolean writeToWAL)
             throws IOException {
-        HTableInterface table = c.getEnvironment().getTable(tableName);
-        try {
-            for(Pair<byte[], byte[]> target : targets) {
-                List<KeyValue> kvs;
-                if(target.getSecond() == null) {
-                    kvs = put.getFamilyMap().get(target.getFirst());
-                }
-                else {
-                    kvs = put.get(target.getFirst(), target.getSecond());
+        final WordCounts counts = new WordCounts();
+        TokenSink sink = new TokenSink() {
+
+            @Override
+            public void token(byte[] buffer, int offset, int length) {
+                counts.add(buffer, offset, length, 1L);
+            }
+
+            @Override
+            public void end() {
+            }
+        };
+        long timestamp = 0L;
+        for(Map.Entry<byte[], List<KeyValue>> entry : put.getFamilyMap().entrySet()) {
+            TargetMatcher.Family family = targets.getFamily(entry.getKey());
+            if(family == null) {
+                continue;
+            }
+            for(KeyValue kv : entry.getValue()) {
+                if(family.matches(kv)) {
+                    timestamp = Math.max(timestamp, kv.getTimestamp());
+                    analyzer.analyze(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength(), sink);
                 }
-                if(kvs != null) {
-                    for(KeyValue kv : kvs) {
-                        for(String word : Bytes.toString(kv.getValue()).split("\\W+")) {
-                            table.incrementColumnValue(Bytes.toBytes(word), columnFamily, qualifier, 1);
-                        }
-                    }
+            }
+        }
+        if(counts.isEmpty()) {
+            return;
+        }
+        if(sketch != null) {
+            synchronized(sketch) {
+                sketch.add(counts);
+                sketchDirty = true;
+            }
+            return;
+        }
+        if(buffer != null) {
+            buffer.add(counts);
+            return;
+        }
+
+        List<Row> mutations = new ArrayList<Row>(counts.size());
+        for(int i = counts.first(); i >= 0; i = counts.next(i)) {
+            mutations.add(column.newMutation(counts.getWord(i), counts.getCount(i), timestamp));
+        }
+        if(writer != null) {
+            writer.write(mutations);
+            return;
+        }
+
+        HTableInterface table = pool.get();
+        boolean healthy = false;
+        try {
+            table.batch(mutations);
+            healthy = true;
+        }
+        catch(InterruptedException ex) {
+            healthy = true;
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException) new InterruptedIOException().initCause(ex);
+        }
+        finally {
+            pool.release(table, healthy);
+        }
+    }
+
+    /**
+     * Writes the sketch into the count table if it has changed. The sketch
+     * written before the region opened is folded in first. The caller must hold
+     * <code>sketchLock</code>.
+     * 
+     * @throws IOException
+     */
+    private void saveSketch() throws IOException {
+        synchronized(sketch) {
+            if(!sketchDirty) {
+                return;
+            }
+        }
+        if(!sketchFolded) {
+            foldSketch();
+        }
+        Put put = new Put(sketchRow);
+        synchronized(sketch) {
+            put.add(column.getFamily(), column.getQualifier(), Writables.getBytes(sketch));
+            sketchDirty = false;
+        }
+
+        HTableInterface table = pool.get();
+        boolean healthy = false;
+        try {
+            table.put(put);
+            healthy = true;
+        }
+        finally {
+            pool.release(table, healthy);
+            if(!healthy) {
+                synchronized(sketch) {
+                    sketchDirty = true;
                 }
             }
         }
+    }
+
+    /**
+     * Merges the sketch of the region in the count table, written before the
+     * region opened, into this one. The caller must hold
+     * <code>sketchLock</code>.
+     * 
+     * @throws IOException
+     */
+    private void foldSketch() throws IOException {
+        Get get = new Get(sketchRow);
+        get.addColumn(column.getFamily(), column.getQualifier());
+
+        byte[] value;
+        HTableInterface table = pool.get();
+        boolean healthy = false;
+        try {
+            value = table.get(get).getValue(column.getFamily(), column.getQualifier());
+            healthy = true;
+        }
         finally {
-            table.close();
+            pool.release(table, healthy);
+        }
+
+        if(value != null) {
+            WordSketch previous = (WordSketch) Writables.getWritable(value, new WordSketch());
+            synchronized(sketch) {
+                try {
+                    sketch.merge(previous);
+                }
+                catch(IllegalArgumentException e) {
+                    LOG.warn("Dropped the previous word sketch of the region.", e);
+                }
+            }
         }
+        sketchFolded = true;
     }
 
 }
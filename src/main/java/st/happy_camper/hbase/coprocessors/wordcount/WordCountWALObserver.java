@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import st.happy_camper.hbase.coprocessors.util.Deriver;
+import st.happy_camper.hbase.coprocessors.util.DerivingWALObserver;
+import st.happy_camper.hbase.coprocessors.util.TargetMatcher;
+import st.happy_camper.hbase.coprocessors.wordcount.analysis.Analyzer;
+import st.happy_camper.hbase.coprocessors.wordcount.analysis.TokenSink;
+
+/**
+ * A WAL coprocessor to count words of contents committed to target columns of
+ * the source tables.
+ *
+ * <p>
+ * It takes the same parameters as {@link WordCountRegionObserver}, prefixed by
+ * <code>wordcount.</code> in the region server configuration, and counts the
+ * words of every edit in a batch before writing them, so each word is written
+ * once per batch. Sketches and the buffer are not supported, as the batches
+ * already merge the counts.
+ * </p>
+ *
+ * @author ueshin
+ */
+public class WordCountWALObserver extends DerivingWALObserver {
+
+    /**
+     * The prefix of the configuration keys.
+     */
+    public static final String PREFIX = "wordcount.";
+
+    /**
+     * Constructs the observer.
+     */
+    public WordCountWALObserver() {
+        super(PREFIX);
+    }
+
+    @Override
+    protected byte[] getTableName(Configuration conf) {
+        return Bytes.toBytes(conf.get(WordCountRegionObserver.CONF_COUNT_TABLE_NAME,
+                WordCountRegionObserver.DEFAULT_COUNT_TABLE_NAME));
+    }
+
+    @Override
+    protected Deriver createDeriver(Configuration conf) throws IOException {
+        return newDeriver(conf);
+    }
+
+    /**
+     * Creates a deriver to count words of edits, shared with
+     * {@link WordCountRebuilder}.
+     *
+     * @param conf
+     *            the configuration without the prefix
+     * @return the deriver
+     */
+    static Deriver newDeriver(Configuration conf) {
+        String[] columnName = conf.get(WordCountRegionObserver.CONF_COUNT_COLUMN,
+                WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY).split(":", 2);
+        String counter = conf.get(WordCountRegionObserver.CONF_COUNTER, WordCountRegionObserver.COUNTER_INCREMENT);
+        if(!WordCountRegionObserver.COUNTER_INCREMENT.equals(counter)
+                && !WordCountRegionObserver.COUNTER_DELTA.equals(counter)) {
+            throw new IllegalArgumentException("Unknown or unsupported counter: " + counter);
+        }
+        TimeWindow[] windows = TimeWindow.parse(conf.get(WordCountRegionObserver.CONF_WINDOWS));
+        CountColumn column = new CountColumn(Bytes.toBytes(columnName[0]), columnName.length > 1 ? Bytes
+                .toBytes(columnName[1]) : HConstants.EMPTY_BYTE_ARRAY,
+                WordCountRegionObserver.COUNTER_DELTA.equals(counter), conf.getInt(
+                        WordCountRegionObserver.CONF_STRIPES, 1), windows.length > 0 ? windows[0] : null);
+
+        TargetMatcher targets = TargetMatcher.compile(conf.get(WordCountRegionObserver.CONF_COUNT_TARGETS));
+
+        Analyzer analyzer = Analyzer.compile(conf.get(WordCountRegionObserver.CONF_TOKENIZER,
+                Analyzer.WORD_TOKENIZER), conf.get(WordCountRegionObserver.CONF_ANALYZER));
+
+        return new WordCountDeriver(column, targets, analyzer, windows.length > 0 ? windows[0] : null);
+    }
+
+    /**
+     * Counts words of a batch of edits, per bucket of the finest window if
+     * any.
+     */
+    private static class WordCountDeriver implements Deriver {
+
+        private final CountColumn column;
+
+        private final TargetMatcher targets;
+
+        private final Analyzer analyzer;
+
+        private final TimeWindow window;
+
+        private final Map<Long, WordCounts> buckets = new TreeMap<Long, WordCounts>();
+
+        private WordCounts counts;
+
+        private final TokenSink sink = new TokenSink() {
+
+            @Override
+            public void token(byte[] buffer, int offset, int length) {
+                counts.add(buffer, offset, length, 1L);
+            }
+
+            @Override
+            public void end() {
+            }
+        };
+
+        private WordCountDeriver(CountColumn column, TargetMatcher targets, Analyzer analyzer, TimeWindow window) {
+            this.column = column;
+            this.targets = targets;
+            this.analyzer = analyzer;
+            this.window = window;
+        }
+
+        @Override
+        public void derive(byte[] table, List<KeyValue> kvs) {
+            for(KeyValue kv : kvs) {
+                if(kv.getType() != KeyValue.Type.Put.getCode() || !targets.matches(kv)) {
+                    continue;
+                }
+                long bucket = window != null ? window.bucketOf(kv.getTimestamp()) : HConstants.LATEST_TIMESTAMP;
+                counts = buckets.get(bucket);
+                if(counts == null) {
+                    counts = new WordCounts();
+                    buckets.put(bucket, counts);
+                }
+                analyzer.analyze(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength(), sink);
+            }
+        }
+
+        @Override
+        public List<Row> drain() {
+            List<Row> mutations = new ArrayList<Row>();
+            for(Map.Entry<Long, WordCounts> bucket : buckets.entrySet()) {
+                WordCounts counts = bucket.getValue();
+                for(int i = counts.first(); i >= 0; i = counts.next(i)) {
+                    mutations.add(column.newMutation(counts.getWord(i), counts.getCount(i), bucket.getKey()));
+                }
+            }
+            buckets.clear();
+            counts = null;
+            return mutations;
+        }
+    }
+}
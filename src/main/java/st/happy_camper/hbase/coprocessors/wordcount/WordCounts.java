@@ -0,0 +1,219 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * An open-addressing hash map from words to counts.
+ * 
+ * <p>
+ * Words are given as slices of byte arrays, hashed and compared in place, so
+ * only a word seen for the first time is copied.
+ * </p>
+ * 
+ * <p>
+ * Entries are iterated by index as follows:
+ * </p>
+ * 
+ * <pre><code>
+ * for(int i = counts.first(); i &gt;= 0; i = counts.next(i)) {
+ *     byte[] word = counts.getWord(i);
+ *     long count = counts.getCount(i);
+ * }
+ * </code></pre>
+ * 
+ * @author ueshin
+ */
+public class WordCounts {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private byte[][] words;
+
+    private int[] hashes;
+
+    private long[] counts;
+
+    private int size;
+
+    /**
+     * Constructs an empty map.
+     */
+    public WordCounts() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs an empty map with the expected number of words.
+     * 
+     * @param expected
+     *            the expected number of words
+     */
+    public WordCounts(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(expected * 2 - 1, 1)) << 1;
+        words = new byte[capacity][];
+        hashes = new int[capacity];
+        counts = new long[capacity];
+    }
+
+    /**
+     * Adds the count to the word.
+     * 
+     * @param buffer
+     *            the buffer the word is in
+     * @param offset
+     *            the offset of the word
+     * @param length
+     *            the length of the word
+     * @param count
+     *            the count to add
+     */
+    public void add(byte[] buffer, int offset, int length, long count) {
+        int hash = Bytes.hashCode(buffer, offset, length);
+        int mask = words.length - 1;
+        int i = mix(hash) & mask;
+        byte[] word;
+        while((word = words[i]) != null) {
+            if(hashes[i] == hash && Bytes.equals(word, 0, word.length, buffer, offset, length)) {
+                counts[i] += count;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        word = new byte[length];
+        System.arraycopy(buffer, offset, word, 0, length);
+        words[i] = word;
+        hashes[i] = hash;
+        counts[i] = count;
+        if(++size * 2 > words.length) {
+            rehash(words.length << 1);
+        }
+    }
+
+    /**
+     * Adds the count to the word.
+     * 
+     * @param word
+     *            the word
+     * @param count
+     *            the count to add
+     */
+    public void add(byte[] word, long count) {
+        add(word, 0, word.length, count);
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash(int capacity) {
+        byte[][] oldWords = words;
+        int[] oldHashes = hashes;
+        long[] oldCounts = counts;
+        words = new byte[capacity][];
+        hashes = new int[capacity];
+        counts = new long[capacity];
+        int mask = capacity - 1;
+        for(int j = 0; j < oldWords.length; j++) {
+            if(oldWords[j] != null) {
+                int i = mix(oldHashes[j]) & mask;
+                while(words[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                words[i] = oldWords[j];
+                hashes[i] = oldHashes[j];
+                counts[i] = oldCounts[j];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of words.
+     * 
+     * @return the number of words
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns <code>true</code> if no word is counted.
+     * 
+     * @return <code>true</code> if empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all the words.
+     */
+    public void clear() {
+        Arrays.fill(words, null);
+        size = 0;
+    }
+
+    /**
+     * Returns the index of the first entry.
+     * 
+     * @return the index, or <code>-1</code> if empty
+     */
+    public int first() {
+        return next(-1);
+    }
+
+    /**
+     * Returns the index of the entry next to the index.
+     * 
+     * @param index
+     *            the current index
+     * @return the next index, or <code>-1</code> if no more entries
+     */
+    public int next(int index) {
+        for(int i = index + 1; i < words.length; i++) {
+            if(words[i] != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the word of the entry.
+     * 
+     * @param index
+     *            the index of the entry
+     * @return the word
+     */
+    public byte[] getWord(int index) {
+        return words[index];
+    }
+
+    /**
+     * Returns the count of the entry.
+     * 
+     * @param index
+     *            the index of the entry
+     * @return the count
+     */
+    public long getCount(int index) {
+        return counts[index];
+    }
+}
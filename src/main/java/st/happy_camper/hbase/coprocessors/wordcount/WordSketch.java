@@ -0,0 +1,135 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * An approximate summary of word frequencies in fixed memory, written by
+ * {@link WordCountRegionObserver} with <code>counter=sketch</code>.
+ * 
+ * <p>
+ * A {@link CountMinSketch} estimates the count of any word, and a
+ * {@link SpaceSaving} summary tracks the most frequent words. Summaries of the
+ * same dimensions can be merged.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class WordSketch implements Writable {
+
+    private final CountMinSketch sketch;
+
+    private final SpaceSaving top;
+
+    /**
+     * Constructs an empty summary to be read by
+     * {@link #readFields(DataInput)}.
+     */
+    public WordSketch() {
+        this.sketch = new CountMinSketch();
+        this.top = new SpaceSaving();
+    }
+
+    /**
+     * Constructs an empty summary.
+     * 
+     * @param depth
+     *            the number of hash functions of the sketch
+     * @param width
+     *            the number of counters per hash function of the sketch
+     * @param capacity
+     *            the number of most frequent words to track
+     */
+    public WordSketch(int depth, int width, int capacity) {
+        this.sketch = new CountMinSketch(depth, width);
+        this.top = new SpaceSaving(capacity);
+    }
+
+    /**
+     * Adds the counts.
+     * 
+     * @param counts
+     *            the counts to add
+     */
+    public void add(WordCounts counts) {
+        for(int i = counts.first(); i >= 0; i = counts.next(i)) {
+            byte[] word = counts.getWord(i);
+            sketch.add(word, 0, word.length, counts.getCount(i));
+            top.add(word, 0, word.length, counts.getCount(i));
+        }
+    }
+
+    /**
+     * Returns the estimated count of the word, which never falls below the
+     * true count.
+     * 
+     * @param word
+     *            the word
+     * @return the estimated count
+     */
+    public long estimate(byte[] word) {
+        return sketch.estimate(word);
+    }
+
+    /**
+     * Returns the most frequent words in descending order of their counts.
+     * 
+     * @param n
+     *            the max number of words to return
+     * @return the most frequent words
+     */
+    public List<SpaceSaving.Counter> top(int n) {
+        return top.top(n);
+    }
+
+    /**
+     * Returns the total count of all words.
+     * 
+     * @return the total count
+     */
+    public long getTotal() {
+        return sketch.getTotal();
+    }
+
+    /**
+     * Merges the other summary of the same dimensions into this.
+     * 
+     * @param other
+     *            the summary to merge
+     */
+    public void merge(WordSketch other) {
+        sketch.merge(other.sketch);
+        top.merge(other.top);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        sketch.write(out);
+        top.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        sketch.readFields(in);
+        top.readFields(in);
+    }
+}
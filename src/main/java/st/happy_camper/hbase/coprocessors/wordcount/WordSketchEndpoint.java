@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.coprocessor.BaseEndpointCoprocessor;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Writables;
+
+/**
+ * An endpoint on the count table to merge word sketches written by
+ * {@link WordCountRegionObserver} with <code>counter=sketch</code>.
+ * 
+ * @author ueshin
+ * @see WordSketches
+ */
+public class WordSketchEndpoint extends BaseEndpointCoprocessor implements WordSketchProtocol {
+
+    /**
+     * Configuration key for the column of the sketches.
+     */
+    public static final String CONF_COUNT_COLUMN = WordCountRegionObserver.CONF_COUNT_COLUMN;
+
+    private byte[] family;
+
+    private byte[] qualifier;
+
+    @Override
+    public void start(CoprocessorEnvironment env) {
+        super.start(env);
+        Configuration conf = env.getConfiguration();
+        String[] column = conf.get(CONF_COUNT_COLUMN, WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY).split(":",
+                2);
+        family = Bytes.toBytes(column[0]);
+        qualifier = column.length > 1 ? Bytes.toBytes(column[1]) : HConstants.EMPTY_BYTE_ARRAY;
+    }
+
+    @Override
+    public WordSketch getSketch() throws IOException {
+        Scan scan = new Scan(WordSketches.SKETCH_START_ROW, WordSketches.SKETCH_STOP_ROW);
+        scan.addColumn(family, qualifier);
+        RegionScanner scanner = ((RegionCoprocessorEnvironment) getEnvironment()).getRegion().getScanner(scan);
+        try {
+            WordSketch merged = null;
+            List<KeyValue> kvs = new ArrayList<KeyValue>();
+            boolean more;
+            do {
+                kvs.clear();
+                more = scanner.next(kvs);
+                for(KeyValue kv : kvs) {
+                    WordSketch sketch = (WordSketch) Writables.getWritable(kv.getValue(), new WordSketch());
+                    if(merged == null) {
+                        merged = sketch;
+                    }
+                    else {
+                        merged.merge(sketch);
+                    }
+                }
+            } while(more);
+            return merged;
+        }
+        finally {
+            scanner.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.ipc.CoprocessorProtocol;
+
+/**
+ * A protocol to read word sketches stored in regions of the count table.
+ * 
+ * @author ueshin
+ * @see WordSketchEndpoint
+ */
+public interface WordSketchProtocol extends CoprocessorProtocol {
+
+    /**
+     * Returns the merged sketch of all sketches stored in the region.
+     * 
+     * @return the merged sketch, or <code>null</code> if the region has no
+     *         sketches
+     * @throws IOException
+     */
+    WordSketch getSketch() throws IOException;
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.coprocessor.Batch;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A client to read word sketches written by {@link WordCountRegionObserver}
+ * with <code>counter=sketch</code>.
+ * 
+ * <p>
+ * Each region of the target tables writes its sketch into a row of the count
+ * table with the prefix {@link #SKETCH_START_ROW}, one row per region, which
+ * the observer reads back once after the region opens to carry the counts
+ * over. This client merges them by {@link WordSketchEndpoint}, which must be
+ * configured on the count table.
+ * </p>
+ * 
+ * <p>
+ * The client is configured by the same keys as {@link WordCountRegionObserver}
+ * : <code>table</code>.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class WordSketches implements Closeable {
+
+    /**
+     * The first row of the sketches.
+     */
+    public static final byte[] SKETCH_START_ROW = Bytes.toBytes("\0sketch\0");
+
+    /**
+     * The row next to the last row of the sketches.
+     */
+    public static final byte[] SKETCH_STOP_ROW = Bytes.toBytes("\0sketch\1");
+
+    /**
+     * Returns the row of the sketch of a region.
+     * 
+     * @param encodedRegionName
+     *            the encoded region name
+     * @return the row
+     */
+    public static byte[] toRow(byte[] encodedRegionName) {
+        return Bytes.add(SKETCH_START_ROW, encodedRegionName);
+    }
+
+    private final HTable table;
+
+    /**
+     * Constructs a client configured by the configuration.
+     * 
+     * @param conf
+     *            the configuration
+     * @throws IOException
+     */
+    public WordSketches(Configuration conf) throws IOException {
+        this.table = new HTable(conf, conf.get(WordCountRegionObserver.CONF_COUNT_TABLE_NAME,
+                WordCountRegionObserver.DEFAULT_COUNT_TABLE_NAME));
+    }
+
+    /**
+     * Returns the merged sketch of all regions.
+     * 
+     * @return the merged sketch, or <code>null</code> if no sketches are
+     *         written yet
+     * @throws IOException
+     */
+    public WordSketch getSketch() throws IOException {
+        try {
+            WordSketch merged = null;
+            for(WordSketch sketch : table.coprocessorExec(WordSketchProtocol.class, SKETCH_START_ROW, SKETCH_STOP_ROW,
+                    new Batch.Call<WordSketchProtocol, WordSketch>() {
+
+                        @Override
+                        public WordSketch call(WordSketchProtocol instance) throws IOException {
+                            return instance.getSketch();
+                        }
+                    }).values()) {
+                if(sketch == null) {
+                    continue;
+                }
+                if(merged == null) {
+                    merged = sketch;
+                }
+                else {
+                    merged.merge(sketch);
+                }
+            }
+            return merged;
+        }
+        catch(IOException e) {
+            throw e;
+        }
+        catch(Throwable t) {
+            throw (IOException) new IOException("Failed to read word sketches.").initCause(t);
+        }
+    }
+
+    /**
+     * Returns the most frequent words of all regions.
+     * 
+     * @param n
+     *            the max number of words to return
+     * @return the most frequent words in descending order of their counts
+     * @throws IOException
+     */
+    public List<SpaceSaving.Counter> top(int n) throws IOException {
+        WordSketch sketch = getSketch();
+        return sketch != null ? sketch.top(n) : Collections.<SpaceSaving.Counter> emptyList();
+    }
+
+    /**
+     * Returns the estimated count of the word of all regions.
+     * 
+     * @param word
+     *            the word
+     * @return the estimated count
+     * @throws IOException
+     */
+    public long estimate(byte[] word) throws IOException {
+        WordSketch sketch = getSketch();
+        return sketch != null ? sketch.estimate(word) : 0L;
+    }
+
+    @Override
+    public void close() throws IOException {
+        table.close();
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount.analysis;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A chain of a tokenizer and token filters.
+ * 
+ * <p>
+ * An analyzer is compiled once and thread-safe. Each thread builds its own
+ * stages of the filters at the first use and reuses them afterwards.
+ * </p>
+ * 
+ * <p>
+ * Tokenizers are specified as <code>name[:arg[:arg...]]</code>:
+ * </p>
+ * 
+ * <ul>
+ * <li><code>word</code>: {@link WordTokenizer}</li>
+ * <li><code>cjk</code> or <code>cjk:n</code>: {@link CJKTokenizer}</li>
+ * <li>class name of a custom {@link Tokenizer}</li>
+ * </ul>
+ * 
+ * <p>
+ * Filters are specified as a space-separated list of
+ * <code>name[:arg[:arg...]]</code>:
+ * </p>
+ * 
+ * <ul>
+ * <li><code>lowercase</code>: {@link LowerCaseFilter}</li>
+ * <li><code>stop:word[;word...]</code>: {@link StopFilter}</li>
+ * <li><code>length:min[:max]</code>: {@link LengthFilter}</li>
+ * <li><code>stem</code>: {@link StemFilter}</li>
+ * <li><code>ngram:n</code> or <code>ngram:min:max</code>: {@link NGramFilter}</li>
+ * <li>class name of a custom {@link TokenFilter}</li>
+ * </ul>
+ * 
+ * @author ueshin
+ */
+public class Analyzer {
+
+    /**
+     * The name of {@link WordTokenizer}.
+     */
+    public static final String WORD_TOKENIZER = "word";
+
+    /**
+     * The name of {@link CJKTokenizer}.
+     */
+    public static final String CJK_TOKENIZER = "cjk";
+
+    /**
+     * Compiles an analyzer.
+     * 
+     * @param tokenizer
+     *            the tokenizer spec, or <code>null</code> for the word tokenizer
+     * @param filters
+     *            the filter specs, or <code>null</code> for no filters
+     * @return the compiled analyzer
+     * @throws IllegalArgumentException
+     *             if the specs are invalid
+     */
+    public static Analyzer compile(String tokenizer, String filters) {
+        List<TokenFilter> chain = new ArrayList<TokenFilter>();
+        if(filters != null) {
+            for(String spec : filters.split(" +")) {
+                if(!spec.isEmpty()) {
+                    String[] parts = spec.split(":");
+                    chain.add(newFilter(parts[0], Arrays.copyOfRange(parts, 1, parts.length)));
+                }
+            }
+        }
+        return new Analyzer(newTokenizer(tokenizer), chain.toArray(new TokenFilter[chain.size()]));
+    }
+
+    private static Tokenizer newTokenizer(String spec) {
+        if(spec == null) {
+            return WordTokenizer.INSTANCE;
+        }
+        String[] parts = spec.trim().split(":");
+        String[] args = Arrays.copyOfRange(parts, 1, parts.length);
+        if(WORD_TOKENIZER.equals(parts[0])) {
+            return WordTokenizer.INSTANCE;
+        }
+        else if(CJK_TOKENIZER.equals(parts[0])) {
+            return new CJKTokenizer(args);
+        }
+        return newInstance(parts[0], Tokenizer.class, args);
+    }
+
+    private static TokenFilter newFilter(String name, String[] args) {
+        if("lowercase".equals(name)) {
+            return new LowerCaseFilter();
+        }
+        else if("stop".equals(name)) {
+            return new StopFilter(args.length > 0 ? args[0].split(";") : new String[0]);
+        }
+        else if("length".equals(name)) {
+            return new LengthFilter(args.length > 0 ? Integer.parseInt(args[0]) : 0,
+                    args.length > 1 ? Integer.parseInt(args[1]) : Integer.MAX_VALUE);
+        }
+        else if("stem".equals(name)) {
+            return new StemFilter();
+        }
+        else if("ngram".equals(name)) {
+            int min = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+            return new NGramFilter(min, args.length > 1 ? Integer.parseInt(args[1]) : min);
+        }
+        return newInstance(name, TokenFilter.class, args);
+    }
+
+    private static <T> T newInstance(String name, Class<T> type, String[] args) {
+        try {
+            Class<? extends T> clazz = Class.forName(name).asSubclass(type);
+            try {
+                Constructor<? extends T> constructor = clazz.getConstructor(String[].class);
+                return constructor.newInstance((Object) args);
+            }
+            catch(NoSuchMethodException e) {
+                return clazz.newInstance();
+            }
+        }
+        catch(Exception e) {
+            throw new IllegalArgumentException("Unknown " + type.getSimpleName() + ": " + name, e);
+        }
+    }
+
+    private final Tokenizer tokenizer;
+
+    private final TokenFilter[] filters;
+
+    private final ThreadLocal<Chain> chains = new ThreadLocal<Chain>() {
+
+        @Override
+        protected Chain initialValue() {
+            return new Chain(filters);
+        }
+    };
+
+    /**
+     * Constructs an analyzer.
+     * 
+     * @param tokenizer
+     *            the tokenizer
+     * @param filters
+     *            the filters in order
+     */
+    public Analyzer(Tokenizer tokenizer, TokenFilter... filters) {
+        this.tokenizer = tokenizer;
+        this.filters = filters;
+    }
+
+    /**
+     * Analyzes the bytes and passes the tokens to the sink.
+     * 
+     * @param buffer
+     *            the buffer to analyze
+     * @param offset
+     *            the offset of the bytes
+     * @param length
+     *            the length of the bytes
+     * @param sink
+     *            the sink to receive tokens
+     */
+    public void analyze(byte[] buffer, int offset, int length, TokenSink sink) {
+        Chain chain = chains.get();
+        chain.tail.sink = sink;
+        try {
+            tokenizer.tokenize(buffer, offset, length, chain.head);
+            chain.head.end();
+        }
+        finally {
+            chain.tail.sink = null;
+        }
+    }
+
+    /**
+     * The stages of a thread. It mustn't refer to the analyzer, which would
+     * keep the entry of the thread-local alive as long as the thread lives.
+     */
+    private static class Chain {
+
+        private final Tail tail = new Tail();
+
+        private final TokenSink head;
+
+        private Chain(TokenFilter[] filters) {
+            TokenSink sink = tail;
+            for(int i = filters.length - 1; i >= 0; i--) {
+                sink = filters[i].newStage(sink);
+            }
+            head = sink;
+        }
+    }
+
+    private static class Tail implements TokenSink {
+
+        private TokenSink sink;
+
+        @Override
+        public void token(byte[] buffer, int offset, int length) {
+            sink.token(buffer, offset, length);
+        }
+
+        @Override
+        public void end() {
+            sink.end();
+        }
+    }
+}
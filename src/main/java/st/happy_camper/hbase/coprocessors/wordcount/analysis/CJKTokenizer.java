@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount.analysis;
+
+import java.lang.Character.UnicodeBlock;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A tokenizer to split runs of CJK characters into overlapping n-grams.
+ * 
+ * <p>
+ * Han, Hiragana, Katakana, Bopomofo and Hangul characters are emitted as
+ * overlapping n-grams of characters, e.g. bigrams <code>"東京" "京都"</code>
+ * from <code>"東京都"</code>. A CJK run shorter than n is emitted as a whole.
+ * Other letters and digits, including <code>'_'</code>, are split into words
+ * by the other characters like whitespaces and punctuations.
+ * </p>
+ * 
+ * <p>
+ * The characters are classified by a table precomputed from Unicode blocks,
+ * and each token is passed as a slice of the scanned buffer.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class CJKTokenizer implements Tokenizer {
+
+    /**
+     * Default n of n-grams.
+     */
+    public static final int DEFAULT_N = 2;
+
+    private static final byte DELIMITER = 0;
+
+    private static final byte WORD = 1;
+
+    private static final byte CJK = 2;
+
+    private static final Set<UnicodeBlock> CJK_BLOCKS = new HashSet<UnicodeBlock>(Arrays.asList(
+            UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS, UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A,
+            UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS, UnicodeBlock.HIRAGANA, UnicodeBlock.KATAKANA,
+            UnicodeBlock.KATAKANA_PHONETIC_EXTENSIONS, UnicodeBlock.BOPOMOFO, UnicodeBlock.BOPOMOFO_EXTENDED,
+            UnicodeBlock.HANGUL_SYLLABLES, UnicodeBlock.HANGUL_JAMO, UnicodeBlock.HANGUL_COMPATIBILITY_JAMO));
+
+    private static final byte[] CLASSES = new byte[0x10000];
+    static {
+        for(int c = 0; c < CLASSES.length; c++) {
+            CLASSES[c] = classOf(c);
+        }
+    }
+
+    private static byte classOf(int c) {
+        if(c == 0x30fc || (c >= 0xff66 && c <= 0xff9f) || CJK_BLOCKS.contains(UnicodeBlock.of(c))) {
+            // including the prolonged sound mark and halfwidth katakana
+            return Character.isLetterOrDigit(c) || c == 0x30fc ? CJK : DELIMITER;
+        }
+        if(c >= 0x20000 && c <= 0x3ffff) {
+            // supplementary ideographic planes
+            return CJK;
+        }
+        return Character.isLetterOrDigit(c) || c == '_' ? WORD : DELIMITER;
+    }
+
+    private final int n;
+
+    /**
+     * Constructs a bigram tokenizer.
+     */
+    public CJKTokenizer() {
+        this(DEFAULT_N);
+    }
+
+    /**
+     * Constructs a tokenizer with arguments.
+     * 
+     * @param args
+     *            n of n-grams if specified
+     */
+    public CJKTokenizer(String[] args) {
+        this(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_N);
+    }
+
+    /**
+     * Constructs a tokenizer.
+     * 
+     * @param n
+     *            n of n-grams
+     */
+    public CJKTokenizer(int n) {
+        if(n < 1) {
+            throw new IllegalArgumentException("Invalid n: " + n);
+        }
+        this.n = n;
+    }
+
+    /**
+     * Decodes the UTF-8 character at the position.
+     * 
+     * @return the class of the character shifted left by 3 bits, or'ed with
+     *         the length of the character in bytes
+     */
+    private static int decode(byte[] buffer, int pos, int limit) {
+        int b = buffer[pos] & 0xff;
+        if(b < 0x80) {
+            return (CLASSES[b] << 3) | 1;
+        }
+        int length;
+        int c;
+        if(b >= 0xc2 && b <= 0xdf) {
+            length = 2;
+            c = b & 0x1f;
+        }
+        else if(b >= 0xe0 && b <= 0xef) {
+            length = 3;
+            c = b & 0x0f;
+        }
+        else if(b >= 0xf0 && b <= 0xf4) {
+            length = 4;
+            c = b & 0x07;
+        }
+        else {
+            return (DELIMITER << 3) | 1;
+        }
+        if(pos + length > limit) {
+            return (DELIMITER << 3) | 1;
+        }
+        for(int i = 1; i < length; i++) {
+            int cb = buffer[pos + i] & 0xff;
+            if((cb & 0xc0) != 0x80) {
+                return (DELIMITER << 3) | 1;
+            }
+            c = (c << 6) | (cb & 0x3f);
+        }
+        byte cls = c < 0x10000 ? CLASSES[c] : classOf(c);
+        return (cls << 3) | length;
+    }
+
+    @Override
+    public void tokenize(byte[] buffer, int offset, int length, TokenSink sink) {
+        int pos = offset;
+        int limit = offset + length;
+        while(pos < limit) {
+            int decoded = decode(buffer, pos, limit);
+            int cls = decoded >>> 3;
+            if(cls == WORD) {
+                int start = pos;
+                do {
+                    pos += decoded & 0x07;
+                }
+                while(pos < limit && ((decoded = decode(buffer, pos, limit)) >>> 3) == WORD);
+                sink.token(buffer, start, pos - start);
+            }
+            else if(cls == CJK) {
+                int start = pos;
+                int count = 0;
+                do {
+                    pos += decoded & 0x07;
+                    if(++count >= n) {
+                        int gram = back(buffer, pos, n);
+                        sink.token(buffer, gram, pos - gram);
+                    }
+                }
+                while(pos < limit && ((decoded = decode(buffer, pos, limit)) >>> 3) == CJK);
+                if(count < n) {
+                    sink.token(buffer, start, pos - start);
+                }
+            }
+            else {
+                pos += decoded & 0x07;
+            }
+        }
+    }
+
+    private static int back(byte[] buffer, int pos, int chars) {
+        int i = pos;
+        for(int k = 0; k < chars; k++) {
+            do {
+                i--;
+            }
+            while((buffer[i] & 0xc0) == 0x80);
+        }
+        return i;
+    }
+}
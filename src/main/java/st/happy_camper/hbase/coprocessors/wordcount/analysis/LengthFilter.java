@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount.analysis;
+
+/**
+ * A filter to remove tokens shorter or longer than the limits. The length is
+ * measured in characters of UTF-8.
+ * 
+ * @author ueshin
+ */
+public class LengthFilter implements TokenFilter {
+
+    private final int min;
+
+    private final int max;
+
+    /**
+     * Constructs a filter with the limits.
+     * 
+     * @param min
+     *            the minimum length
+     * @param max
+     *            the maximum length
+     */
+    public LengthFilter(int min, int max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    @Override
+    public TokenSink newStage(final TokenSink next) {
+        return new TokenSink() {
+
+            @Override
+            public void token(byte[] buffer, int offset, int length) {
+                if(length < min) {
+                    return;
+                }
+                int chars = 0;
+                for(int i = offset; i < offset + length; i++) {
+                    if((buffer[i] & 0xc0) != 0x80) {
+                        chars++;
+                    }
+                }
+                if(chars >= min && chars <= max) {
+                    next.token(buffer, offset, length);
+                }
+            }
+
+            @Override
+            public void end() {
+                next.end();
+            }
+        };
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount.analysis;
+
+/**
+ * A filter to convert ASCII letters of tokens to lower case. Non-ASCII
+ * characters are passed as they are.
+ * 
+ * @author ueshin
+ */
+public class LowerCaseFilter implements TokenFilter {
+
+    @Override
+    public TokenSink newStage(final TokenSink next) {
+        return new TokenSink() {
+
+            private byte[] scratch = new byte[64];
+
+            @Override
+            public void token(byte[] buffer, int offset, int length) {
+                int i = offset;
+                int limit = offset + length;
+                while(i < limit && (buffer[i] < 'A' || buffer[i] > 'Z')) {
+                    i++;
+                }
+                if(i == limit) {
+                    next.token(buffer, offset, length);
+                    return;
+                }
+                if(scratch.length < length) {
+                    scratch = new byte[Math.max(length, scratch.length * 2)];
+                }
+                for(int j = 0; j < length; j++) {
+                    byte b = buffer[offset + j];
+                    scratch[j] = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+                }
+                next.token(scratch, 0, length);
+            }
+
+            @Override
+            public void end() {
+                next.end();
+            }
+        };
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount.analysis;
+
+/**
+ * A filter to make word n-grams joined by a space. For example,
+ * <code>new NGramFilter(1, 2)</code> transforms <code>"new" "york" "city"</code>
+ * into <code>"new" "new york" "york" "york city" "city"</code>. N-grams don't
+ * span values.
+ * 
+ * @author ueshin
+ */
+public class NGramFilter implements TokenFilter {
+
+    private final int min;
+
+    private final int max;
+
+    /**
+     * Constructs a filter with the range of n.
+     * 
+     * @param min
+     *            the minimum n
+     * @param max
+     *            the maximum n
+     */
+    public NGramFilter(int min, int max) {
+        if(min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid n-gram range: " + min + ".." + max);
+        }
+        this.min = min;
+        this.max = max;
+    }
+
+    @Override
+    public TokenSink newStage(final TokenSink next) {
+        return new TokenSink() {
+
+            private final byte[][] window = new byte[max][16];
+
+            private final int[] lengths = new int[max];
+
+            private int count = 0;
+
+            private int head = 0;
+
+            private byte[] scratch = new byte[64];
+
+            @Override
+            public void token(byte[] buffer, int offset, int length) {
+                if(window[head].length < length) {
+                    window[head] = new byte[Math.max(length, window[head].length * 2)];
+                }
+                System.arraycopy(buffer, offset, window[head], 0, length);
+                lengths[head] = length;
+                if(count < max) {
+                    count++;
+                }
+
+                // emits n-grams ending with this token, longest first
+                for(int n = Math.min(count, max); n >= min; n--) {
+                    if(n == 1) {
+                        next.token(buffer, offset, length);
+                        continue;
+                    }
+                    int total = n - 1;
+                    for(int k = 0; k < n; k++) {
+                        total += lengths[(head - k + max) % max];
+                    }
+                    if(scratch.length < total) {
+                        scratch = new byte[Math.max(total, scratch.length * 2)];
+                    }
+                    int pos = 0;
+                    for(int k = n - 1; k >= 0; k--) {
+                        int slot = (head - k + max) % max;
+                        System.arraycopy(window[slot], 0, scratch, pos, lengths[slot]);
+                        pos += lengths[slot];
+                        if(k > 0) {
+                            scratch[pos++] = ' ';
+                        }
+                    }
+                    next.token(scratch, 0, total);
+                }
+                head = (head + 1) % max;
+            }
+
+            @Override
+            public void end() {
+                count = 0;
+                head = 0;
+                next.end();
+            }
+        };
+    }
+}
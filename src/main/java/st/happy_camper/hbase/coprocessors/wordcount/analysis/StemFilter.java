@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount.analysis;
+
+/**
+ * A filter to stem plural forms of English words, known as the "S" stemmer.
+ * 
+ * <ul>
+ * <li><code>-ies</code> to <code>-y</code> except <code>-aies</code> and
+ * <code>-eies</code></li>
+ * <li><code>-es</code> to <code>-e</code> except <code>-aes</code>,
+ * <code>-ees</code> and <code>-oes</code></li>
+ * <li><code>-s</code> to empty except <code>-us</code> and <code>-ss</code></li>
+ * </ul>
+ * 
+ * <p>
+ * Only lower case suffixes are stemmed, so put this filter after
+ * {@link LowerCaseFilter}.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class StemFilter implements TokenFilter {
+
+    @Override
+    public TokenSink newStage(final TokenSink next) {
+        return new TokenSink() {
+
+            private byte[] scratch = new byte[64];
+
+            @Override
+            public void token(byte[] buffer, int offset, int length) {
+                int end = offset + length;
+                if(length > 3 && buffer[end - 1] == 's' && buffer[end - 2] == 'e' && buffer[end - 3] == 'i'
+                        && buffer[end - 4] != 'a' && buffer[end - 4] != 'e') {
+                    if(scratch.length < length - 2) {
+                        scratch = new byte[Math.max(length, scratch.length * 2)];
+                    }
+                    System.arraycopy(buffer, offset, scratch, 0, length - 3);
+                    scratch[length - 3] = 'y';
+                    next.token(scratch, 0, length - 2);
+                }
+                else if(length > 2 && buffer[end - 1] == 's' && buffer[end - 2] == 'e'
+                        && buffer[end - 3] != 'a' && buffer[end - 3] != 'e' && buffer[end - 3] != 'o') {
+                    next.token(buffer, offset, length - 1);
+                }
+                else if(length > 1 && buffer[end - 1] == 's' && buffer[end - 2] != 'u' && buffer[end - 2] != 's') {
+                    next.token(buffer, offset, length - 1);
+                }
+                else {
+                    next.token(buffer, offset, length);
+                }
+            }
+
+            @Override
+            public void end() {
+                next.end();
+            }
+        };
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount.analysis;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A filter to remove stop words. The stop words are compared with tokens
+ * byte by byte, so put this filter after {@link LowerCaseFilter} to ignore
+ * case.
+ * 
+ * @author ueshin
+ */
+public class StopFilter implements TokenFilter {
+
+    private final byte[][] words;
+
+    private final int[] hashes;
+
+    /**
+     * Constructs a filter with the stop words.
+     * 
+     * @param words
+     *            the stop words
+     */
+    public StopFilter(String... words) {
+        int capacity = Integer.highestOneBit(Math.max(words.length, 1)) << 2;
+        this.words = new byte[capacity][];
+        this.hashes = new int[capacity];
+        for(String word : words) {
+            byte[] bytes = Bytes.toBytes(word);
+            int hash = Bytes.hashCode(bytes, 0, bytes.length);
+            if(indexOf(bytes, 0, bytes.length, hash) < 0) {
+                int i = hash & (capacity - 1);
+                while(this.words[i] != null) {
+                    i = (i + 1) & (capacity - 1);
+                }
+                this.words[i] = bytes;
+                this.hashes[i] = hash;
+            }
+        }
+    }
+
+    private int indexOf(byte[] buffer, int offset, int length, int hash) {
+        int mask = words.length - 1;
+        byte[] word;
+        for(int i = hash & mask; (word = words[i]) != null; i = (i + 1) & mask) {
+            if(hashes[i] == hash && Bytes.equals(word, 0, word.length, buffer, offset, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns <code>true</code> if the token is a stop word.
+     * 
+     * @param buffer
+     *            the buffer the token is in
+     * @param offset
+     *            the offset of the token
+     * @param length
+     *            the length of the token
+     * @return <code>true</code> if the token is a stop word
+     */
+    public boolean contains(byte[] buffer, int offset, int length) {
+        return indexOf(buffer, offset, length, Bytes.hashCode(buffer, offset, length)) >= 0;
+    }
+
+    @Override
+    public TokenSink newStage(final TokenSink next) {
+        return new TokenSink() {
+
+            @Override
+            public void token(byte[] buffer, int offset, int length) {
+                if(!contains(buffer, offset, length)) {
+                    next.token(buffer, offset, length);
+                }
+            }
+
+            @Override
+            public void end() {
+                next.end();
+            }
+        };
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount.analysis;
+
+/**
+ * A factory of stages to transform a stream of tokens.
+ * 
+ * <p>
+ * Implementations must be thread-safe. A stage returned by
+ * {@link #newStage(TokenSink)} is used by one thread at a time and reused for
+ * many values, so it can hold buffers to transform tokens without
+ * allocations. A stage must reset its state and pass the notification to the
+ * next sink on {@link TokenSink#end()}.
+ * </p>
+ * 
+ * <p>
+ * Custom filters can be specified by their class name in the analyzer
+ * parameter. They must have a public constructor taking a
+ * <code>String[]</code> of the arguments, or a public no-arg constructor.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public interface TokenFilter {
+
+    /**
+     * Creates a new stage to pass the transformed tokens to the next sink.
+     * 
+     * @param next
+     *            the next sink
+     * @return the new stage
+     */
+    TokenSink newStage(TokenSink next);
+}
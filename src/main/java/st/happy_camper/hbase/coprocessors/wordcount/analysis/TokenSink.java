@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount.analysis;
+
+/**
+ * A receiver of tokens.
+ * 
+ * @author ueshin
+ */
+public interface TokenSink {
+
+    /**
+     * Receives a token. The bytes are valid only during the call, so copy
+     * them if they need to be kept.
+     * 
+     * @param buffer
+     *            the buffer the token is in
+     * @param offset
+     *            the offset of the token
+     * @param length
+     *            the length of the token
+     */
+    void token(byte[] buffer, int offset, int length);
+
+    /**
+     * Notifies the end of the tokens of a value.
+     */
+    void end();
+}
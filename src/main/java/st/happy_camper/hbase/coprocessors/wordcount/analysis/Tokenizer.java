@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount.analysis;
+
+/**
+ * A tokenizer to split UTF-8 bytes into tokens.
+ * 
+ * <p>
+ * Implementations must be thread-safe.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public interface Tokenizer {
+
+    /**
+     * Splits the bytes into tokens and passes them to the sink.
+     * 
+     * @param buffer
+     *            the buffer to scan
+     * @param offset
+     *            the offset of the bytes to scan
+     * @param length
+     *            the length of the bytes to scan
+     * @param sink
+     *            the sink to receive tokens
+     */
+    void tokenize(byte[] buffer, int offset, int length, TokenSink sink);
+}
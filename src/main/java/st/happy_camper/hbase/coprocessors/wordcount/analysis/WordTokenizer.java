@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount.analysis;
+
+/**
+ * A tokenizer to split UTF-8 bytes into words without copying them.
+ * 
+ * <p>
+ * A word is a run of <code>[a-zA-Z_0-9]</code>, the same characters as the
+ * regular expression <code>\w</code>. All the other bytes, including every
+ * byte of non-ASCII characters, are delimiters. The bytes are classified by a
+ * precomputed table, and each token is passed as a slice of the scanned
+ * buffer.
+ * </p>
+ * 
+ * @author ueshin
+ */
+public class WordTokenizer implements Tokenizer {
+
+    /**
+     * The shared instance.
+     */
+    public static final WordTokenizer INSTANCE = new WordTokenizer();
+
+    private static final boolean[] WORD_CHARS = new boolean[256];
+    static {
+        for(int c = 'a'; c <= 'z'; c++) {
+            WORD_CHARS[c] = true;
+        }
+        for(int c = 'A'; c <= 'Z'; c++) {
+            WORD_CHARS[c] = true;
+        }
+        for(int c = '0'; c <= '9'; c++) {
+            WORD_CHARS[c] = true;
+        }
+        WORD_CHARS['_'] = true;
+    }
+
+    /**
+     * Returns <code>true</code> if the byte is a word character.
+     * 
+     * @param b
+     *            the byte
+     * @return <code>true</code> if the byte is a word character
+     */
+    static boolean isWordChar(byte b) {
+        return WORD_CHARS[b & 0xff];
+    }
+
+    @Override
+    public void tokenize(byte[] buffer, int offset, int length, TokenSink sink) {
+        int pos = offset;
+        int limit = offset + length;
+        while(pos < limit) {
+            while(pos < limit && !WORD_CHARS[buffer[pos] & 0xff]) {
+                pos++;
+            }
+            if(pos >= limit) {
+                break;
+            }
+            int start = pos;
+            while(pos < limit && WORD_CHARS[buffer[pos] & 0xff]) {
+                pos++;
+            }
+            sink.token(buffer, start, pos - start);
+        }
+    }
+}
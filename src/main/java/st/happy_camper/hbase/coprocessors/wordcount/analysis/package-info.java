@@ -0,0 +1,30 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+/**
+ * <h1>Word analysis</h1>
+ * 
+ * <p>
+ * Tokenizers and token filters used by
+ * {@link st.happy_camper.hbase.coprocessors.wordcount.WordCountRegionObserver} to split values into words.
+ * </p>
+ * 
+ * <p>
+ * Tokens are passed to {@link st.happy_camper.hbase.coprocessors.wordcount.analysis.TokenSink} as slices of byte
+ * arrays, so they are not copied unless a filter transforms them.
+ * </p>
+ */
+package st.happy_camper.hbase.coprocessors.wordcount.analysis;
+
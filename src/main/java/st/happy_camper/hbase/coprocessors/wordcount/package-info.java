@@ -44,13 +44,68 @@
  * <li>priority: Priority</li>
  * <li>kvs: Key-value parameter pairs passed into the coprocessor.
  *   <ul>
- *     <li>targets: target columns to count words. space-separete for multiple targets.</li>
+ *     <li>targets: target columns to count words. space-separete for multiple targets. A family without a qualifier
+ *       targets all its qualifiers, and qualifiers may contain wildcards <code>*</code> and <code>?</code>, e.g.
+ *       <code>a:title* b</code>.</li>
  *     <li>table(optional): tablename to put counts.</li>
  *     <li>column(optional): column name of the count table.</li>
+ *     <li>tokenizer(optional): <code>word</code>, <code>cjk[:n]</code> to split CJK text into character n-grams
+ *       (bigrams by default), or class name of a custom
+ *       {@link st.happy_camper.hbase.coprocessors.wordcount.analysis.Tokenizer}. default: <code>word</code>.</li>
+ *     <li>analyzer(optional): space-separated token filters applied in order, e.g.
+ *       <code>lowercase stop:a;an;the length:2:32 ngram:1:2</code>.
+ *       See {@link st.happy_camper.hbase.coprocessors.wordcount.analysis.Analyzer}.</li>
+ *     <li>counter(optional): <code>increment</code> to increment counts, <code>delta</code> to write them as
+ *       delta cells without row locks, or <code>sketch</code> to summarize them approximately in fixed memory.
+ *       default: <code>increment</code>.</li>
+ *     <li>sketch.depth(optional): number of hash functions of the Count-Min Sketch. default: 4.</li>
+ *     <li>sketch.width(optional): number of counters per hash function of the Count-Min Sketch. default: 2048.</li>
+ *     <li>sketch.topk(optional): number of most frequent words to track. default: 100.</li>
+ *     <li>sketch.interval(optional): interval in milliseconds to write the sketch into the count table.
+ *       default: 60000.</li>
+ *     <li>windows(optional): space-separated time windows to count words in, each of <code>minute</code>,
+ *       <code>hour</code> or <code>day</code> optionally followed by <code>:</code> and the number of buckets to
+ *       retain, e.g. <code>minute:120 hour:48 day</code>. Can't be used with <code>buffer</code> or sketches.</li>
+ *     <li>stripes(optional): number of rows (1 to 256) each count is spread over. default: 1.</li>
+ *     <li>buffer(optional): <code>true</code> to merge counts of many puts in a region-server-wide buffer and
+ *       write them to the count table in background. default: <code>false</code>.</li>
+ *     <li>buffer.maxsize(optional): max total length in bytes of buffered words. Longer words are written to
+ *       the count table directly. default: 2097152.</li>
+ *     <li>buffer.maxentries(optional): max number of buffered words. default: 10000.</li>
+ *     <li>buffer.maxage(optional): age in milliseconds of the oldest buffered count to trigger flush.
+ *       default: 1000.</li>
+ *     <li>pool.size(optional): max number of idle handles of the count table kept for reuse. default: 10.</li>
+ *     <li>async(optional): <code>true</code> to write to the count table in background worker threads.
+ *       default: <code>false</code>.</li>
+ *     <li>async.queuesize(optional): capacity of the queue of mutations waiting to be written. default: 10000.</li>
+ *     <li>async.threads(optional): number of worker threads. default: 2.</li>
+ *     <li>async.batchsize(optional): max number of mutations written in a batch. default: 1000.</li>
+ *     <li>async.policy(optional): <code>block</code>, <code>drop</code> or <code>sync</code> to wait, to drop
+ *       mutations, or to write them synchronously when the queue is full. default: <code>block</code>.</li>
+ *     <li>journal.dir(optional): local directory to journal the mutations written in background, so that the
+ *       ones dropped are retried every 10 seconds, and the ones not written yet are written again when the observer
+ *       starts next time, e.g. after the region server restarts. Needs <code>async</code>. Increments are written at least once, so a
+ *       replayed one may count twice.</li>
+ *     <li>journal.segmentsize(optional): size of journal segment files in bytes. default: 67108864.</li>
+ *     <li>journal.sync(optional): <code>true</code> to sync every append to the journal to the disk, to survive
+ *       crashes of the machine as well as of the region server. default: <code>false</code>.</li>
  *   </ul>
  * </li>
  * </ul>
  * 
+ * <h3>Buffer</h3>
+ * 
+ * <p>
+ * The buffer keeps words and counts in direct memory outside the heap, so it must fit in
+ * <code>-XX:MaxDirectMemorySize</code> of the region server. It allocates two tables of <code>buffer.maxsize</code>
+ * bytes for words plus about 56 bytes per entry of <code>buffer.maxentries</code> up front, one to add counts to
+ * and the other to flush. The buffer is flushed in background when either limit is three-quarters used, and
+ * synchronously by the put which finds it full. The memory usage is exposed by JMX as
+ * <code>st.happy_camper.hbase.coprocessors.wordcount:type=WordCountBuffer</code>. One buffer is shared by all the
+ * observers writing to the same count column with the <code>buffer.*</code> limits of the first one to start, and
+ * the others with different limits log a warning.
+ * </p>
+ * 
  * <h3>Default count table</h3>
  * 
  * <p>
@@ -60,6 +115,161 @@
  * <pre><code>
  * hbase> create 'words', 'count'
  * </code></pre>
+ * 
+ * <h3>Aggregations</h3>
+ * 
+ * <p>
+ * Configure <code>WordCountAggregateEndpoint</code> on the count table with the same <code>column</code> and
+ * <code>stripes</code> to compute top-N words, sums of counts over word ranges and numbers of distinct words with
+ * prefixes in each region in parallel, and read the merged results by
+ * {@link st.happy_camper.hbase.coprocessors.wordcount.WordCountAggregator}. With <code>stripes</code>, the top-N
+ * words are confirmed by a multi-get of the candidates of the regions, and the numbers of distinct words are
+ * estimated by HyperLogLog sketches of the regions, about 0.8% off. The rows of the word sketches are skipped.
+ * </p>
+ * 
+ * <pre><code>
+ * hbase> alter 'words', METHOD => 'table_att',
+ *   'coprocessor' => '[jarfile path]|st.happy_camper.hbase.coprocessors.wordcount.WordCountAggregateEndpoint|[priority]|[kvs]'
+ * </code></pre>
+ * 
+ * <h3>Delta counters</h3>
+ * 
+ * <p>
+ * With <code>counter=delta</code>, each count is written by a blind put under a unique qualifier instead of an
+ * increment, so hot words don't serialize writers on the row lock. Configure <code>DeltaCounterRegionObserver</code>
+ * on the count table with the same <code>column</code> to fold the deltas during compactions and to sum them in
+ * gets:
+ * </p>
+ * 
+ * <pre><code>
+ * hbase> alter 'words', METHOD => 'table_att',
+ *   'coprocessor' => '[jarfile path]|st.happy_camper.hbase.coprocessors.wordcount.DeltaCounterRegionObserver|[priority]|[kvs]'
+ * </code></pre>
+ * 
+ * <p>
+ * Scans return the raw delta cells, which can be summed by {@link st.happy_camper.hbase.coprocessors.wordcount.DeltaCounters#sum}.
+ * </p>
+ * 
+ * <h3>Word sketches</h3>
+ * 
+ * <p>
+ * With <code>counter=sketch</code>, no row is written per word. Instead, each region keeps a Count-Min Sketch to
+ * estimate the count of any word and a Space-Saving summary of the most frequent words, and writes them into a
+ * row of the count table per region in background on the interval and on close. A reopened region reads its row
+ * back before writing it again, so the counts carry over. Configure <code>WordSketchEndpoint</code> on the count table with the
+ * same <code>column</code>, and read the merged sketch of all regions by
+ * {@link st.happy_camper.hbase.coprocessors.wordcount.WordSketches}. The <code>buffer</code> and
+ * <code>stripes</code> params are ignored for sketches.
+ * </p>
+ * 
+ * <pre><code>
+ * hbase> alter 'words', METHOD => 'table_att',
+ *   'coprocessor' => '[jarfile path]|st.happy_camper.hbase.coprocessors.wordcount.WordSketchEndpoint|[priority]|[kvs]'
+ * </code></pre>
+ * 
+ * <h3>Time-windowed counters</h3>
+ * 
+ * <p>
+ * With <code>windows</code>, each count is also added to the bucket of the finest window containing the latest
+ * timestamp of the target cells in the put. Configure <code>TimeWindowRegionObserver</code> on the count table with
+ * the same <code>column</code> and <code>windows</code> to roll buckets older than their retention up into the next
+ * coarser window, and to drop them from the coarsest one. Rollups run on compactions of all the store files of the
+ * count family. Counts of a time range, e.g. the last hour or the last 7 days, are summed from a get of the word by
+ * {@link st.happy_camper.hbase.coprocessors.wordcount.TimeWindow#sum}.
+ * </p>
+ * 
+ * <pre><code>
+ * hbase> alter 'words', METHOD => 'table_att',
+ *   'coprocessor' => '[jarfile path]|st.happy_camper.hbase.coprocessors.wordcount.TimeWindowRegionObserver|[priority]|[kvs]'
+ * </code></pre>
+ * 
+ * <h3>Striped counters</h3>
+ * 
+ * <p>
+ * With <code>stripes</code> greater than 1, the count of a word is spread over rows prefixed by a 1-byte stripe
+ * index, so a hot word is incremented on many rows and regions in turn. Pre-split the count table on the stripe
+ * bytes and read the counts by {@link st.happy_camper.hbase.coprocessors.wordcount.StripedCounters}, which sums
+ * all the stripes of a word in a multi-get.
+ * </p>
+ * 
+ * <h3>WAL-tailing mode</h3>
+ * 
+ * <p>
+ * Instead of hooking puts of each table, <code>WordCountWALObserver</code> can be configured on the region servers
+ * to count words of the edits committed to the WAL in background, merging the counts of up to
+ * <code>wal.batchsize</code> edits into one write per word. Puts don't wait for the count table at all, at the
+ * cost of counts lagging by about <code>wal.interval</code>. The params above are set in
+ * <code>hbase-site.xml</code> prefixed by <code>wordcount.</code>, except sketches and the buffer which aren't
+ * supported, plus the following:
+ * </p>
+ * 
+ * <ul>
+ * <li>sources: space-separated names of the tables to count words of.</li>
+ * <li>wal.queuesize(optional): capacity of the queue of edits waiting to be counted. It never blocks the WAL:
+ *   the edits which find it full are left in the journal if any, or else dropped, never to be counted but by a
+ *   rebuild. default: 10000.</li>
+ * <li>wal.batchsize(optional): max number of edits counted in a batch. default: 1000.</li>
+ * <li>wal.interval(optional): time in milliseconds to wait for a batch to fill up. default: 1000.</li>
+ * <li>wal.checkpoint.dir(optional): local directory of the journal of the edits to count, which are recovered and
+ *   counted by the next start if the region server stops or crashes first, and of the checkpoint: the log
+ *   sequence number per region up to which all the edits are counted. It stops below dropped edits, and keeps the
+ *   recovered edits it covers from being counted twice.</li>
+ * <li>wal.checkpoint.interval(optional): min time in milliseconds between saves of the checkpoint. default:
+ *   10000.</li>
+ * <li>wal.checkpoint.ttl(optional): time in milliseconds after which the checkpoint of a region without edits,
+ *   e.g. closed, is forgotten. default: 86400000.</li>
+ * <li>wal.journal.segmentsize(optional): size of segment files of the journal in bytes. default: 67108864.</li>
+ * <li>wal.journal.sync(optional): <code>true</code> to sync every append to the journal, to survive crashes of
+ *   the machine as well. default: false.</li>
+ * </ul>
+ * 
+ * <pre><code>
+ * &lt;property&gt;
+ *   &lt;name&gt;hbase.coprocessor.wal.classes&lt;/name&gt;
+ *   &lt;value&gt;st.happy_camper.hbase.coprocessors.wordcount.WordCountWALObserver&lt;/value&gt;
+ * &lt;/property&gt;
+ * &lt;property&gt;
+ *   &lt;name&gt;wordcount.sources&lt;/name&gt;
+ *   &lt;value&gt;&lt;tablename&gt;&lt;/value&gt;
+ * &lt;/property&gt;
+ * &lt;property&gt;
+ *   &lt;name&gt;wordcount.targets&lt;/name&gt;
+ *   &lt;value&gt;&lt;target columns&gt;&lt;/value&gt;
+ * &lt;/property&gt;
+ * </code></pre>
+ * 
+ * <h3>Rebuilds</h3>
+ * 
+ * <p>
+ * <code>WordCountRebuilder</code> counts words of the contents already in a source table, e.g. put before the
+ * observer was configured or dropped by the WAL-tailing mode, by scanning its regions in parallel. Instead of
+ * incrementing the live counts, it writes them as delta cells into HFiles, summed per word by a combiner, and
+ * bulk-loads them into the count table, which needs <code>DeltaCounterRegionObserver</code> to sum them with the
+ * live counts. Each version of the target cells put before <code>rebuild.until</code> is counted once, as the
+ * observer counts each put. The rebuild is not idempotent for counts: the deltas add to the counts every time they
+ * are loaded, so clear the counts of the contents before rebuilding them, or running it again after a partial
+ * failure. It takes the params of the WAL-tailing mode except <code>sources</code>, <code>counter</code> and
+ * <code>wal.*</code>, plus the following:
+ * </p>
+ * 
+ * <ul>
+ * <li>rebuild.until(required): max timestamp, exclusive, of the cells to count, which should be the time the
+ *   observer was enabled, so the cells it counted since then aren't counted twice. The versions the source families
+ *   no longer keep aren't counted.</li>
+ * <li>rebuild.mode(optional): <code>mapreduce</code> to run a MapReduce job with a map task per region, or
+ *   <code>standalone</code> to scan the regions in threads of the local process, keeping all the counts in memory.
+ *   default: <code>mapreduce</code>.</li>
+ * <li>rebuild.threads(optional): number of threads of the standalone rebuild. default: 4.</li>
+ * <li>rebuild.batchsize(optional): max number of rows derived in a batch. default: 1000.</li>
+ * <li>rebuild.caching(optional): number of rows fetched per RPC of the scans. default: 1000.</li>
+ * <li>rebuild.load(optional): <code>false</code> to leave the HFiles in the output directory without loading them.
+ *   default: <code>true</code>.</li>
+ * </ul>
+ * 
+ * <pre><code>
+ * $ hadoop jar [jarfile path] st.happy_camper.hbase.coprocessors.wordcount.WordCountRebuilder \
+ *     -D wordcount.targets=[targets] -D wordcount.rebuild.until=[timestamp] &lt;tablename&gt; [output dir]
+ * </code></pre>
  */
 package st.happy_camper.hbase.coprocessors.wordcount;
 
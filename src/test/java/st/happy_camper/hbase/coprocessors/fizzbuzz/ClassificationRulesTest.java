@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+/**
+ * TestCase for ClassificationRules.
+ *
+ * @author ueshin
+ */
+public class ClassificationRulesTest {
+
+    /**
+     * test if the default rules FizzBuzz.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDefaultRules() throws Exception {
+        ClassificationRules rules = ClassificationRules.compile(FizzBuzzRegionObserver.DEFAULT_RULES);
+        for(int i = -1000; i <= 1000; i++) {
+            ClassificationRules.Rule rule = rules.classify(i);
+            if(i % 15 == 0) {
+                assertThat(rule.getFamily(), is(FizzBuzzRegionObserver.FIZZBUZZ_COLUMN_FAMILY));
+                assertThat(rule.getSuffix(), is(FizzBuzzRegionObserver.FIZZBUZZ_SUFFIX));
+            }
+            else if(i % 5 == 0) {
+                assertThat(rule.getFamily(), is(FizzBuzzRegionObserver.BUZZ_COLUMN_FAMILY));
+                assertThat(rule.getSuffix(), is(FizzBuzzRegionObserver.BUZZ_SUFFIX));
+            }
+            else if(i % 3 == 0) {
+                assertThat(rule.getFamily(), is(FizzBuzzRegionObserver.FIZZ_COLUMN_FAMILY));
+                assertThat(rule.getSuffix(), is(FizzBuzzRegionObserver.FIZZ_SUFFIX));
+            }
+            else {
+                assertThat(rule.getFamily(), is(FizzBuzzRegionObserver.NUM_COLUMN_FAMILY));
+                assertThat(rule.getSuffix(), is(FizzBuzzRegionObserver.NUM_SUFFIX));
+                assertThat(rule.isDecimal(), is(true));
+            }
+        }
+        assertThat(rules.classify(Integer.MIN_VALUE).getFamily(), is(FizzBuzzRegionObserver.NUM_COLUMN_FAMILY));
+        assertThat(rules.classify(Integer.MAX_VALUE).getFamily(), is(FizzBuzzRegionObserver.NUM_COLUMN_FAMILY));
+    }
+
+    /**
+     * test if ranges, masks and residues are tested in order.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMixedRules() throws Exception {
+        ClassificationRules rules = ClassificationRules
+                .compile("range..0:neg:: mod4/1:shard::1 range100..:slow::%d mask0x3/0x2:two:: mod2:even::");
+
+        assertThat(rules.classify(-3).getFamily(), is(Bytes.toBytes("neg")));
+        assertThat(rules.classify(-4).getFamily(), is(Bytes.toBytes("neg")));
+        assertThat(rules.classify(5).getFamily(), is(Bytes.toBytes("shard")));
+        assertThat(rules.classify(101).getFamily(), is(Bytes.toBytes("shard")));
+        assertThat(rules.classify(103).getFamily(), is(Bytes.toBytes("slow")));
+        assertThat(rules.classify(6).getFamily(), is(Bytes.toBytes("two")));
+        assertThat(rules.classify(4).getFamily(), is(Bytes.toBytes("even")));
+        assertThat(rules.classify(3), is(nullValue()));
+    }
+}
@@ -16,21 +16,37 @@
 package st.happy_camper.hbase.coprocessors.fizzbuzz;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 
 import org.apache.hadoop.hbase.Coprocessor;
 import org.apache.hadoop.hbase.HBaseTestingUtility;
 import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.Store;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -38,6 +54,11 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import st.happy_camper.hbase.coprocessors.util.AsyncTableWriter;
+import st.happy_camper.hbase.coprocessors.util.DerivedTableRebuilder;
+import st.happy_camper.hbase.coprocessors.util.Deriver;
+import st.happy_camper.hbase.coprocessors.util.TablePool;
+
 /**
  * A test for {@link FizzBuzzRegionObserver}.
  * 
@@ -82,6 +103,8 @@ public class FizzBuzzRegionObserverTest {
             family.setMaxVersions(Integer.MAX_VALUE);
             desc.addFamily(family);
         }
+        desc.addCoprocessor(FizzBuzzLookupEndpoint.class.getName());
+        desc.addCoprocessor(FizzBuzzPruningObserver.class.getName());
         testingUtility.getHBaseAdmin().createTable(desc);
     }
 
@@ -271,4 +294,649 @@ public class FizzBuzzRegionObserverTest {
             fizzbuzz.close();
         }
     }
+
+    /**
+     * Test method for asynchronous writes.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testAsync() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS, "a");
+        params.put(AsyncTableWriter.CONF_ASYNC, "true");
+        desc.addCoprocessor(FizzBuzzRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        try {
+            for(int i = 1; i <= 5; i++) {
+                Put put = new Put(Bytes.toBytes(String.format("a%03d", i)), i);
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes(i));
+                target.put(put);
+            }
+        }
+        finally {
+            target.close();
+        }
+
+        // closing the region drains the queue
+        testingUtility.getHBaseAdmin().disableTable("target");
+
+        HTable fizzbuzz = new HTable(testingUtility.getConfiguration(), FizzBuzzRegionObserver.TABLE_NAME);
+        try {
+            ResultScanner scanner = fizzbuzz.getScanner(new Scan());
+            try {
+                Iterator<Result> itr = scanner.iterator();
+                assertThat(itr.next().getRow(), is(Bytes.add(Bytes.toBytes(1), Bytes.toBytes(":1"))));
+                assertThat(itr.next().getRow(), is(Bytes.add(Bytes.toBytes(2), Bytes.toBytes(":2"))));
+                assertThat(itr.next().getRow(), is(Bytes.add(Bytes.toBytes(3), Bytes.toBytes(":Fizz"))));
+                assertThat(itr.next().getRow(), is(Bytes.add(Bytes.toBytes(4), Bytes.toBytes(":4"))));
+                assertThat(itr.next().getRow(), is(Bytes.add(Bytes.toBytes(5), Bytes.toBytes(":Buzz"))));
+                assertThat(itr.hasNext(), is(false));
+            }
+            finally {
+                scanner.close();
+            }
+        }
+        finally {
+            fizzbuzz.close();
+            testingUtility.getHBaseAdmin().enableTable("target");
+        }
+    }
+
+    /**
+     * Test typed values indexed with the ordered encoding, skipping malformed
+     * ones.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testTypedValues() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+        desc.addFamily(new HColumnDescriptor("b"));
+        desc.addFamily(new HColumnDescriptor("c"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS, "a:i b:l@long c@ascii");
+        params.put(FizzBuzzRegionObserver.CONF_ENCODING, FizzBuzzRegionObserver.ENCODING_ORDERED);
+        desc.addCoprocessor(FizzBuzzRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        try {
+            {
+                Put put = new Put(Bytes.toBytes("r1"));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("i"), Bytes.toBytes(-5));
+                put.add(Bytes.toBytes("b"), Bytes.toBytes("l"), Bytes.toBytes(3L));
+                put.add(Bytes.toBytes("c"), Bytes.toBytes("s"), Bytes.toBytes("-200"));
+                target.put(put);
+            }
+            {
+                Put put = new Put(Bytes.toBytes("r2"));
+                put.add(Bytes.toBytes("c"), Bytes.toBytes("s"), Bytes.toBytes("42"));
+                // malformed
+                put.add(Bytes.toBytes("c"), Bytes.toBytes("t"), Bytes.toBytes("4x2"));
+                target.put(put);
+            }
+        }
+        finally {
+            target.close();
+        }
+
+        HTable fizzbuzz = new HTable(testingUtility.getConfiguration(), FizzBuzzRegionObserver.TABLE_NAME);
+        try {
+            ResultScanner scanner = fizzbuzz.getScanner(new Scan());
+            try {
+                Iterator<Result> itr = scanner.iterator();
+                assertThat(itr.next().getRow(), is(orderedRow(-200L, ":Buzz")));
+                assertThat(itr.next().getRow(), is(orderedRow(-5L, ":Buzz")));
+                assertThat(itr.next().getRow(), is(orderedRow(3L, ":Fizz")));
+                assertThat(itr.next().getRow(), is(orderedRow(42L, ":Fizz")));
+                assertThat(itr.hasNext(), is(false));
+            }
+            finally {
+                scanner.close();
+            }
+        }
+        finally {
+            fizzbuzz.close();
+        }
+
+        FizzBuzzRegionObserver observer = (FizzBuzzRegionObserver) testingUtility.getMiniHBaseCluster()
+                .getRegions(Bytes.toBytes("target")).get(0).getCoprocessorHost()
+                .findCoprocessor(FizzBuzzRegionObserver.class.getName());
+        assertThat(observer.getMalformedCount(), is(1L));
+    }
+
+    /**
+     * Test lookups of values and ranges through the index, a page at a time.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLookup() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS, "a:n@long");
+        params.put(FizzBuzzRegionObserver.CONF_ENCODING, FizzBuzzRegionObserver.ENCODING_ORDERED);
+        desc.addCoprocessor(FizzBuzzRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        try {
+            for(int i = -10; i < 10; i++) {
+                Put put = new Put(Bytes.toBytes(String.format("r%03d", i + 10)), 1L);
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("n"), Bytes.toBytes((long) i % 5));
+                target.put(put);
+            }
+            // overwrites r010 (0) by 7, so the index entry of 0 is stale
+            Put put = new Put(Bytes.toBytes("r010"), 1L);
+            put.add(Bytes.toBytes("a"), Bytes.toBytes("n"), Bytes.toBytes(7L));
+            target.put(put);
+        }
+        finally {
+            target.close();
+        }
+
+        Configuration conf = new Configuration(testingUtility.getConfiguration());
+        conf.setInt(FizzBuzzLookup.CONF_PAGE_SIZE, 1);
+        FizzBuzzLookup lookup = new FizzBuzzLookup(conf);
+        try {
+            List<KeyValue> kvs = lookup.lookupOrdered(3L).all();
+            assertThat(kvs.size(), is(2));
+            assertThat(kvs.get(0).getRow(), is(Bytes.toBytes("r013")));
+            assertThat(kvs.get(1).getRow(), is(Bytes.toBytes("r018")));
+
+            kvs = lookup.lookupOrdered(0L).all();
+            assertThat(kvs.size(), is(3));
+            assertThat(kvs.get(0).getRow(), is(Bytes.toBytes("r000")));
+            assertThat(kvs.get(1).getRow(), is(Bytes.toBytes("r005")));
+            assertThat(kvs.get(2).getRow(), is(Bytes.toBytes("r015")));
+
+            kvs = lookup.lookupOrdered(-1L, 2L).all();
+            assertThat(kvs.size(), is(7));
+            assertThat(Bytes.toLong(kvs.get(0).getValue()), is(-1L));
+            assertThat(Bytes.toLong(kvs.get(6).getValue()), is(1L));
+
+            assertThat(lookup.lookupOrdered(7L).all().size(), is(1));
+            assertThat(lookup.lookupOrdered(100L).next().isEmpty(), is(true));
+        }
+        finally {
+            lookup.close();
+        }
+    }
+
+    /**
+     * Test the local index written atomically into the same regions, and
+     * lookups of all the regions in parallel.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLocalIndex() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+        desc.addFamily(new HColumnDescriptor(FizzBuzzRegionObserver.DEFAULT_LOCAL_FAMILY));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS, "a:n");
+        params.put(FizzBuzzRegionObserver.CONF_INDEX, FizzBuzzRegionObserver.INDEX_LOCAL);
+        desc.addCoprocessor(FizzBuzzRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+        desc.addCoprocessor(FizzBuzzLookupEndpoint.class.getName());
+
+        testingUtility.getHBaseAdmin().createTable(desc, new byte[][] { Bytes.toBytes("r010") });
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        try {
+            for(int i = 0; i < 20; i++) {
+                Put put = new Put(Bytes.toBytes(String.format("r%03d", i)), 1L);
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("n"), Bytes.toBytes(i % 5));
+                target.put(put);
+            }
+            // overwrites r017 (2) by 3, so the index entry of 2 is stale
+            Put put = new Put(Bytes.toBytes("r017"), 1L);
+            put.add(Bytes.toBytes("a"), Bytes.toBytes("n"), Bytes.toBytes(3));
+            target.put(put);
+        }
+        finally {
+            target.close();
+        }
+
+        HTable fizzbuzz = new HTable(testingUtility.getConfiguration(), FizzBuzzRegionObserver.TABLE_NAME);
+        try {
+            ResultScanner scanner = fizzbuzz.getScanner(new Scan());
+            try {
+                assertThat(scanner.next(), is(nullValue()));
+            }
+            finally {
+                scanner.close();
+            }
+        }
+        finally {
+            fizzbuzz.close();
+        }
+
+        Configuration conf = new Configuration(testingUtility.getConfiguration());
+        conf.setInt(FizzBuzzLookup.CONF_PAGE_SIZE, 1);
+        FizzBuzzLookup lookup = new FizzBuzzLookup(conf, Bytes.toBytes("target"));
+        try {
+            // the regions are looked up in parallel, so the rows of the regions interleave
+            assertThat(rowsOf(lookup.lookupRaw(Bytes.toBytes(3)).all()),
+                    is(Arrays.asList("r003", "r008", "r013", "r017", "r018")));
+            assertThat(rowsOf(lookup.lookupRaw(Bytes.toBytes(2)).all()), is(Arrays.asList("r002", "r007", "r012")));
+        }
+        finally {
+            lookup.close();
+        }
+    }
+
+    /**
+     * Test the compact qualifiers with the ids of the names, decoded by the
+     * lookups.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCompactQualifiers() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS, "a");
+        params.put(FizzBuzzRegionObserver.CONF_QUALIFIER, FizzBuzzRegionObserver.QUALIFIER_COMPACT);
+        desc.addCoprocessor(FizzBuzzRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        try {
+            for(int i = 1; i <= 5; i++) {
+                Put put = new Put(Bytes.toBytes(String.format("a%03d", i)), i);
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes(i));
+                target.put(put);
+            }
+        }
+        finally {
+            target.close();
+        }
+
+        HTable fizzbuzz = new HTable(testingUtility.getConfiguration(), FizzBuzzRegionObserver.TABLE_NAME);
+        try {
+            Result result = fizzbuzz.get(new Get(Bytes.add(Bytes.toBytes(3), Bytes.toBytes(":Fizz"))));
+            // version, table id 1, row length 4, row, family id 2, qualifier
+            assertThat(result.raw()[0].getQualifier(),
+                    is(Bytes.add(new byte[] { 1, 1, 4 }, Bytes.toBytes("a003"), new byte[] { 2, 'a' })));
+            assertThat(result.raw()[0].getTimestamp(), is(3L));
+        }
+        finally {
+            fizzbuzz.close();
+        }
+
+        FizzBuzzLookup lookup = new FizzBuzzLookup(testingUtility.getConfiguration());
+        try {
+            List<KeyValue> kvs = lookup.lookupRaw(Bytes.toBytes(3)).all();
+            assertThat(kvs.size(), is(1));
+            assertThat(kvs.get(0).getRow(), is(Bytes.toBytes("a003")));
+            assertThat(kvs.get(0).getTimestamp(), is(3L));
+            // the dictionary row is skipped
+            assertThat(lookup.lookup(HConstants.EMPTY_BYTE_ARRAY, HConstants.EMPTY_BYTE_ARRAY, null).all().size(),
+                    is(5));
+        }
+        finally {
+            lookup.close();
+        }
+    }
+
+    /**
+     * Test the tombstones of deleted cells and the entries of overwritten
+     * cells pruned by compactions.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testPruning() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("target");
+        HColumnDescriptor family = new HColumnDescriptor("a");
+        family.setMaxVersions(1);
+        desc.addFamily(family);
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS, "a");
+        desc.addCoprocessor(FizzBuzzRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        try {
+            int[] values = { 3, 5, 6 };
+            for(int i = 0; i < values.length; i++) {
+                Put put = new Put(Bytes.toBytes(String.format("a%03d", i + 1)), 1L);
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes(values[i]));
+                target.put(put);
+            }
+            // a tombstone of 5
+            target.delete(new Delete(Bytes.toBytes("a002")).deleteColumns(Bytes.toBytes("a"), Bytes.toBytes("a")));
+            // overwrites 6, whose entry is left to be pruned
+            Put put = new Put(Bytes.toBytes("a003"), 2L);
+            put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes(9));
+            target.put(put);
+        }
+        finally {
+            target.close();
+        }
+
+        assertThat(fizzbuzzRows(), is(Arrays.asList(Bytes.toStringBinary(Bytes.add(Bytes.toBytes(3),
+                Bytes.toBytes(":Fizz"))), Bytes.toStringBinary(Bytes.add(Bytes.toBytes(6), Bytes.toBytes(":Fizz"))),
+                Bytes.toStringBinary(Bytes.add(Bytes.toBytes(9), Bytes.toBytes(":Fizz"))))));
+
+        // versions over the max are visible to gets of time ranges until compacted
+        majorCompact(testingUtility.getMiniHBaseCluster().getRegions(Bytes.toBytes("target")).get(0));
+        HRegion region = testingUtility.getMiniHBaseCluster().getRegions(FizzBuzzRegionObserver.TABLE_NAME).get(0);
+        majorCompact(region);
+
+        assertThat(fizzbuzzRows(), is(Arrays.asList(Bytes.toStringBinary(Bytes.add(Bytes.toBytes(3),
+                Bytes.toBytes(":Fizz"))), Bytes.toStringBinary(Bytes.add(Bytes.toBytes(9), Bytes.toBytes(":Fizz"))))));
+        FizzBuzzPruningObserver observer = (FizzBuzzPruningObserver) region.getCoprocessorHost().findCoprocessor(
+                FizzBuzzPruningObserver.class.getName());
+        assertThat(observer.getPrunedCount(), is(1L));
+    }
+
+    /**
+     * Test the rebuild of the index of the existing cells in parallel,
+     * bulk-loaded into the fizzbuzz table.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRebuild() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+        testingUtility.getHBaseAdmin().createTable(desc, new byte[][] { Bytes.toBytes("a050") });
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        try {
+            for(int i = 1; i <= 100; i++) {
+                Put put = new Put(Bytes.toBytes(String.format("a%03d", i)), i);
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes((long) i));
+                target.put(put);
+            }
+        }
+        finally {
+            target.close();
+        }
+
+        Configuration conf = new Configuration(testingUtility.getConfiguration());
+        conf.set(FizzBuzzWALObserver.PREFIX + FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS, "a:a@long");
+        conf.set(FizzBuzzWALObserver.PREFIX + FizzBuzzRegionObserver.CONF_ENCODING,
+                FizzBuzzRegionObserver.ENCODING_ORDERED);
+        conf.set(FizzBuzzWALObserver.PREFIX + DerivedTableRebuilder.CONF_REBUILD_MODE,
+                DerivedTableRebuilder.MODE_STANDALONE);
+        conf.setLong(FizzBuzzWALObserver.PREFIX + DerivedTableRebuilder.CONF_REBUILD_UNTIL, 101L);
+        FizzBuzzRebuilder rebuilder = new FizzBuzzRebuilder();
+        rebuilder.setConf(conf);
+        rebuilder.rebuild(Bytes.toBytes("target"), new Path("/rebuild/fizzbuzz"));
+
+        FizzBuzzLookup lookup = new FizzBuzzLookup(testingUtility.getConfiguration());
+        try {
+            List<KeyValue> kvs = lookup.lookupOrdered(30L).all();
+            assertThat(kvs.size(), is(1));
+            assertThat(kvs.get(0).getRow(), is(Bytes.toBytes("a030")));
+            assertThat(kvs.get(0).getTimestamp(), is(30L));
+
+            kvs = lookup.lookupOrdered(1L, 101L).all();
+            assertThat(kvs.size(), is(100));
+            assertThat(rowsOf(kvs).get(99), is("a100"));
+        }
+        finally {
+            lookup.close();
+        }
+    }
+
+    /**
+     * Test the entries written without the WAL, and the repair of only the
+     * ranges whose checksums differ.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testReconcile() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS, "a");
+        params.put(FizzBuzzRegionObserver.CONF_INDEX_WAL, "false");
+        desc.addCoprocessor(FizzBuzzRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        try {
+            for(int i = 1; i <= 30; i++) {
+                Put put = new Put(Bytes.toBytes(String.format("a%03d", i)), 1L);
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes(i));
+                target.put(put);
+            }
+        }
+        finally {
+            target.close();
+        }
+        List<String> rows = fizzbuzzRows();
+        assertThat(rows.size(), is(30));
+
+        byte[] fizz = Bytes.add(Bytes.toBytes(3), FizzBuzzRegionObserver.FIZZ_SUFFIX);
+        HTable fizzbuzz = new HTable(testingUtility.getConfiguration(), FizzBuzzRegionObserver.TABLE_NAME);
+        try {
+            // loses the entry of 15 with no tombstone left, and adds an entry of a version of 3 never put
+            fizzbuzz.delete(new Delete(Bytes.add(Bytes.toBytes(15), FizzBuzzRegionObserver.FIZZBUZZ_SUFFIX)));
+            majorCompact(testingUtility.getMiniHBaseCluster().getRegions(FizzBuzzRegionObserver.TABLE_NAME).get(0));
+            KeyValue kv = fizzbuzz.get(new Get(fizz)).raw()[0];
+            fizzbuzz.put(new Put(fizz).add(new KeyValue(fizz, kv.getFamily(), kv.getQualifier(), 2L, kv.getValue())));
+            assertThat(fizzbuzzRows().size(), is(29));
+
+            Configuration conf = new Configuration(testingUtility.getConfiguration());
+            conf.set(FizzBuzzWALObserver.PREFIX + FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS, "a");
+            conf.setInt(FizzBuzzWALObserver.PREFIX + FizzBuzzReconciler.CONF_RECONCILE_RANGE_SIZE, 4);
+            conf.setLong(FizzBuzzWALObserver.PREFIX + FizzBuzzReconciler.CONF_RECONCILE_SINCE, 0L);
+            FizzBuzzReconciler reconciler = new FizzBuzzReconciler();
+            reconciler.setConf(conf);
+            assertThat(reconciler.reconcile(Bytes.toBytes("target")), is(2L));
+
+            assertThat(fizzbuzzRows(), is(rows));
+            assertThat(fizzbuzz.get(new Get(fizz).setMaxVersions()).size(), is(1));
+            assertThat(reconciler.reconcile(Bytes.toBytes("target")), is(0L));
+        }
+        finally {
+            fizzbuzz.close();
+        }
+    }
+
+    /**
+     * Test the entries of the older versions of a cell overwritten within the
+     * time range, which are left alone.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testReconcileVersions() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS, "a");
+        params.put(FizzBuzzRegionObserver.CONF_INDEX_WAL, "false");
+        desc.addCoprocessor(FizzBuzzRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        try {
+            // overwrites 3 by 5, and 5 by 3 again
+            int[] values = { 3, 5, 3 };
+            for(int i = 0; i < values.length; i++) {
+                Put put = new Put(Bytes.toBytes("a001"), i + 1L);
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes(values[i]));
+                target.put(put);
+            }
+        }
+        finally {
+            target.close();
+        }
+
+        byte[] fizz = Bytes.add(Bytes.toBytes(3), FizzBuzzRegionObserver.FIZZ_SUFFIX);
+        byte[] buzz = Bytes.add(Bytes.toBytes(5), FizzBuzzRegionObserver.BUZZ_SUFFIX);
+        HTable fizzbuzz = new HTable(testingUtility.getConfiguration(), FizzBuzzRegionObserver.TABLE_NAME);
+        try {
+            assertThat(fizzbuzz.get(new Get(fizz).setMaxVersions()).size(), is(2));
+            assertThat(fizzbuzz.get(new Get(buzz).setMaxVersions()).size(), is(1));
+
+            Configuration conf = new Configuration(testingUtility.getConfiguration());
+            conf.set(FizzBuzzWALObserver.PREFIX + FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS, "a");
+            conf.setLong(FizzBuzzWALObserver.PREFIX + FizzBuzzReconciler.CONF_RECONCILE_SINCE, 0L);
+            FizzBuzzReconciler reconciler = new FizzBuzzReconciler();
+            reconciler.setConf(conf);
+            assertThat(reconciler.reconcile(Bytes.toBytes("target")), is(0L));
+
+            // loses the entry of the overwritten 5 with no tombstone left
+            fizzbuzz.delete(new Delete(buzz));
+            majorCompact(testingUtility.getMiniHBaseCluster().getRegions(FizzBuzzRegionObserver.TABLE_NAME).get(0));
+            assertThat(fizzbuzz.get(new Get(buzz)).isEmpty(), is(true));
+            assertThat(reconciler.reconcile(Bytes.toBytes("target")), is(1L));
+
+            assertThat(fizzbuzz.get(new Get(fizz).setMaxVersions()).size(), is(2));
+            assertThat(fizzbuzz.get(new Get(buzz).setMaxVersions()).raw()[0].getTimestamp(), is(2L));
+        }
+        finally {
+            fizzbuzz.close();
+        }
+    }
+
+    /**
+     * Test if the reconciler refuses to run without the time to reconcile
+     * since.
+     * 
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testReconcileWithoutSince() throws Exception {
+        Configuration conf = new Configuration(testingUtility.getConfiguration());
+        conf.set(FizzBuzzWALObserver.PREFIX + FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS, "a");
+        FizzBuzzReconciler reconciler = new FizzBuzzReconciler();
+        reconciler.setConf(conf);
+        reconciler.reconcile(Bytes.toBytes("target"));
+    }
+
+    /**
+     * Test the deletes of the entries derived from the delete markers of the
+     * WAL, whose deleted cells are read back from the source table.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testWALDeriverDeletes() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        byte[] table = Bytes.toBytes("target");
+        byte[] a = Bytes.toBytes("a");
+        List<KeyValue> puts = new ArrayList<KeyValue>();
+        puts.add(new KeyValue(Bytes.toBytes("a001"), a, a, 1L, Bytes.toBytes(3)));
+        puts.add(new KeyValue(Bytes.toBytes("a002"), a, a, 1L, Bytes.toBytes(5)));
+        puts.add(new KeyValue(Bytes.toBytes("a003"), a, a, 1L, Bytes.toBytes(15)));
+        puts.add(new KeyValue(Bytes.toBytes("a003"), a, a, 2L, Bytes.toBytes(6)));
+        puts.add(new KeyValue(Bytes.toBytes("a004"), a, a, 1L, Bytes.toBytes(9)));
+        // the markers as written to the WAL, with the exact timestamps
+        List<KeyValue> markers = new ArrayList<KeyValue>();
+        markers.add(new KeyValue(Bytes.toBytes("a001"), a, a, 1L, KeyValue.Type.Delete));
+        markers.add(new KeyValue(Bytes.toBytes("a002"), a, null, 10L, KeyValue.Type.DeleteFamily));
+        markers.add(new KeyValue(Bytes.toBytes("a003"), a, a, 2L, KeyValue.Type.DeleteColumn));
+
+        Configuration conf = new Configuration(testingUtility.getConfiguration());
+        conf.set(FizzBuzzRegionObserver.CONF_FIZZBUZZ_TARGETS, "a");
+        TablePool pool = TablePool.create(conf, FizzBuzzRegionObserver.TABLE_NAME);
+        Map<byte[], TablePool> sources = new TreeMap<byte[], TablePool>(Bytes.BYTES_COMPARATOR);
+        HTable target = new HTable(testingUtility.getConfiguration(), table);
+        HTable fizzbuzz = new HTable(testingUtility.getConfiguration(), FizzBuzzRegionObserver.TABLE_NAME);
+        try {
+            Deriver deriver = FizzBuzzWALObserver.newDeriver(conf, pool, sources);
+            for(KeyValue kv : puts) {
+                target.put(new Put(kv.getRow()).add(kv));
+            }
+            deriver.derive(table, puts);
+            fizzbuzz.batch(deriver.drain());
+            assertThat(fizzbuzzRows().size(), is(5));
+
+            for(KeyValue marker : markers) {
+                Delete delete = new Delete(marker.getRow());
+                delete.getFamilyMap().put(a, new ArrayList<KeyValue>(Arrays.asList(marker)));
+                target.delete(delete);
+            }
+            deriver.derive(table, markers);
+            List<Row> deletes = deriver.drain();
+            assertThat(deletes.size(), is(4));
+            fizzbuzz.batch(deletes);
+            assertThat(fizzbuzzRows(), is(Arrays.asList(Bytes.toStringBinary(Bytes.add(Bytes.toBytes(9),
+                    FizzBuzzRegionObserver.FIZZ_SUFFIX)))));
+        }
+        finally {
+            target.close();
+            fizzbuzz.close();
+            pool.close();
+            for(TablePool source : sources.values()) {
+                source.close();
+            }
+        }
+    }
+
+    private static void majorCompact(HRegion region) throws Exception {
+        region.flushcache();
+        for(Store store : region.getStores().values()) {
+            store.triggerMajorCompaction();
+        }
+        region.compactStores();
+    }
+
+    private static List<String> fizzbuzzRows() throws Exception {
+        List<String> rows = new ArrayList<String>();
+        HTable fizzbuzz = new HTable(testingUtility.getConfiguration(), FizzBuzzRegionObserver.TABLE_NAME);
+        try {
+            ResultScanner scanner = fizzbuzz.getScanner(new Scan());
+            try {
+                for(Result result : scanner) {
+                    rows.add(Bytes.toStringBinary(result.getRow()));
+                }
+            }
+            finally {
+                scanner.close();
+            }
+        }
+        finally {
+            fizzbuzz.close();
+        }
+        return rows;
+    }
+
+    private static List<String> rowsOf(List<KeyValue> kvs) {
+        List<String> rows = new ArrayList<String>();
+        for(KeyValue kv : kvs) {
+            rows.add(Bytes.toString(kv.getRow()));
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static byte[] orderedRow(long num, String suffix) {
+        return Bytes.add(Bytes.toBytes(num ^ Long.MIN_VALUE), Bytes.toBytes(suffix));
+    }
 }
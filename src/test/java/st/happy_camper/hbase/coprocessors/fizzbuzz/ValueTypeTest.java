@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.fizzbuzz;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableUtils;
+import org.junit.Test;
+
+/**
+ * TestCase for ValueType.
+ *
+ * @author ueshin
+ */
+public class ValueTypeTest {
+
+    /**
+     * test if values are decoded from the middle of buffers.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDecode() throws Exception {
+        assertThat(decode(ValueType.INT, Bytes.toBytes(-42)), is(-42L));
+        assertThat(decode(ValueType.LONG, Bytes.toBytes(Long.MIN_VALUE)), is(Long.MIN_VALUE));
+        assertThat(decode(ValueType.ASCII, Bytes.toBytes("12345")), is(12345L));
+        assertThat(decode(ValueType.ASCII, Bytes.toBytes("+7")), is(7L));
+        assertThat(decode(ValueType.ASCII, Bytes.toBytes("-9223372036854775808")), is(Long.MIN_VALUE));
+        assertThat(decode(ValueType.ASCII, Bytes.toBytes("9223372036854775807")), is(Long.MAX_VALUE));
+        for(long value : new long[] { 0L, 1L, -1L, 127L, -112L, -113L, 1000000L, Long.MIN_VALUE, Long.MAX_VALUE }) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            WritableUtils.writeVLong(out, value);
+            out.close();
+            assertThat(decode(ValueType.VARINT, bytes.toByteArray()), is(value));
+        }
+        assertThat(Double.longBitsToDouble(decode(ValueType.FLOAT, Bytes.toBytes(1.5f))), is(1.5));
+        assertThat(Double.longBitsToDouble(decode(ValueType.DOUBLE, Bytes.toBytes(-0.25))), is(-0.25));
+    }
+
+    /**
+     * test if malformed values are rejected.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMalformed() throws Exception {
+        assertMalformed(ValueType.INT, Bytes.toBytes(1L));
+        assertMalformed(ValueType.LONG, Bytes.toBytes(1));
+        assertMalformed(ValueType.ASCII, Bytes.toBytes(""));
+        assertMalformed(ValueType.ASCII, Bytes.toBytes("-"));
+        assertMalformed(ValueType.ASCII, Bytes.toBytes("1.5"));
+        assertMalformed(ValueType.ASCII, Bytes.toBytes("9223372036854775808"));
+        assertMalformed(ValueType.VARINT, new byte[0]);
+        assertMalformed(ValueType.VARINT, new byte[] { -120, 1 });
+        assertMalformed(ValueType.FLOAT, Bytes.toBytes(1.5));
+    }
+
+    private static long decode(ValueType type, byte[] value) {
+        byte[] buffer = Bytes.add(Bytes.toBytes("xx"), value, Bytes.toBytes("yy"));
+        return type.decode(buffer, 2, value.length);
+    }
+
+    private static void assertMalformed(ValueType type, byte[] value) {
+        try {
+            decode(type, value);
+            fail("Decoded a malformed " + type + " value: " + Bytes.toStringBinary(value));
+        }
+        catch(NumberFormatException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.util;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * TestCase for MutationJournal.
+ * 
+ * @author ueshin
+ */
+public class MutationJournalTest {
+
+    private final File dir = new File("target/test-data/" + MutationJournalTest.class.getSimpleName());
+
+    /**
+     * clean the journal directory.
+     * 
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        FileUtil.fullyDelete(dir);
+    }
+
+    /**
+     * clean the journal directory.
+     * 
+     * @throws Exception
+     */
+    @After
+    public void tearDown() throws Exception {
+        FileUtil.fullyDelete(dir);
+    }
+
+    private static List<Row> rows(int from, int to) {
+        List<Row> rows = new ArrayList<Row>();
+        for(int i = from; i < to; i++) {
+            if(i % 2 == 0) {
+                Put put = new Put(Bytes.toBytes("row" + i));
+                put.add(Bytes.toBytes("f"), Bytes.toBytes("q"), Bytes.toBytes(i));
+                rows.add(put);
+            }
+            else {
+                Increment increment = new Increment(Bytes.toBytes("row" + i));
+                increment.addColumn(Bytes.toBytes("f"), Bytes.toBytes("q"), i);
+                rows.add(increment);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * test if mutations not acknowledged are recovered.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRecover() throws Exception {
+        MutationJournal journal = MutationJournal.acquire(dir, 1024, false);
+        assertThat(journal.takeRecovered().isEmpty(), is(true));
+        assertThat(journal.append(rows(0, 3)), is(0L));
+        journal.acknowledge(new long[] { 1L }, 1);
+        journal.release();
+
+        journal = MutationJournal.acquire(dir, 1024, false);
+        List<Pair<Long, Row>> recovered = journal.takeRecovered();
+        assertThat(recovered.size(), is(2));
+        assertThat(recovered.get(0).getFirst(), is(0L));
+        assertThat(recovered.get(0).getSecond().getRow(), is(Bytes.toBytes("row0")));
+        assertThat(recovered.get(1).getFirst(), is(2L));
+        assertThat(recovered.get(1).getSecond().getRow(), is(Bytes.toBytes("row2")));
+        assertThat(journal.takeRecovered().isEmpty(), is(true));
+
+        assertThat(journal.append(rows(3, 4)), is(3L));
+        journal.acknowledge(new long[] { 0L, 2L }, 2);
+        journal.release();
+
+        journal = MutationJournal.acquire(dir, 1024, false);
+        recovered = journal.takeRecovered();
+        assertThat(recovered.size(), is(1));
+        assertThat(recovered.get(0).getFirst(), is(3L));
+        assertThat(recovered.get(0).getSecond() instanceof Increment, is(true));
+        journal.release();
+    }
+
+    /**
+     * test if acknowledged segments are deleted.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCompact() throws Exception {
+        MutationJournal journal = MutationJournal.acquire(dir, 256, false);
+        long seq = 0L;
+        for(int i = 0; i < 20; i++) {
+            seq = journal.append(rows(i, i + 1));
+            journal.acknowledge(new long[] { seq }, 1);
+        }
+        assertThat(seq, is(19L));
+        assertThat(dir.listFiles().length, is(1));
+        journal.release();
+
+        journal = MutationJournal.acquire(dir, 256, false);
+        assertThat(journal.takeRecovered().isEmpty(), is(true));
+        assertThat(journal.append(rows(20, 21)), is(20L));
+        journal.release();
+    }
+
+    /**
+     * test if abandoned mutations are read back and don't keep segments.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testAbandon() throws Exception {
+        MutationJournal journal = MutationJournal.acquire(dir, 256, false);
+        for(int i = 0; i < 20; i++) {
+            long seq = journal.append(rows(i, i + 1));
+            if(i == 3 || i == 8) {
+                journal.abandon(new long[] { seq }, 1);
+            }
+            else {
+                journal.acknowledge(new long[] { seq }, 1);
+            }
+        }
+        assertThat(dir.listFiles().length > 1, is(true));
+
+        List<Pair<Long, Row>> abandoned = journal.takeAbandoned(1);
+        assertThat(abandoned.size(), is(1));
+        assertThat(abandoned.get(0).getFirst(), is(3L));
+        assertThat(abandoned.get(0).getSecond() instanceof Increment, is(true));
+        assertThat(abandoned.get(0).getSecond().getRow(), is(Bytes.toBytes("row3")));
+        journal.acknowledge(new long[] { 3L }, 1);
+
+        abandoned = journal.takeAbandoned(10);
+        assertThat(abandoned.size(), is(1));
+        assertThat(abandoned.get(0).getFirst(), is(8L));
+        assertThat(journal.takeAbandoned(10).isEmpty(), is(true));
+        journal.acknowledge(new long[] { 8L }, 1);
+        assertThat(dir.listFiles().length, is(1));
+        journal.release();
+    }
+}
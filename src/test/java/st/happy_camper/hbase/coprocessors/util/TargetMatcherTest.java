@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.util;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+/**
+ * TestCase for TargetMatcher.
+ *
+ * @author ueshin
+ */
+public class TargetMatcherTest {
+
+    /**
+     * test if exact qualifiers, prefixes, wildcards and whole families match.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMatches() throws Exception {
+        TargetMatcher matcher = TargetMatcher.compile("a:a a:aa b:title* c: d e:x?z*end");
+
+        assertThat(matches(matcher, "a", "a"), is(true));
+        assertThat(matches(matcher, "a", "aa"), is(true));
+        assertThat(matches(matcher, "a", "aaa"), is(false));
+        assertThat(matches(matcher, "a", ""), is(false));
+
+        assertThat(matches(matcher, "b", "title"), is(true));
+        assertThat(matches(matcher, "b", "title:en"), is(true));
+        assertThat(matches(matcher, "b", "titl"), is(false));
+
+        assertThat(matches(matcher, "c", ""), is(true));
+        assertThat(matches(matcher, "c", "c"), is(false));
+
+        assertThat(matches(matcher, "d", ""), is(true));
+        assertThat(matches(matcher, "d", "anything"), is(true));
+
+        assertThat(matches(matcher, "e", "xyzend"), is(true));
+        assertThat(matches(matcher, "e", "xyz-the-end"), is(true));
+        assertThat(matches(matcher, "e", "xz-end"), is(false));
+        assertThat(matches(matcher, "e", "xyzen"), is(false));
+
+        assertThat(matches(matcher, "f", "a"), is(false));
+        assertThat(matcher.getFamily(Bytes.toBytes("f")), is(nullValue()));
+        assertThat(matcher.isEmpty(), is(false));
+        assertThat(TargetMatcher.compile(null).isEmpty(), is(true));
+    }
+
+    private boolean matches(TargetMatcher matcher, String family, String qualifier) {
+        KeyValue kv = new KeyValue(Bytes.toBytes("row"), Bytes.toBytes(family), Bytes.toBytes(qualifier),
+                Bytes.toBytes("value"));
+        return matcher.matches(kv);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Writables;
+import org.junit.Test;
+
+/**
+ * TestCase for HyperLogLog.
+ * 
+ * @author ueshin
+ */
+public class HyperLogLogTest {
+
+    /**
+     * test if small numbers of words are counted exactly and duplicates once.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSmall() throws Exception {
+        HyperLogLog sketch = new HyperLogLog();
+        assertThat(sketch.estimate(), is(0L));
+        for(String word : new String[] { "a", "b", "a", "c", "a" }) {
+            sketch.add(Bytes.toBytes(word));
+        }
+        assertThat(sketch.estimate(), is(3L));
+    }
+
+    /**
+     * test if merged sketches of overlapping words survive serialization and
+     * estimate the union within the error.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testMerge() throws Exception {
+        HyperLogLog left = new HyperLogLog();
+        HyperLogLog right = new HyperLogLog();
+        for(int i = 0; i < 60000; i++) {
+            left.add(Bytes.toBytes("word" + i));
+        }
+        for(int i = 40000; i < 100000; i++) {
+            right.add(Bytes.toBytes("word" + i));
+        }
+        left.merge((HyperLogLog) Writables.getWritable(Writables.getBytes(right), new HyperLogLog()));
+        assertThat(Math.abs(left.estimate() - 100000L) < 3000L, is(true));
+    }
+
+    /**
+     * test if sketches of different precisions can't be merged.
+     * 
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentPrecisions() throws Exception {
+        new HyperLogLog(10).merge(new HyperLogLog(12));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+/**
+ * TestCase for OffHeapWordCounts.
+ * 
+ * @author ueshin
+ */
+public class OffHeapWordCountsTest {
+
+    /**
+     * test if counts are merged until the limits are reached.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLimits() throws Exception {
+        OffHeapWordCounts counts = new OffHeapWordCounts(3, 8);
+        byte[] buffer = Bytes.toBytes("xapplebananacherry");
+        assertThat(counts.add(buffer, 1, 5, 1L), is(true));
+        assertThat(counts.add(Bytes.toBytes("apple"), 0, 5, 2L), is(true));
+        assertThat(counts.add(buffer, 6, 6, 1L), is(false));
+        assertThat(counts.add(Bytes.toBytes("b"), 0, 1, 1L), is(true));
+        assertThat(counts.add(Bytes.toBytes("c"), 0, 1, 1L), is(true));
+        assertThat(counts.add(Bytes.toBytes("d"), 0, 1, 1L), is(false));
+        assertThat(counts.add(Bytes.toBytes("b"), 0, 1, 4L), is(true));
+
+        assertThat(counts.size(), is(3));
+        assertThat(counts.getUsedBytes(), is(7));
+        assertThat(counts.getWord(0), is(Bytes.toBytes("apple")));
+        assertThat(counts.getCount(0), is(3L));
+        assertThat(counts.getWord(1), is(Bytes.toBytes("b")));
+        assertThat(counts.getCount(1), is(5L));
+
+        counts.clear();
+        assertThat(counts.isEmpty(), is(true));
+        assertThat(counts.add(buffer, 6, 6, 1L), is(true));
+        assertThat(counts.getWord(0), is(Bytes.toBytes("banana")));
+        assertThat(counts.getCount(0), is(1L));
+    }
+}
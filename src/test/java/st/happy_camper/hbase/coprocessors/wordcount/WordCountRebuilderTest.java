@@ -0,0 +1,167 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import st.happy_camper.hbase.coprocessors.util.DerivedTableRebuilder;
+
+/**
+ * TestCase for WordCountRebuilder.
+ *
+ * @author ueshin
+ */
+public class WordCountRebuilderTest {
+
+    private static HBaseTestingUtility testingUtility = new HBaseTestingUtility();
+
+    /**
+     * start MiniCluster for tests.
+     *
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        testingUtility.startMiniCluster();
+    }
+
+    /**
+     * shutdown MiniCluster.
+     *
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        testingUtility.shutdownMiniCluster();
+    }
+
+    /**
+     * test if words of all the versions of the existing contents of all
+     * regions put before the time given are counted into one delta cell per
+     * word, added to the live counts.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRebuild() throws Exception {
+        {
+            HTableDescriptor desc = new HTableDescriptor(WordCountRegionObserver.DEFAULT_COUNT_TABLE_NAME);
+            desc.addFamily(new HColumnDescriptor(WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY));
+            desc.addCoprocessor(DeltaCounterRegionObserver.class.getName());
+            testingUtility.getHBaseAdmin().createTable(desc);
+        }
+        HTableDescriptor desc = new HTableDescriptor("source");
+        desc.addFamily(new HColumnDescriptor("a"));
+        desc.addFamily(new HColumnDescriptor("b"));
+        testingUtility.getHBaseAdmin().createTable(desc, new byte[][] { Bytes.toBytes("m") });
+
+        HTable source = new HTable(testingUtility.getConfiguration(), "source");
+        HTable words = new HTable(testingUtility.getConfiguration(), WordCountRegionObserver.DEFAULT_COUNT_TABLE_NAME);
+        try {
+            for(String row : new String[] { "aa", "bb", "xx", "yy" }) {
+                Put put = new Put(Bytes.toBytes(row));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes("a a b"));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("aa"), Bytes.toBytes("c"));
+                put.add(Bytes.toBytes("b"), Bytes.toBytes("b"), Bytes.toBytes("b"));
+                source.put(put);
+            }
+            // an older version, counted as well as the latest
+            source.put(new Put(Bytes.toBytes("aa"), 1L).add(Bytes.toBytes("a"), Bytes.toBytes("a"),
+                    Bytes.toBytes("c")));
+            long until = System.currentTimeMillis() + 1L;
+            // a version put since the observer was enabled, already counted by it
+            source.put(new Put(Bytes.toBytes("zz"), until).add(Bytes.toBytes("a"), Bytes.toBytes("a"),
+                    Bytes.toBytes("a b c")));
+            {
+                // a live count
+                Put put = new Put(Bytes.toBytes("a"));
+                put.add(WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY_BYTES,
+                        WordCountRegionObserver.DEFAULT_COUNT_COLUMN_QUALIFIER_BYTES, Bytes.toBytes(1L));
+                words.put(put);
+            }
+
+            Configuration conf = new Configuration(testingUtility.getConfiguration());
+            conf.set(WordCountWALObserver.PREFIX + WordCountRegionObserver.CONF_COUNT_TARGETS, "a:a b");
+            conf.set(WordCountWALObserver.PREFIX + DerivedTableRebuilder.CONF_REBUILD_MODE,
+                    DerivedTableRebuilder.MODE_STANDALONE);
+            conf.setLong(WordCountWALObserver.PREFIX + DerivedTableRebuilder.CONF_REBUILD_UNTIL, until);
+            // derives each row in its own batch to be merged
+            conf.setInt(WordCountWALObserver.PREFIX + DerivedTableRebuilder.CONF_REBUILD_BATCH_SIZE, 1);
+            WordCountRebuilder rebuilder = new WordCountRebuilder();
+            rebuilder.setConf(conf);
+            rebuilder.rebuild(Bytes.toBytes("source"), new Path("/rebuild/words"));
+
+            assertThat(count(words, "a"), is(9L));
+            assertThat(count(words, "b"), is(8L));
+            assertThat(count(words, "c"), is(1L));
+
+            ResultScanner scanner = words.getScanner(new Scan());
+            try {
+                for(Result result : scanner) {
+                    assertThat(result.size(), is(Bytes.toString(result.getRow()).equals("a") ? 2 : 1));
+                }
+            }
+            finally {
+                scanner.close();
+            }
+        }
+        finally {
+            source.close();
+            words.close();
+        }
+    }
+
+    /**
+     * test if the rebuild refuses to run without the time the observer was
+     * enabled.
+     *
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRebuildWithoutUntil() throws Exception {
+        Configuration conf = new Configuration(testingUtility.getConfiguration());
+        conf.set(WordCountWALObserver.PREFIX + WordCountRegionObserver.CONF_COUNT_TARGETS, "a:a b");
+        WordCountRebuilder rebuilder = new WordCountRebuilder();
+        rebuilder.setConf(conf);
+        rebuilder.rebuild(Bytes.toBytes("source"), new Path("/rebuild/until"));
+    }
+
+    private long count(HTable words, String word) throws Exception {
+        Get get = new Get(Bytes.toBytes(word));
+        get.addColumn(WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY_BYTES,
+                WordCountRegionObserver.DEFAULT_COUNT_COLUMN_QUALIFIER_BYTES);
+        byte[] value = words.get(get).getValue(WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY_BYTES,
+                WordCountRegionObserver.DEFAULT_COUNT_COLUMN_QUALIFIER_BYTES);
+        return value != null ? Bytes.toLong(value) : 0L;
+    }
+}
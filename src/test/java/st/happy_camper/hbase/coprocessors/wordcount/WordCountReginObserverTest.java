@@ -20,17 +20,25 @@ import static org.junit.Assert.assertThat;
 
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.Coprocessor;
 import org.apache.hadoop.hbase.HBaseTestingUtility;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.Store;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -337,4 +345,607 @@ public class WordCountReginObserverTest {
         }
     }
 
+    /**
+     * test if WordCountRegionObserver buffers counts and writes them when the
+     * target region is closed.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testBuffer() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(WordCountRegionObserver.CONF_COUNT_TARGETS, "a");
+        params.put(WordCountRegionObserver.CONF_BUFFER, "true");
+        params.put(WordCountRegionObserver.CONF_BUFFER_MAX_AGE, "3600000");
+        desc.addCoprocessor(WordCountRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        try {
+            {
+                Put put = new Put(Bytes.toBytes("a"));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes("a b a"));
+                target.put(put);
+            }
+            {
+                Put put = new Put(Bytes.toBytes("b"));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("b"), Bytes.toBytes("b a"));
+                target.put(put);
+            }
+        }
+        finally {
+            target.close();
+        }
+
+        HTable count = new HTable(testingUtility.getConfiguration(),
+                WordCountRegionObserver.DEFAULT_COUNT_TABLE_NAME_BYTES);
+        try {
+            ResultScanner scanner = count.getScanner(WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY_BYTES,
+                    WordCountRegionObserver.DEFAULT_COUNT_COLUMN_QUALIFIER_BYTES);
+            try {
+                assertThat(scanner.iterator().hasNext(), is(false));
+            }
+            finally {
+                scanner.close();
+            }
+
+            testingUtility.getHBaseAdmin().disableTable("target");
+
+            scanner = count.getScanner(WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY_BYTES,
+                    WordCountRegionObserver.DEFAULT_COUNT_COLUMN_QUALIFIER_BYTES);
+            try {
+                Iterator<Result> itr = scanner.iterator();
+                {
+                    Result result = itr.next();
+                    assertThat(result.getRow(), is(Bytes.toBytes("a")));
+                    assertThat(result.getValue(WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY_BYTES,
+                            WordCountRegionObserver.DEFAULT_COUNT_COLUMN_QUALIFIER_BYTES), is(Bytes.toBytes(3L)));
+                }
+                {
+                    Result result = itr.next();
+                    assertThat(result.getRow(), is(Bytes.toBytes("b")));
+                    assertThat(result.getValue(WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY_BYTES,
+                            WordCountRegionObserver.DEFAULT_COUNT_COLUMN_QUALIFIER_BYTES), is(Bytes.toBytes(2L)));
+                }
+                assertThat(itr.hasNext(), is(false));
+            }
+            finally {
+                scanner.close();
+            }
+        }
+        finally {
+            count.close();
+            testingUtility.getHBaseAdmin().enableTable("target");
+        }
+    }
+
+    /**
+     * test if words longer than the buffer are written directly.
+     * 
+     * @throws Exception
+     */
+    @Test(timeout = 120000)
+    public void testBufferOversized() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(WordCountRegionObserver.CONF_COUNT_TARGETS, "a");
+        params.put(WordCountRegionObserver.CONF_BUFFER, "true");
+        params.put(WordCountRegionObserver.CONF_BUFFER_MAX_SIZE, "4");
+        params.put(WordCountRegionObserver.CONF_BUFFER_MAX_AGE, "3600000");
+        desc.addCoprocessor(WordCountRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        HTable count = new HTable(testingUtility.getConfiguration(),
+                WordCountRegionObserver.DEFAULT_COUNT_TABLE_NAME_BYTES);
+        try {
+            Put put = new Put(Bytes.toBytes("a"));
+            put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes("abcdefgh ab abcdefgh"));
+            target.put(put);
+
+            Get get = new Get(Bytes.toBytes("abcdefgh"));
+            assertThat(count.get(get).getValue(WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY_BYTES,
+                    WordCountRegionObserver.DEFAULT_COUNT_COLUMN_QUALIFIER_BYTES), is(Bytes.toBytes(2L)));
+            assertThat(count.exists(new Get(Bytes.toBytes("ab"))), is(false));
+
+            testingUtility.getHBaseAdmin().disableTable("target");
+
+            get = new Get(Bytes.toBytes("ab"));
+            assertThat(count.get(get).getValue(WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY_BYTES,
+                    WordCountRegionObserver.DEFAULT_COUNT_COLUMN_QUALIFIER_BYTES), is(Bytes.toBytes(1L)));
+            testingUtility.getHBaseAdmin().enableTable("target");
+        }
+        finally {
+            count.close();
+            target.close();
+        }
+    }
+
+    /**
+     * test if delta counters are summed by gets and folded by compactions.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testDeltaCounter() throws Exception {
+        {
+            HTableDescriptor desc = new HTableDescriptor("another");
+            desc.addFamily(new HColumnDescriptor("cnt"));
+            Map<String, String> params = new HashMap<String, String>();
+            params.put(DeltaCounterRegionObserver.CONF_COUNT_COLUMN, "cnt:words");
+            desc.addCoprocessor(DeltaCounterRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+            testingUtility.getHBaseAdmin().createTable(desc);
+        }
+
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(WordCountRegionObserver.CONF_COUNT_TABLE_NAME, "another");
+        params.put(WordCountRegionObserver.CONF_COUNT_COLUMN, "cnt:words");
+        params.put(WordCountRegionObserver.CONF_COUNT_TARGETS, "a");
+        params.put(WordCountRegionObserver.CONF_COUNTER, WordCountRegionObserver.COUNTER_DELTA);
+        desc.addCoprocessor(WordCountRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        HTable another = new HTable(testingUtility.getConfiguration(), "another");
+        try {
+            for(int i = 0; i < 3; i++) {
+                Put put = new Put(Bytes.toBytes("a" + i));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes("a a b"));
+                target.put(put);
+                testingUtility.getMiniHBaseCluster().flushcache(Bytes.toBytes("another"));
+            }
+
+            Get get = new Get(Bytes.toBytes("a"));
+            get.addColumn(Bytes.toBytes("cnt"), Bytes.toBytes("words"));
+            Result result = another.get(get);
+            assertThat(result.size(), is(1));
+            assertThat(result.getValue(Bytes.toBytes("cnt"), Bytes.toBytes("words")), is(Bytes.toBytes(6L)));
+
+            for(HRegion region : testingUtility.getMiniHBaseCluster().getRegions(Bytes.toBytes("another"))) {
+                region.compactStores();
+            }
+
+            ResultScanner scanner = another.getScanner(new Scan());
+            try {
+                Iterator<Result> itr = scanner.iterator();
+                {
+                    Result raw = itr.next();
+                    assertThat(raw.getRow(), is(Bytes.toBytes("a")));
+                    assertThat(raw.size(), is(1));
+                    assertThat(Bytes.toLong(raw.raw()[0].getValue()), is(6L));
+                }
+                {
+                    Result raw = itr.next();
+                    assertThat(raw.getRow(), is(Bytes.toBytes("b")));
+                    assertThat(raw.size(), is(1));
+                    assertThat(Bytes.toLong(raw.raw()[0].getValue()), is(3L));
+                }
+                assertThat(itr.hasNext(), is(false));
+            }
+            finally {
+                scanner.close();
+            }
+
+            result = another.get(get);
+            assertThat(result.getValue(Bytes.toBytes("cnt"), Bytes.toBytes("words")), is(Bytes.toBytes(6L)));
+        }
+        finally {
+            target.close();
+            another.close();
+        }
+    }
+
+    /**
+     * test for striped counters.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testStripes() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(WordCountRegionObserver.CONF_COUNT_TARGETS, "a");
+        params.put(WordCountRegionObserver.CONF_STRIPES, "4");
+        desc.addCoprocessor(WordCountRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        HTable words = new HTable(testingUtility.getConfiguration(), WordCountRegionObserver.DEFAULT_COUNT_TABLE_NAME);
+        Configuration conf = new Configuration(testingUtility.getConfiguration());
+        conf.setInt(WordCountRegionObserver.CONF_STRIPES, 4);
+        StripedCounters counters = new StripedCounters(conf);
+        try {
+            for(int i = 0; i < 6; i++) {
+                Put put = new Put(Bytes.toBytes("a" + i));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes("a a b"));
+                target.put(put);
+            }
+
+            ResultScanner scanner = words.getScanner(new Scan());
+            try {
+                int rows = 0;
+                for(Result result : scanner) {
+                    assertThat(result.getRow()[0] < 4, is(true));
+                    rows++;
+                }
+                assertThat(rows > 2, is(true));
+            }
+            finally {
+                scanner.close();
+            }
+
+            assertThat(counters.get(Bytes.toBytes("a")), is(12L));
+            assertThat(counters.get(Bytes.toBytes("b")), is(6L));
+            assertThat(counters.get(Bytes.toBytes("c")), is(0L));
+        }
+        finally {
+            counters.close();
+            target.close();
+            words.close();
+        }
+    }
+
+    /**
+     * test for word sketches.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSketch() throws Exception {
+        {
+            HTableDescriptor desc = new HTableDescriptor("another");
+            desc.addFamily(new HColumnDescriptor("cnt"));
+            Map<String, String> params = new HashMap<String, String>();
+            params.put(WordSketchEndpoint.CONF_COUNT_COLUMN, "cnt:words");
+            desc.addCoprocessor(WordSketchEndpoint.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+            testingUtility.getHBaseAdmin().createTable(desc);
+        }
+
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(WordCountRegionObserver.CONF_COUNT_TABLE_NAME, "another");
+        params.put(WordCountRegionObserver.CONF_COUNT_COLUMN, "cnt:words");
+        params.put(WordCountRegionObserver.CONF_COUNT_TARGETS, "a");
+        params.put(WordCountRegionObserver.CONF_COUNTER, WordCountRegionObserver.COUNTER_SKETCH);
+        params.put(WordCountRegionObserver.CONF_SKETCH_INTERVAL, "50");
+        desc.addCoprocessor(WordCountRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        Configuration conf = new Configuration(testingUtility.getConfiguration());
+        conf.set(WordCountRegionObserver.CONF_COUNT_TABLE_NAME, "another");
+        WordSketches sketches = new WordSketches(conf);
+        try {
+            assertThat(sketches.getSketch() == null, is(true));
+
+            for(int i = 0; i < 3; i++) {
+                Put put = new Put(Bytes.toBytes("a" + i));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes("a a b c a"));
+                target.put(put);
+            }
+
+            WordSketch sketch = sketches.getSketch();
+            for(int i = 0; i < 100 && (sketch == null || sketch.getTotal() < 15L); i++) {
+                Thread.sleep(50L);
+                sketch = sketches.getSketch();
+            }
+            assertThat(sketch.getTotal(), is(15L));
+            assertThat(sketch.estimate(Bytes.toBytes("a")), is(9L));
+            assertThat(sketch.estimate(Bytes.toBytes("b")), is(3L));
+
+            List<SpaceSaving.Counter> top = sketches.top(2);
+            assertThat(top.size(), is(2));
+            assertThat(top.get(0).getWord(), is(Bytes.toBytes("a")));
+            assertThat(top.get(0).getCount(), is(9L));
+            assertThat(top.get(1).getCount(), is(3L));
+
+            // the reopened region carries its sketch over into the same row
+            byte[] sketchRow = WordSketches.toRow(target.getRegionLocations().keySet().iterator().next()
+                    .getEncodedNameAsBytes());
+            testingUtility.getHBaseAdmin().disableTable("target");
+            testingUtility.getHBaseAdmin().enableTable("target");
+            Put put = new Put(Bytes.toBytes("a3"));
+            put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes("a b"));
+            target.put(put);
+            testingUtility.getHBaseAdmin().disableTable("target");
+
+            sketch = sketches.getSketch();
+            assertThat(sketch.getTotal(), is(17L));
+            assertThat(sketch.estimate(Bytes.toBytes("a")), is(10L));
+            assertThat(sketch.estimate(Bytes.toBytes("c")), is(3L));
+
+            HTable another = new HTable(testingUtility.getConfiguration(), "another");
+            try {
+                ResultScanner scanner = another.getScanner(new Scan(WordSketches.SKETCH_START_ROW,
+                        WordSketches.SKETCH_STOP_ROW));
+                try {
+                    Iterator<Result> itr = scanner.iterator();
+                    assertThat(itr.next().getRow(), is(sketchRow));
+                    assertThat(itr.hasNext(), is(false));
+                }
+                finally {
+                    scanner.close();
+                }
+            }
+            finally {
+                another.close();
+                testingUtility.getHBaseAdmin().enableTable("target");
+            }
+        }
+        finally {
+            sketches.close();
+            target.close();
+        }
+    }
+
+    /**
+     * test for aggregations of word counts over regions.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testAggregate() throws Exception {
+        {
+            HTableDescriptor desc = new HTableDescriptor("another");
+            desc.addFamily(new HColumnDescriptor("cnt"));
+            Map<String, String> params = new HashMap<String, String>();
+            params.put(WordCountAggregateEndpoint.CONF_COUNT_COLUMN, "cnt:words");
+            desc.addCoprocessor(WordCountAggregateEndpoint.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+            testingUtility.getHBaseAdmin().createTable(desc, new byte[][] { Bytes.toBytes("b") });
+        }
+
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(WordCountRegionObserver.CONF_COUNT_TABLE_NAME, "another");
+        params.put(WordCountRegionObserver.CONF_COUNT_COLUMN, "cnt:words");
+        params.put(WordCountRegionObserver.CONF_COUNT_TARGETS, "a");
+        desc.addCoprocessor(WordCountRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        Configuration conf = new Configuration(testingUtility.getConfiguration());
+        conf.set(WordCountRegionObserver.CONF_COUNT_TABLE_NAME, "another");
+        WordCountAggregator aggregator = new WordCountAggregator(conf);
+        try {
+            for(int i = 0; i < 2; i++) {
+                Put put = new Put(Bytes.toBytes("a" + i));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"),
+                        Bytes.toBytes("apple apricot banana cherry cherry cherry apple"));
+                target.put(put);
+            }
+
+            List<Pair<byte[], Long>> top = aggregator.top(2);
+            assertThat(top.size(), is(2));
+            assertThat(top.get(0).getFirst(), is(Bytes.toBytes("cherry")));
+            assertThat(top.get(0).getSecond(), is(6L));
+            assertThat(top.get(1).getFirst(), is(Bytes.toBytes("apple")));
+            assertThat(top.get(1).getSecond(), is(4L));
+
+            assertThat(aggregator.sum(Bytes.toBytes("apricot"), Bytes.toBytes("cherry")), is(4L));
+            assertThat(aggregator.sum(Bytes.toBytes("b"), new byte[0]), is(8L));
+            assertThat(aggregator.distinct(Bytes.toBytes("ap")), is(2L));
+            assertThat(aggregator.distinct(new byte[0]), is(4L));
+        }
+        finally {
+            aggregator.close();
+            target.close();
+        }
+    }
+
+    /**
+     * test if aggregations merge the stripes of words over regions.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testAggregateStriped() throws Exception {
+        {
+            HTableDescriptor desc = new HTableDescriptor("another");
+            desc.addFamily(new HColumnDescriptor("cnt"));
+            Map<String, String> params = new HashMap<String, String>();
+            params.put(WordCountAggregateEndpoint.CONF_COUNT_COLUMN, "cnt:words");
+            params.put(WordCountAggregateEndpoint.CONF_STRIPES, "4");
+            desc.addCoprocessor(WordCountAggregateEndpoint.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+            testingUtility.getHBaseAdmin().createTable(desc, new byte[][] { new byte[] { 2 } });
+        }
+
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(WordCountRegionObserver.CONF_COUNT_TABLE_NAME, "another");
+        params.put(WordCountRegionObserver.CONF_COUNT_COLUMN, "cnt:words");
+        params.put(WordCountRegionObserver.CONF_COUNT_TARGETS, "a");
+        params.put(WordCountRegionObserver.CONF_STRIPES, "4");
+        desc.addCoprocessor(WordCountRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        Configuration conf = new Configuration(testingUtility.getConfiguration());
+        conf.set(WordCountRegionObserver.CONF_COUNT_TABLE_NAME, "another");
+        conf.set(WordCountRegionObserver.CONF_COUNT_COLUMN, "cnt:words");
+        conf.setInt(WordCountRegionObserver.CONF_STRIPES, 4);
+        WordCountAggregator aggregator = new WordCountAggregator(conf);
+        HTable another = new HTable(testingUtility.getConfiguration(), "another");
+        try {
+            for(int i = 0; i < 20; i++) {
+                Put put = new Put(Bytes.toBytes("a" + i));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes(i == 0 ? "cherry cherry apple banana"
+                        : "cherry cherry apple"));
+                target.put(put);
+            }
+            // a sketch row in the range of the first stripe, not to be read as a count
+            Put sketch = new Put(WordSketches.toRow(Bytes.toBytes("region")));
+            sketch.add(Bytes.toBytes("cnt"), Bytes.toBytes("words"), Bytes.toBytes(100L));
+            another.put(sketch);
+
+            List<Pair<byte[], Long>> top = aggregator.top(2);
+            assertThat(top.size(), is(2));
+            assertThat(top.get(0).getFirst(), is(Bytes.toBytes("cherry")));
+            assertThat(top.get(0).getSecond(), is(40L));
+            assertThat(top.get(1).getFirst(), is(Bytes.toBytes("apple")));
+            assertThat(top.get(1).getSecond(), is(20L));
+
+            assertThat(aggregator.sum(new byte[0], new byte[0]), is(61L));
+            assertThat(aggregator.distinct(Bytes.toBytes("ch")), is(1L));
+            assertThat(aggregator.distinct(new byte[0]), is(3L));
+        }
+        finally {
+            aggregator.close();
+            another.close();
+            target.close();
+        }
+    }
+
+    /**
+     * test if the top words with stripes are found even if they are not the
+     * top of any region.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testAggregateStripedTop() throws Exception {
+        HTableDescriptor desc = new HTableDescriptor("another");
+        desc.addFamily(new HColumnDescriptor("cnt"));
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(WordCountAggregateEndpoint.CONF_COUNT_COLUMN, "cnt:words");
+        params.put(WordCountAggregateEndpoint.CONF_STRIPES, "4");
+        desc.addCoprocessor(WordCountAggregateEndpoint.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+        testingUtility.getHBaseAdmin().createTable(desc, new byte[][] { new byte[] { 2 } });
+
+        Configuration conf = new Configuration(testingUtility.getConfiguration());
+        conf.set(WordCountRegionObserver.CONF_COUNT_TABLE_NAME, "another");
+        conf.set(WordCountRegionObserver.CONF_COUNT_COLUMN, "cnt:words");
+        conf.setInt(WordCountRegionObserver.CONF_STRIPES, 4);
+        WordCountAggregator aggregator = new WordCountAggregator(conf);
+        HTable another = new HTable(testingUtility.getConfiguration(), "another");
+        try {
+            // x and y lead each region, but z leads over both
+            Object[][] stripes = { { "x", 0, 10L }, { "y", 2, 10L }, { "z", 1, 6L }, { "z", 3, 6L } };
+            for(Object[] stripe : stripes) {
+                Put put = new Put(StripedCounters.toRow((Integer) stripe[1], Bytes.toBytes((String) stripe[0])));
+                put.add(Bytes.toBytes("cnt"), Bytes.toBytes("words"), Bytes.toBytes((Long) stripe[2]));
+                another.put(put);
+            }
+
+            List<Pair<byte[], Long>> top = aggregator.top(1);
+            assertThat(top.size(), is(1));
+            assertThat(top.get(0).getFirst(), is(Bytes.toBytes("z")));
+            assertThat(top.get(0).getSecond(), is(12L));
+
+            top = aggregator.top(2);
+            assertThat(top.size(), is(2));
+            assertThat(top.get(1).getFirst(), is(Bytes.toBytes("x")));
+            assertThat(top.get(1).getSecond(), is(10L));
+        }
+        finally {
+            aggregator.close();
+            another.close();
+        }
+    }
+
+    /**
+     * test for time-windowed counters.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testWindows() throws Exception {
+        {
+            HTableDescriptor desc = new HTableDescriptor("another");
+            desc.addFamily(new HColumnDescriptor("cnt"));
+            Map<String, String> params = new HashMap<String, String>();
+            params.put(TimeWindowRegionObserver.CONF_COUNT_COLUMN, "cnt:words");
+            params.put(TimeWindowRegionObserver.CONF_WINDOWS, "minute:2 hour:1 day");
+            desc.addCoprocessor(TimeWindowRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+            testingUtility.getHBaseAdmin().createTable(desc);
+        }
+
+        HTableDescriptor desc = new HTableDescriptor("target");
+        desc.addFamily(new HColumnDescriptor("a"));
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(WordCountRegionObserver.CONF_COUNT_TABLE_NAME, "another");
+        params.put(WordCountRegionObserver.CONF_COUNT_COLUMN, "cnt:words");
+        params.put(WordCountRegionObserver.CONF_COUNT_TARGETS, "a");
+        params.put(WordCountRegionObserver.CONF_WINDOWS, "minute:2 hour:1 day");
+        desc.addCoprocessor(WordCountRegionObserver.class.getName(), null, Coprocessor.PRIORITY_USER, params);
+
+        testingUtility.getHBaseAdmin().createTable(desc);
+
+        TimeWindow[] windows = TimeWindow.parse("minute:2 hour:1 day");
+        byte[] qualifier = Bytes.toBytes("words");
+        long now = System.currentTimeMillis();
+        long[] timestamps = { now, now - 5L * 60L * 1000L, now - 3L * 24L * 60L * 60L * 1000L };
+
+        HTable target = new HTable(testingUtility.getConfiguration(), "target");
+        HTable another = new HTable(testingUtility.getConfiguration(), "another");
+        try {
+            String value = "";
+            for(int i = 0; i < timestamps.length; i++) {
+                value += " a";
+                Put put = new Put(Bytes.toBytes("a" + i));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), timestamps[i], Bytes.toBytes(value));
+                target.put(put);
+            }
+
+            Get get = new Get(Bytes.toBytes("a"));
+            get.addFamily(Bytes.toBytes("cnt"));
+            List<KeyValue> kvs = another.get(get).list();
+            assertThat(kvs.size(), is(4));
+            assertThat(TimeWindow.sum(kvs, qualifier, windows, now - 10L * 60L * 1000L, Long.MAX_VALUE), is(3L));
+
+            // rows wider than the batch of compactions
+            for(String row : new String[] { "a", "b" }) {
+                Put put = new Put(Bytes.toBytes(row));
+                for(int i = 0; i < 25; i++) {
+                    put.add(Bytes.toBytes("cnt"), Bytes.toBytes("x" + i), Bytes.toBytes(i));
+                }
+                another.put(put);
+            }
+
+            testingUtility.getMiniHBaseCluster().flushcache(Bytes.toBytes("another"));
+            for(HRegion region : testingUtility.getMiniHBaseCluster().getRegions(Bytes.toBytes("another"))) {
+                for(Store store : region.getStores().values()) {
+                    store.triggerMajorCompaction();
+                }
+                region.compactStores();
+            }
+
+            kvs = another.get(get).list();
+            assertThat(kvs.size(), is(25 + 4));
+            assertThat(another.get(new Get(Bytes.toBytes("b"))).size(), is(25));
+            assertThat(Bytes.toLong(another.get(get).getValue(Bytes.toBytes("cnt"), qualifier)), is(6L));
+            assertThat(TimeWindow.sum(kvs, qualifier, windows, 0L, Long.MAX_VALUE), is(6L));
+            assertThat(TimeWindow.sum(kvs, qualifier, new TimeWindow[] { windows[0] }, 0L, Long.MAX_VALUE), is(1L));
+            assertThat(TimeWindow.sum(kvs, qualifier, new TimeWindow[] { windows[2] }, TimeWindow.DAY
+                    .bucketOf(timestamps[2]), TimeWindow.DAY.bucketOf(timestamps[2]) + 1L) >= 3L, is(true));
+        }
+        finally {
+            target.close();
+            another.close();
+        }
+    }
+
 }
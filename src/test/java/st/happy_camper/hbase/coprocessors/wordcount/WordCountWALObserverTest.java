@@ -0,0 +1,230 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Coprocessor;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.regionserver.wal.HLogKey;
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import st.happy_camper.hbase.coprocessors.util.DerivingWALObserver;
+
+/**
+ * TestCase for WordCountWALObserver.
+ *
+ * @author ueshin
+ */
+public class WordCountWALObserverTest {
+
+    private static HBaseTestingUtility testingUtility = new HBaseTestingUtility();
+
+    /**
+     * start MiniCluster with WordCountWALObserver for tests.
+     *
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        Configuration conf = testingUtility.getConfiguration();
+        conf.set("hbase.coprocessor.wal.classes", WordCountWALObserver.class.getName());
+        conf.set(WordCountWALObserver.PREFIX + DerivingWALObserver.CONF_SOURCES, "source");
+        conf.set(WordCountWALObserver.PREFIX + WordCountRegionObserver.CONF_COUNT_TARGETS, "a:a b");
+        conf.setLong(WordCountWALObserver.PREFIX + DerivingWALObserver.CONF_WAL_INTERVAL, 100L);
+        testingUtility.startMiniCluster();
+    }
+
+    /**
+     * shutdown MiniCluster.
+     *
+     * @throws Exception
+     */
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        testingUtility.shutdownMiniCluster();
+    }
+
+    /**
+     * test if WordCountWALObserver counts words of committed edits.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDerive() throws Exception {
+        HTable words = testingUtility.createTable(WordCountRegionObserver.DEFAULT_COUNT_TABLE_NAME_BYTES,
+                WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY_BYTES);
+        HTable source = testingUtility.createTable(Bytes.toBytes("source"),
+                new byte[][] { Bytes.toBytes("a"), Bytes.toBytes("b") });
+        HTable other = testingUtility.createTable(Bytes.toBytes("other"), Bytes.toBytes("a"));
+        try {
+            {
+                Put put = new Put(Bytes.toBytes("aa"));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes("a a b"));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("aa"), Bytes.toBytes("c"));
+                source.put(put);
+            }
+            {
+                Put put = new Put(Bytes.toBytes("bb"));
+                put.add(Bytes.toBytes("b"), Bytes.toBytes("b"), Bytes.toBytes("a b"));
+                source.put(put);
+            }
+            {
+                // no count
+                Put put = new Put(Bytes.toBytes("aa"));
+                put.add(Bytes.toBytes("a"), Bytes.toBytes("a"), Bytes.toBytes("a"));
+                other.put(put);
+            }
+
+            long deadline = System.currentTimeMillis() + 10000L;
+            while(count(words, "b") < 2L && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100L);
+            }
+            assertThat(count(words, "a"), is(3L));
+            assertThat(count(words, "b"), is(2L));
+            assertThat(count(words, "c"), is(0L));
+
+            DerivingWALObserver observer = (DerivingWALObserver) testingUtility.getHBaseCluster().getRegionServer(0)
+                    .getWAL().getCoprocessorHost().findCoprocessor(WordCountWALObserver.class.getName());
+            HRegionInfo region = source.getRegionLocation(Bytes.toBytes("aa")).getRegionInfo();
+            assertTrue(observer.getCheckpoint(region.getEncodedName()) >= 0L);
+            assertThat(observer.getDroppedCount(), is(0L));
+        }
+        finally {
+            source.close();
+            other.close();
+            words.close();
+        }
+    }
+
+    /**
+     * test if the edits left in the journal on stop are counted by the next
+     * start, and the checkpoint waits for them.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testJournal() throws Exception {
+        HTable words = testingUtility.createTable(Bytes.toBytes("journaled_words"),
+                WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY_BYTES);
+        try {
+            final Configuration conf = new Configuration(testingUtility.getConfiguration());
+            conf.set(WordCountWALObserver.PREFIX + DerivingWALObserver.CONF_SOURCES, "journaled");
+            conf.set(WordCountWALObserver.PREFIX + WordCountRegionObserver.CONF_COUNT_TABLE_NAME, "journaled_words");
+            conf.setInt(WordCountWALObserver.PREFIX + DerivingWALObserver.CONF_WAL_QUEUE_SIZE, 1);
+            conf.setLong(WordCountWALObserver.PREFIX + DerivingWALObserver.CONF_WAL_INTERVAL, 10000L);
+            conf.set(WordCountWALObserver.PREFIX + DerivingWALObserver.CONF_WAL_CHECKPOINT_DIR, testingUtility
+                    .getDataTestDir("journal").toString());
+            conf.setInt(WordCountWALObserver.PREFIX + DerivingWALObserver.CONF_WAL_JOURNAL_SEGMENT_SIZE, 1024 * 1024);
+            CoprocessorEnvironment env = new CoprocessorEnvironment() {
+
+                @Override
+                public int getVersion() {
+                    return 0;
+                }
+
+                @Override
+                public String getHBaseVersion() {
+                    return null;
+                }
+
+                @Override
+                public Coprocessor getInstance() {
+                    return null;
+                }
+
+                @Override
+                public int getPriority() {
+                    return Coprocessor.PRIORITY_USER;
+                }
+
+                @Override
+                public int getLoadSequence() {
+                    return 0;
+                }
+
+                @Override
+                public Configuration getConfiguration() {
+                    return conf;
+                }
+
+                @Override
+                public HTableInterface getTable(byte[] tableName) {
+                    return null;
+                }
+            };
+            HRegionInfo region = new HRegionInfo(Bytes.toBytes("journaled"));
+
+            // the queue holds one edit, and the others are left in the journal on stop
+            DerivingWALObserver observer = new WordCountWALObserver();
+            observer.start(env);
+            for(long seq = 1L; seq <= 5L; seq++) {
+                WALEdit edit = new WALEdit();
+                edit.add(new KeyValue(Bytes.toBytes("aa"), Bytes.toBytes("a"), Bytes.toBytes("a"), seq, Bytes
+                        .toBytes("x")));
+                observer.postWALWrite(null, region, new HLogKey(region.getEncodedNameAsBytes(), region
+                        .getTableName(), seq, seq, HConstants.DEFAULT_CLUSTER_ID), edit);
+            }
+            observer.stop(env);
+            assertTrue(observer.getCheckpoint(region.getEncodedName()) < 5L);
+            assertTrue(count(words, "x") < 5L);
+
+            observer = new WordCountWALObserver();
+            observer.start(env);
+            long deadline = System.currentTimeMillis() + 10000L;
+            while(count(words, "x") < 5L && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100L);
+            }
+            observer.stop(env);
+            assertThat(count(words, "x"), is(5L));
+            assertThat(observer.getCheckpoint(region.getEncodedName()), is(5L));
+            assertThat(observer.getDroppedCount(), is(0L));
+
+            // the saved checkpoint is read back
+            observer = new WordCountWALObserver();
+            observer.start(env);
+            assertThat(observer.getCheckpoint(region.getEncodedName()), is(5L));
+            observer.stop(env);
+            assertThat(count(words, "x"), is(5L));
+        }
+        finally {
+            words.close();
+        }
+    }
+
+    private long count(HTable words, String word) throws Exception {
+        Result result = words.get(new Get(Bytes.toBytes(word)));
+        byte[] value = result.getValue(WordCountRegionObserver.DEFAULT_COUNT_COLUMN_FAMILY_BYTES,
+                WordCountRegionObserver.DEFAULT_COUNT_COLUMN_QUALIFIER_BYTES);
+        return value != null ? Bytes.toLong(value) : 0L;
+    }
+}
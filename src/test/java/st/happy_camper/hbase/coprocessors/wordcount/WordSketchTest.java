@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Writables;
+import org.junit.Test;
+
+/**
+ * TestCase for WordSketch.
+ * 
+ * @author ueshin
+ */
+public class WordSketchTest {
+
+    private static WordSketch sketch(String... words) {
+        WordCounts counts = new WordCounts();
+        for(String word : words) {
+            counts.add(Bytes.toBytes(word), 1L);
+        }
+        WordSketch sketch = new WordSketch(4, 64, 2);
+        sketch.add(counts);
+        return sketch;
+    }
+
+    /**
+     * test if the summary keeps the most frequent words with their errors.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testTop() throws Exception {
+        SpaceSaving top = new SpaceSaving(2);
+        for(String word : new String[] { "a", "b", "a", "c", "a", "c", "a" }) {
+            byte[] bytes = Bytes.toBytes(word);
+            top.add(bytes, 0, bytes.length, 1L);
+        }
+        List<SpaceSaving.Counter> counters = top.top(3);
+        assertThat(counters.size(), is(2));
+        assertThat(counters.get(0).getWord(), is(Bytes.toBytes("a")));
+        assertThat(counters.get(0).getCount(), is(4L));
+        assertThat(counters.get(0).getError(), is(0L));
+        assertThat(counters.get(1).getWord(), is(Bytes.toBytes("c")));
+        assertThat(counters.get(1).getCount(), is(3L));
+        assertThat(counters.get(1).getError(), is(1L));
+    }
+
+    /**
+     * test if merged sketches survive serialization.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testMerge() throws Exception {
+        WordSketch sketch = sketch("a", "b", "a");
+        sketch.merge(sketch("a", "c", "c", "c"));
+
+        WordSketch read = (WordSketch) Writables.getWritable(Writables.getBytes(sketch), new WordSketch());
+        assertThat(read.getTotal(), is(7L));
+        assertThat(read.estimate(Bytes.toBytes("a")) >= 3L, is(true));
+        assertThat(read.estimate(Bytes.toBytes("c")) >= 3L, is(true));
+
+        List<SpaceSaving.Counter> top = read.top(2);
+        assertThat(top.size(), is(2));
+        assertThat(top.get(0).getWord(), is(Bytes.toBytes("c")));
+        assertThat(top.get(0).getCount(), is(4L));
+        assertThat(top.get(1).getWord(), is(Bytes.toBytes("a")));
+        assertThat(top.get(1).getCount(), is(3L));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012 Happy-Camper Street.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package st.happy_camper.hbase.coprocessors.wordcount.analysis;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+/**
+ * TestCase for Analyzer.
+ * 
+ * @author ueshin
+ */
+public class AnalyzerTest {
+
+    private static List<String> analyze(Analyzer analyzer, String... values) {
+        final List<String> tokens = new ArrayList<String>();
+        TokenSink sink = new TokenSink() {
+
+            @Override
+            public void token(byte[] buffer, int offset, int length) {
+                tokens.add(Bytes.toString(buffer, offset, length));
+            }
+
+            @Override
+            public void end() {
+                tokens.add("$");
+            }
+        };
+        for(String value : values) {
+            byte[] bytes = Bytes.toBytes(value);
+            analyzer.analyze(bytes, 0, bytes.length, sink);
+        }
+        return tokens;
+    }
+
+    /**
+     * test if WordTokenizer splits words same as <code>\W+</code> without
+     * empty tokens.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testWordTokenizer() throws Exception {
+        Analyzer analyzer = Analyzer.compile(Analyzer.WORD_TOKENIZER, null);
+        assertThat(analyze(analyzer, "  Hello, world_1! café -- x", "", " ,. "),
+                is(Arrays.asList("Hello", "world_1", "caf", "x", "$", "$", "$")));
+    }
+
+    /**
+     * test if CJKTokenizer splits CJK runs into overlapping n-grams.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCJKTokenizer() throws Exception {
+        Analyzer analyzer = Analyzer.compile(Analyzer.CJK_TOKENIZER, null);
+        assertThat(analyze(analyzer, "東京都 in Tokyo、カタカナ。日 café_1"), is(Arrays.asList("東京", "京都", "in",
+                "Tokyo", "カタ", "タカ", "カナ", "日", "café_1", "$")));
+        assertThat(analyze(Analyzer.compile("cjk:3", null), "東京都庁"), is(Arrays.asList("東京都", "京都庁", "$")));
+        assertThat(analyze(Analyzer.compile("cjk:1", "lowercase"), "日本Japan"),
+                is(Arrays.asList("日", "本", "japan", "$")));
+    }
+
+    /**
+     * test if filters are chained in order.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testFilters() throws Exception {
+        Analyzer analyzer = Analyzer.compile(null, "lowercase stop:a;the length:2:6 stem");
+        assertThat(analyze(analyzer, "The Cats and a DOG ponies houses elephants"),
+                is(Arrays.asList("cat", "and", "dog", "pony", "house", "$")));
+    }
+
+    /**
+     * test if word n-grams don't span values.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testNGram() throws Exception {
+        Analyzer analyzer = Analyzer.compile(null, "ngram:1:2");
+        assertThat(analyze(analyzer, "new york city", "tokyo"),
+                is(Arrays.asList("new", "new york", "york", "york city", "city", "$", "tokyo", "$")));
+        assertThat(analyze(Analyzer.compile(null, "ngram:3"), "a b c d"),
+                is(Arrays.asList("a b c", "b c d", "$")));
+    }
+
+    /**
+     * test if an analyzer used by a thread can be collected while the thread
+     * lives.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCollectable() throws Exception {
+        Analyzer analyzer = Analyzer.compile(null, "lowercase stop:a");
+        analyze(analyzer, "A Cat");
+        WeakReference<Analyzer> reference = new WeakReference<Analyzer>(analyzer);
+        analyzer = null;
+        for(int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10L);
+        }
+        assertThat(reference.get(), is(nullValue()));
+    }
+}